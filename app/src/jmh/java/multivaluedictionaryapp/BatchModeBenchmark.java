@@ -0,0 +1,100 @@
+package multivaluedictionaryapp;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading 5000 keys with 100 members each from a script, into a fresh dictionary every
+ * iteration; the score is per (key, member) row. bulk writes a key's row as one MADD instead of
+ * 100 ADD lines. interactive is the console loop, a Scanner feeding execute() with output that is
+ * flushed on every println, batch is --batch through App.runBatch.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+@State(Scope.Thread)
+public class BatchModeBenchmark {
+
+  private static final int KEYS = 5_000;
+  private static final int MEMBERS_PER_KEY = 100;
+
+  @Param({"false", "true"})
+  boolean bulk;
+
+  private byte[] script;
+  private MultiValueDictionary dict;
+  private PrintStream originalOut;
+
+  @Setup(Level.Trial)
+  public void setUpScript() {
+    StringBuilder lines = new StringBuilder();
+    for (int k = 0; k < KEYS; k++) {
+      if (bulk) {
+        lines.append("MADD ").append(Workloads.key(k));
+        for (int m = 0; m < MEMBERS_PER_KEY; m++) {
+          lines.append(' ').append(Workloads.member(m));
+        }
+        lines.append('\n');
+      } else {
+        for (int m = 0; m < MEMBERS_PER_KEY; m++) {
+          lines.append("ADD ").append(Workloads.key(k));
+          lines.append(' ').append(Workloads.member(m)).append('\n');
+        }
+      }
+    }
+    script = lines.toString().getBytes(StandardCharsets.UTF_8);
+    originalOut = System.out;
+    // like System.out on a console: a small buffer flushed on every println
+    System.setOut(
+        new PrintStream(new BufferedOutputStream(OutputStream.nullOutputStream()), true));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownScript() {
+    System.setOut(originalOut);
+  }
+
+  @Setup(Level.Iteration)
+  public void setUpDictionary() {
+    dict = new MultiValueDictionary();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(KEYS * MEMBERS_PER_KEY)
+  public MultiValueDictionary interactive() {
+    Scanner scanner = new Scanner(new ByteArrayInputStream(script));
+    while (scanner.hasNextLine()) {
+      App.execute(dict, scanner.nextLine());
+    }
+    return dict;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(KEYS * MEMBERS_PER_KEY)
+  public long batch() throws IOException {
+    return App.runBatch(dict, new ByteArrayInputStream(script));
+  }
+}
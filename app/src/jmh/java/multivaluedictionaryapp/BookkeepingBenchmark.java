@@ -0,0 +1,100 @@
+package multivaluedictionaryapp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import multivaluedictionaryapp.MemoryBudget.EvictionPolicy;
+
+/**
+ * What the memory counters and a memory budget add to the plain map operations. The counters are
+ * always on; budget adds an LFU budget that is never reached, so it only keeps its access
+ * bookkeeping. add fills a fresh dictionary with four members on each key and scores per ADD,
+ * findMembers and getKeyCount (DBSIZE) run on the filled one.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+@State(Scope.Thread)
+public class BookkeepingBenchmark {
+
+  private static final int MEMBERS_PER_KEY = 4;
+
+  @Param({"100000"})
+  int keys;
+
+  @Param({"false", "true"})
+  boolean budget;
+
+  private MultiValueDictionary empty;
+  private MultiValueDictionary filled;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUpFilled() {
+    filled = dictionary();
+    fill(filled);
+  }
+
+  @Setup(Level.Iteration)
+  public void setUpEmpty() {
+    empty = dictionary();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(MEMBERS_PER_KEY * 100_000)
+  public MultiValueDictionary add() {
+    fill(empty);
+    return empty;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @Warmup(iterations = 3, time = 1)
+  @Measurement(iterations = 5, time = 1)
+  public Object findMembers() {
+    int i = next++;
+    if (next == keys) {
+      next = 0;
+    }
+    return filled.findMembers(Workloads.key(i));
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @Warmup(iterations = 3, time = 1)
+  @Measurement(iterations = 5, time = 1)
+  public long getKeyCount() {
+    return filled.getKeyCount();
+  }
+
+  private MultiValueDictionary dictionary() {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    if (budget) {
+      dict.setMemoryBudget(Long.MAX_VALUE, EvictionPolicy.LFU);
+    }
+    return dict;
+  }
+
+  private void fill(MultiValueDictionary dict) {
+    for (int m = 0; m < MEMBERS_PER_KEY; m++) {
+      for (int i = 0; i < keys; i++) {
+        dict.tryAdd(Workloads.key(i), Workloads.member(m));
+      }
+    }
+  }
+}
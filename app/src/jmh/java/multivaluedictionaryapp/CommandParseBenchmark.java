@@ -0,0 +1,95 @@
+package multivaluedictionaryapp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parse cost per line, from the raw line to the handler and its arguments: trim, split and a
+ * switch on the name as App.main did before the command table, against CommandTokenizer and
+ * CommandTable. Neither runs a command.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandParseBenchmark {
+
+  private static final String[] LINES = {
+    "ADD key1 value1", "MEMBEREXISTS key1 value1", "KEYS", "REMOVE key2 value2", "ITEMS",
+    "  MEMBERS key3  ", "UNKNOWN x"
+  };
+
+  private final CommandTable table = new CommandTable("%s");
+  private final CommandTokenizer tokens = new CommandTokenizer();
+  private int next;
+
+  @Setup
+  public void setUp() {
+    for (String usage :
+        new String[] {
+          "ADD key value", "KEYS", "MEMBERS key", "REMOVE key value", "REMOVEALL key", "CLEAR",
+          "KEYEXISTS key", "MEMBEREXISTS key value", "ALLMEMBERS", "ITEMS"
+        }) {
+      table.add(usage, (dict, tokens, out, err) -> {});
+    }
+  }
+
+  @Benchmark
+  public int splitAndSwitch() {
+    String[] arguments = nextLine().trim().split(" ");
+    return dispatch(arguments[0]) + arguments.length;
+  }
+
+  @Benchmark
+  public int tokenizerAndTable() {
+    tokens.reset(nextLine());
+    CommandTable.Command command = table.lookup(tokens);
+    return (command == null ? 0 : 1) + tokens.count();
+  }
+
+  private String nextLine() {
+    String line = LINES[next];
+    next = next + 1 == LINES.length ? 0 : next + 1;
+    return line;
+  }
+
+  // What App.main did before the table
+  private static int dispatch(String command) {
+    switch (command) {
+      case "ADD":
+        return 1;
+      case "KEYS":
+        return 2;
+      case "MEMBERS":
+        return 3;
+      case "REMOVE":
+        return 4;
+      case "REMOVEALL":
+        return 5;
+      case "CLEAR":
+        return 6;
+      case "KEYEXISTS":
+        return 7;
+      case "MEMBEREXISTS":
+        return 8;
+      case "ALLMEMBERS":
+        return 9;
+      case "ITEMS":
+        return 10;
+      default:
+        return 0;
+    }
+  }
+}
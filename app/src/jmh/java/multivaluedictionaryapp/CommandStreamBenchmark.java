@@ -0,0 +1,104 @@
+package multivaluedictionaryapp;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import multivaluedictionaryapp.Workloads.MemberDistribution;
+
+/**
+ * Command lines end to end: tokenizing, dispatch, the dictionary and printing the reply, as
+ * --batch runs them, with the output thrown away. One line per operation from a stream that is
+ * mostly reads on a few hot keys; ADD and REMOVE come at the same rate on the same members, so
+ * the dictionary stays about the same size. stats and capture turn on --stats and --capture, the
+ * latter into a temporary file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandStreamBenchmark {
+
+  @Param({"1000", "100000"})
+  int keys;
+
+  @Param({"UNIFORM"})
+  MemberDistribution distribution;
+
+  @Param({"false", "true"})
+  boolean stats;
+
+  @Param({"false", "true"})
+  boolean capture;
+
+  private MultiValueDictionary dict;
+  private Path captureFile;
+  private final String[] lines = new String[Workloads.PROBES];
+  private final PrintStream out =
+      new PrintStream(new BufferedOutputStream(OutputStream.nullOutputStream(), 1 << 16), false);
+  private int next;
+
+  @Setup
+  public void setUp() throws IOException {
+    int[] sizes = Workloads.sizes(keys, distribution, 1);
+    dict = Workloads.dictionary(StorageMode.HASH, sizes);
+    Random random = new Random(5);
+    for (int p = 0; p < lines.length; p++) {
+      // cubing a uniform value favours the first keys
+      double u = random.nextDouble();
+      String key = Workloads.key((int) (keys * u * u * u));
+      String member = Workloads.member(random.nextInt(16));
+      int command = random.nextInt(100);
+      if (command < 40) {
+        lines[p] = "MEMBERS " + key;
+      } else if (command < 70) {
+        lines[p] = "MEMBEREXISTS " + key + " " + member;
+      } else if (command < 80) {
+        lines[p] = "KEYEXISTS " + key;
+      } else if (command < 90) {
+        lines[p] = "ADD " + key + " " + member;
+      } else {
+        lines[p] = "REMOVE " + key + " " + member;
+      }
+    }
+    App.setCommandStatsEnabled(stats);
+    if (capture) {
+      captureFile = Files.createTempFile("commands", ".capture");
+      App.startCapture(captureFile);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    if (captureFile != null) {
+      App.stopCapture();
+      Files.delete(captureFile);
+      captureFile = null;
+    }
+  }
+
+  @Benchmark
+  public boolean execute() {
+    return App.execute(dict, lines[next++ & (Workloads.PROBES - 1)], out, out);
+  }
+}
@@ -0,0 +1,149 @@
+package multivaluedictionaryapp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares two JMH result files written with resultFormat CSV, benchmark by benchmark and
+ * parameter by parameter:
+ *
+ * <pre>
+ * CompareResults base.csv current.csv [threshold percent, 10 by default]
+ * </pre>
+ *
+ * A result is a regression when it is worse by more than the threshold and the 99.9% error
+ * intervals of the two runs do not overlap. The exit status is 1 if there is one.
+ */
+public class CompareResults {
+
+  private static final class Result {
+    final double score;
+    final double error;
+    final String unit;
+    // time per operation is better lower, operations per time higher
+    final boolean higherIsBetter;
+
+    Result(double score, double error, String unit, String mode) {
+      this.score = score;
+      this.error = Double.isNaN(error) ? 0 : error;
+      this.unit = unit;
+      this.higherIsBetter = mode.equals("thrpt");
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2 || args.length > 3) {
+      System.err.println("Usage: CompareResults base.csv current.csv [threshold percent]");
+      System.exit(2);
+    }
+    double threshold = args.length == 3 ? Double.parseDouble(args[2]) : 10;
+    Map<String, Result> base = read(args[0]);
+    Map<String, Result> current = read(args[1]);
+    int regressions = 0;
+    for (Map.Entry<String, Result> entry : current.entrySet()) {
+      Result before = base.get(entry.getKey());
+      Result after = entry.getValue();
+      if (before == null) {
+        System.out.println(String.format(Locale.ROOT, "%-72s %14s new", entry.getKey(), ""));
+        continue;
+      }
+      double change = (after.score - before.score) / before.score * 100;
+      double worse = after.higherIsBetter ? -change : change;
+      boolean apart =
+          after.score - after.error > before.score + before.error
+              || after.score + after.error < before.score - before.error;
+      String verdict = worse > threshold && apart ? "REGRESSION" : "";
+      if (!verdict.isEmpty()) {
+        regressions++;
+      }
+      System.out.println(
+          String.format(
+              Locale.ROOT,
+              "%-72s %12.3f -> %12.3f %s %+7.1f%% %s",
+              entry.getKey(),
+              before.score,
+              after.score,
+              after.unit,
+              change,
+              verdict));
+    }
+    System.out.println(regressions + " regression(s) over " + threshold + "%");
+    System.exit(regressions > 0 ? 1 : 0);
+  }
+
+  // Results by benchmark, mode and parameters, in file order
+  private static Map<String, Result> read(String file) throws IOException {
+    List<String> lines = Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+    Map<String, Result> results = new LinkedHashMap<>();
+    if (lines.isEmpty()) {
+      return results;
+    }
+    List<String> header = fields(lines.get(0));
+    int benchmark = header.indexOf("Benchmark");
+    int mode = header.indexOf("Mode");
+    int score = header.indexOf("Score");
+    int error = header.indexOf("Score Error (99.9%)");
+    int unit = header.indexOf("Unit");
+    for (String line : lines.subList(1, lines.size())) {
+      List<String> row = fields(line);
+      if (row.size() < header.size()) {
+        continue;
+      }
+      // Class.method, without the package
+      String name = row.get(benchmark);
+      int method = name.lastIndexOf('.');
+      name = name.substring(name.lastIndexOf('.', method - 1) + 1);
+      StringBuilder key = new StringBuilder(name).append(' ').append(row.get(mode));
+      for (int i = 0; i < header.size(); i++) {
+        if (header.get(i).startsWith("Param: ") && !row.get(i).isEmpty()) {
+          key.append(' ').append(header.get(i).substring(7)).append('=').append(row.get(i));
+        }
+      }
+      results.put(
+          key.toString(),
+          new Result(
+              number(row.get(score)), number(row.get(error)), row.get(unit), row.get(mode)));
+    }
+    return results;
+  }
+
+  // The comma separated fields of a line, quotes removed
+  private static List<String> fields(String line) {
+    List<String> fields = new ArrayList<>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c == '"') {
+        if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          i++;
+        } else {
+          quoted = !quoted;
+        }
+      } else if (c == ',' && !quoted) {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString());
+    return fields;
+  }
+
+  private static double number(String text) {
+    try {
+      return Double.parseDouble(text);
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+}
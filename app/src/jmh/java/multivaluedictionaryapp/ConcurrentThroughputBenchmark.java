@@ -0,0 +1,111 @@
+package multivaluedictionaryapp;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How ConcurrentMultiValueDictionary scales with the threads sharing it: 50% MEMBEREXISTS, 25% ADD
+ * and 25% REMOVE on 1024 keys with up to 64 members, from 1, 2, 4 and 8 threads and from one per
+ * core. The score is the total over all threads, so it should grow with them up to the cores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentThroughputBenchmark {
+
+  @Param({"1024"})
+  int keys;
+
+  @Param({"64"})
+  int members;
+
+  private ConcurrentMultiValueDictionary dict;
+
+  @Setup
+  public void setUp() {
+    dict = new ConcurrentMultiValueDictionary();
+    for (int i = 0; i < keys; i++) {
+      dict.tryAdd(Workloads.key(i), Workloads.member(i % members));
+    }
+  }
+
+  // Commands of one benchmark thread, each thread from its own seed
+  @State(Scope.Thread)
+  public static class Stream {
+    private static final AtomicInteger SEEDS = new AtomicInteger();
+
+    final String[] keys = new String[Workloads.PROBES];
+    final String[] members = new String[Workloads.PROBES];
+    final int[] commands = new int[Workloads.PROBES];
+    int next;
+
+    @Setup
+    public void setUp(ConcurrentThroughputBenchmark benchmark) {
+      Random random = new Random(SEEDS.incrementAndGet());
+      for (int p = 0; p < Workloads.PROBES; p++) {
+        keys[p] = Workloads.key(random.nextInt(benchmark.keys));
+        members[p] = Workloads.member(random.nextInt(benchmark.members));
+        commands[p] = random.nextInt(4);
+      }
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Outcome threads1(Stream stream) {
+    return mixed(stream);
+  }
+
+  @Benchmark
+  @Threads(2)
+  public Outcome threads2(Stream stream) {
+    return mixed(stream);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Outcome threads4(Stream stream) {
+    return mixed(stream);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public Outcome threads8(Stream stream) {
+    return mixed(stream);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Outcome threadsPerCore(Stream stream) {
+    return mixed(stream);
+  }
+
+  private Outcome mixed(Stream stream) {
+    int p = stream.next++ & (Workloads.PROBES - 1);
+    switch (stream.commands[p]) {
+      case 0:
+        return dict.tryAdd(stream.keys[p], stream.members[p]);
+      case 1:
+        return dict.tryRemoveMember(stream.keys[p], stream.members[p]);
+      default:
+        return dict.findMember(stream.keys[p], stream.members[p]);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package multivaluedictionaryapp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import multivaluedictionaryapp.Workloads.MemberDistribution;
+import multivaluedictionaryapp.Workloads.Probes;
+
+/**
+ * ADD and REMOVE through the exception-throwing API. They change the dictionary, so instead of a
+ * steady state each iteration starts from a fresh one and times one pass over the probes; the
+ * score is per call. For add a hit is a pair that is already there (MemberAlreadyExistsException),
+ * for removeMemberFromKey a pair that can be removed (otherwise MembersNotFoundException).
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+@State(Scope.Thread)
+public class DictionaryMutationBenchmark {
+
+  @Param({"1000", "100000"})
+  int keys;
+
+  @Param({"ONE", "UNIFORM", "SKEWED"})
+  MemberDistribution distribution;
+
+  @Param({"0.0", "0.5", "1.0"})
+  double hitRatio;
+
+  @Param({"HASH"})
+  StorageMode storageMode;
+
+  private int[] sizes;
+  private Probes probes;
+  private MultiValueDictionary dict;
+
+  @Setup(Level.Trial)
+  public void setUpProbes() {
+    sizes = Workloads.sizes(keys, distribution, 1);
+    probes = Workloads.probes(sizes, hitRatio, false, 4);
+  }
+
+  @Setup(Level.Iteration)
+  public void setUpDictionary() {
+    dict = Workloads.dictionary(storageMode, sizes);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Workloads.PROBES)
+  public void add(Blackhole blackhole) {
+    for (int p = 0; p < Workloads.PROBES; p++) {
+      try {
+        dict.add(probes.keys[p], probes.members[p]);
+      } catch (MemberAlreadyExistsException e) {
+        blackhole.consume(e);
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Workloads.PROBES)
+  public void removeMemberFromKey(Blackhole blackhole) {
+    for (int p = 0; p < Workloads.PROBES; p++) {
+      try {
+        dict.removeMemberFromKey(probes.keys[p], probes.members[p]);
+      } catch (KeyNotFoundException | MembersNotFoundException e) {
+        blackhole.consume(e);
+      }
+    }
+  }
+}
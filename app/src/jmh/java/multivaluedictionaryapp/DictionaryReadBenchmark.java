@@ -0,0 +1,83 @@
+package multivaluedictionaryapp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import multivaluedictionaryapp.Workloads.MemberDistribution;
+import multivaluedictionaryapp.Workloads.Probes;
+
+/**
+ * MEMBERS and MEMBEREXISTS through the exception-throwing API, one lookup per operation. A miss
+ * of getMembers is a key that does not exist, a miss of isMemberExistsWithinAKey a member the key
+ * does not have; misses of getMembers pay for the exception. findMembers looks up the same keys
+ * as getMembers and returns null on a miss instead.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DictionaryReadBenchmark {
+
+  @Param({"1000", "100000"})
+  int keys;
+
+  @Param({"ONE", "UNIFORM", "SKEWED"})
+  MemberDistribution distribution;
+
+  @Param({"1.0", "0.5"})
+  double hitRatio;
+
+  @Param({"HASH"})
+  StorageMode storageMode;
+
+  private MultiValueDictionary dict;
+  private Probes keyProbes;
+  private Probes memberProbes;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    int[] sizes = Workloads.sizes(keys, distribution, 1);
+    dict = Workloads.dictionary(storageMode, sizes);
+    keyProbes = Workloads.probes(sizes, hitRatio, true, 2);
+    memberProbes = Workloads.probes(sizes, hitRatio, false, 3);
+  }
+
+  @Benchmark
+  public Object getMembers() {
+    int p = next++ & (Workloads.PROBES - 1);
+    try {
+      return dict.getMembers(keyProbes.keys[p]);
+    } catch (KeyNotFoundException e) {
+      return e;
+    }
+  }
+
+  @Benchmark
+  public Object findMembers() {
+    return dict.findMembers(keyProbes.keys[next++ & (Workloads.PROBES - 1)]);
+  }
+
+  @Benchmark
+  public Object isMemberExistsWithinAKey() {
+    int p = next++ & (Workloads.PROBES - 1);
+    try {
+      return dict.isMemberExistsWithinAKey(memberProbes.keys[p], memberProbes.members[p]);
+    } catch (KeyNotFoundException e) {
+      return e;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package multivaluedictionaryapp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import multivaluedictionaryapp.Workloads.MemberDistribution;
+
+/** ITEMS and ALLMEMBERS, each operation a full pass that collects the whole dictionary. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DictionaryScanBenchmark {
+
+  @Param({"1000", "100000"})
+  int keys;
+
+  @Param({"ONE", "UNIFORM", "SKEWED"})
+  MemberDistribution distribution;
+
+  @Param({"HASH"})
+  StorageMode storageMode;
+
+  private MultiValueDictionary dict;
+
+  @Setup
+  public void setUp() {
+    dict = Workloads.dictionary(storageMode, Workloads.sizes(keys, distribution, 1));
+  }
+
+  @Benchmark
+  public Object getItems() {
+    return dict.getItems();
+  }
+
+  @Benchmark
+  public Object getAllMembers() {
+    return dict.getAllMembers();
+  }
+}
@@ -0,0 +1,113 @@
+package multivaluedictionaryapp;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TTLs on keys with one member each, up to 100 s, on a clock the benchmark moves. expire gives
+ * every key of a fresh dictionary its TTL, expireDue moves the clock on 10 ms at a time until all
+ * of them are gone; both score per key. idleExpireDue is the check between commands when nothing
+ * is due.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class ExpiryBenchmark {
+
+  private static final int MAX_TTL_MILLIS = 100_000;
+  private static final int STEP_MILLIS = 10;
+
+  @Param({"1000000"})
+  int keys;
+
+  private int[] ttls;
+
+  // Keys without TTLs yet
+  @State(Scope.Thread)
+  public static class Fresh {
+    MultiValueDictionary dict;
+
+    @Setup(Level.Iteration)
+    public void setUp(ExpiryBenchmark benchmark) {
+      dict = benchmark.dictionary(new long[1]);
+    }
+  }
+
+  // Keys that all have their TTL, none due yet
+  @State(Scope.Thread)
+  public static class Expiring {
+    final long[] now = new long[1];
+    MultiValueDictionary dict;
+
+    @Setup(Level.Iteration)
+    public void setUp(ExpiryBenchmark benchmark) {
+      now[0] = 0;
+      dict = benchmark.dictionary(now);
+      for (int i = 0; i < benchmark.keys; i++) {
+        dict.expire(Workloads.key(i), benchmark.ttls[i]);
+      }
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setUpTtls() {
+    Random random = new Random(7);
+    ttls = new int[keys];
+    for (int i = 0; i < keys; i++) {
+      ttls[i] = 1 + random.nextInt(MAX_TTL_MILLIS);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(1_000_000)
+  public void expire(Fresh fresh) {
+    for (int i = 0; i < keys; i++) {
+      fresh.dict.expire(Workloads.key(i), ttls[i]);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(1_000_000)
+  public long expireDue(Expiring expiring) {
+    for (long t = STEP_MILLIS; t <= MAX_TTL_MILLIS; t += STEP_MILLIS) {
+      expiring.now[0] = t;
+      expiring.dict.expireDue();
+    }
+    return expiring.dict.getKeyCount();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @Warmup(iterations = 3, time = 1)
+  @Measurement(iterations = 5, time = 1)
+  public void idleExpireDue(Expiring expiring) {
+    expiring.dict.expireDue();
+  }
+
+  // The keys on a clock that reads now[0]
+  private MultiValueDictionary dictionary(long[] now) {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    dict.setExpiryClock(() -> now[0]);
+    for (int i = 0; i < keys; i++) {
+      dict.tryAdd(Workloads.key(i), "member");
+    }
+    return dict;
+  }
+}
@@ -0,0 +1,88 @@
+package multivaluedictionaryapp;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The queries the key index and the reverse index serve, with both indexes on and with both off,
+ * when every key or item is looked at. Keys are spread over tenants, "tenant7:1234", so that
+ * KEYS with a tenant's prefix matches 100 of them; every key has 10 members drawn from ten times
+ * as many as there are keys, so KEYSFOR finds about one key. SCAN takes one batch of 100 from a
+ * random key on.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IndexQueryBenchmark {
+
+  private static final int KEYS_PER_TENANT = 100;
+  private static final int MEMBERS_PER_KEY = 10;
+  private static final int SCAN_COUNT = 100;
+
+  @Param({"100000"})
+  int keys;
+
+  @Param({"false", "true"})
+  boolean indexed;
+
+  private MultiValueDictionary dict;
+  private final String[] prefixes = new String[Workloads.PROBES];
+  private final String[] cursors = new String[Workloads.PROBES];
+  private final String[] members = new String[Workloads.PROBES];
+  private int next;
+
+  @Setup
+  public void setUp() {
+    int tenants = keys / KEYS_PER_TENANT;
+    int distinctMembers = keys * MEMBERS_PER_KEY;
+    dict = new MultiValueDictionary();
+    Random random = new Random(5);
+    for (int i = 0; i < keys; i++) {
+      String key = "tenant" + (i % tenants) + ":" + i;
+      for (int m = 0; m < MEMBERS_PER_KEY; m++) {
+        dict.tryAdd(key, Workloads.member(random.nextInt(distinctMembers)));
+      }
+    }
+    dict.setKeyIndexEnabled(indexed);
+    dict.setReverseIndexEnabled(indexed);
+    for (int p = 0; p < Workloads.PROBES; p++) {
+      prefixes[p] = "tenant" + random.nextInt(tenants) + ":";
+      int i = random.nextInt(keys);
+      cursors[p] = ScanResult.encode("tenant" + (i % tenants) + ":" + i, null);
+      members[p] = Workloads.member(random.nextInt(distinctMembers));
+    }
+  }
+
+  // KEYS prefix
+  @Benchmark
+  public Object keysWithPrefix() {
+    return dict.getKeysWithPrefix(prefixes[next++ & (Workloads.PROBES - 1)], Integer.MAX_VALUE);
+  }
+
+  // SCAN cursor 100
+  @Benchmark
+  public Object scanKeys() {
+    return dict.scanKeys(cursors[next++ & (Workloads.PROBES - 1)], SCAN_COUNT);
+  }
+
+  // KEYSFOR member
+  @Benchmark
+  public Object getKeysFor() {
+    return dict.getKeysFor(members[next++ & (Workloads.PROBES - 1)]);
+  }
+}
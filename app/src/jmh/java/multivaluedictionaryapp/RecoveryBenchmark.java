@@ -0,0 +1,90 @@
+package multivaluedictionaryapp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The two ways back to a dictionary after a restart, and SAVE that makes the first possible:
+ * load reads a snapshot and answers one MEMBEREXISTS, replay reads the write-ahead log of every
+ * ADD that built it. Each call restores or saves the whole dictionary, keys times members pairs,
+ * in temporary files.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class RecoveryBenchmark {
+
+  @Param({"50000"})
+  int keys;
+
+  @Param({"10"})
+  int members;
+
+  private MultiValueDictionary dict;
+  private Path dir;
+  private Path log;
+  private Path snapshot;
+
+  @Setup
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("recovery");
+    log = dir.resolve("dict.log");
+    snapshot = dir.resolve("dict.snap");
+    dict = new MultiValueDictionary();
+    try (WriteAheadLog wal = WriteAheadLog.open(log, dict, WriteAheadLog.FsyncPolicy.OS, 0)) {
+      for (int k = 0; k < keys; k++) {
+        for (int m = 0; m < members; m++) {
+          dict.tryAdd(Workloads.key(k), Workloads.member(k + m));
+        }
+      }
+      // keeps the full log to replay
+      dict.removeMutationListener(wal);
+    }
+    dict.save(snapshot);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(log);
+    Files.deleteIfExists(snapshot);
+    Files.delete(dir);
+  }
+
+  @Benchmark
+  public Path save() throws IOException {
+    dict.save(snapshot);
+    return snapshot;
+  }
+
+  @Benchmark
+  public boolean load() throws IOException, KeyNotFoundException {
+    MultiValueDictionary loaded = new MultiValueDictionary();
+    loaded.load(snapshot);
+    return loaded.isMemberExistsWithinAKey(Workloads.key(123), Workloads.member(130));
+  }
+
+  @Benchmark
+  public MultiValueDictionary replay() throws IOException {
+    MultiValueDictionary replayed = new MultiValueDictionary();
+    WriteAheadLog.open(log, replayed, WriteAheadLog.FsyncPolicy.OS, 0).close();
+    return replayed;
+  }
+}
@@ -0,0 +1,136 @@
+package multivaluedictionaryapp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Requests per second and round-trip latency of a DictionaryServer on loopback with 1, 64 and
+ * 1024 clients. Every benchmark thread is one connection with a key of its own, so
+ * connections64 runs 64 threads against the one selector thread of the server. A call sends
+ * depth commands in one write, half ADD and half MEMBEREXISTS, and waits for all of their
+ * replies; with depth 1 a sample is one request, with more it is the pipelined batch.
+ *
+ * <p>Throughput is the total over all connections and SampleTime reports the percentiles, p0.99
+ * among them. 1024 connections need as many file descriptors on each side, so raise
+ * {@code ulimit -n} before running {@code gradle jmh -PjmhIncludes=ServerRoundTripBenchmark}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServerRoundTripBenchmark {
+
+  // members per key, ADD of one that is there again gets its error reply
+  private static final int MEMBERS = 1024;
+
+  @Param({"1", "16"})
+  int depth;
+
+  private DictionaryServer server;
+  private final AtomicInteger connections = new AtomicInteger();
+
+  @State(Scope.Thread)
+  public static class Connection {
+    Socket socket;
+    OutputStream out;
+    BufferedReader in;
+    String key;
+    int sent;
+
+    @Setup
+    public void setUp(ServerRoundTripBenchmark benchmark) throws IOException {
+      socket = new Socket(InetAddress.getLoopbackAddress(), benchmark.server.port());
+      socket.setTcpNoDelay(true);
+      out = socket.getOutputStream();
+      in =
+          new BufferedReader(
+              new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      key = Workloads.key(benchmark.connections.getAndIncrement());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+      socket.close();
+    }
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    server =
+        DictionaryServer.start(
+            new MultiValueDictionary(),
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    server.close();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public int connections1(Connection connection) throws IOException {
+    return roundTrip(connection);
+  }
+
+  @Benchmark
+  @Threads(64)
+  public int connections64(Connection connection) throws IOException {
+    return roundTrip(connection);
+  }
+
+  @Benchmark
+  @Threads(1024)
+  public int connections1024(Connection connection) throws IOException {
+    return roundTrip(connection);
+  }
+
+  private int roundTrip(Connection connection) throws IOException {
+    StringBuilder lines = new StringBuilder();
+    for (int c = 0; c < depth; c++) {
+      int n = connection.sent++ % MEMBERS;
+      lines.append(n % 2 == 0 ? "ADD " : "MEMBEREXISTS ").append(connection.key);
+      lines.append(' ').append(Workloads.member(n - n % 2)).append('\n');
+    }
+    connection.out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+    connection.out.flush();
+    // every reply ends with an empty line
+    int replies = 0;
+    int length = 0;
+    while (replies < depth) {
+      String line = connection.in.readLine();
+      if (line == null) {
+        throw new IOException("server closed the connection");
+      }
+      if (line.isEmpty()) {
+        replies++;
+      }
+      length += line.length();
+    }
+    return length;
+  }
+}
@@ -0,0 +1,95 @@
+package multivaluedictionaryapp;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A mixed workload from as many threads as there are cores on one shared dictionary: 70%
+ * MEMBEREXISTS, 15% ADD and 15% REMOVE on random keys. shards 0 is ConcurrentMultiValueDictionary
+ * for comparison, any other value ShardedMultiValueDictionary with that many shards; throughput
+ * should grow with the shards until they reach the cores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+@State(Scope.Benchmark)
+public class ShardedThroughputBenchmark {
+
+  @Param({"100000"})
+  int keys;
+
+  @Param({"0", "1", "2", "4", "8", "16", "32"})
+  int shards;
+
+  private MultiValueDictionary dict;
+
+  @Setup
+  public void setUp() {
+    dict =
+        shards == 0
+            ? new ConcurrentMultiValueDictionary()
+            : new ShardedMultiValueDictionary(shards);
+    for (int i = 0; i < keys; i++) {
+      dict.tryAdd(Workloads.key(i), Workloads.member(i & 7));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (dict instanceof ShardedMultiValueDictionary) {
+      ((ShardedMultiValueDictionary) dict).close();
+    }
+  }
+
+  // Commands of one benchmark thread, each thread from its own seed
+  @State(Scope.Thread)
+  public static class Stream {
+    private static final AtomicInteger SEEDS = new AtomicInteger();
+
+    final String[] keys = new String[Workloads.PROBES];
+    final String[] members = new String[Workloads.PROBES];
+    final int[] commands = new int[Workloads.PROBES];
+    int next;
+
+    @Setup
+    public void setUp(ShardedThroughputBenchmark benchmark) {
+      Random random = new Random(SEEDS.incrementAndGet());
+      for (int p = 0; p < Workloads.PROBES; p++) {
+        keys[p] = Workloads.key(random.nextInt(benchmark.keys));
+        members[p] = Workloads.member(random.nextInt(16));
+        commands[p] = random.nextInt(100);
+      }
+    }
+  }
+
+  @Benchmark
+  public Outcome mixed(Stream stream) {
+    int p = stream.next++ & (Workloads.PROBES - 1);
+    int command = stream.commands[p];
+    if (command < 70) {
+      return dict.findMember(stream.keys[p], stream.members[p]);
+    } else if (command < 85) {
+      return dict.tryAdd(stream.keys[p], stream.members[p]);
+    } else {
+      return dict.tryRemoveMember(stream.keys[p], stream.members[p]);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package multivaluedictionaryapp;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Heap and direct memory retained by each storage mode for 50k keys with 6 of 2000 members, next
+ * to the time it takes to build them. freshStrings gives every pair its own String instances, as
+ * if each had been parsed from its own input line; without it the members are shared, so only the
+ * per-key set layout differs. reverseIndex turns the reverse index on over such a dictionary and
+ * reports its heap next to ReverseIndex.estimatedBytes(), which INFO shows. Heap is measured
+ * around System.gc(), so compare the modes of one run rather than runs on different JVMs.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Thread)
+public class StorageFootprintBenchmark {
+
+  private static final int KEYS = 50_000;
+  private static final int MEMBERS_PER_KEY = 6;
+  private static final int DISTINCT_MEMBERS = 2_000;
+
+  @Param({"HASH", "INTERNED", "COMPACT", "OFF_HEAP"})
+  StorageMode storageMode;
+
+  @Param({"true", "false"})
+  boolean freshStrings;
+
+  private final String[] distinctMembers = new String[DISTINCT_MEMBERS];
+
+  // Reported next to the build time, per iteration
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class Footprint {
+    public long heapKilobytes;
+    public long offHeapKilobytes;
+    public long estimatedKilobytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      heapKilobytes = 0;
+      offHeapKilobytes = 0;
+      estimatedKilobytes = 0;
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    for (int i = 0; i < distinctMembers.length; i++) {
+      distinctMembers[i] = "member-" + i;
+    }
+  }
+
+  // Built without the reverse index for reverseIndex
+  private MultiValueDictionary unindexed;
+
+  @Setup(Level.Iteration)
+  public void setUpUnindexed() {
+    unindexed = null;
+    unindexed = fill();
+  }
+
+  @Benchmark
+  public MultiValueDictionary build(Footprint footprint) {
+    long before = usedHeap();
+    MultiValueDictionary dict = fill();
+    footprint.heapKilobytes = (usedHeap() - before) / 1024;
+    if (dict.getMap() instanceof OffHeapMemberMap) {
+      footprint.offHeapKilobytes = ((OffHeapMemberMap) dict.getMap()).offHeapBytes() / 1024;
+    }
+    return dict;
+  }
+
+  @Benchmark
+  public MultiValueDictionary reverseIndex(Footprint footprint) {
+    long before = usedHeap();
+    unindexed.setReverseIndexEnabled(true);
+    footprint.heapKilobytes = (usedHeap() - before) / 1024;
+    footprint.estimatedKilobytes = unindexed.getReverseIndex().estimatedBytes() / 1024;
+    return unindexed;
+  }
+
+  private MultiValueDictionary fill() {
+    MultiValueDictionary dict = new MultiValueDictionary(storageMode);
+    Random random = new Random(7);
+    for (int k = 0; k < KEYS; k++) {
+      String key = "key-" + k;
+      for (int m = 0; m < MEMBERS_PER_KEY; m++) {
+        String member = distinctMembers[random.nextInt(DISTINCT_MEMBERS)];
+        dict.tryAdd(key, freshStrings ? new String(member) : member);
+      }
+    }
+    return dict;
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
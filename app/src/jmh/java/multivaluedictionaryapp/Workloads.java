@@ -0,0 +1,83 @@
+package multivaluedictionaryapp;
+
+import java.util.Random;
+
+/** Dictionaries and probe streams the benchmarks share, generated from fixed seeds. */
+final class Workloads {
+
+  // probes per stream, a power of two so the benchmarks can wrap around with a mask
+  static final int PROBES = 1 << 16;
+
+  // How many members each key gets
+  enum MemberDistribution {
+    ONE,
+    // 1 to 16, 8.5 on average
+    UNIFORM,
+    // power law: most keys have 1 to 3 members, a few have thousands
+    SKEWED;
+
+    int members(Random random) {
+      switch (this) {
+        case ONE:
+          return 1;
+        case UNIFORM:
+          return 1 + random.nextInt(16);
+        default:
+          return (int) Math.min(4096, Math.pow(1 - random.nextDouble(), -0.7));
+      }
+    }
+  }
+
+  // (key, member) pairs to look up, a hit when the pair is in the dictionary
+  static final class Probes {
+    final String[] keys = new String[PROBES];
+    final String[] members = new String[PROBES];
+  }
+
+  private Workloads() {}
+
+  static String key(int i) {
+    return "key" + i;
+  }
+
+  static String member(int j) {
+    return "member" + j;
+  }
+
+  // Members of every key
+  static int[] sizes(int keys, MemberDistribution distribution, long seed) {
+    Random random = new Random(seed);
+    int[] sizes = new int[keys];
+    for (int i = 0; i < keys; i++) {
+      sizes[i] = distribution.members(random);
+    }
+    return sizes;
+  }
+
+  static MultiValueDictionary dictionary(StorageMode mode, int[] sizes) {
+    MultiValueDictionary dict = new MultiValueDictionary(mode);
+    for (int i = 0; i < sizes.length; i++) {
+      String key = key(i);
+      for (int j = 0; j < sizes[i]; j++) {
+        dict.tryAdd(key, member(j));
+      }
+    }
+    return dict;
+  }
+
+  /**
+   * Probes on random keys, the fraction hitRatio of them pairs that are in the dictionary. A miss
+   * is a key that does not exist when missingKeys is set, otherwise a member the key lacks.
+   */
+  static Probes probes(int[] sizes, double hitRatio, boolean missingKeys, long seed) {
+    Random random = new Random(seed);
+    Probes probes = new Probes();
+    for (int p = 0; p < PROBES; p++) {
+      int i = random.nextInt(sizes.length);
+      boolean hit = random.nextDouble() < hitRatio;
+      probes.keys[p] = hit || !missingKeys ? key(i) : "absent" + i;
+      probes.members[p] = hit ? member(random.nextInt(sizes[i])) : member(sizes[i] + p);
+    }
+    return probes;
+  }
+}
@@ -1,7 +1,28 @@
 package multivaluedictionaryapp;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.annotations.VisibleForTesting;
 
@@ -10,219 +31,1387 @@ public class App {
   protected static final String MISSING_OR_REDUNDANT_PARAMETER_ERROR =
       "Error, missing or redundant parameter, please use '%s'.";
   protected static final String EMPTY_SET_MESSAGE = "(empty set)";
+  protected static final String NEXT_PAGE_MESSAGE = "(next page from %s)";
+  protected static final String COUNT_ERROR = "Error, count must be a positive number.";
+  protected static final String NEXT_CURSOR_MESSAGE = "(next cursor %s)";
+  protected static final int DEFAULT_SCAN_COUNT = 10;
+  protected static final String SECONDS_ERROR = "Error, seconds must be a number.";
+  protected static final String NO_EXPIRY_MESSAGE = "(no expiry)";
+  protected static final String MEMORY_USAGE = "MEMORY USAGE key";
+  protected static final String INFO_SECTION_ERROR = "Error, unknown INFO section.";
+  protected static final String READ_ONLY_ERROR = "Error, this is a read-only replica.";
+  protected static final String RANGE_ERROR = "Error, ranges must be numbers.";
+  protected static final String STATS_OFF_MESSAGE = "(command stats are off, start with --stats)";
+  protected static final String DATA_DIR_ERROR = "Error, snapshot files must be inside %s.";
+  protected static final String MIGRATE_HOST_ERROR =
+      "Error, MIGRATE only sends keys to the hosts of --migrate-to.";
+  protected static final String MIGRATION_RUNNING_ERROR = "Error, a migration to %s is running.";
+  protected static final String NO_MIGRATION_MESSAGE = "(no migration)";
+
+  protected static final String BATCH_OPTION = "--batch";
+  protected static final String LOAD_OPTION = "--load";
+  protected static final String WAL_OPTION = "--wal";
+  protected static final String FSYNC_OPTION = "--fsync";
+  protected static final String FSYNC_INTERVAL_OPTION = "--fsync-interval-ms";
+  protected static final String PORT_OPTION = "--port";
+  protected static final String BIND_OPTION = "--bind";
+  protected static final String DATA_DIR_OPTION = "--data-dir";
+  protected static final String MIGRATE_TO_OPTION = "--migrate-to";
+  protected static final String REVERSE_INDEX_OPTION = "--reverse-index";
+  protected static final String KEY_INDEX_OPTION = "--key-index";
+  protected static final String MAX_MEMORY_OPTION = "--max-memory";
+  protected static final String EVICTION_OPTION = "--eviction";
+  protected static final String STATS_OPTION = "--stats";
+  protected static final String STATS_INTERVAL_OPTION = "--stats-interval";
+  protected static final String CAPTURE_OPTION = "--capture";
+  protected static final String REPLAY_OPTION = "--replay";
+  protected static final String SPEED_OPTION = "--speed";
+  protected static final String GENERATE_OPTION = "--generate";
+  protected static final String COMMANDS_OPTION = "--commands";
+  protected static final String KEYS_OPTION = "--keys";
+  protected static final String ZIPF_OPTION = "--zipf";
+  protected static final String RATE_OPTION = "--rate";
+  protected static final String SEED_OPTION = "--seed";
+  protected static final String SHARDS_OPTION = "--shards";
+  protected static final String REPLICATE_PORT_OPTION = "--replicate-port";
+  protected static final String REPLICA_OF_OPTION = "--replica-of";
+  protected static final String CLUSTER_OPTION = "--cluster";
+  protected static final String VNODES_OPTION = "--vnodes";
+  protected static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 100;
+  private static final int BATCH_BUFFER_SIZE = 1 << 16;
+
+  // Built once, the usage string also tells how many tokens a command takes
+  private static final CommandTable COMMANDS =
+      new CommandTable(MISSING_OR_REDUNDANT_PARAMETER_ERROR)
+          .addWrite(
+              "ADD key value",
+              (dict, tokens, out, err) -> add(dict, tokens.token(1), tokens.token(2), out, err))
+          .add(
+              "KEYS [prefix]",
+              (dict, tokens, out, err) -> {
+                if (tokens.count() == 1) {
+                  keys(dict, out);
+                } else {
+                  keysWithPrefix(dict, tokens.token(1), out);
+                }
+              })
+          .add(
+              "KEYRANGE from to count",
+              (dict, tokens, out, err) ->
+                  keyRange(dict, tokens.token(1), tokens.token(2), tokens.token(3), out, err))
+          .add("MEMBERS key", (dict, tokens, out, err) -> members(dict, tokens.token(1), out, err))
+          .addWrite(
+              "REMOVE key value",
+              (dict, tokens, out, err) -> remove(dict, tokens.token(1), tokens.token(2), out, err))
+          .addWrite(
+              "REMOVEALL key",
+              (dict, tokens, out, err) -> removeAll(dict, tokens.token(1), out, err))
+          .addWrite("CLEAR", (dict, tokens, out, err) -> clear(dict, out))
+          .add("KEYEXISTS key", (dict, tokens, out, err) -> keyExists(dict, tokens.token(1), out))
+          .add(
+              "MEMBEREXISTS key value",
+              (dict, tokens, out, err) ->
+                  memberExists(dict, tokens.token(1), tokens.token(2), out, err))
+          .addWrite(
+              "MADD key member [member ...]",
+              (dict, tokens, out, err) -> addMembers(dict, tokens, out))
+          .addWrite(
+              "MREMOVE key member [member ...]",
+              (dict, tokens, out, err) -> removeMembers(dict, tokens, out, err))
+          .add(
+              "MMEMBEREXISTS key member [key member ...]",
+              (dict, tokens, out, err) -> memberPairsExist(dict, tokens, out))
+          .add("KEYSFOR member", (dict, tokens, out, err) -> keysFor(dict, tokens.token(1), out))
+          .add(
+              "SCAN cursor [count]",
+              (dict, tokens, out, err) -> scan(dict, tokens, out, err))
+          .add(
+              "ISCAN cursor [count]",
+              (dict, tokens, out, err) -> itemScan(dict, tokens, out, err))
+          .addWrite(
+              "EXPIRE key seconds [member]",
+              (dict, tokens, out, err) -> expire(dict, tokens, out, err))
+          .add(
+              "TTL key [member]",
+              (dict, tokens, out, err) ->
+                  ttl(dict, tokens.token(1), optionalToken(tokens, 2), out, err))
+          .addWrite(
+              "PERSIST key [member]",
+              (dict, tokens, out, err) ->
+                  persist(dict, tokens.token(1), optionalToken(tokens, 2), out, err))
+          .add(MEMORY_USAGE, (dict, tokens, out, err) -> memoryUsage(dict, tokens, out, err))
+          .add("DBSIZE", (dict, tokens, out, err) -> out.println(dict.getKeyCount()))
+          .add(
+              "INFO [section]",
+              (dict, tokens, out, err) -> info(dict, optionalToken(tokens, 1), out, err))
+          .add(
+              "STATS [reset]",
+              (dict, tokens, out, err) -> stats(optionalToken(tokens, 1), out, err))
+          .add("ALLMEMBERS", (dict, tokens, out, err) -> allMembers(dict, out))
+          .add("ITEMS", (dict, tokens, out, err) -> items(dict, out))
+          .add("SAVE file", (dict, tokens, out, err) -> save(dict, tokens.token(1), out, err))
+          .addWrite(
+              "LOAD file", (dict, tokens, out, err) -> load(dict, tokens.token(1), out, err))
+          .addWrite(
+              "MIGRATE node from to [from to ...]",
+              (dict, tokens, out, err) -> migrate(dict, tokens, out, err))
+          .add("MIGRATION", (dict, tokens, out, err) -> migration(out, err));
+  private static final ThreadLocal<CommandTokenizer> TOKENIZERS =
+      ThreadLocal.withInitial(CommandTokenizer::new);
+  // records every command line while --capture is on, null otherwise
+  private static volatile CommandCapture capture;
+  // set while --replicate-port or --replica-of is on
+  private static volatile ReplicationLeader leader;
+  private static volatile ReplicationFollower follower;
+  // set while serving over TCP: SAVE and LOAD only reach files inside it
+  private static volatile Path dataDirectory;
+  // set while serving over TCP: MIGRATE only sends keys to these hosts
+  private static volatile Set<String> migrationHosts;
+  // the last MIGRATE, commands run holding the monitor of the dictionary until it is done
+  private static volatile Migration migration;
 
   public static void main(String[] args) {
 
-    Scanner scanner = new Scanner(System.in);
-    System.out.println("Welcome to the APP!");
-    MultiValueDictionary dict = new MultiValueDictionary();
-
-    while (true) {
-      String input = scanner.nextLine().trim();
-      if (input.equals("EXIT")) { // More flexible : equalsIgnoreCase
-        System.out.println("Exiting the application.");
-        scanner.close();
+    String generate = optionValue(args, GENERATE_OPTION);
+    if (generate != null) {
+      generateWorkload(generate, args, System.out, System.err);
+      return;
+    }
+    String replay = optionValue(args, REPLAY_OPTION);
+    if (replay != null) {
+      replayWorkload(replay, args, System.out, System.err);
+      return;
+    }
+    String cluster = optionValue(args, CLUSTER_OPTION);
+    if (cluster != null) {
+      route(cluster, args);
+      return;
+    }
+
+    String batch = optionValue(args, BATCH_OPTION);
+    String port = optionValue(args, PORT_OPTION);
+    if (batch == null && port == null) {
+      System.out.println("Welcome to the APP!");
+    }
+    MultiValueDictionary dict;
+    try {
+      dict = newDictionary(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println("Error, invalid shard count: " + e.getMessage());
+      return;
+    }
+    String snapshot = optionValue(args, LOAD_OPTION);
+    if (snapshot != null && optionValue(args, WAL_OPTION) != null) {
+      // the log already starts from the snapshot of its last SAVE
+      System.err.println("Error, use either --load or --wal.");
+      return;
+    }
+    if (snapshot != null) {
+      try {
+        dict.load(Paths.get(snapshot));
+      } catch (IOException | UncheckedIOException e) {
+        System.err.println("Error, cannot load the snapshot: " + e.getMessage());
         return;
       }
-      // More flexible : String[] arguments = input.split("\\s+");
-      String[] arguments = input.split(" ");
-      if (arguments.length == 0) {
-        continue;
+    }
+    WriteAheadLog wal;
+    try {
+      wal = openWriteAheadLog(dict, args);
+    } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+      System.err.println("Error, cannot open the write-ahead log: " + e.getMessage());
+      return;
+    }
+    // built after the replay, in one pass over the contents
+    dict.setReverseIndexEnabled(hasOption(args, REVERSE_INDEX_OPTION));
+    dict.setKeyIndexEnabled(hasOption(args, KEY_INDEX_OPTION));
+    try {
+      setMemoryBudget(dict, args);
+    } catch (IllegalArgumentException e) {
+      System.err.println("Error, invalid memory budget: " + e.getMessage());
+      closeQuietly(wal);
+      return;
+    }
+    try {
+      setCommandStats(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println("Error, invalid stats interval: " + e.getMessage());
+      closeQuietly(wal);
+      return;
+    }
+    String captureFile = optionValue(args, CAPTURE_OPTION);
+    if (captureFile != null) {
+      try {
+        startCapture(Paths.get(captureFile));
+      } catch (IOException e) {
+        System.err.println("Error, cannot create the capture: " + e.getMessage());
+        closeQuietly(wal);
+        return;
+      }
+    }
+    try {
+      startReplication(dict, args);
+    } catch (IOException | IllegalArgumentException e) {
+      System.err.println("Error, cannot start replication: " + e.getMessage());
+      stopCapture();
+      closeQuietly(wal);
+      return;
+    }
+    if (leader != null) {
+      System.out.println("Replicating on port " + leader.port());
+    }
+
+    if (batch != null) {
+      try (InputStream input =
+          batch.equals("-") ? System.in : Files.newInputStream(Paths.get(batch))) {
+        long start = System.nanoTime();
+        long lines = runBatch(dict, input);
+        long micros = Math.max(1, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        System.err.println(
+            String.format(
+                "%d lines in %d ms (%d lines/s)",
+                lines, micros / 1000, lines * 1_000_000 / micros));
+      } catch (IOException e) {
+        System.err.println("Error, cannot read the batch: " + e.getMessage());
       }
+      stopReplication();
+      stopCapture();
+      closeQuietly(wal);
+      return;
+    }
 
-       // More flexible : String command = arguments[0].toUpperCase();
-       String command = arguments[0];
-      switch (command) {
-        case "ADD":
-          handleAddCommand(dict, arguments);
-          break;
-        case "KEYS":
-          handleKeysCommand(dict, arguments);
-          break;
-        case "MEMBERS":
-          handleMembersExistCommand(dict, arguments);
-          break;
-        case "REMOVE":
-          handleRemoveCommand(dict, arguments);
-          break;
-        case "REMOVEALL":
-          handleRemoveAllCommand(dict, arguments);
-          break;
-        case "CLEAR":
-          handleClearCommand(dict, arguments);
-          break;
-        case "KEYEXISTS":
-          handleKeyExistsCommand(dict, arguments);
-          break;
-        case "MEMBEREXISTS":
-          handleMemberExistsCommand(dict, arguments);
-          break;
-        case "ALLMEMBERS":
-          handleAllMembersCommand(dict, arguments);
-          break;
-        case "ITEMS":
-          handleItemsCommand(dict, arguments);
-          break;
-        default:
-          System.out.println(
-              "ERROR: Unknown command. Please use a valid command or type EXIT to quit.");
+    if (port != null) {
+      serve((line, out) -> execute(dict, line, out, out), () -> expireDue(dict), args);
+      stopReplication();
+      stopCapture();
+      closeQuietly(wal);
+      return;
+    }
+
+    Scanner scanner = new Scanner(System.in);
+    while (execute(dict, scanner.nextLine())) {
+      // one command per line until EXIT
+    }
+    scanner.close();
+    stopReplication();
+    stopCapture();
+    closeQuietly(wal);
+  }
+
+  /**
+   * --cluster host:port,host:port,...: routes the commands to those dictionary servers by
+   * consistent hashing, typed on the console or, with --port, sent by TCP clients.
+   */
+  private static void route(String nodes, String[] args) {
+    ClusterRouter router;
+    try {
+      int virtualNodes =
+          Integer.parseInt(
+              optionValue(args, VNODES_OPTION, String.valueOf(HashRing.DEFAULT_VIRTUAL_NODES)));
+      router = new ClusterRouter(List.of(nodes.split(",")), virtualNodes);
+    } catch (IllegalArgumentException e) {
+      System.err.println("Error, invalid cluster: " + e.getMessage());
+      return;
+    }
+    String port = optionValue(args, PORT_OPTION);
+    if (port != null) {
+      serve(router, () -> {}, args);
+    } else {
+      System.out.println("Welcome to the APP!");
+      Scanner scanner = new Scanner(System.in);
+      while (router.execute(scanner.nextLine(), System.out)) {
+        // one command per line until EXIT
+      }
+      scanner.close();
+    }
+    router.close();
+  }
+
+  /**
+   * Serves the commands on --port until EXIT is typed on the console. Without a console (end of
+   * input) it serves until the process is stopped. Clients are not authenticated, so it listens
+   * on the loopback interface unless --bind names another address, their SAVE and LOAD only
+   * reach files inside --data-dir (the working directory by default) and their MIGRATE only the
+   * hosts of --migrate-to (none by default).
+   */
+  private static void serve(DictionaryServer.LineHandler handler, Runnable tick, String[] args) {
+    String port = optionValue(args, PORT_OPTION);
+    setDataDirectory(Paths.get(optionValue(args, DATA_DIR_OPTION, "")));
+    String hosts = optionValue(args, MIGRATE_TO_OPTION, "");
+    setMigrationHosts(hosts.isEmpty() ? Set.of() : Set.of(hosts.split(",")));
+    DictionaryServer server;
+    try {
+      server = DictionaryServer.start(handler, tick, bindAddress(args, Integer.parseInt(port)));
+    } catch (IOException e) {
+      System.err.println("Error, cannot listen on port " + port + ": " + e.getMessage());
+      setDataDirectory(null);
+      setMigrationHosts(null);
+      return;
+    }
+    System.out.println("Listening on port " + server.port() + ", type EXIT to stop.");
+    Scanner scanner = new Scanner(System.in);
+    try {
+      while (scanner.hasNextLine()) {
+        if (scanner.nextLine().trim().equals("EXIT")) {
+          System.out.println("Exiting the application.");
+          return;
+        }
+      }
+      server.awaitTermination();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      scanner.close();
+      closeQuietly(server);
+      setDataDirectory(null);
+      setMigrationHosts(null);
+    }
+  }
+
+  // Keeps SAVE and LOAD inside the directory, null lets them reach any file
+  @VisibleForTesting
+  protected static void setDataDirectory(Path directory) {
+    dataDirectory = directory == null ? null : directory.toAbsolutePath().normalize();
+  }
+
+  // Keeps MIGRATE to the hosts, written as in its node argument; null lets it reach any host
+  @VisibleForTesting
+  protected static void setMigrationHosts(Set<String> hosts) {
+    migrationHosts = hosts;
+  }
+
+  // The port on the --bind address, on the loopback interface by default
+  @VisibleForTesting
+  protected static InetSocketAddress bindAddress(String[] args, int port)
+      throws UnknownHostException {
+    String bind = optionValue(args, BIND_OPTION);
+    return new InetSocketAddress(
+        bind == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind), port);
+  }
+
+  /**
+   * Runs every line of the input as a command until EXIT or the end of the input and returns the
+   * number of lines read. Output is collected in large buffers instead of being flushed per line,
+   * it is only written out when a buffer fills up and at the end.
+   */
+  @VisibleForTesting
+  protected static long runBatch(MultiValueDictionary dict, InputStream input)
+      throws IOException {
+    PrintStream out = System.out;
+    PrintStream err = System.err;
+    PrintStream bufferedOut =
+        new PrintStream(new BufferedOutputStream(out, BATCH_BUFFER_SIZE), false);
+    PrintStream bufferedErr =
+        new PrintStream(new BufferedOutputStream(err, BATCH_BUFFER_SIZE), false);
+    System.setOut(bufferedOut);
+    System.setErr(bufferedErr);
+    long lines = 0;
+    try {
+      BufferedReader reader =
+          new BufferedReader(
+              new InputStreamReader(input, StandardCharsets.UTF_8), BATCH_BUFFER_SIZE);
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines++;
+        if (!execute(dict, line)) {
           break;
+        }
       }
+    } finally {
+      bufferedOut.flush();
+      bufferedErr.flush();
+      System.setOut(out);
+      System.setErr(err);
     }
+    return lines;
   }
 
+  // Runs one command line, returns false for EXIT
   @VisibleForTesting
-  protected static void handleKeysCommand(MultiValueDictionary dict, String[] arguments) {
-    if (arguments.length == 1) {
-      Set<String> keys = dict.getKeys();
-      if (keys.isEmpty()) {
-        System.out.println(EMPTY_SET_MESSAGE);
+  protected static boolean execute(MultiValueDictionary dict, String line) {
+    return execute(dict, line, System.out, System.err);
+  }
+
+  // Same, with the replies and errors going to the given streams instead of the console
+  protected static boolean execute(
+      MultiValueDictionary dict, String line, PrintStream out, PrintStream err) {
+    CommandCapture recorder = capture;
+    if (recorder != null) {
+      recorder.record(line);
+    }
+    CommandTokenizer tokens = TOKENIZERS.get();
+    tokens.reset(line);
+    if (tokens.count() == 1 && tokens.tokenEquals(0, "EXIT")) {
+      out.println("Exiting the application.");
+      return false;
+    }
+    CommandTable.Command command = COMMANDS.lookup(tokens);
+    if (command == null) {
+      out.println("ERROR: Unknown command. Please use a valid command or type EXIT to quit.");
+    } else if (command.writes() && follower != null) {
+      // the leader's stream is the only writer
+      err.println(READ_ONLY_ERROR);
+    } else {
+      Migration migrating = migration;
+      if (migrating == null || migrating.isDone()) {
+        COMMANDS.run(command, dict, tokens, out, err);
       } else {
-        int index = 1;
-        for (String key : keys) {
-          System.out.println(String.format("%d) %s", index++, key));
+        // the migration thread reads and removes keys in between
+        synchronized (dict) {
+          String redirect =
+              command.keyed() && tokens.count() > 1
+                  ? migrating.redirect(tokens.token(1), command.writes())
+                  : null;
+          if (redirect != null) {
+            err.println(redirect);
+          } else {
+            COMMANDS.run(command, dict, tokens, out, err);
+          }
         }
       }
+    }
+    return true;
+  }
+
+  // Removes the expired TTLs, holding the monitor of the dictionary while a migration runs
+  private static void expireDue(MultiValueDictionary dict) {
+    Migration migrating = migration;
+    if (migrating == null || migrating.isDone()) {
+      dict.expireDue();
     } else {
-      System.out.println(String.format(MISSING_OR_REDUNDANT_PARAMETER_ERROR, "KEYS"));
+      synchronized (dict) {
+        dict.expireDue();
+      }
     }
   }
 
+  // Replays and attaches the log named by --wal, or returns null when there is none
   @VisibleForTesting
-  protected static void handleMembersExistCommand(MultiValueDictionary dict, String[] arguments) {
-    if (arguments.length == 2) {
-      String key = arguments[1];
+  protected static WriteAheadLog openWriteAheadLog(MultiValueDictionary dict, String[] args)
+      throws IOException {
+    String path = optionValue(args, WAL_OPTION);
+    if (path == null) {
+      return null;
+    }
+    String policy = optionValue(args, FSYNC_OPTION);
+    String interval = optionValue(args, FSYNC_INTERVAL_OPTION);
+    return WriteAheadLog.open(
+        Paths.get(path),
+        dict,
+        policy == null
+            ? WriteAheadLog.FsyncPolicy.ALWAYS
+            : WriteAheadLog.FsyncPolicy.valueOf(policy.toUpperCase()),
+        interval == null ? DEFAULT_FSYNC_INTERVAL_MILLIS : Long.parseLong(interval));
+  }
+
+  // --max-memory bytes, evicting by --eviction lru, lfu or random (lru by default)
+  @VisibleForTesting
+  protected static void setMemoryBudget(MultiValueDictionary dict, String[] args) {
+    String maxBytes = optionValue(args, MAX_MEMORY_OPTION);
+    if (maxBytes == null) {
+      return;
+    }
+    String policy = optionValue(args, EVICTION_OPTION);
+    dict.setMemoryBudget(
+        Long.parseLong(maxBytes),
+        policy == null
+            ? MemoryBudget.EvictionPolicy.LRU
+            : MemoryBudget.EvictionPolicy.valueOf(policy.toUpperCase()));
+  }
+
+  // --stats times every command, --stats-interval seconds also prints STATS to stderr that often
+  @VisibleForTesting
+  protected static void setCommandStats(String[] args) {
+    String interval = optionValue(args, STATS_INTERVAL_OPTION);
+    long seconds = interval == null ? 0 : Long.parseLong(interval);
+    if (interval != null && seconds <= 0) {
+      throw new IllegalArgumentException(interval);
+    }
+    setCommandStatsEnabled(hasOption(args, STATS_OPTION) || interval != null);
+    if (seconds > 0) {
+      Thread dumper =
+          new Thread(
+              () -> {
+                try {
+                  while (true) {
+                    TimeUnit.SECONDS.sleep(seconds);
+                    PrintStream err = System.err;
+                    printCommandStats(err);
+                    err.flush();
+                  }
+                } catch (InterruptedException e) {
+                  // a daemon, it goes with the process
+                }
+              },
+              "stats-dump");
+      dumper.setDaemon(true);
+      dumper.start();
+    }
+  }
+
+  @VisibleForTesting
+  protected static void setCommandStatsEnabled(boolean enabled) {
+    COMMANDS.setStatsEnabled(enabled);
+  }
+
+  // Records every command line executed from now on into the file, with its arrival time
+  @VisibleForTesting
+  protected static void startCapture(Path file) throws IOException {
+    stopCapture();
+    capture = CommandCapture.create(file);
+  }
+
+  @VisibleForTesting
+  protected static void stopCapture() {
+    CommandCapture recorder = capture;
+    capture = null;
+    if (recorder != null) {
       try {
-        Set<String> values = dict.getMembers(key);
-        if (values.isEmpty()) {
-          System.out.println(EMPTY_SET_MESSAGE);
-        } else {
-          int index = 1;
-          for (String value : values) {
-            System.out.println(index++ + ") " + value);
-          }
-        }
-      } catch (KeyNotFoundException e) {
-        System.err.println(e.getMessage());
+        recorder.close();
+      } catch (IOException e) {
+        System.err.println("Error, the capture is incomplete: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Starts --replicate-port port (a leader streaming its mutations to followers) or --replica-of
+   * host:port (a read-only copy of that leader). The dictionary comes from newDictionary.
+   */
+  @VisibleForTesting
+  protected static void startReplication(MultiValueDictionary dict, String[] args)
+      throws IOException {
+    String port = optionValue(args, REPLICATE_PORT_OPTION);
+    String leaderAddress = optionValue(args, REPLICA_OF_OPTION);
+    if (port != null && leaderAddress != null) {
+      throw new IllegalArgumentException("use either --replicate-port or --replica-of");
+    }
+    if (port != null) {
+      leader =
+          ReplicationLeader.start(
+              (ShardedMultiValueDictionary) dict, bindAddress(args, Integer.parseInt(port)));
+    } else if (leaderAddress != null) {
+      int colon = leaderAddress.lastIndexOf(':');
+      if (colon <= 0) {
+        throw new IllegalArgumentException("expected host:port, got " + leaderAddress);
       }
+      follower =
+          ReplicationFollower.start(
+              dict,
+              new InetSocketAddress(
+                  leaderAddress.substring(0, colon),
+                  Integer.parseInt(leaderAddress.substring(colon + 1))));
+    }
+  }
+
+  @VisibleForTesting
+  protected static void stopReplication() {
+    ReplicationLeader leading = leader;
+    ReplicationFollower following = follower;
+    leader = null;
+    follower = null;
+    closeQuietly(leading);
+    closeQuietly(following);
+  }
+
+  /**
+   * A plain dictionary, or with --shards N one split over N threads. Replication reads and writes
+   * from threads of its own, so it always gets a sharded one, by default with a shard per core.
+   */
+  @VisibleForTesting
+  protected static MultiValueDictionary newDictionary(String[] args) {
+    String shards = optionValue(args, SHARDS_OPTION);
+    if (shards == null
+        && (hasOption(args, REPLICATE_PORT_OPTION) || hasOption(args, REPLICA_OF_OPTION))) {
+      shards = String.valueOf(Runtime.getRuntime().availableProcessors());
+    }
+    return shards == null
+        ? new MultiValueDictionary()
+        : new ShardedMultiValueDictionary(Integer.parseInt(shards));
+  }
+
+  /**
+   * --replay file [--speed factor|max]: plays a capture into a fresh dictionary, set up by the
+   * same shard, index, memory and stats options as a normal run, and prints throughput and
+   * latencies.
+   */
+  @VisibleForTesting
+  protected static void replayWorkload(
+      String file, String[] args, PrintStream out, PrintStream err) {
+    MultiValueDictionary dict = null;
+    WorkloadReplay.Report report;
+    try {
+      dict = newDictionary(args);
+      dict.setReverseIndexEnabled(hasOption(args, REVERSE_INDEX_OPTION));
+      dict.setKeyIndexEnabled(hasOption(args, KEY_INDEX_OPTION));
+      setMemoryBudget(dict, args);
+      setCommandStats(args);
+      String speed = optionValue(args, SPEED_OPTION);
+      report =
+          WorkloadReplay.replay(
+              dict,
+              Paths.get(file),
+              speed == null ? 1 : speed.equals("max") ? 0 : Double.parseDouble(speed));
+    } catch (IOException e) {
+      err.println("Error, cannot replay the capture: " + e.getMessage());
+      return;
+    } catch (IllegalArgumentException e) {
+      err.println("Error, invalid replay option: " + e.getMessage());
+      return;
+    } finally {
+      if (dict instanceof ShardedMultiValueDictionary) {
+        ((ShardedMultiValueDictionary) dict).close();
+      }
+    }
+    long millis = TimeUnit.NANOSECONDS.toMillis(report.elapsedNanos());
+    out.println(
+        String.format(
+            Locale.ROOT,
+            "%d commands in %d ms (%.0f commands/s)",
+            report.commands(),
+            millis,
+            report.commandsPerSecond()));
+    out.println(
+        String.format(
+            "latency usec p50 %s, p90 %s, p99 %s, p999 %s, max %s",
+            micros(report.percentileNanos(0.5)),
+            micros(report.percentileNanos(0.9)),
+            micros(report.percentileNanos(0.99)),
+            micros(report.percentileNanos(0.999)),
+            micros(report.maxNanos())));
+    if (COMMANDS.isStatsEnabled()) {
+      printCommandStats(out);
+    }
+  }
+
+  /**
+   * --generate file [--commands n] [--keys n] [--zipf theta] [--rate per second] [--seed n]:
+   * writes a synthetic capture with Zipfian key popularity for --replay.
+   */
+  @VisibleForTesting
+  protected static void generateWorkload(
+      String file, String[] args, PrintStream out, PrintStream err) {
+    try {
+      long commands = Long.parseLong(optionValue(args, COMMANDS_OPTION, "100000"));
+      int keys = Integer.parseInt(optionValue(args, KEYS_OPTION, "10000"));
+      double theta = Double.parseDouble(optionValue(args, ZIPF_OPTION, "0.99"));
+      double rate = Double.parseDouble(optionValue(args, RATE_OPTION, "10000"));
+      long seed = Long.parseLong(optionValue(args, SEED_OPTION, "1"));
+      WorkloadGenerator.generate(Paths.get(file), commands, keys, theta, rate, seed);
+      out.println("Generated " + commands + " commands on " + keys + " keys into " + file);
+    } catch (IOException e) {
+      err.println("Error, cannot write the workload: " + e.getMessage());
+    } catch (IllegalArgumentException e) {
+      err.println("Error, invalid workload option: " + e.getMessage());
+    }
+  }
+
+  // Value following the option name, e.g. "--wal data.log"
+  @VisibleForTesting
+  protected static String optionValue(String[] args, String name) {
+    for (int i = 0; i < args.length - 1; i++) {
+      if (args[i].equals(name)) {
+        return args[i + 1];
+      }
+    }
+    return null;
+  }
+
+  private static String optionValue(String[] args, String name, String defaultValue) {
+    String value = optionValue(args, name);
+    return value == null ? defaultValue : value;
+  }
+
+  @VisibleForTesting
+  protected static boolean hasOption(String[] args, String name) {
+    for (String arg : args) {
+      if (arg.equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Prints "index) text" without going through String.format
+  private static void printIndexed(PrintStream out, int index, String text) {
+    out.print(index);
+    out.print(") ");
+    out.println(text);
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+    }
+  }
+
+  @VisibleForTesting
+  protected static void handleKeysCommand(MultiValueDictionary dict, String[] arguments) {
+    if (arguments.length == 1) {
+      keys(dict, System.out);
+    } else if (arguments.length == 2) {
+      keysWithPrefix(dict, arguments[1], System.out);
     } else {
-      System.out.println(String.format(MISSING_OR_REDUNDANT_PARAMETER_ERROR, "MEMBERS key"));
+      printUsage("KEYS [prefix]");
+    }
+  }
+
+  @VisibleForTesting
+  protected static void handleMembersExistCommand(MultiValueDictionary dict, String[] arguments) {
+    if (arguments.length == 2) {
+      members(dict, arguments[1], System.out, System.err);
+    } else {
+      printUsage("MEMBERS key");
     }
   }
 
   @VisibleForTesting
   protected static void handleAddCommand(MultiValueDictionary dict, String[] arguments) {
     if (arguments.length == 3) {
-      String key = arguments[1];
-      String value = arguments[2];
-      try {
-        dict.add(key, value);
-        System.out.println("Added");
-      } catch (MemberAlreadyExistsException e) {
-        System.err.println(e.getMessage());
-      }
+      add(dict, arguments[1], arguments[2], System.out, System.err);
     } else {
-      System.out.println(String.format(MISSING_OR_REDUNDANT_PARAMETER_ERROR, "ADD key value"));
+      printUsage("ADD key value");
     }
   }
 
   @VisibleForTesting
   protected static void handleRemoveCommand(MultiValueDictionary dict, String[] arguments) {
     if (arguments.length == 3) {
-      String key = arguments[1];
-      String value = arguments[2];
-      try {
-        dict.removeMemberFromKey(key, value);
-        System.out.println("Removed");
-      } catch (KeyNotFoundException | MembersNotFoundException e) {
-        System.err.println(e.getMessage());
-      }
+      remove(dict, arguments[1], arguments[2], System.out, System.err);
     } else {
-      System.out.println(String.format(MISSING_OR_REDUNDANT_PARAMETER_ERROR, "REMOVE key value"));
+      printUsage("REMOVE key value");
     }
   }
 
   @VisibleForTesting
   protected static void handleRemoveAllCommand(MultiValueDictionary dict, String[] arguments) {
     if (arguments.length == 2) {
-      String key = arguments[1];
-      try {
-        dict.removeAllMemberOfKey(key);
-        System.out.println("Removed");
-      } catch (KeyNotFoundException e) {
-        System.err.println(e.getMessage());
-      }
+      removeAll(dict, arguments[1], System.out, System.err);
     } else {
-      System.out.println(String.format(MISSING_OR_REDUNDANT_PARAMETER_ERROR, "REMOVEALL key"));
+      printUsage("REMOVEALL key");
     }
   }
 
   @VisibleForTesting
   protected static void handleClearCommand(MultiValueDictionary dict, String[] arguments) {
     if (arguments.length == 1) {
-      dict.clearMap();
-      System.out.println("Cleared");
-
+      clear(dict, System.out);
     } else {
-      System.out.println(String.format(MISSING_OR_REDUNDANT_PARAMETER_ERROR, "CLEAR"));
+      printUsage("CLEAR");
     }
   }
 
   @VisibleForTesting
   protected static void handleKeyExistsCommand(MultiValueDictionary dict, String[] arguments) {
     if (arguments.length == 2) {
-      String key = arguments[1];
-      System.out.println(dict.isKeyExists(key));
+      keyExists(dict, arguments[1], System.out);
     } else {
-      System.out.println(String.format(MISSING_OR_REDUNDANT_PARAMETER_ERROR, "KEYEXISTS key"));
+      printUsage("KEYEXISTS key");
     }
   }
 
   @VisibleForTesting
   protected static void handleMemberExistsCommand(MultiValueDictionary dict, String[] arguments) {
     if (arguments.length == 3) {
-      String key = arguments[1];
-      String value = arguments[2];
-      try {
-        System.out.println(dict.isMemberExistsWithinAKey(key, value));
-      } catch (KeyNotFoundException e) {
-        System.err.println(e.getMessage());
-      }
+      memberExists(dict, arguments[1], arguments[2], System.out, System.err);
     } else {
-      System.out.println(
-          String.format(MISSING_OR_REDUNDANT_PARAMETER_ERROR, "MEMBEREXISTS key value"));
+      printUsage("MEMBEREXISTS key value");
     }
   }
 
   @VisibleForTesting
   protected static void handleAllMembersCommand(MultiValueDictionary dict, String[] arguments) {
     if (arguments.length == 1) {
-      if (dict.getAllMembers().isEmpty()) {
-        System.out.println(EMPTY_SET_MESSAGE);
-      }
-      int index = 1;
-      for (Set<String> set : dict.getAllMembers()) {
-        for (String member : set) {
-          System.out.println(String.format("%d) %s", index++, member));
-        }
-      }
+      allMembers(dict, System.out);
     } else {
-      System.out.println(String.format(MISSING_OR_REDUNDANT_PARAMETER_ERROR, "ALLMEMBERS"));
+      printUsage("ALLMEMBERS");
     }
   }
 
   @VisibleForTesting
   protected static void handleItemsCommand(MultiValueDictionary dict, String[] arguments) {
     if (arguments.length == 1) {
-      if (dict.getMap().isEmpty()) {
-        System.out.println(EMPTY_SET_MESSAGE);
+      items(dict, System.out);
+    } else {
+      printUsage("ITEMS");
+    }
+  }
+
+  @VisibleForTesting
+  protected static void handleSaveCommand(MultiValueDictionary dict, String[] arguments) {
+    if (arguments.length == 2) {
+      save(dict, arguments[1], System.out, System.err);
+    } else {
+      printUsage("SAVE file");
+    }
+  }
+
+  @VisibleForTesting
+  protected static void handleLoadCommand(MultiValueDictionary dict, String[] arguments) {
+    if (arguments.length == 2) {
+      load(dict, arguments[1], System.out, System.err);
+    } else {
+      printUsage("LOAD file");
+    }
+  }
+
+  private static void printUsage(String usage) {
+    System.out.println(String.format(MISSING_OR_REDUNDANT_PARAMETER_ERROR, usage));
+  }
+
+  // The commands themselves, called once the number of arguments has been checked
+
+  private static void keys(MultiValueDictionary dict, PrintStream out) {
+    Set<String> keys = dict.getKeys();
+    if (keys.isEmpty()) {
+      out.println(EMPTY_SET_MESSAGE);
+    } else {
+      int index = 1;
+      for (String key : keys) {
+        printIndexed(out, index++, key);
+      }
+    }
+  }
+
+  private static void keysFor(MultiValueDictionary dict, String member, PrintStream out) {
+    Set<String> keys = dict.getKeysFor(member);
+    if (keys.isEmpty()) {
+      out.println(EMPTY_SET_MESSAGE);
+    } else {
+      int index = 1;
+      for (String key : keys) {
+        printIndexed(out, index++, key);
+      }
+    }
+  }
+
+  private static void keysWithPrefix(MultiValueDictionary dict, String prefix, PrintStream out) {
+    printKeys(dict.getKeysWithPrefix(prefix, Integer.MAX_VALUE), out);
+  }
+
+  // One page of keys; when there are more, the last line names the from of the next page
+  private static void keyRange(
+      MultiValueDictionary dict,
+      String from,
+      String to,
+      String count,
+      PrintStream out,
+      PrintStream err) {
+    int limit = parseCount(count, err);
+    if (limit < 0) {
+      return;
+    }
+    List<String> page = dict.getKeyRange(from, to, limit + 1);
+    printKeys(page.size() > limit ? page.subList(0, limit) : page, out);
+    if (page.size() > limit) {
+      out.println(String.format(NEXT_PAGE_MESSAGE, page.get(limit)));
+    }
+  }
+
+  // One batch of keys, then the cursor that continues the scan
+  private static void scan(
+      MultiValueDictionary dict, CommandTokenizer tokens, PrintStream out, PrintStream err) {
+    int count = tokens.count() == 3 ? parseCount(tokens.token(2), err) : DEFAULT_SCAN_COUNT;
+    if (count < 0) {
+      return;
+    }
+    ScanResult<String> batch;
+    try {
+      batch = dict.scanKeys(tokens.token(1), count);
+    } catch (IllegalArgumentException e) {
+      err.println(ScanResult.INVALID_CURSOR_ERROR);
+      return;
+    }
+    int index = 1;
+    for (String key : batch.items()) {
+      printIndexed(out, index++, key);
+    }
+    out.println(String.format(NEXT_CURSOR_MESSAGE, batch.cursor()));
+  }
+
+  // Same for (key, member) pairs, printed as ITEMS does
+  private static void itemScan(
+      MultiValueDictionary dict, CommandTokenizer tokens, PrintStream out, PrintStream err) {
+    int count = tokens.count() == 3 ? parseCount(tokens.token(2), err) : DEFAULT_SCAN_COUNT;
+    if (count < 0) {
+      return;
+    }
+    ScanResult<Map.Entry<String, String>> batch;
+    try {
+      batch = dict.scanItems(tokens.token(1), count);
+    } catch (IllegalArgumentException e) {
+      err.println(ScanResult.INVALID_CURSOR_ERROR);
+      return;
+    }
+    int index = 1;
+    for (Map.Entry<String, String> item : batch.items()) {
+      printIndexed(out, index++, item.getKey() + ": " + item.getValue());
+    }
+    out.println(String.format(NEXT_CURSOR_MESSAGE, batch.cursor()));
+  }
+
+  // A positive count below Integer.MAX_VALUE, or -1 once the error has been printed
+  private static int parseCount(String count, PrintStream err) {
+    int parsed;
+    try {
+      parsed = Integer.parseInt(count);
+    } catch (NumberFormatException e) {
+      parsed = 0;
+    }
+    if (parsed <= 0 || parsed == Integer.MAX_VALUE) {
+      err.println(COUNT_ERROR);
+      return -1;
+    }
+    return parsed;
+  }
+
+  private static void printKeys(List<String> keys, PrintStream out) {
+    if (keys.isEmpty()) {
+      out.println(EMPTY_SET_MESSAGE);
+    } else {
+      int index = 1;
+      for (String key : keys) {
+        printIndexed(out, index++, key);
       }
+    }
+  }
+
+  // Misses come back as an Outcome, the CLI never pays for an exception
+
+  private static void members(
+      MultiValueDictionary dict, String key, PrintStream out, PrintStream err) {
+    Set<String> values = dict.findMembers(key);
+    if (values == null) {
+      err.println(Outcome.KEY_NOT_FOUND.message());
+    } else if (values.isEmpty()) {
+      out.println(EMPTY_SET_MESSAGE);
+    } else {
       int index = 1;
-      for (String itemString : dict.getItems()) {
-        System.out.println(String.format("%d) %s", index++, itemString));
+      for (String value : values) {
+        printIndexed(out, index++, value);
       }
+    }
+  }
+
+  private static void add(
+      MultiValueDictionary dict, String key, String value, PrintStream out, PrintStream err) {
+    printOutcome(dict.tryAdd(key, value), "Added", out, err);
+  }
+
+  private static void remove(
+      MultiValueDictionary dict, String key, String value, PrintStream out, PrintStream err) {
+    printOutcome(dict.tryRemoveMember(key, value), "Removed", out, err);
+  }
+
+  private static void removeAll(
+      MultiValueDictionary dict, String key, PrintStream out, PrintStream err) {
+    printOutcome(dict.tryRemoveAll(key), "Removed", out, err);
+  }
+
+  private static void printOutcome(
+      Outcome outcome, String done, PrintStream out, PrintStream err) {
+    if (outcome == Outcome.OK) {
+      out.println(done);
+    } else {
+      err.println(outcome.message());
+    }
+  }
+
+  private static void clear(MultiValueDictionary dict, PrintStream out) {
+    dict.clearMap();
+    out.println("Cleared");
+  }
+
+  private static void keyExists(MultiValueDictionary dict, String key, PrintStream out) {
+    out.println(dict.isKeyExists(key));
+  }
+
+  private static void memberExists(
+      MultiValueDictionary dict, String key, String value, PrintStream out, PrintStream err) {
+    Outcome outcome = dict.findMember(key, value);
+    if (outcome == Outcome.KEY_NOT_FOUND) {
+      err.println(MultiValueDictionary.MEMBEREXISTS_KEY_NOT_FOUND_ERROR_MESSAGE);
     } else {
-      System.out.println(String.format(MISSING_OR_REDUNDANT_PARAMETER_ERROR, "ITEMS"));
+      out.println(outcome == Outcome.OK);
+    }
+  }
+
+  // One call for all members, the reply counts the ones that were new
+  private static void addMembers(
+      MultiValueDictionary dict, CommandTokenizer tokens, PrintStream out) {
+    List<String> members = tokens(tokens, 2, 1);
+    BitSet added = dict.tryAddMembers(tokens.token(1), members);
+    out.println("Added " + added.cardinality() + " of " + members.size());
+  }
+
+  private static void removeMembers(
+      MultiValueDictionary dict, CommandTokenizer tokens, PrintStream out, PrintStream err) {
+    List<String> members = tokens(tokens, 2, 1);
+    BitSet removed = dict.tryRemoveMembers(tokens.token(1), members);
+    if (removed == null) {
+      err.println(Outcome.KEY_NOT_FOUND.message());
+    } else {
+      out.println("Removed " + removed.cardinality() + " of " + members.size());
+    }
+  }
+
+  // One line per (key, member) pair, true or false as for MEMBEREXISTS
+  private static void memberPairsExist(
+      MultiValueDictionary dict, CommandTokenizer tokens, PrintStream out) {
+    List<String> keys = tokens(tokens, 1, 2);
+    List<String> members = tokens(tokens, 2, 2);
+    BitSet found = dict.findMemberPairs(keys, members);
+    for (int i = 0; i < keys.size(); i++) {
+      out.println(found.get(i));
+    }
+  }
+
+  // The token, or null when the optional argument was left out
+  private static String optionalToken(CommandTokenizer tokens, int index) {
+    return index < tokens.count() ? tokens.token(index) : null;
+  }
+
+  // Every step-th token from the first one on
+  private static List<String> tokens(CommandTokenizer tokens, int first, int step) {
+    List<String> list = new ArrayList<>((tokens.count() - first + step - 1) / step);
+    for (int i = first; i < tokens.count(); i += step) {
+      list.add(tokens.token(i));
+    }
+    return list;
+  }
+
+  // TTL of the key, or of the member when one is given
+  private static void expire(
+      MultiValueDictionary dict, CommandTokenizer tokens, PrintStream out, PrintStream err) {
+    long millis;
+    try {
+      millis = Math.multiplyExact(Long.parseLong(tokens.token(2)), 1000L);
+    } catch (NumberFormatException | ArithmeticException e) {
+      err.println(SECONDS_ERROR);
+      return;
+    }
+    String member = optionalToken(tokens, 3);
+    Outcome outcome =
+        member == null
+            ? dict.expire(tokens.token(1), millis)
+            : dict.expireMember(tokens.token(1), member, millis);
+    printOutcome(outcome, millis > 0 ? "Expiry set" : "Removed", out, err);
+  }
+
+  // Seconds left, rounded up so a key that still exists never shows 0
+  private static void ttl(
+      MultiValueDictionary dict, String key, String member, PrintStream out, PrintStream err) {
+    long millis = member == null ? dict.getTtl(key) : dict.getTtl(key, member);
+    if (millis == ExpiryTable.NOT_FOUND) {
+      err.println(find(dict, key, member).message());
+    } else if (millis == ExpiryTable.NO_TTL) {
+      out.println(NO_EXPIRY_MESSAGE);
+    } else {
+      out.println((millis + 999) / 1000);
+    }
+  }
+
+  // true when a TTL was dropped, false when there was none
+  private static void persist(
+      MultiValueDictionary dict, String key, String member, PrintStream out, PrintStream err) {
+    Outcome outcome = find(dict, key, member);
+    if (outcome != Outcome.OK) {
+      err.println(outcome.message());
+    } else {
+      out.println(member == null ? dict.persist(key) : dict.persist(key, member));
+    }
+  }
+
+  // OK when the key, or the member of the key when one is given, exists
+  private static Outcome find(MultiValueDictionary dict, String key, String member) {
+    if (member != null) {
+      return dict.findMember(key, member);
+    }
+    return dict.isKeyExists(key) ? Outcome.OK : Outcome.KEY_NOT_FOUND;
+  }
+
+  // MEMORY takes no other subcommand, anything else gets the usage error
+  private static void memoryUsage(
+      MultiValueDictionary dict, CommandTokenizer tokens, PrintStream out, PrintStream err) {
+    if (!tokens.tokenEquals(1, "USAGE")) {
+      out.println(String.format(MISSING_OR_REDUNDANT_PARAMETER_ERROR, MEMORY_USAGE));
+      return;
+    }
+    long bytes = dict.getMemoryUsage(tokens.token(2));
+    if (bytes < 0) {
+      err.println(Outcome.KEY_NOT_FOUND.message());
+    } else {
+      out.println(bytes);
+    }
+  }
+
+  // One name:value line each, without a section replication is only shown while it is on
+  private static void info(
+      MultiValueDictionary dict, String section, PrintStream out, PrintStream err) {
+    boolean memory = section == null || section.equalsIgnoreCase("memory");
+    boolean replication =
+        section == null
+            ? leader != null || follower != null
+            : section.equalsIgnoreCase("replication");
+    if (!memory && !replication) {
+      err.println(INFO_SECTION_ERROR);
+      return;
+    }
+    if (memory) {
+      memoryInfo(dict, out);
+    }
+    if (replication) {
+      replicationInfo(out);
+    }
+  }
+
+  // Read from the running counters
+  private static void memoryInfo(MultiValueDictionary dict, PrintStream out) {
+    MemoryStats stats = dict.getMemoryStats();
+    long keys = dict.getKeyCount();
+    long bytes = stats.estimatedBytes();
+    out.println("# Memory");
+    out.println("keys:" + keys);
+    out.println("items:" + stats.itemCount());
+    out.println("estimated_bytes:" + bytes);
+    out.println("avg_bytes_per_key:" + (keys == 0 ? 0 : bytes / keys));
+    long[] histogram = stats.memberCountHistogram();
+    for (int b = 0; b < histogram.length; b++) {
+      if (histogram[b] > 0) {
+        long low = 1L << b;
+        long high = (low << 1) - 1;
+        String range = low == high ? String.valueOf(low) : low + "_" + high;
+        out.println("keys_with_members_" + range + ":" + histogram[b]);
+      }
+    }
+    int rank = 1;
+    for (Map.Entry<String, Integer> key : stats.largestKeys(MemoryStats.LARGEST_KEYS)) {
+      out.println(
+          "largest_key_" + rank++ + ":" + key.getKey() + " members=" + key.getValue());
+    }
+    MemoryBudget budget = dict.getMemoryBudget();
+    if (budget != null) {
+      out.println("max_memory:" + budget.maxBytes());
+      out.println("eviction_policy:" + budget.policy().name().toLowerCase());
+      out.println("evicted_keys:" + budget.evictedKeys());
+      out.println("evicted_bytes:" + budget.evictedBytes());
+    }
+    ExpiryTable expiry = dict.getExpiryTable();
+    if (expiry != null) {
+      out.println("ttls:" + expiry.size());
+    }
+  }
+
+  // Lag per follower on a leader, lag behind the leader on a follower
+  private static void replicationInfo(PrintStream out) {
+    ReplicationLeader leading = leader;
+    ReplicationFollower following = follower;
+    out.println("# Replication");
+    if (leading != null) {
+      List<ReplicationLeader.FollowerStatus> followers = leading.followers();
+      out.println("role:leader");
+      out.println("replication_port:" + leading.port());
+      out.println("last_seq:" + leading.lastSeq());
+      out.println("connected_followers:" + followers.size());
+      int index = 0;
+      for (ReplicationLeader.FollowerStatus status : followers) {
+        out.println(
+            "follower_"
+                + index++
+                + ":address="
+                + status.address()
+                + ",state="
+                + status.state().name().toLowerCase()
+                + ",acked_seq="
+                + status.ackedSeq()
+                + ",lag_records="
+                + status.lagRecords()
+                + ",lag_ms="
+                + status.lagMillis());
+      }
+    } else if (following != null) {
+      InetSocketAddress address = following.leader();
+      out.println("role:follower");
+      out.println("leader:" + address.getHostString() + ":" + address.getPort());
+      out.println("state:" + following.state().name().toLowerCase());
+      out.println("applied_seq:" + following.appliedSeq());
+      out.println("leader_seq:" + following.leaderSeq());
+      out.println("lag_records:" + following.lagRecords());
+      out.println("last_contact_ms:" + following.lastContactMillis());
+      out.println("full_syncs:" + following.fullSyncs());
+      out.println("partial_syncs:" + following.partialSyncs());
+    } else {
+      out.println("role:standalone");
+    }
+  }
+
+  private static void stats(String reset, PrintStream out, PrintStream err) {
+    if (reset != null && !reset.equalsIgnoreCase("reset")) {
+      out.println(String.format(MISSING_OR_REDUNDANT_PARAMETER_ERROR, "STATS [reset]"));
+    } else if (!COMMANDS.isStatsEnabled()) {
+      out.println(STATS_OFF_MESSAGE);
+    } else if (reset != null) {
+      for (CommandTable.Command command : COMMANDS.commands()) {
+        command.stats().reset();
+      }
+      out.println("Reset");
+    } else {
+      printCommandStats(out);
+    }
+  }
+
+  // One line per command called since the last reset, latencies in microseconds
+  private static void printCommandStats(PrintStream out) {
+    out.println("# Commandstats");
+    for (CommandTable.Command command : COMMANDS.commands()) {
+      CommandStats stats = command.stats();
+      long calls = stats.calls();
+      if (calls == 0) {
+        continue;
+      }
+      StringBuilder line = new StringBuilder("cmdstat_").append(command.name().toLowerCase());
+      line.append(":calls=").append(calls);
+      line.append(",usec=").append(stats.totalNanos() / 1000);
+      line.append(",usec_per_call=").append(micros(stats.totalNanos() / calls));
+      line.append(",usec_p50=").append(micros(stats.percentileNanos(0.5)));
+      line.append(",usec_p99=").append(micros(stats.percentileNanos(0.99)));
+      line.append(",usec_p999=").append(micros(stats.percentileNanos(0.999)));
+      line.append(",usec_max=").append(micros(stats.maxNanos()));
+      StringBuilder byType = new StringBuilder();
+      long errors = 0;
+      for (Map.Entry<String, Long> error : stats.errors().entrySet()) {
+        byType.append(",errors_").append(error.getKey()).append('=').append(error.getValue());
+        errors += error.getValue();
+      }
+      line.append(",errors=").append(errors).append(byType);
+      out.println(line);
+    }
+  }
+
+  private static String micros(long nanos) {
+    return String.format(Locale.ROOT, "%.3f", nanos / 1000.0);
+  }
+
+  private static void allMembers(MultiValueDictionary dict, PrintStream out) {
+    int[] index = {1};
+    // printed while the dictionary is walked, nothing is collected first
+    dict.forEachMember(member -> printIndexed(out, index[0]++, member));
+    if (index[0] == 1) {
+      out.println(EMPTY_SET_MESSAGE);
+    }
+  }
+
+  private static void items(MultiValueDictionary dict, PrintStream out) {
+    int[] index = {1};
+    dict.forEachItem(
+        (key, value) -> {
+          out.print(index[0]++);
+          out.print(") ");
+          out.print(key);
+          out.print(": ");
+          out.println(value);
+        });
+    if (index[0] == 1) {
+      out.println(EMPTY_SET_MESSAGE);
+    }
+  }
+
+  /**
+   * Starts moving the keys hashing into the ranges (from, to] to another node, see Migration and
+   * ClusterRouter. Replies at once, MIGRATION tells how far it got.
+   */
+  private static void migrate(
+      MultiValueDictionary dict, CommandTokenizer tokens, PrintStream out, PrintStream err) {
+    long[] ranges = new long[tokens.count() - 2];
+    try {
+      for (int i = 0; i < ranges.length; i++) {
+        ranges[i] = Long.parseLong(tokens.token(i + 2));
+      }
+    } catch (NumberFormatException e) {
+      err.println(RANGE_ERROR);
+      return;
+    }
+    String node = tokens.token(1);
+    Migration running = migration;
+    if (running != null && !running.isDone()) {
+      err.println(String.format(MIGRATION_RUNNING_ERROR, running.node()));
+      return;
+    }
+    Set<String> hosts = migrationHosts;
+    Migration started;
+    try {
+      if (hosts != null && !hosts.contains(NodeConnection.host(node))) {
+        err.println(MIGRATE_HOST_ERROR);
+        return;
+      }
+      started = new Migration(dict, node, ranges);
+    } catch (IllegalArgumentException e) {
+      err.println("Error, cannot migrate: " + e.getMessage());
+      return;
+    }
+    migration = started;
+    started.start();
+    out.println("Migrating " + started.total() + " keys to " + node);
+  }
+
+  // How far the last MIGRATE got
+  private static void migration(PrintStream out, PrintStream err) {
+    Migration last = migration;
+    if (last == null) {
+      out.println(NO_MIGRATION_MESSAGE);
+    } else if (!last.isDone()) {
+      out.println(
+          "Migrating, " + last.moved() + " of " + last.total() + " keys moved to " + last.node());
+    } else if (last.failure() != null) {
+      err.println("Error, cannot migrate: " + last.failure());
+    } else {
+      out.println("Migrated " + last.moved() + " keys to " + last.node());
+    }
+  }
+
+  private static void save(
+      MultiValueDictionary dict, String file, PrintStream out, PrintStream err) {
+    Path path = snapshotPath(file, err);
+    if (path == null) {
+      return;
+    }
+    try {
+      dict.save(path);
+      out.println("Saved");
+    } catch (IOException | UncheckedIOException e) {
+      err.println("Error, cannot save the snapshot: " + e.getMessage());
+    }
+  }
+
+  private static void load(
+      MultiValueDictionary dict, String file, PrintStream out, PrintStream err) {
+    Path path = snapshotPath(file, err);
+    if (path == null) {
+      return;
+    }
+    try {
+      dict.load(path);
+      out.println("Loaded");
+    } catch (IOException | UncheckedIOException e) {
+      err.println("Error, cannot load the snapshot: " + e.getMessage());
+    }
+  }
+
+  // The file of SAVE or LOAD, or null after an error when it lies outside the data directory
+  private static Path snapshotPath(String file, PrintStream err) {
+    Path directory = dataDirectory;
+    if (directory == null) {
+      return Paths.get(file);
+    }
+    Path path = directory.resolve(file).normalize();
+    if (!path.startsWith(directory)) {
+      err.println(String.format(DATA_DIR_ERROR, directory));
+      return null;
     }
+    return path;
   }
 }
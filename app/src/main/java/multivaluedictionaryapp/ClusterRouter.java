@@ -0,0 +1,481 @@
+package multivaluedictionaryapp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Spreads the keys over several dictionary servers with a {@link HashRing} and speaks the command
+ * set of the app in front of them. A command on one key goes to the node owning the key;
+ * MMEMBEREXISTS is split by node and put back together; KEYS, KEYSFOR, ITEMS, ALLMEMBERS, DBSIZE
+ * and CLEAR go to every node at once and the replies are merged. Commands that walk or replace
+ * the contents of a single node (SCAN, ISCAN, KEYRANGE, SAVE, LOAD) and the per-node counters
+ * (INFO, STATS, MIGRATION) have to be sent to the nodes themselves.
+ *
+ * <p>CLUSTER ADDNODE host:port rebalances: every node hands the ranges of the ring the new node
+ * takes over to it with MIGRATE, all other keys stay put. The nodes move their keys in the
+ * background and keep serving. The router switches to the new ring as soon as every MIGRATE has
+ * started, but asks the old owner first about a key of the ranges on the move: the old owner
+ * serves the keys it still has and redirects the others with {@link Migration#MOVED_ERROR}, or
+ * {@link Migration#MOVING_ERROR} for a write while the key is on its way, and the router follows
+ * the redirect. Keys on the way may show up on both nodes in KEYS, ITEMS and DBSIZE. The reply
+ * comes once MIGRATION reports every node done; served over TCP the rebalancing runs on a thread
+ * of its own, see {@link #executeLater}, and the other clients carry on meanwhile.
+ *
+ * <p>Routers are independent, a node added through one of them has to be added to the others (or
+ * they must be restarted with the new list) before they route to it; until then they follow the
+ * redirects of the old owners. Commands run one at a time, only CLUSTER ADDNODE runs alongside.
+ */
+public class ClusterRouter implements Closeable, DictionaryServer.LineHandler {
+
+  static final String NOT_SUPPORTED_ERROR =
+      "Error, %s is not supported by the cluster router, send it to a node.";
+  static final String NODE_ERROR = "Error, node %s failed: %s";
+  static final String CLUSTER_USAGE = "CLUSTER NODES | CLUSTER ADDNODE host:port";
+  // how often a node is asked whether its MIGRATE is done
+  private static final long MIGRATION_POLL_MILLIS = 10;
+  // how soon a write the old owner refused while its key is on the way is tried again
+  private static final long MOVING_RETRY_MILLIS = 1;
+  private static final int MAX_REDIRECTS = 3;
+  private static final List<String> NOT_SUPPORTED =
+      List.of("SCAN", "ISCAN", "KEYRANGE", "SAVE", "LOAD", "INFO", "STATS", "MIGRATION");
+
+  private final Map<String, NodeConnection> connections = new HashMap<>();
+  private final CommandTokenizer tokens = new CommandTokenizer();
+  private volatile HashRing ring;
+  // the ring before the node being added, whose owners are asked first about the moving keys
+  private volatile HashRing previous;
+  private final AtomicBoolean addingNode = new AtomicBoolean();
+
+  public ClusterRouter(Collection<String> nodes, int virtualNodes) {
+    for (String node : nodes) {
+      NodeConnection.address(node);
+    }
+    this.ring = new HashRing(nodes, virtualNodes);
+  }
+
+  public HashRing ring() {
+    return ring;
+  }
+
+  // Runs one command line like App.execute does, returns false for EXIT
+  @Override
+  public boolean execute(String line, PrintStream out) {
+    tokens.reset(line);
+    String name = tokens.token(0);
+    if (tokens.count() == 1 && name.equals("EXIT")) {
+      out.println("Exiting the application.");
+      return false;
+    }
+    try {
+      switch (name) {
+        case "CLUSTER":
+          cluster(out);
+          break;
+        case "KEYS":
+        case "KEYSFOR":
+        case "ITEMS":
+        case "ALLMEMBERS":
+          list(line, tokens.count() == 2 && name.equals("KEYS"), out);
+          break;
+        case "DBSIZE":
+          dbSize(line, out);
+          break;
+        case "CLEAR":
+          clear(line, out);
+          break;
+        case "MMEMBEREXISTS":
+          memberPairsExist(line, out);
+          break;
+        case "MEMORY":
+          forward(tokens.count() > 2 ? tokens.token(2) : null, line, out);
+          break;
+        default:
+          if (NOT_SUPPORTED.contains(name)) {
+            out.println(String.format(NOT_SUPPORTED_ERROR, name));
+          } else {
+            // usage errors and unknown commands come back from whichever node gets them
+            forward(tokens.count() > 1 ? tokens.token(1) : null, line, out);
+          }
+          break;
+      }
+    } catch (NodeException e) {
+      out.println(String.format(NODE_ERROR, e.node, e.getCause().getMessage()));
+    }
+    return true;
+  }
+
+  /**
+   * CLUSTER ADDNODE in the server: the keys move on a thread of its own and the reply comes when
+   * they are all there, so the other clients are served meanwhile. Any other line runs in
+   * execute().
+   */
+  @Override
+  public CompletableFuture<String> executeLater(String line) {
+    tokens.reset(line);
+    if (tokens.count() != 3
+        || !tokens.token(0).equals("CLUSTER")
+        || !tokens.token(1).equals("ADDNODE")) {
+      return null;
+    }
+    String node = tokens.token(2);
+    CompletableFuture<String> reply = new CompletableFuture<>();
+    Thread adder = new Thread(() -> reply.complete(addNodeReply(node)), "add-node-" + node);
+    adder.setDaemon(true);
+    adder.start();
+    return reply;
+  }
+
+  /**
+   * Adds the node to the ring and moves the keys it takes over from the other nodes, returns the
+   * number of keys moved. When a node fails half way the ring goes back to what it was; adding
+   * the node again finishes the move. One node is added at a time, and with connections of its
+   * own, so it may run alongside the other commands.
+   */
+  public long addNode(String node) throws IOException {
+    NodeConnection.address(node);
+    if (!addingNode.compareAndSet(false, true)) {
+      throw new IOException("another node is being added");
+    }
+    Map<String, NodeConnection> owners = new LinkedHashMap<>();
+    try {
+      HashRing before = ring;
+      HashRing next = before.withNode(node);
+      // the previous owner of each range the new node takes over
+      Map<String, StringBuilder> handOver = new LinkedHashMap<>();
+      for (long[] range : next.rangesOf(node)) {
+        handOver
+            .computeIfAbsent(
+                before.ownerOf(range[1]), owner -> new StringBuilder("MIGRATE " + node))
+            .append(' ')
+            .append(range[0])
+            .append(' ')
+            .append(range[1]);
+      }
+      // the owners move their keys at the same time
+      for (Map.Entry<String, StringBuilder> owner : handOver.entrySet()) {
+        NodeConnection connection = new NodeConnection(owner.getKey());
+        owners.put(owner.getKey(), connection);
+        String first = firstLine(connection.call(owner.getValue().toString()));
+        if (!first.startsWith("Migrating ")) {
+          throw new IOException(owner.getKey() + " did not migrate: " + first);
+        }
+      }
+      previous = before;
+      ring = next;
+      long moved = 0;
+      try {
+        for (NodeConnection owner : owners.values()) {
+          moved += awaitMigration(owner);
+        }
+      } catch (IOException e) {
+        ring = before;
+        throw e;
+      } finally {
+        previous = null;
+      }
+      return moved;
+    } finally {
+      for (NodeConnection owner : owners.values()) {
+        owner.close();
+      }
+      addingNode.set(false);
+    }
+  }
+
+  // What CLUSTER ADDNODE replies
+  private String addNodeReply(String node) {
+    try {
+      return String.format("Added %s, migrated %d keys%n", node, addNode(node));
+    } catch (IOException | IllegalArgumentException e) {
+      return String.format("Error, cannot add %s: %s%n", node, e.getMessage());
+    }
+  }
+
+  // Asks the node how its MIGRATE is getting on until it is done, returns the keys moved
+  private static long awaitMigration(NodeConnection owner) throws IOException {
+    while (true) {
+      String first = firstLine(owner.call("MIGRATION"));
+      if (first.startsWith("Migrated ")) {
+        return Long.parseLong(first.split(" ")[1]);
+      }
+      if (!first.startsWith("Migrating")) {
+        throw new IOException(owner.node() + " did not migrate: " + first);
+      }
+      try {
+        Thread.sleep(MIGRATION_POLL_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while " + owner.node() + " migrates", e);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    for (NodeConnection connection : connections.values()) {
+      connection.close();
+    }
+    connections.clear();
+  }
+
+  private void cluster(PrintStream out) {
+    if (tokens.count() == 2 && tokens.token(1).equals("NODES")) {
+      int index = 1;
+      for (String node : ring.nodes()) {
+        out.println(index++ + ") " + node);
+      }
+    } else if (tokens.count() == 3 && tokens.token(1).equals("ADDNODE")) {
+      out.print(addNodeReply(tokens.token(2)));
+    } else {
+      out.println(String.format(App.MISSING_OR_REDUNDANT_PARAMETER_ERROR, CLUSTER_USAGE));
+    }
+  }
+
+  // To the node of the key, or to any node when there is no key to route by
+  private void forward(String key, String line, PrintStream out) {
+    if (key == null) {
+      print(call(ring.nodes().get(0), line), out);
+    } else {
+      print(callOwner(key, line), out);
+    }
+  }
+
+  /**
+   * Sends a command on the key to its owner and follows the redirects of a migration: MOVED goes
+   * to the node that has the key now, MOVING is tried again on the same node until the key has
+   * arrived, which takes one batch round trip between the two nodes.
+   */
+  private List<String> callOwner(String key, String line) {
+    HashRing before = previous;
+    String node = before != null ? before.nodeFor(key) : ring.nodeFor(key);
+    List<String> reply = call(node, line);
+    long deadline =
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(NodeConnection.TIMEOUT_MILLIS);
+    for (int redirects = 0; redirects < MAX_REDIRECTS; ) {
+      String first = firstLine(reply);
+      String moved = redirectTarget(Migration.MOVED_ERROR, key, first);
+      if (moved != null) {
+        node = moved;
+        redirects++;
+      } else if (redirectTarget(Migration.MOVING_ERROR, key, first) == null
+          || System.nanoTime() > deadline) {
+        return reply;
+      } else {
+        try {
+          Thread.sleep(MOVING_RETRY_MILLIS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return reply;
+        }
+      }
+      reply = call(node, line);
+    }
+    return reply;
+  }
+
+  // The node named by the error made from the format for the key, null for any other reply
+  static String redirectTarget(String format, String key, String line) {
+    String[] around = String.format(format, key, "\0").split("\0", -1);
+    if (line.length() > around[0].length() + around[1].length()
+        && line.startsWith(around[0])
+        && line.endsWith(around[1])) {
+      return line.substring(around[0].length(), line.length() - around[1].length());
+    }
+    return null;
+  }
+
+  // Numbered lists, concatenated and numbered again; KEYS prefix comes back sorted
+  private void list(String line, boolean sorted, PrintStream out) {
+    List<String> items = new ArrayList<>();
+    for (List<String> reply : fanOut(line).values()) {
+      for (String item : reply) {
+        int number = item.indexOf(") ");
+        if (number < 0 && !item.equals(App.EMPTY_SET_MESSAGE)) {
+          // an error, or whatever else came back instead of the list, goes out as it is
+          print(reply, out);
+          return;
+        }
+        if (number >= 0) {
+          items.add(item.substring(number + 2));
+        }
+      }
+    }
+    if (sorted) {
+      Collections.sort(items);
+    }
+    if (items.isEmpty()) {
+      out.println(App.EMPTY_SET_MESSAGE);
+    }
+    int index = 1;
+    for (String item : items) {
+      out.println(index++ + ") " + item);
+    }
+  }
+
+  private void dbSize(String line, PrintStream out) {
+    long keys = 0;
+    for (List<String> reply : fanOut(line).values()) {
+      if (reply.size() != 1 || !isCount(reply.get(0))) {
+        print(reply, out);
+        return;
+      }
+      keys += Long.parseLong(reply.get(0));
+    }
+    out.println(keys);
+  }
+
+  // Cleared from every node, otherwise the first error
+  private void clear(String line, PrintStream out) {
+    Collection<List<String>> replies = fanOut(line).values();
+    for (List<String> reply : replies) {
+      if (isError(reply)) {
+        print(reply, out);
+        return;
+      }
+    }
+    print(replies.iterator().next(), out);
+  }
+
+  // One line per pair in the order asked, each node is asked about its own keys only
+  private void memberPairsExist(String line, PrintStream out) {
+    if (tokens.count() < 3 || tokens.count() % 2 == 0) {
+      forward(null, line, out);
+      return;
+    }
+    int pairs = (tokens.count() - 1) / 2;
+    String[] answers = new String[pairs];
+    Map<String, StringBuilder> lines = new LinkedHashMap<>();
+    Map<String, List<Integer>> asked = new HashMap<>();
+    HashRing before = previous;
+    for (int p = 0; p < pairs; p++) {
+      String key = tokens.token(1 + 2 * p);
+      String node = ring.nodeFor(key);
+      if (before != null && !before.nodeFor(key).equals(node)) {
+        // on the move, one at a time so that a redirect only concerns its own key
+        String reply =
+            firstLine(callOwner(key, "MEMBEREXISTS " + key + " " + tokens.token(2 + 2 * p)));
+        answers[p] = String.valueOf(reply.equals("true"));
+        continue;
+      }
+      lines
+          .computeIfAbsent(node, n -> new StringBuilder("MMEMBEREXISTS"))
+          .append(' ')
+          .append(key)
+          .append(' ')
+          .append(tokens.token(2 + 2 * p));
+      asked.computeIfAbsent(node, n -> new ArrayList<>()).add(p);
+    }
+    Map<String, List<String>> replies = fanOut(lines);
+    for (Map.Entry<String, List<String>> reply : replies.entrySet()) {
+      List<Integer> indexes = asked.get(reply.getKey());
+      if (reply.getValue().size() != indexes.size()) {
+        print(reply.getValue(), out);
+        return;
+      }
+      for (int i = 0; i < indexes.size(); i++) {
+        answers[indexes.get(i)] = reply.getValue().get(i);
+      }
+    }
+    for (String answer : answers) {
+      out.println(answer);
+    }
+  }
+
+  private Map<String, List<String>> fanOut(String line) {
+    Map<String, StringBuilder> lines = new LinkedHashMap<>();
+    for (String node : ring.nodes()) {
+      lines.put(node, new StringBuilder(line));
+    }
+    return fanOut(lines);
+  }
+
+  // Sends every node its line first and then collects the replies, so the nodes work in parallel
+  private Map<String, List<String>> fanOut(Map<String, ? extends CharSequence> lines) {
+    for (Map.Entry<String, ? extends CharSequence> line : lines.entrySet()) {
+      NodeConnection connection = connection(line.getKey());
+      try {
+        connection.send(line.getValue().toString());
+        connection.flush();
+      } catch (IOException e) {
+        throw failed(connection, e);
+      }
+    }
+    Map<String, List<String>> replies = new LinkedHashMap<>();
+    for (String node : lines.keySet()) {
+      NodeConnection connection = connection(node);
+      try {
+        replies.put(node, connection.receive());
+      } catch (IOException e) {
+        throw failed(connection, e);
+      }
+    }
+    return replies;
+  }
+
+  private List<String> call(String node, String line) {
+    NodeConnection connection = connection(node);
+    try {
+      return connection.call(line);
+    } catch (IOException e) {
+      throw failed(connection, e);
+    }
+  }
+
+  private NodeConnection connection(String node) {
+    return connections.computeIfAbsent(node, NodeConnection::new);
+  }
+
+  // A connection that failed may be half way through a reply, the next command starts over
+  private NodeException failed(NodeConnection connection, IOException e) {
+    connection.close();
+    return new NodeException(connection.node(), e);
+  }
+
+  private static String firstLine(List<String> reply) {
+    return reply.isEmpty() ? "" : reply.get(0);
+  }
+
+  private static boolean isCount(String line) {
+    if (line.isEmpty() || line.length() > 18) {
+      return false;
+    }
+    for (int i = 0; i < line.length(); i++) {
+      if (line.charAt(i) < '0' || line.charAt(i) > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isError(List<String> reply) {
+    return reply.isEmpty() || reply.get(0).startsWith("Error") || reply.get(0).startsWith("ERROR");
+  }
+
+  private static void print(List<String> reply, PrintStream out) {
+    for (String line : reply) {
+      out.println(line);
+    }
+  }
+
+  private static final class NodeException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final String node;
+
+    NodeException(String node, IOException cause) {
+      super(cause);
+      this.node = node;
+    }
+  }
+}
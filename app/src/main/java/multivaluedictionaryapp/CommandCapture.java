@@ -0,0 +1,194 @@
+package multivaluedictionaryapp;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Command lines as they came in, with the time each one arrived, for WorkloadReplay to play back.
+ *
+ * <p>Layout: header [int magic][int version], then one record per line [varint nanoseconds since
+ * the previous line][varint UTF-8 length][UTF-8 bytes]; the first line is at 0. A line of a few
+ * words takes about as many bytes as its text plus two or three. Records are buffered, so a crash
+ * loses the last few kilobytes, and reading stops at the first incomplete record.
+ */
+public final class CommandCapture implements Closeable {
+
+  private static final int MAGIC = 0x4D564443;
+  private static final int VERSION = 1;
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final int MAX_LINE_BYTES = 1 << 24;
+
+  private final OutputStream out;
+  // records not written out yet; guarded by this, like the rest
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int position;
+  private long last = -1;
+  private IOException failure;
+
+  private CommandCapture(OutputStream out) throws IOException {
+    this.out = out;
+    DataOutputStream header = new DataOutputStream(out);
+    header.writeInt(MAGIC);
+    header.writeInt(VERSION);
+  }
+
+  public static CommandCapture create(Path file) throws IOException {
+    return new CommandCapture(Files.newOutputStream(file));
+  }
+
+  // Records the line as arriving now
+  public void record(String line) {
+    record(System.nanoTime(), line);
+  }
+
+  /**
+   * Records the line at a time in nanoseconds on any clock that does not go back. A write error
+   * stops the capture instead of failing the command; close() reports it.
+   */
+  public synchronized void record(long nanos, String line) {
+    if (failure != null) {
+      return;
+    }
+    try {
+      // two varints of at most 10 bytes each, and ASCII text of one byte per char
+      if (position + 20 + line.length() > BUFFER_SIZE) {
+        flushBuffer();
+      }
+      putVarLong(last < 0 ? 0 : Math.max(0, nanos - last));
+      last = nanos;
+      if (isAscii(line) && position + 10 + line.length() <= BUFFER_SIZE) {
+        putVarLong(line.length());
+        for (int i = 0; i < line.length(); i++) {
+          buffer[position++] = (byte) line.charAt(i);
+        }
+      } else {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        putVarLong(bytes.length);
+        flushBuffer();
+        out.write(bytes);
+      }
+    } catch (IOException e) {
+      failure = e;
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      if (failure == null) {
+        flushBuffer();
+      }
+      out.close();
+    } catch (IOException e) {
+      if (failure == null) {
+        failure = e;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    out.write(buffer, 0, position);
+    position = 0;
+  }
+
+  private void putVarLong(long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[position++] = (byte) value;
+  }
+
+  private static boolean isAscii(String line) {
+    for (int i = 0; i < line.length(); i++) {
+      if (line.charAt(i) >= 0x80) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Reads a capture one line at a time. */
+  public static final class Reader implements Closeable {
+    private final DataInputStream in;
+    private long nanos;
+    private String line;
+
+    private Reader(InputStream in) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+      if (this.in.readInt() != MAGIC) {
+        throw new IOException("Not a command capture");
+      }
+      int version = this.in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported capture version " + version);
+      }
+    }
+
+    public static Reader open(Path file) throws IOException {
+      InputStream in = Files.newInputStream(file);
+      try {
+        return new Reader(in);
+      } catch (IOException e) {
+        in.close();
+        throw e;
+      }
+    }
+
+    // Moves to the next line, false at the end of the capture
+    public boolean next() throws IOException {
+      try {
+        long delta = readVarLong();
+        long length = readVarLong();
+        if (length > MAX_LINE_BYTES) {
+          throw new IOException("Corrupt capture record");
+        }
+        byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+        nanos += delta;
+        line = new String(bytes, StandardCharsets.UTF_8);
+        return true;
+      } catch (EOFException e) {
+        return false;
+      }
+    }
+
+    // Nanoseconds from the first line to this one
+    public long nanos() {
+      return nanos;
+    }
+
+    public String line() {
+      return line;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+
+    private long readVarLong() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = in.readUnsignedByte();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Corrupt capture record");
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package multivaluedictionaryapp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Calls, errors by type and a latency histogram of one command. The histogram has 8 buckets per
+ * power of two of nanoseconds, as in HdrHistogram with 3 significant bits, so a percentile is
+ * reported within 12.5% and recording is a single increment without locks.
+ */
+final class CommandStats {
+
+  // the error type of a usage error, which the command itself does not see
+  static final String USAGE_ERROR = "USAGE";
+  private static final String OTHER_ERROR = "ERROR";
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+  // error replies by the Outcome they come from
+  private static final Map<String, String> ERROR_TYPES = new HashMap<>();
+
+  static {
+    for (Outcome outcome : Outcome.values()) {
+      if (outcome != Outcome.OK) {
+        ERROR_TYPES.put(outcome.message(), outcome.name());
+      }
+    }
+    ERROR_TYPES.put(
+        MultiValueDictionary.MEMBEREXISTS_KEY_NOT_FOUND_ERROR_MESSAGE,
+        Outcome.KEY_NOT_FOUND.name());
+  }
+
+  private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+  private final LongAdder totalNanos = new LongAdder();
+  private final AtomicLong maxNanos = new AtomicLong();
+  private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+  // Type of an error reply: the Outcome name, or ERROR for the other messages
+  static String errorType(String message) {
+    return ERROR_TYPES.getOrDefault(message, OTHER_ERROR);
+  }
+
+  void record(long nanos) {
+    histogram.incrementAndGet(bucket(nanos));
+    totalNanos.add(nanos);
+    long max;
+    while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+      // lost to another thread, compare again
+    }
+  }
+
+  void recordError(String type) {
+    errors.computeIfAbsent(type, t -> new LongAdder()).increment();
+  }
+
+  long calls() {
+    long calls = 0;
+    for (int b = 0; b < BUCKETS; b++) {
+      calls += histogram.get(b);
+    }
+    return calls;
+  }
+
+  long totalNanos() {
+    return totalNanos.sum();
+  }
+
+  long maxNanos() {
+    return maxNanos.get();
+  }
+
+  // Errors by type, in order
+  Map<String, Long> errors() {
+    Map<String, Long> counts = new TreeMap<>();
+    errors.forEach((type, count) -> counts.put(type, count.sum()));
+    return counts;
+  }
+
+  /**
+   * Latency below which the fraction q of the calls fell, as the upper end of its bucket; 0
+   * without calls. Calls recorded meanwhile may or may not be counted.
+   */
+  long percentileNanos(double q) {
+    long calls = calls();
+    if (calls == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(q * calls));
+    long seen = 0;
+    for (int b = 0; b < BUCKETS; b++) {
+      seen += histogram.get(b);
+      if (seen >= rank) {
+        return Math.min(upperBound(b), maxNanos());
+      }
+    }
+    return maxNanos();
+  }
+
+  void reset() {
+    for (int b = 0; b < BUCKETS; b++) {
+      histogram.set(b, 0);
+    }
+    totalNanos.reset();
+    maxNanos.set(0);
+    errors.clear();
+  }
+
+  // Values below 8 have a bucket each, above that 8 buckets share every power of two
+  static int bucket(long nanos) {
+    if (nanos < SUB_BUCKETS) {
+      return (int) Math.max(0, nanos);
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    int shift = exponent - SUB_BUCKET_BITS;
+    return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  // Largest value of the bucket
+  static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+    long lower = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+    return lower + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,281 @@
+package multivaluedictionaryapp;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Command handlers by name, in an open addressing table that is probed with the hash of the
+ * first token, so finding the handler for a line creates no String. Each command checks its
+ * number of tokens once before its handler runs.
+ *
+ * <p>With stats on, every run is timed into the command's CommandStats and counted as an error
+ * when it replies with a usage error, writes a line to err or throws. Off, a run costs one
+ * volatile read more than the handler itself.
+ */
+final class CommandTable {
+
+  // Writes the reply to out and errors to err
+  interface Handler {
+    void run(MultiValueDictionary dict, CommandTokenizer tokens, PrintStream out, PrintStream err);
+  }
+
+  static final class Command {
+    private final String name;
+    private final int tokens;
+    // the optional trailing group: its number of tokens, 0 for none, and whether it repeats
+    private final int step;
+    private final boolean repeats;
+    private final String usageError;
+    // changes the contents, so a read-only replica refuses it
+    private final boolean writes;
+    // the second token is a key, as in "ADD key value"
+    private final boolean keyed;
+    private final Handler handler;
+    private final CommandStats stats = new CommandStats();
+
+    private Command(
+        String name,
+        int tokens,
+        int step,
+        boolean repeats,
+        String usageError,
+        boolean writes,
+        boolean keyed,
+        Handler handler) {
+      this.name = name;
+      this.tokens = tokens;
+      this.step = step;
+      this.repeats = repeats;
+      this.usageError = usageError;
+      this.writes = writes;
+      this.keyed = keyed;
+      this.handler = handler;
+    }
+
+    String name() {
+      return name;
+    }
+
+    boolean writes() {
+      return writes;
+    }
+
+    boolean keyed() {
+      return keyed;
+    }
+
+    CommandStats stats() {
+      return stats;
+    }
+
+    // Prints the usage error and returns false when the line has too many or too few tokens
+    boolean run(
+        MultiValueDictionary dict, CommandTokenizer tokens, PrintStream out, PrintStream err) {
+      int extra = tokens.count() - this.tokens;
+      if (extra != 0
+          && (step == 0 || extra < 0 || extra % step != 0 || (!repeats && extra > step))) {
+        out.println(usageError);
+        return false;
+      }
+      handler.run(dict, tokens, out, err);
+      return true;
+    }
+  }
+
+  // Passes what a command writes to err through and keeps the first line it printed
+  private static final class ErrorTrap extends PrintStream {
+    private final Forward forward;
+    private String error;
+
+    private static final class Forward extends OutputStream {
+      private PrintStream target;
+
+      @Override
+      public void write(int b) {
+        target.write(b);
+      }
+
+      @Override
+      public void write(byte[] bytes, int offset, int length) {
+        target.write(bytes, offset, length);
+      }
+
+      @Override
+      public void flush() {
+        target.flush();
+      }
+    }
+
+    private ErrorTrap() {
+      this(new Forward());
+    }
+
+    private ErrorTrap(Forward forward) {
+      super(forward);
+      this.forward = forward;
+    }
+
+    PrintStream wrap(PrintStream target) {
+      forward.target = target;
+      error = null;
+      return this;
+    }
+
+    // The first line printed since wrap, or null
+    String unwrap() {
+      forward.target = null;
+      return error;
+    }
+
+    // the only way the commands write errors, the rest goes through as bytes
+    @Override
+    public void println(String line) {
+      if (error == null) {
+        error = line;
+      }
+      forward.target.println(line);
+    }
+  }
+
+  private static final ThreadLocal<ErrorTrap> ERROR_TRAPS = ThreadLocal.withInitial(ErrorTrap::new);
+
+  private final String usageErrorTemplate;
+  private Command[] slots = new Command[16];
+  private int size;
+  private volatile boolean statsEnabled;
+
+  // usageErrorTemplate gets the usage string of the command, e.g. "ADD key value"
+  CommandTable(String usageErrorTemplate) {
+    this.usageErrorTemplate = usageErrorTemplate;
+  }
+
+  // The first word of usage is the command name, the number of words its number of tokens. A
+  // trailing group in brackets is optional, "KEYS [prefix]", or may repeat when it ends with
+  // "...", as in "MADD key member [member ...]"
+  CommandTable add(String usage, Handler handler) {
+    return add(usage, false, handler);
+  }
+
+  // Same for a command that changes the contents
+  CommandTable addWrite(String usage, Handler handler) {
+    return add(usage, true, handler);
+  }
+
+  private CommandTable add(String usage, boolean writes, Handler handler) {
+    int optional = usage.indexOf(" [");
+    String[] words = (optional < 0 ? usage : usage.substring(0, optional)).split(" ");
+    String group = optional < 0 ? "" : usage.substring(optional + 2, usage.length() - 1);
+    boolean repeats = group.endsWith(" ...");
+    int step = group.isEmpty() ? 0 : group.split(" ").length - (repeats ? 1 : 0);
+    if (lookup(words[0]) != null) {
+      throw new IllegalArgumentException("Duplicate command " + words[0]);
+    }
+    if ((size + 1) * 2 > slots.length) {
+      Command[] old = slots;
+      slots = new Command[old.length * 2];
+      for (Command command : old) {
+        if (command != null) {
+          insert(command);
+        }
+      }
+    }
+    insert(
+        new Command(
+            words[0],
+            words.length,
+            step,
+            repeats,
+            String.format(usageErrorTemplate, usage),
+            writes,
+            words.length > 1 && words[1].equals("key"),
+            handler));
+    size++;
+    return this;
+  }
+
+  boolean isStatsEnabled() {
+    return statsEnabled;
+  }
+
+  // Switching stats off keeps what was recorded, switching them on again carries on from there
+  void setStatsEnabled(boolean enabled) {
+    statsEnabled = enabled;
+  }
+
+  // Every command, by name
+  List<Command> commands() {
+    List<Command> commands = new ArrayList<>(size);
+    for (Command command : slots) {
+      if (command != null) {
+        commands.add(command);
+      }
+    }
+    commands.sort(Comparator.comparing(Command::name));
+    return commands;
+  }
+
+  // Runs the command, timed and with its errors counted while stats are on
+  void run(
+      Command command,
+      MultiValueDictionary dict,
+      CommandTokenizer tokens,
+      PrintStream out,
+      PrintStream err) {
+    if (!statsEnabled) {
+      command.run(dict, tokens, out, err);
+      return;
+    }
+    ErrorTrap trap = ERROR_TRAPS.get();
+    CommandStats stats = command.stats;
+    long start = System.nanoTime();
+    boolean ran;
+    try {
+      ran = command.run(dict, tokens, out, trap.wrap(err));
+    } catch (RuntimeException | Error e) {
+      stats.record(System.nanoTime() - start);
+      trap.unwrap();
+      stats.recordError(e.getClass().getSimpleName());
+      throw e;
+    }
+    stats.record(System.nanoTime() - start);
+    String error = trap.unwrap();
+    if (!ran) {
+      stats.recordError(CommandStats.USAGE_ERROR);
+    } else if (error != null) {
+      stats.recordError(CommandStats.errorType(error));
+    }
+  }
+
+  // Command named by the first token, or null
+  Command lookup(CommandTokenizer tokens) {
+    int mask = slots.length - 1;
+    for (int i = SymbolTable.spread(tokens.tokenHash(0)) & mask; ; i = (i + 1) & mask) {
+      Command command = slots[i];
+      if (command == null || tokens.tokenEquals(0, command.name)) {
+        return command;
+      }
+    }
+  }
+
+  Command lookup(String name) {
+    int mask = slots.length - 1;
+    for (int i = SymbolTable.spread(name.hashCode()) & mask; ; i = (i + 1) & mask) {
+      Command command = slots[i];
+      if (command == null || command.name.equals(name)) {
+        return command;
+      }
+    }
+  }
+
+  private void insert(Command command) {
+    int mask = slots.length - 1;
+    int i = SymbolTable.spread(command.name.hashCode()) & mask;
+    while (slots[i] != null) {
+      i = (i + 1) & mask;
+    }
+    slots[i] = command;
+  }
+}
@@ -0,0 +1,82 @@
+package multivaluedictionaryapp;
+
+import java.util.Arrays;
+
+/**
+ * Splits a command line into tokens without copying it: only the token boundaries are recorded,
+ * in arrays that are reused from line to line. A token becomes a String only when token() is
+ * called, the command name is matched in place.
+ *
+ * <p>Splitting follows the old {@code line.trim().split(" ")}: surrounding whitespace is
+ * dropped, then every single space separates two tokens, so "ADD  key" has an empty token.
+ */
+final class CommandTokenizer {
+
+  private CharSequence line = "";
+  private int[] starts = new int[4];
+  private int[] ends = new int[4];
+  private int count;
+
+  void reset(CharSequence line) {
+    this.line = line;
+    int begin = 0;
+    int end = line.length();
+    while (begin < end && line.charAt(begin) <= ' ') {
+      begin++;
+    }
+    while (end > begin && line.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    count = 0;
+    int start = begin;
+    for (int i = begin; i < end; i++) {
+      if (line.charAt(i) == ' ') {
+        addToken(start, i);
+        start = i + 1;
+      }
+    }
+    addToken(start, end);
+  }
+
+  // Number of tokens, an empty line has one empty token
+  int count() {
+    return count;
+  }
+
+  boolean tokenEquals(int index, String s) {
+    int start = starts[index];
+    int length = ends[index] - start;
+    if (length != s.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (line.charAt(start + i) != s.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Same value as token(index).hashCode()
+  int tokenHash(int index) {
+    int hash = 0;
+    for (int i = starts[index]; i < ends[index]; i++) {
+      hash = 31 * hash + line.charAt(i);
+    }
+    return hash;
+  }
+
+  String token(int index) {
+    return line.subSequence(starts[index], ends[index]).toString();
+  }
+
+  private void addToken(int start, int end) {
+    if (count == starts.length) {
+      starts = Arrays.copyOf(starts, count * 2);
+      ends = Arrays.copyOf(ends, count * 2);
+    }
+    starts[count] = start;
+    ends[count] = end;
+    count++;
+  }
+}
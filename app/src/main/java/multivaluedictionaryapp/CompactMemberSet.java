@@ -0,0 +1,116 @@
+package multivaluedictionaryapp;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Member set that keeps small sets in an exactly sized array searched linearly, and switches to
+ * a HashSet once it grows past the threshold. A set never switches back, so a key hovering around
+ * the threshold does not convert on every ADD/REMOVE.
+ */
+final class CompactMemberSet extends AbstractSet<String> {
+
+  static final int DEFAULT_THRESHOLD = 8;
+  private static final String[] EMPTY = new String[0];
+
+  private final int threshold;
+  // packed members while small, null once hashed
+  private String[] packed = EMPTY;
+  private Set<String> hashed;
+
+  CompactMemberSet(int threshold) {
+    this.threshold = threshold;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return hashed != null ? hashed.contains(o) : indexOf(o) >= 0;
+  }
+
+  @Override
+  public boolean add(String member) {
+    if (hashed != null) {
+      return hashed.add(member);
+    }
+    if (indexOf(member) >= 0) {
+      return false;
+    }
+    if (packed.length == threshold) {
+      hashed = new HashSet<>(Arrays.asList(packed));
+      packed = null;
+      return hashed.add(member);
+    }
+    String[] grown = Arrays.copyOf(packed, packed.length + 1);
+    grown[packed.length] = member;
+    packed = grown;
+    return true;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    if (hashed != null) {
+      return hashed.remove(o);
+    }
+    int index = indexOf(o);
+    if (index < 0) {
+      return false;
+    }
+    String[] shrunk = new String[packed.length - 1];
+    System.arraycopy(packed, 0, shrunk, 0, index);
+    System.arraycopy(packed, index + 1, shrunk, index, shrunk.length - index);
+    packed = shrunk;
+    return true;
+  }
+
+  @Override
+  public void clear() {
+    packed = EMPTY;
+    hashed = null;
+  }
+
+  @Override
+  public int size() {
+    return hashed != null ? hashed.size() : packed.length;
+  }
+
+  @Override
+  public Iterator<String> iterator() {
+    if (hashed != null) {
+      return hashed.iterator();
+    }
+    String[] members = packed;
+    return new Iterator<String>() {
+      private int index;
+
+      @Override
+      public boolean hasNext() {
+        return index < members.length;
+      }
+
+      @Override
+      public String next() {
+        if (index >= members.length) {
+          throw new NoSuchElementException();
+        }
+        return members[index++];
+      }
+    };
+  }
+
+  boolean isPacked() {
+    return hashed == null;
+  }
+
+  private int indexOf(Object o) {
+    for (int i = 0; i < packed.length; i++) {
+      if (packed[i].equals(o)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,770 @@
+package multivaluedictionaryapp;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Thread-safe MultiValueDictionary. Every ADD / REMOVE / REMOVEALL / MEMBEREXISTS is atomic for
+ * its key: the check and the update run inside a single ConcurrentHashMap compute call. The write
+ * and its bookkeeping (the stats and the listeners) run under one of a fixed set of locks striped
+ * by key hash, so the changes of a key reach the listeners in order while writers on different
+ * keys only wait for each other when their keys share a stripe.
+ *
+ * <p>Member sets are copy-on-write and every write is stamped from a global clock. A key keeps a
+ * short chain of its older versions while an open snapshot may still need them, so KEYS, ITEMS
+ * and ALLMEMBERS read one consistent point in time without taking any lock and without making
+ * writers wait for the scan. A snapshot reads at the clock as it finds it: a write that has taken
+ * an earlier stamp but is not installed yet is still running, so leaving it out is consistent, and
+ * neither the snapshot nor later writers wait for it.
+ *
+ * <p>LOAD is the one write that waits for the others: it keeps new writers out, lets the running
+ * ones finish and then installs every key of the snapshot under a single stamp that scans only
+ * read once all of it is in, so a scan sees either all of the old contents or all of the new.
+ */
+public class ConcurrentMultiValueDictionary extends MultiValueDictionary {
+
+  // enough that writers on different keys rarely share one
+  private static final int STRIPES =
+      Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 16 - 1) * 2;
+
+  private final ConcurrentMap<String, Version> versions;
+  // held around a write of a key and its bookkeeping, by key hash
+  private final Object[] stripes = new Object[STRIPES];
+  // last stamp handed out to a writer
+  private final AtomicLong clock = new AtomicLong();
+  // stamp of the LOAD being installed, snapshots read below it until it is done
+  private volatile long loadStamp = Long.MAX_VALUE;
+  // floor stamp of each open snapshot mapped to the number of readers holding it
+  private final ConcurrentNavigableMap<Long, Integer> readers = new ConcurrentSkipListMap<>();
+  // set when a removed key had to stay as a tombstone because a snapshot could still see it
+  private volatile boolean tombstonesPending;
+  // writers between enterWrite and exitWrite
+  private final LongAdder writers = new LongAdder();
+  // held by LOAD for as long as it runs; writers arriving meanwhile queue up on it
+  private final Object loadLock = new Object();
+  private volatile boolean loading;
+  private volatile Thread loader;
+
+  // One committed state of a key; members is null once the key has been removed
+  private static final class Version {
+    final long stamp;
+    final Set<String> members;
+    volatile Version previous;
+
+    Version(long stamp, Set<String> members, Version previous) {
+      this.stamp = stamp;
+      this.members = members;
+      this.previous = previous;
+    }
+  }
+
+  public ConcurrentMultiValueDictionary() {
+    this(new ConcurrentHashMap<>());
+  }
+
+  private ConcurrentMultiValueDictionary(ConcurrentMap<String, Version> versions) {
+    super(new LatestView(versions));
+    this.versions = versions;
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Object();
+    }
+  }
+
+  // Lock held around a write of the key, so its bookkeeping runs in the order of the writes
+  private Object stripe(String key) {
+    return stripes[SymbolTable.spread(key.hashCode()) & (STRIPES - 1)];
+  }
+
+  // ADD
+  @Override
+  public Outcome tryAdd(String key, String value) {
+    expireDue();
+    Outcome outcome;
+    enterWrite();
+    try {
+      synchronized (stripe(key)) {
+        outcome = applyAdd(key, value);
+      }
+    } finally {
+      exitWrite();
+    }
+    // outside the gate, a listener may write, e.g. to evict
+    if (outcome == Outcome.OK) {
+      syncMutationListeners();
+    }
+    return outcome;
+  }
+
+  private Outcome applyAdd(String key, String value) {
+    long[] stamp = new long[1];
+    int[] size = new int[1];
+    versions.compute(
+        key,
+        (k, head) -> {
+          Set<String> current = head == null ? null : head.members;
+          if (current != null && current.contains(value)) {
+            return head;
+          }
+          Set<String> next = current == null ? new HashSet<>() : new HashSet<>(current);
+          next.add(value);
+          size[0] = next.size();
+          return install(head, stamp, Collections.unmodifiableSet(next));
+        });
+    if (stamp[0] == 0) {
+      return Outcome.MEMBER_ALREADY_EXISTS;
+    }
+    getMemoryStats().added(key, value, size[0]);
+    for (MutationListener listener : getMutationListeners()) {
+      listener.onAdd(key, value);
+    }
+    return Outcome.OK;
+  }
+
+  // MADD, all members of the call go in as one version of the key
+  @Override
+  public BitSet tryAddMembers(String key, List<String> members) {
+    expireDue();
+    BitSet added;
+    enterWrite();
+    try {
+      synchronized (stripe(key)) {
+        added = applyAddMembers(key, members);
+      }
+    } finally {
+      exitWrite();
+    }
+    if (!added.isEmpty()) {
+      syncMutationListeners();
+    }
+    return added;
+  }
+
+  private BitSet applyAddMembers(String key, List<String> members) {
+    BitSet added = new BitSet(members.size());
+    long[] stamp = new long[1];
+    int[] size = new int[1];
+    versions.compute(
+        key,
+        (k, head) -> {
+          Set<String> current = head == null ? null : head.members;
+          Set<String> next = current == null ? new HashSet<>() : new HashSet<>(current);
+          for (int i = 0; i < members.size(); i++) {
+            if (next.add(members.get(i))) {
+              added.set(i);
+            }
+          }
+          if (added.isEmpty()) {
+            return head;
+          }
+          size[0] = current == null ? 0 : current.size();
+          return install(head, stamp, Collections.unmodifiableSet(next));
+        });
+    if (stamp[0] != 0) {
+      for (int i = added.nextSetBit(0); i >= 0; i = added.nextSetBit(i + 1)) {
+        getMemoryStats().added(key, members.get(i), ++size[0]);
+        for (MutationListener listener : getMutationListeners()) {
+          listener.onAdd(key, members.get(i));
+        }
+      }
+    }
+    return added;
+  }
+
+  // KEYS
+  @Override
+  public Set<String> getKeys() {
+    expireDue();
+    long floor = openSnapshot();
+    try {
+      long at = readAt();
+      Set<String> keys = new HashSet<>();
+      for (Map.Entry<String, Version> entry : versions.entrySet()) {
+        if (visible(entry.getValue(), at) != null) {
+          keys.add(entry.getKey());
+        }
+      }
+      return Collections.unmodifiableSet(keys);
+    } finally {
+      closeSnapshot(floor);
+    }
+  }
+
+  // MEMBERS
+  @Override
+  public Set<String> findMembers(String key) {
+    expireDue();
+    recordRead(key);
+    Version head = versions.get(key);
+    return head == null ? null : head.members;
+  }
+
+  // REMOVE
+  @Override
+  public Outcome tryRemoveMember(String key, String value) {
+    expireDue();
+    Outcome outcome;
+    enterWrite();
+    try {
+      synchronized (stripe(key)) {
+        outcome = applyRemoveMember(key, value);
+      }
+    } finally {
+      exitWrite();
+    }
+    if (outcome == Outcome.OK) {
+      syncMutationListeners();
+    }
+    return outcome;
+  }
+
+  private Outcome applyRemoveMember(String key, String value) {
+    // stays KEY_NOT_FOUND when the key is absent or already a tombstone
+    Outcome[] status = {Outcome.KEY_NOT_FOUND};
+    long[] stamp = new long[1];
+    int[] size = new int[1];
+    versions.computeIfPresent(
+        key,
+        (k, head) -> {
+          Set<String> current = head.members;
+          if (current == null) {
+            return head;
+          }
+          if (!current.contains(value)) {
+            status[0] = Outcome.MEMBER_NOT_FOUND;
+            return head;
+          }
+          status[0] = Outcome.OK;
+          Set<String> next = null;
+          // the key goes away together with its last member
+          if (current.size() > 1) {
+            next = new HashSet<>(current);
+            next.remove(value);
+            next = Collections.unmodifiableSet(next);
+          }
+          size[0] = current.size() - 1;
+          return install(head, stamp, next);
+        });
+    if (status[0] != Outcome.OK) {
+      return status[0];
+    }
+    getMemoryStats().removed(key, value, size[0]);
+    for (MutationListener listener : getMutationListeners()) {
+      listener.onRemove(key, value);
+      if (size[0] == 0) {
+        listener.onKeyRemoved(key);
+      }
+    }
+    dropTombstone(key);
+    return Outcome.OK;
+  }
+
+  // MREMOVE, all removals of the call go in as one version of the key
+  @Override
+  public BitSet tryRemoveMembers(String key, List<String> members) {
+    expireDue();
+    BitSet removed;
+    enterWrite();
+    try {
+      synchronized (stripe(key)) {
+        removed = applyRemoveMembers(key, members);
+      }
+    } finally {
+      exitWrite();
+    }
+    if (removed != null && !removed.isEmpty()) {
+      syncMutationListeners();
+    }
+    return removed;
+  }
+
+  private BitSet applyRemoveMembers(String key, List<String> members) {
+    BitSet removed = new BitSet(members.size());
+    boolean[] found = new boolean[1];
+    long[] stamp = new long[1];
+    int[] size = new int[1];
+    versions.computeIfPresent(
+        key,
+        (k, head) -> {
+          Set<String> current = head.members;
+          if (current == null) {
+            return head;
+          }
+          found[0] = true;
+          Set<String> next = new HashSet<>(current);
+          for (int i = 0; i < members.size(); i++) {
+            if (next.remove(members.get(i))) {
+              removed.set(i);
+            }
+          }
+          if (removed.isEmpty()) {
+            return head;
+          }
+          size[0] = current.size();
+          // the key goes away together with its last member
+          return install(head, stamp, next.isEmpty() ? null : Collections.unmodifiableSet(next));
+        });
+    if (!found[0]) {
+      return null;
+    }
+    if (stamp[0] != 0) {
+      for (int i = removed.nextSetBit(0); i >= 0; i = removed.nextSetBit(i + 1)) {
+        getMemoryStats().removed(key, members.get(i), --size[0]);
+        for (MutationListener listener : getMutationListeners()) {
+          listener.onRemove(key, members.get(i));
+        }
+      }
+      if (size[0] == 0) {
+        for (MutationListener listener : getMutationListeners()) {
+          listener.onKeyRemoved(key);
+        }
+      }
+      dropTombstone(key);
+    }
+    return removed;
+  }
+
+  // REMOVEALL
+  @Override
+  public Outcome tryRemoveAll(String key) {
+    expireDue();
+    if (!removeKey(key)) {
+      return Outcome.KEY_NOT_FOUND;
+    }
+    syncMutationListeners();
+    return Outcome.OK;
+  }
+
+  // CLEAR, one REMOVEALL per key: a concurrent snapshot may observe a partly cleared map, and
+  // listeners see a REMOVEALL for each key rather than a single CLEAR
+  @Override
+  public void clearMap() {
+    for (String key : versions.keySet()) {
+      removeKey(key);
+    }
+    syncMutationListeners();
+  }
+
+  // MEMBEREXISTS
+  @Override
+  public Outcome findMember(String key, String value) {
+    expireDue();
+    recordRead(key);
+    Version head = versions.get(key);
+    if (head == null || head.members == null) {
+      return Outcome.KEY_NOT_FOUND;
+    }
+    return head.members.contains(value) ? Outcome.OK : Outcome.MEMBER_NOT_FOUND;
+  }
+
+  // ALLMEMBERS
+  @Override
+  public List<Set<String>> getAllMembers() {
+    expireDue();
+    long floor = openSnapshot();
+    try {
+      long at = readAt();
+      List<Set<String>> resultList = new ArrayList<>();
+      for (Version head : versions.values()) {
+        Set<String> members = visible(head, at);
+        if (members != null) {
+          resultList.add(members);
+        }
+      }
+      return resultList;
+    } finally {
+      closeSnapshot(floor);
+    }
+  }
+
+  // ITEMS
+  @Override
+  public List<String> getItems() {
+    expireDue();
+    long floor = openSnapshot();
+    try {
+      long at = readAt();
+      List<String> resultList = new ArrayList<>();
+      for (Map.Entry<String, Version> entry : versions.entrySet()) {
+        Set<String> members = visible(entry.getValue(), at);
+        if (members != null) {
+          for (String value : members) {
+            resultList.add(entry.getKey() + ": " + value);
+          }
+        }
+      }
+      return resultList;
+    } finally {
+      closeSnapshot(floor);
+    }
+  }
+
+  // Streams ITEMS as of one point in time, versions are kept until the visitor is done
+  @Override
+  public void forEachItem(BiConsumer<String, String> visitor) {
+    expireDue();
+    long floor = openSnapshot();
+    try {
+      long at = readAt();
+      for (Map.Entry<String, Version> entry : versions.entrySet()) {
+        Set<String> members = visible(entry.getValue(), at);
+        if (members != null) {
+          for (String value : members) {
+            visitor.accept(entry.getKey(), value);
+          }
+        }
+      }
+    } finally {
+      closeSnapshot(floor);
+    }
+  }
+
+  @Override
+  public void forEachMember(Consumer<String> visitor) {
+    forEachItem((key, member) -> visitor.accept(member));
+  }
+
+  // Immutable copy of the whole dictionary as of a single point in time
+  public Map<String, Set<String>> snapshot() {
+    expireDue();
+    long floor = openSnapshot();
+    try {
+      long at = readAt();
+      Map<String, Set<String>> result = new HashMap<>();
+      for (Map.Entry<String, Version> entry : versions.entrySet()) {
+        Set<String> members = visible(entry.getValue(), at);
+        if (members != null) {
+          result.put(entry.getKey(), members);
+        }
+      }
+      return Collections.unmodifiableMap(result);
+    } finally {
+      closeSnapshot(floor);
+    }
+  }
+
+  // SAVE, writes the dictionary as of one point in time
+  @Override
+  public void save(Path file) throws IOException {
+    save(this::snapshot, file);
+  }
+
+  // LOAD, the snapshot is read into memory first, writers only wait while it is installed
+  @Override
+  public void load(Path file) throws IOException {
+    MultiValueDictionary snapshot = new MultiValueDictionary();
+    snapshot.load(file);
+    // the stats come from the snapshot, not from another pass over it
+    try {
+      load(snapshot.getMap(), file, snapshot.getMemoryStats());
+    } catch (IndexOutOfBoundsException | NegativeArraySizeException e) {
+      // a record the header did not give away
+      throw new IOException("Corrupt dictionary snapshot", e);
+    }
+  }
+
+  @Override
+  void load(Map<String, ? extends Collection<String>> contents, Path file) {
+    load(contents, file, null);
+  }
+
+  // stats describe the contents, null counts them while they are installed
+  private void load(
+      Map<String, ? extends Collection<String>> contents, Path file, MemoryStats stats) {
+    synchronized (loadLock) {
+      loader = Thread.currentThread();
+      loading = true;
+      try {
+        while (writers.sum() != 0) {
+          Thread.yield();
+        }
+        replaceAll(contents, stats);
+        // after the commit, so listeners that read the contents back see the loaded ones;
+        // writes they make themselves, such as evictions, pass the gate. With stats the
+        // contents are the mapped snapshot file, anything else was copied in
+        notifyLoad(stats == null ? null : contents, file);
+      } finally {
+        loading = false;
+        loader = null;
+      }
+    }
+    syncMutationListeners();
+  }
+
+  // Called with every writer kept out: one stamp for the whole new contents
+  private void replaceAll(
+      Map<String, ? extends Collection<String>> contents, MemoryStats stats) {
+    // nobody else takes a stamp meanwhile, so this is the one taken next
+    loadStamp = clock.get() + 1;
+    long stamp = clock.incrementAndGet();
+    List<String> removed = new ArrayList<>();
+    for (String key : versions.keySet()) {
+      if (!contents.containsKey(key)) {
+        versions.computeIfPresent(
+            key,
+            (k, head) -> {
+              if (head.members == null) {
+                return head;
+              }
+              removed.add(key);
+              trim(head);
+              return new Version(stamp, null, head);
+            });
+      }
+    }
+    MemoryStats counted = getMemoryStats();
+    counted.cleared();
+    for (Map.Entry<String, ? extends Collection<String>> entry : contents.entrySet()) {
+      Set<String> members = Collections.unmodifiableSet(new HashSet<>(entry.getValue()));
+      if (stats == null) {
+        counted.keyAdded(entry.getKey(), members);
+      }
+      versions.compute(
+          entry.getKey(),
+          (k, head) -> {
+            trim(head);
+            return new Version(stamp, members, head);
+          });
+    }
+    if (stats != null) {
+      counted.merge(stats);
+    }
+    loadStamp = Long.MAX_VALUE;
+    for (String key : removed) {
+      dropTombstone(key);
+    }
+  }
+
+  /**
+   * Every write goes through this gate. It only costs a striped counter unless a LOAD is running,
+   * then the writer waits for it to finish; writes the loading thread makes itself pass.
+   */
+  private void enterWrite() {
+    while (true) {
+      writers.increment();
+      if (!loading || loader == Thread.currentThread()) {
+        return;
+      }
+      writers.decrement();
+      synchronized (loadLock) {
+        // LOAD holds the lock until it is done
+      }
+    }
+  }
+
+  private void exitWrite() {
+    writers.decrement();
+  }
+
+  private boolean removeKey(String key) {
+    enterWrite();
+    try {
+      synchronized (stripe(key)) {
+        return applyRemoveAll(key);
+      }
+    } finally {
+      exitWrite();
+    }
+  }
+
+  private boolean applyRemoveAll(String key) {
+    long[] stamp = new long[1];
+    List<Set<String>> removed = new ArrayList<>(1);
+    versions.computeIfPresent(
+        key,
+        (k, head) -> {
+          if (head.members == null) {
+            return head;
+          }
+          removed.add(head.members);
+          return install(head, stamp, null);
+        });
+    if (stamp[0] == 0) {
+      return false;
+    }
+    Set<String> members = removed.get(0);
+    getMemoryStats().keyRemoved(key, members);
+    for (MutationListener listener : getMutationListeners()) {
+      listener.onRemoveAll(key, members);
+    }
+    dropTombstone(key);
+    return true;
+  }
+
+  /**
+   * Called inside compute: chains the new version and trims what no snapshot can reach any more.
+   * The stamp is taken last, once nothing can fail, and handed out through stamp[0]; the caller
+   * then runs the stats and listeners of the write, still under the stripe lock of the key.
+   */
+  private Version install(Version head, long[] stamp, Set<String> members) {
+    trim(head);
+    stamp[0] = clock.incrementAndGet();
+    return new Version(stamp[0], members, head);
+  }
+
+  // Unlinks the versions behind the head that no snapshot can reach any more
+  private void trim(Version head) {
+    long horizon = horizon();
+    for (Version v = head; v != null; v = v.previous) {
+      if (v.stamp <= horizon) {
+        // v is the newest version an open snapshot may still read, older ones are dead
+        v.previous = null;
+        break;
+      }
+    }
+  }
+
+  /**
+   * Stamp a snapshot reads at. Every write stamped up to it is either installed or still running
+   * inside compute, and a running one is concurrent with the reader, so nothing waits for it.
+   */
+  private long readAt() {
+    long at = clock.get();
+    // read after the clock: LOAD sets it before it takes its stamp
+    return Math.min(at, loadStamp - 1);
+  }
+
+  // Lowest stamp any current or future snapshot can read at
+  private long horizon() {
+    // the clock must be read before the reader registry, see openSnapshot
+    long horizon = readAt();
+    Map.Entry<Long, Integer> oldest = readers.firstEntry();
+    return oldest == null ? horizon : Math.min(horizon, oldest.getKey());
+  }
+
+  // Registers a floor stamp; the snapshot then reads at readAt(), which can only be higher
+  private long openSnapshot() {
+    long floor = readAt();
+    readers.merge(floor, 1, Integer::sum);
+    return floor;
+  }
+
+  private void closeSnapshot(long floor) {
+    readers.computeIfPresent(floor, (stamp, count) -> count == 1 ? null : count - 1);
+    if (tombstonesPending && readers.isEmpty()) {
+      tombstonesPending = false;
+      for (String key : versions.keySet()) {
+        dropTombstone(key);
+      }
+    }
+  }
+
+  private void dropTombstone(String key) {
+    versions.computeIfPresent(
+        key,
+        (k, head) -> {
+          if (head.members != null) {
+            return head;
+          }
+          if (head.stamp <= horizon()) {
+            return null;
+          }
+          tombstonesPending = true;
+          return head;
+        });
+  }
+
+  // Members of the key as of the given stamp, or null when the key did not exist then
+  private static Set<String> visible(Version head, long at) {
+    for (Version v = head; v != null; v = v.previous) {
+      if (v.stamp <= at) {
+        return v.members;
+      }
+    }
+    return null;
+  }
+
+  // Live, weakly consistent view of the newest version of every key, backing getMap()
+  private static final class LatestView extends AbstractMap<String, Set<String>> {
+
+    private final ConcurrentMap<String, Version> versions;
+
+    LatestView(ConcurrentMap<String, Version> versions) {
+      this.versions = versions;
+    }
+
+    @Override
+    public Set<String> get(Object key) {
+      Version head = versions.get(key);
+      return head == null ? null : head.members;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return get(key) != null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return !entrySet().iterator().hasNext();
+    }
+
+    @Override
+    public Set<Map.Entry<String, Set<String>>> entrySet() {
+      return new AbstractSet<Map.Entry<String, Set<String>>>() {
+        @Override
+        public Iterator<Map.Entry<String, Set<String>>> iterator() {
+          Iterator<Map.Entry<String, Version>> heads = versions.entrySet().iterator();
+          return new Iterator<Map.Entry<String, Set<String>>>() {
+            private Map.Entry<String, Set<String>> next = advance();
+
+            private Map.Entry<String, Set<String>> advance() {
+              while (heads.hasNext()) {
+                Map.Entry<String, Version> entry = heads.next();
+                Set<String> members = entry.getValue().members;
+                if (members != null) {
+                  return new SimpleImmutableEntry<>(entry.getKey(), members);
+                }
+              }
+              return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+              return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, Set<String>> next() {
+              if (next == null) {
+                throw new NoSuchElementException();
+              }
+              Map.Entry<String, Set<String>> current = next;
+              next = advance();
+              return current;
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          int size = 0;
+          for (Iterator<Map.Entry<String, Set<String>>> it = iterator(); it.hasNext(); it.next()) {
+            size++;
+          }
+          return size;
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,326 @@
+package multivaluedictionaryapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves the command set of the app over TCP, one command per line, from a single selector
+ * thread. Every reply is what the console would show (errors included) followed by an empty line.
+ * A command that throws gets an error reply; the connection and the other clients carry on.
+ *
+ * <p>Clients may pipeline: all complete lines of a read are executed in order and their replies
+ * go out in one write. While a reply has not been fully written the connection is not read from,
+ * so a client that does not read its replies is held back by TCP instead of filling the heap.
+ *
+ * <p>Commands run one after another on the selector thread, so a plain {@link
+ * MultiValueDictionary} can be served as it is. Expired TTLs are removed from the same thread
+ * between commands, at least every {@link #EXPIRY_INTERVAL_MILLIS}. A command that takes long
+ * can be answered later from another thread instead, see {@link LineHandler#executeLater}: its
+ * connection waits for that reply before running its next line, the others carry on.
+ */
+public class DictionaryServer implements Closeable {
+
+  static final int BUFFER_SIZE = 1 << 16;
+  static final String LINE_TOO_LONG_ERROR = "Error, line too long.";
+  static final String COMMAND_FAILED_ERROR = "Error, the command failed: %s";
+  private static final int BACKLOG = 1024;
+  // how often TTLs are expired while no command touches the dictionary
+  static final long EXPIRY_INTERVAL_MILLIS = 100;
+
+  // Runs one command line, printing the reply, and returns false for EXIT
+  interface LineHandler {
+    boolean execute(String line, PrintStream out);
+
+    // The reply of a command that runs elsewhere, or null to run the line with execute()
+    default CompletableFuture<String> executeLater(String line) {
+      return null;
+    }
+  }
+
+  private final LineHandler handler;
+  // run between commands, at least every EXPIRY_INTERVAL_MILLIS
+  private final Runnable tick;
+  private final ServerSocketChannel server;
+  private final Selector selector;
+  private final Thread loop;
+  // replies that came in from other threads, for the selector thread to send
+  private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+  private volatile boolean running = true;
+
+  private DictionaryServer(
+      LineHandler handler, Runnable tick, ServerSocketChannel server, Selector selector) {
+    this.handler = handler;
+    this.tick = tick;
+    this.server = server;
+    this.selector = selector;
+    this.loop = new Thread(this::run, "dictionary-server");
+  }
+
+  // Listens on the address, port 0 picks a free port
+  public static DictionaryServer start(MultiValueDictionary dict, InetSocketAddress address)
+      throws IOException {
+    return start((line, out) -> App.execute(dict, line, out, out), dict::expireDue, address);
+  }
+
+  // Same protocol in front of something other than a local dictionary, such as a ClusterRouter
+  static DictionaryServer start(LineHandler handler, Runnable tick, InetSocketAddress address)
+      throws IOException {
+    ServerSocketChannel server = ServerSocketChannel.open();
+    Selector selector = null;
+    try {
+      server.bind(address, BACKLOG);
+      server.configureBlocking(false);
+      selector = Selector.open();
+      server.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      server.close();
+      if (selector != null) {
+        selector.close();
+      }
+      throw e;
+    }
+    DictionaryServer dictionaryServer = new DictionaryServer(handler, tick, server, selector);
+    dictionaryServer.loop.start();
+    return dictionaryServer;
+  }
+
+  public int port() {
+    return server.socket().getLocalPort();
+  }
+
+  // Waits until the server has been closed
+  public void awaitTermination() throws InterruptedException {
+    loop.join();
+  }
+
+  @Override
+  public void close() throws IOException {
+    running = false;
+    selector.wakeup();
+    try {
+      loop.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    try {
+      while (running) {
+        selector.select(EXPIRY_INTERVAL_MILLIS);
+        try {
+          tick.run();
+        } catch (RuntimeException e) {
+          // tried again on the next round
+          System.err.println("Error, expiry failed: " + e);
+        }
+        Runnable completion;
+        while ((completion = completions.poll()) != null) {
+          completion.run();
+        }
+        for (SelectionKey key : selector.selectedKeys()) {
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+          } else {
+            Connection connection = (Connection) key.attachment();
+            try {
+              if (key.isWritable()) {
+                connection.write();
+              }
+              if (key.isValid() && key.isReadable()) {
+                connection.read();
+              }
+            } catch (IOException e) {
+              // the client went away, nothing left to reply to
+              connection.close();
+            }
+          }
+        }
+        selector.selectedKeys().clear();
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      System.err.println("Error, server stopped: " + e.getMessage());
+    } finally {
+      closeAll();
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel;
+    while ((channel = server.accept()) != null) {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+      key.attach(new Connection(key, channel));
+    }
+  }
+
+  private void closeAll() {
+    for (SelectionKey key : selector.keys()) {
+      try {
+        key.channel().close();
+      } catch (IOException e) {
+        // closing anyway
+      }
+    }
+    try {
+      selector.close();
+      server.close();
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+    }
+  }
+
+  // Exposes the buffer so replies are written without copying them
+  private static final class ReplyBuffer extends ByteArrayOutputStream {
+    ReplyBuffer() {
+      super(BUFFER_SIZE);
+    }
+
+    ByteBuffer wrap() {
+      return ByteBuffer.wrap(buf, 0, count);
+    }
+  }
+
+  private final class Connection {
+    private final SelectionKey key;
+    private final SocketChannel channel;
+    private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ReplyBuffer reply = new ReplyBuffer();
+    private final PrintStream printer = new PrintStream(reply, false, StandardCharsets.UTF_8);
+    // the reply being written, null when there is none
+    private ByteBuffer pending;
+    // EXIT was read, the connection closes once its reply is out
+    private boolean closing;
+    // a line is answered later and the ones after it wait in the buffer; lateReply is its reply
+    // once it is there, printed when the replies before it are out
+    private boolean deferred;
+    private String lateReply;
+
+    Connection(SelectionKey key, SocketChannel channel) {
+      this.key = key;
+      this.channel = channel;
+    }
+
+    void read() throws IOException {
+      if (channel.read(in) < 0) {
+        close();
+        return;
+      }
+      execute();
+    }
+
+    // Runs the complete lines read so far, up to one answered later, and sends their replies
+    private void execute() throws IOException {
+      if (lateReply != null) {
+        printer.print(lateReply);
+        printer.println();
+        lateReply = null;
+        deferred = false;
+      }
+      byte[] bytes = in.array();
+      int start = 0;
+      int end = in.position();
+      for (int i = 0; i < end && !closing && !deferred; i++) {
+        if (bytes[i] == '\n') {
+          int length = i - start;
+          if (length > 0 && bytes[i - 1] == '\r') {
+            length--;
+          }
+          String line = new String(bytes, start, length, StandardCharsets.UTF_8);
+          start = i + 1;
+          try {
+            CompletableFuture<String> later = handler.executeLater(line);
+            if (later != null) {
+              deferred = true;
+              later.whenComplete(this::completed);
+              continue;
+            }
+            closing = !handler.execute(line, printer);
+          } catch (RuntimeException e) {
+            printer.println(String.format(COMMAND_FAILED_ERROR, e));
+          }
+          printer.println();
+        }
+      }
+      if (!deferred && start == 0 && end == bytes.length) {
+        printer.println(LINE_TOO_LONG_ERROR);
+        printer.println();
+        closing = true;
+      }
+      in.position(start);
+      in.limit(end);
+      in.compact();
+      if (reply.size() > 0) {
+        pending = reply.wrap();
+        write();
+      } else {
+        key.interestOps(deferred ? 0 : SelectionKey.OP_READ);
+      }
+    }
+
+    // Runs on the thread that worked the reply out
+    private void completed(String text, Throwable failure) {
+      String late =
+          failure == null ? text : String.format(COMMAND_FAILED_ERROR, failure) + "\n";
+      completions.add(
+          () -> {
+            if (!key.isValid()) {
+              return;
+            }
+            lateReply = late;
+            try {
+              if (pending == null) {
+                execute();
+              }
+            } catch (IOException e) {
+              close();
+            }
+          });
+      selector.wakeup();
+    }
+
+    void write() throws IOException {
+      channel.write(pending);
+      if (pending.hasRemaining()) {
+        // backpressure: stop reading until the client has taken the reply
+        key.interestOps(SelectionKey.OP_WRITE);
+        return;
+      }
+      pending = null;
+      reply.reset();
+      if (closing) {
+        close();
+      } else if (lateReply != null) {
+        execute();
+      } else {
+        key.interestOps(deferred ? 0 : SelectionKey.OP_READ);
+      }
+    }
+
+    void close() {
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // already gone
+      }
+    }
+  }
+}
@@ -0,0 +1,218 @@
+package multivaluedictionaryapp;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * TTLs of keys and of single members, attached to a dictionary as a MutationListener the first
+ * time EXPIRE is used. The current TTL of a key or member is looked up in a map; the deadlines
+ * themselves wait in a TimingWheel, so setting a TTL is O(1) and expiring costs the number of
+ * entries that are due, however many TTLs are pending. A TTL that was replaced or dropped (by
+ * PERSIST, a new EXPIRE or the key going away) stays in the wheel and is skipped when it comes up.
+ *
+ * <p>The dictionary calls {@link #expireDue()} before every access, so an expired entry is removed
+ * before anything could see it. That is a single clock read once the wheel is up to date.
+ * Removals go through the dictionary, so listeners such as the write-ahead log see them as
+ * ordinary REMOVE and REMOVEALL calls. They are made without holding the table's lock, so a
+ * LOAD or CLEAR that the dictionary runs meanwhile can still reach the table. On the concurrent
+ * dictionary a key that is removed and added again just as its TTL fires may be removed along with
+ * it, and an entry another thread is expiring right now may be seen until that removal is done.
+ */
+public class ExpiryTable implements MutationListener {
+
+  // TTL of a key or member that has none, or that does not exist
+  public static final long NO_TTL = -1;
+  public static final long NOT_FOUND = -2;
+
+  private final MultiValueDictionary dict;
+  private final LongSupplier clock;
+  private final ConcurrentHashMap<String, Timer> keyTimers = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Map<String, Timer>> memberTimers =
+      new ConcurrentHashMap<>();
+  // guarded by this, like the due timers that have not been expired yet and advancedUntil
+  private final TimingWheel<Timer> wheel;
+  private final ArrayDeque<Timer> due = new ArrayDeque<>();
+  // the wheel has handed out every deadline up to this one
+  private long advancedUntil;
+  // every deadline up to this one has been expired, or is being expired by another thread
+  private volatile long expiredUntil;
+  // set while the thread removes due entries, the removals call back into expireDue
+  private final ThreadLocal<boolean[]> expiring = ThreadLocal.withInitial(() -> new boolean[1]);
+
+  // A deadline of a key, or of one of its members when member is not null
+  private static final class Timer {
+    final String key;
+    final String member;
+    final long deadline;
+
+    Timer(String key, String member, long deadline) {
+      this.key = key;
+      this.member = member;
+      this.deadline = deadline;
+    }
+  }
+
+  private ExpiryTable(MultiValueDictionary dict, LongSupplier clock) {
+    this.dict = dict;
+    this.clock = clock;
+    this.expiredUntil = clock.getAsLong();
+    this.advancedUntil = expiredUntil;
+    this.wheel = new TimingWheel<>(timer -> timer.deadline, expiredUntil);
+  }
+
+  static ExpiryTable attach(MultiValueDictionary dict, LongSupplier clock) {
+    ExpiryTable table = new ExpiryTable(dict, clock);
+    dict.addMutationListener(table);
+    return table;
+  }
+
+  // Sets the TTL of the key (member null) or member, which the caller has checked exists
+  void expire(String key, String member, long millis) {
+    synchronized (this) {
+      // from a clock reading that cannot be behind advancedUntil, so it is not already due
+      Timer timer = new Timer(key, member, clock.getAsLong() + millis);
+      wheel.schedule(timer);
+      if (member == null) {
+        keyTimers.put(key, timer);
+      } else {
+        memberTimers.computeIfAbsent(key, k -> new ConcurrentHashMap<>()).put(member, timer);
+      }
+    }
+  }
+
+  // Milliseconds left, or NO_TTL
+  long ttl(String key, String member) {
+    Timer timer = find(key, member);
+    return timer == null ? NO_TTL : Math.max(0, timer.deadline - clock.getAsLong());
+  }
+
+  // Drops the TTL, false when there was none
+  boolean persist(String key, String member) {
+    Timer timer = find(key, member);
+    return timer != null && drop(timer);
+  }
+
+  // Number of keys and members with a TTL
+  public int size() {
+    int size = keyTimers.size();
+    for (Map<String, Timer> timers : memberTimers.values()) {
+      size += timers.size();
+    }
+    return size;
+  }
+
+  /**
+   * Removes every key and member whose deadline has passed. The due timers are taken from the
+   * wheel under the lock and removed from the dictionary after it is released; threads that come
+   * in meanwhile share the remaining ones. Called from a removal it triggers itself, it returns at
+   * once.
+   */
+  public void expireDue() {
+    long now = clock.getAsLong();
+    boolean[] active = expiring.get();
+    if (now <= expiredUntil || active[0]) {
+      return;
+    }
+    active[0] = true;
+    try {
+      synchronized (this) {
+        if (now > advancedUntil) {
+          wheel.advance(now, due::add);
+          advancedUntil = now;
+        }
+      }
+      while (true) {
+        Timer timer;
+        synchronized (this) {
+          timer = due.poll();
+        }
+        if (timer == null) {
+          break;
+        }
+        // replaced and dropped timers are no longer in the maps
+        if (drop(timer)) {
+          if (timer.member == null) {
+            dict.tryRemoveAll(timer.key);
+          } else {
+            dict.tryRemoveMember(timer.key, timer.member);
+          }
+        }
+      }
+      synchronized (this) {
+        // published last, a reader that skips the lock finds the removals done
+        if (now > expiredUntil) {
+          expiredUntil = now;
+        }
+      }
+    } finally {
+      active[0] = false;
+    }
+  }
+
+  private Timer find(String key, String member) {
+    if (member == null) {
+      return keyTimers.get(key);
+    }
+    Map<String, Timer> timers = memberTimers.get(key);
+    return timers == null ? null : timers.get(member);
+  }
+
+  // Removes the timer if it is still the current one of its key or member
+  private boolean drop(Timer timer) {
+    if (timer.member == null) {
+      return keyTimers.remove(timer.key, timer);
+    }
+    boolean[] dropped = new boolean[1];
+    memberTimers.computeIfPresent(
+        timer.key,
+        (key, timers) -> {
+          dropped[0] = timers.remove(timer.member, timer);
+          return timers.isEmpty() ? null : timers;
+        });
+    return dropped[0];
+  }
+
+  @Override
+  public void onAdd(String key, String member) {}
+
+  @Override
+  public void onRemove(String key, String member) {
+    memberTimers.computeIfPresent(
+        key,
+        (k, timers) -> {
+          timers.remove(member);
+          return timers.isEmpty() ? null : timers;
+        });
+  }
+
+  @Override
+  public void onKeyRemoved(String key) {
+    keyTimers.remove(key);
+    memberTimers.remove(key);
+  }
+
+  @Override
+  public void onRemoveAll(String key, Set<String> members) {
+    onKeyRemoved(key);
+  }
+
+  @Override
+  public void onClear() {
+    keyTimers.clear();
+    memberTimers.clear();
+    synchronized (this) {
+      wheel.clear();
+      due.clear();
+    }
+  }
+
+  // TTLs are not part of the snapshot, the loaded keys have none
+  @Override
+  public void onLoad(Path snapshot) {
+    onClear();
+  }
+}
@@ -0,0 +1,127 @@
+package multivaluedictionaryapp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Consistent hashing of keys onto nodes. Every node is placed at a number of pseudo-random points
+ * (virtual nodes) on a ring of 64-bit hashes, and a key belongs to the node of the first point at
+ * or after its own hash. Adding a node only takes over the ranges just before its points, the
+ * other keys stay where they are.
+ *
+ * <p>The placement depends on nothing but the node names and the number of virtual nodes, so
+ * every router built from the same list routes alike. Immutable.
+ */
+public final class HashRing {
+
+  public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+  private final List<String> nodes;
+  private final int virtualNodes;
+  // sorted, owners[i] has the point points[i]
+  private final long[] points;
+  private final String[] owners;
+
+  public HashRing(Collection<String> nodes, int virtualNodes) {
+    if (nodes.isEmpty()) {
+      throw new IllegalArgumentException("A ring needs at least one node");
+    }
+    if (virtualNodes <= 0) {
+      throw new IllegalArgumentException("A node needs at least one virtual node");
+    }
+    this.nodes = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(nodes)));
+    this.virtualNodes = virtualNodes;
+    int size = this.nodes.size() * virtualNodes;
+    long[][] placed = new long[size][];
+    int p = 0;
+    for (int n = 0; n < this.nodes.size(); n++) {
+      for (int v = 0; v < virtualNodes; v++) {
+        placed[p++] = new long[] {hash(this.nodes.get(n) + "#" + v), n};
+      }
+    }
+    // equal hashes are broken by the node name, which keeps the order the same everywhere
+    Arrays.sort(
+        placed,
+        (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+    points = new long[size];
+    owners = new String[size];
+    for (int i = 0; i < size; i++) {
+      points[i] = placed[i][0];
+      owners[i] = this.nodes.get((int) placed[i][1]);
+    }
+  }
+
+  // Sorted by name
+  public List<String> nodes() {
+    return nodes;
+  }
+
+  public int virtualNodes() {
+    return virtualNodes;
+  }
+
+  public String nodeFor(String key) {
+    return ownerOf(hash(key));
+  }
+
+  // The same ring with one more node
+  public HashRing withNode(String node) {
+    if (nodes.contains(node)) {
+      throw new IllegalArgumentException(node + " is already in the ring");
+    }
+    List<String> grown = new ArrayList<>(nodes);
+    grown.add(node);
+    return new HashRing(grown, virtualNodes);
+  }
+
+  // The node owning the hash
+  String ownerOf(long hash) {
+    int i = Arrays.binarySearch(points, hash);
+    if (i < 0) {
+      i = -i - 1;
+    } else {
+      // the first of equal points
+      while (i > 0 && points[i - 1] == hash) {
+        i--;
+      }
+    }
+    return owners[i == points.length ? 0 : i];
+  }
+
+  // The ranges (from, to] of hashes the node owns, as pairs {from, to}; from > to wraps around
+  List<long[]> rangesOf(String node) {
+    List<long[]> ranges = new ArrayList<>();
+    for (int i = 0; i < points.length; i++) {
+      if (owners[i].equals(node)) {
+        long from = points[i == 0 ? points.length - 1 : i - 1];
+        if (from != points[i]) {
+          ranges.add(new long[] {from, points[i]});
+        }
+      }
+    }
+    return ranges;
+  }
+
+  static boolean inRange(long hash, long from, long to) {
+    return from < to ? hash > from && hash <= to : hash > from || hash <= to;
+  }
+
+  // FNV-1a over the chars, spread with the MurmurHash3 finalizer
+  static long hash(String s) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < s.length(); i++) {
+      h ^= s.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb93fe53ec5a9L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
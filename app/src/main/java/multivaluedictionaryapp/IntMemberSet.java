@@ -0,0 +1,158 @@
+package multivaluedictionaryapp;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Member set that stores symbol ids in an open addressing int table instead of boxed strings.
+ * Membership tests resolve the string against the shared SymbolTable, so a member that is not
+ * interned is rejected without touching the table. Every id in the set holds a reference on its
+ * symbol, given back when the member is removed or the set cleared.
+ */
+final class IntMemberSet extends AbstractSet<String> {
+
+  private static final int EMPTY = 0;
+  private static final int INITIAL_CAPACITY = 4;
+
+  private final SymbolTable symbols;
+  // each slot holds id + 1 so that 0 means empty
+  private int[] slots = new int[INITIAL_CAPACITY];
+  private int size;
+
+  IntMemberSet(SymbolTable symbols) {
+    this.symbols = symbols;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if (!(o instanceof String)) {
+      return false;
+    }
+    int id = symbols.find((String) o);
+    return id >= 0 && indexOf(id) >= 0;
+  }
+
+  @Override
+  public boolean add(String member) {
+    int found = symbols.find(member);
+    if (found >= 0 && indexOf(found) >= 0) {
+      return false;
+    }
+    int id = symbols.intern(member);
+    // keep the load factor at or below three quarters
+    if ((size + 1) * 4 > slots.length * 3) {
+      rehash(slots.length * 2);
+    }
+    int mask = slots.length - 1;
+    int i = SymbolTable.spread(id) & mask;
+    while (slots[i] != EMPTY) {
+      i = (i + 1) & mask;
+    }
+    slots[i] = id + 1;
+    size++;
+    return true;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    if (!(o instanceof String)) {
+      return false;
+    }
+    int id = symbols.find((String) o);
+    int index = id < 0 ? -1 : indexOf(id);
+    if (index < 0) {
+      return false;
+    }
+    deleteAt(index);
+    size--;
+    symbols.release(id);
+    return true;
+  }
+
+  @Override
+  public void clear() {
+    for (int slot : slots) {
+      if (slot != EMPTY) {
+        symbols.release(slot - 1);
+      }
+    }
+    slots = new int[INITIAL_CAPACITY];
+    size = 0;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Iterator<String> iterator() {
+    return new Iterator<String>() {
+      private int index = advance(0);
+
+      private int advance(int from) {
+        while (from < slots.length && slots[from] == EMPTY) {
+          from++;
+        }
+        return from;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return index < slots.length;
+      }
+
+      @Override
+      public String next() {
+        if (index >= slots.length) {
+          throw new NoSuchElementException();
+        }
+        String member = symbols.symbol(slots[index] - 1);
+        index = advance(index + 1);
+        return member;
+      }
+    };
+  }
+
+  private int indexOf(int id) {
+    int mask = slots.length - 1;
+    for (int i = SymbolTable.spread(id) & mask; ; i = (i + 1) & mask) {
+      if (slots[i] == EMPTY) {
+        return -1;
+      }
+      if (slots[i] == id + 1) {
+        return i;
+      }
+    }
+  }
+
+  // Backward shift deletion: pulls later entries of the probe run into the hole, no tombstones
+  private void deleteAt(int hole) {
+    int mask = slots.length - 1;
+    for (int i = (hole + 1) & mask; slots[i] != EMPTY; i = (i + 1) & mask) {
+      int home = SymbolTable.spread(slots[i] - 1) & mask;
+      // move the entry if its home slot is not inside (hole, i]
+      if (((i - home) & mask) >= ((i - hole) & mask)) {
+        slots[hole] = slots[i];
+        hole = i;
+      }
+    }
+    slots[hole] = EMPTY;
+  }
+
+  private void rehash(int capacity) {
+    int[] old = slots;
+    slots = new int[capacity];
+    int mask = capacity - 1;
+    for (int slot : old) {
+      if (slot != EMPTY) {
+        int i = SymbolTable.spread(slot - 1) & mask;
+        while (slots[i] != EMPTY) {
+          i = (i + 1) & mask;
+        }
+        slots[i] = slot;
+      }
+    }
+  }
+}
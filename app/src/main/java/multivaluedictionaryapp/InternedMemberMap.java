@@ -0,0 +1,147 @@
+package multivaluedictionaryapp;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Backing map for StorageMode.INTERNED. Keys and members share one SymbolTable, so every distinct
+ * string is stored once no matter how many keys repeat it, and the member set of a key is found
+ * by indexing an array with the key's symbol id. A key holds a reference on its symbol like a
+ * member does, so strings that are no longer used leave the table and the array only grows with
+ * the strings in use at once.
+ */
+final class InternedMemberMap extends AbstractMap<String, Set<String>> {
+
+  private final SymbolTable symbols = new SymbolTable();
+  // member set of each key, indexed by the key's symbol id; null when the symbol is not a key
+  private IntMemberSet[] setsBySymbol = new IntMemberSet[16];
+  private int size;
+
+  @Override
+  public Set<String> get(Object key) {
+    int id = idOf(key);
+    return id < 0 || id >= setsBySymbol.length ? null : setsBySymbol[id];
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  // Stores the computed members as an IntMemberSet and returns that stored set
+  @Override
+  public Set<String> computeIfAbsent(
+      String key, Function<? super String, ? extends Set<String>> mappingFunction) {
+    Set<String> members = get(key);
+    if (members == null) {
+      Set<String> computed = mappingFunction.apply(key);
+      if (computed != null) {
+        members = store(key, computed);
+      }
+    }
+    return members;
+  }
+
+  @Override
+  public Set<String> put(String key, Set<String> value) {
+    Set<String> previous = remove(key);
+    store(key, value);
+    return previous;
+  }
+
+  // The removed members come back as a copy, their symbols may be gone from the table
+  @Override
+  public Set<String> remove(Object key) {
+    int id = idOf(key);
+    if (id < 0 || id >= setsBySymbol.length || setsBySymbol[id] == null) {
+      return null;
+    }
+    IntMemberSet members = setsBySymbol[id];
+    Set<String> removed = new HashSet<>(members);
+    setsBySymbol[id] = null;
+    size--;
+    members.clear();
+    symbols.release(id);
+    return removed;
+  }
+
+  @Override
+  public void clear() {
+    symbols.clear();
+    setsBySymbol = new IntMemberSet[16];
+    size = 0;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  // Number of distinct keys and members interned
+  int symbolCount() {
+    return symbols.size();
+  }
+
+  @Override
+  public Set<Map.Entry<String, Set<String>>> entrySet() {
+    return new AbstractSet<Map.Entry<String, Set<String>>>() {
+      @Override
+      public Iterator<Map.Entry<String, Set<String>>> iterator() {
+        return new Iterator<Map.Entry<String, Set<String>>>() {
+          private int id = advance(0);
+
+          private int advance(int from) {
+            while (from < setsBySymbol.length && setsBySymbol[from] == null) {
+              from++;
+            }
+            return from;
+          }
+
+          @Override
+          public boolean hasNext() {
+            return id < setsBySymbol.length;
+          }
+
+          @Override
+          public Map.Entry<String, Set<String>> next() {
+            if (id >= setsBySymbol.length) {
+              throw new NoSuchElementException();
+            }
+            Map.Entry<String, Set<String>> entry =
+                new SimpleImmutableEntry<>(symbols.symbol(id), setsBySymbol[id]);
+            id = advance(id + 1);
+            return entry;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  private IntMemberSet store(String key, Set<String> members) {
+    int id = symbols.intern(key);
+    if (id >= setsBySymbol.length) {
+      setsBySymbol = Arrays.copyOf(setsBySymbol, Math.max(id + 1, setsBySymbol.length * 2));
+    }
+    IntMemberSet set = new IntMemberSet(symbols);
+    set.addAll(members);
+    setsBySymbol[id] = set;
+    size++;
+    return set;
+  }
+
+  private int idOf(Object key) {
+    return key instanceof String ? symbols.find((String) key) : -1;
+  }
+}
@@ -0,0 +1,106 @@
+package multivaluedictionaryapp;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Keys in lexicographic order, kept up to date as a MutationListener so prefix and range queries
+ * cost the size of the matching range instead of a scan of every key. The keys are in a
+ * ConcurrentSkipListSet, so the listener calls of ConcurrentMultiValueDictionary need no more
+ * locking than the per-key order they already arrive in.
+ */
+public class KeyIndex implements MutationListener {
+
+  private final MultiValueDictionary dict;
+  private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<>();
+
+  private KeyIndex(MultiValueDictionary dict) {
+    this.dict = dict;
+  }
+
+  // Indexes the current keys and follows the dictionary from then on, without racing mutations
+  static KeyIndex attach(MultiValueDictionary dict) {
+    KeyIndex index = new KeyIndex(dict);
+    index.keys.addAll(dict.getKeys());
+    dict.addMutationListener(index);
+    return index;
+  }
+
+  void detach() {
+    dict.removeMutationListener(this);
+    keys.clear();
+  }
+
+  // At most limit keys in order, starting at from and ending before to (null for no end)
+  public List<String> range(String from, String to, int limit) {
+    if (to != null && from.compareTo(to) >= 0) {
+      return new ArrayList<>();
+    }
+    return page(to == null ? keys.tailSet(from, true) : keys.subSet(from, true, to, false), limit);
+  }
+
+  // At most limit keys in order after the given one, from the first key when it is null
+  public List<String> after(String key, int limit) {
+    return page(key == null ? keys : keys.tailSet(key, false), limit);
+  }
+
+  private static List<String> page(NavigableSet<String> matching, int limit) {
+    List<String> page = new ArrayList<>();
+    for (String key : matching) {
+      if (page.size() == limit) {
+        break;
+      }
+      page.add(key);
+    }
+    return page;
+  }
+
+  public int size() {
+    return keys.size();
+  }
+
+  // First string after every string that starts with prefix, null when there is none
+  static String prefixEnd(String prefix) {
+    int end = prefix.length();
+    while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+      end--;
+    }
+    if (end == 0) {
+      return null;
+    }
+    return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+  }
+
+  @Override
+  public void onAdd(String key, String member) {
+    keys.add(key);
+  }
+
+  @Override
+  public void onRemove(String key, String member) {}
+
+  @Override
+  public void onKeyRemoved(String key) {
+    keys.remove(key);
+  }
+
+  @Override
+  public void onRemoveAll(String key, Set<String> members) {
+    keys.remove(key);
+  }
+
+  @Override
+  public void onClear() {
+    keys.clear();
+  }
+
+  @Override
+  public void onLoad(Path snapshot) {
+    keys.clear();
+    keys.addAll(dict.getKeys());
+  }
+}
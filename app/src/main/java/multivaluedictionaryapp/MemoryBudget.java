@@ -0,0 +1,410 @@
+package multivaluedictionaryapp;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the estimated heap taken by a dictionary. A MutationListener keeps a rough size and an
+ * access stamp per key; once an ADD pushes the total over the budget, whole keys are evicted
+ * until it fits again. Like Redis, eviction samples a few random keys into a small pool of
+ * candidates and evicts the best of the pool, instead of keeping every key in a global list.
+ *
+ * <p>A read only drops the key into a lossy ring buffer, one array store. The ring is drained
+ * into the per-key stamps when eviction runs; reads that were overwritten before that are lost,
+ * which only makes the policy a little more approximate.
+ *
+ * <p>After a LOAD from a snapshot file the total comes from the stats stored in the file, and a
+ * loaded key is only sized, from the snapshot, when it is first changed, read or sampled for
+ * eviction. Samples are drawn from the loaded keys not sized yet in proportion to their number.
+ *
+ * <p>Sizes are estimated for HASH storage with Latin-1 strings (including this bookkeeping) and
+ * every member is counted at every key it belongs to, so for the interned and compact modes the
+ * budget errs on the safe side.
+ */
+public class MemoryBudget implements MutationListener {
+
+  public enum EvictionPolicy {
+    // least recently used of the sample
+    LRU,
+    // least frequently used, on a logarithmic counter that decays while a key is idle
+    LFU,
+    RANDOM
+  }
+
+  static final int SAMPLES = 5;
+  private static final int POOL_SIZE = 16;
+  private static final int READ_BUFFER_SIZE = 1 << 10;
+  // a KeyStats and its slot in keys, on top of the MemoryStats estimates
+  static final int BOOKKEEPING_BYTES = 80;
+  // LFU counter of a new key, so it is not the first one evicted, and its growth rate
+  private static final int LFU_INITIAL = 5;
+  private static final int LFU_LOG_FACTOR = 10;
+  private static final int LFU_MAX = 255;
+  // the counter drops by one for every this many ADDs in which the key was not touched
+  private static final int LFU_DECAY_EPOCHS = 10_000;
+
+  private final MultiValueDictionary dict;
+  private final long maxBytes;
+  private final EvictionPolicy policy;
+  private final ConcurrentHashMap<String, KeyStats> stats = new ConcurrentHashMap<>();
+  // every key once, for sampling; guarded by itself
+  private final List<KeyStats> keys = new ArrayList<>();
+  private final AtomicLong usedBytes = new AtomicLong();
+  private final AtomicLong evictedKeys = new AtomicLong();
+  private final AtomicLong evictedBytes = new AtomicLong();
+  // keys read since the last eviction, racy writes only lose reads
+  private final String[] reads = new String[READ_BUFFER_SIZE];
+  private int readCount;
+  // best candidates of the samples so far, guarded by this
+  private final List<KeyStats> pool = new ArrayList<>();
+  // advanced by every ADD, races only make it a little coarser
+  private int epoch;
+  // contents of the last LOAD while some of its keys are not sized yet, null otherwise; the keys
+  // not sampled yet, and the loaded keys sized or removed since, which the contents no longer
+  // describe; guarded by keys
+  private volatile Map<String, ? extends Collection<String>> loaded;
+  private Iterator<String> unsampled;
+  private final Set<String> sized = new HashSet<>();
+  // epoch of the LOAD, the last access of its keys
+  private int loadEpoch;
+
+  private static final class KeyStats {
+    final String key;
+    // position in keys
+    int slot;
+    long bytes;
+    int lastAccess;
+    int frequency = LFU_INITIAL;
+
+    KeyStats(String key) {
+      this.key = key;
+    }
+  }
+
+  private MemoryBudget(MultiValueDictionary dict, long maxBytes, EvictionPolicy policy) {
+    this.dict = dict;
+    this.maxBytes = maxBytes;
+    this.policy = policy;
+  }
+
+  /**
+   * Sizes up the current contents and follows the dictionary from then on, evicting at once if
+   * they are over the budget. Like the indexes it must not race with mutations.
+   */
+  static MemoryBudget attach(MultiValueDictionary dict, long maxBytes, EvictionPolicy policy) {
+    MemoryBudget budget = new MemoryBudget(dict, maxBytes, policy);
+    dict.forEachItem(budget::onAdd);
+    dict.addMutationListener(budget);
+    budget.sync();
+    return budget;
+  }
+
+  /**
+   * The limits and counters of several budgets added up, such as those of the shards of a
+   * dictionary. It follows no dictionary itself and does not change afterwards.
+   */
+  static MemoryBudget sum(List<MemoryBudget> budgets) {
+    long maxBytes = 0;
+    for (MemoryBudget budget : budgets) {
+      maxBytes += budget.maxBytes;
+    }
+    MemoryBudget sum = new MemoryBudget(null, maxBytes, budgets.get(0).policy);
+    for (MemoryBudget budget : budgets) {
+      sum.usedBytes.addAndGet(budget.usedBytes());
+      sum.evictedKeys.addAndGet(budget.evictedKeys());
+      sum.evictedBytes.addAndGet(budget.evictedBytes());
+    }
+    return sum;
+  }
+
+  void detach() {
+    dict.removeMutationListener(this);
+    onClear();
+  }
+
+  public long maxBytes() {
+    return maxBytes;
+  }
+
+  public EvictionPolicy policy() {
+    return policy;
+  }
+
+  public long usedBytes() {
+    return usedBytes.get();
+  }
+
+  public long evictedKeys() {
+    return evictedKeys.get();
+  }
+
+  public long evictedBytes() {
+    return evictedBytes.get();
+  }
+
+  // Estimated heap of the key, its members and its bookkeeping; 0 when it is not there
+  public long keyBytes(String key) {
+    KeyStats keyStats = tracked(key);
+    return keyStats == null ? 0 : keyStats.bytes;
+  }
+
+  // Stats of the key, sizing it first if it is a loaded one that has not been
+  private KeyStats tracked(String key) {
+    KeyStats keyStats = stats.get(key);
+    return keyStats != null || loaded == null ? keyStats : sizeLoaded(key);
+  }
+
+  /**
+   * Sizes a loaded key from the contents as they were loaded; its bytes are in the total
+   * already. Null when the key was not loaded or has been sized or removed since. Changes to a
+   * key are not concurrent, so this runs before the first change is counted.
+   */
+  private KeyStats sizeLoaded(String key) {
+    synchronized (keys) {
+      KeyStats keyStats = stats.get(key);
+      Map<String, ? extends Collection<String>> contents = loaded;
+      if (keyStats != null || contents == null || sized.contains(key)) {
+        return keyStats;
+      }
+      Collection<String> members = contents.get(key);
+      if (members == null) {
+        return null;
+      }
+      sized.add(key);
+      keyStats = new KeyStats(key);
+      keyStats.bytes = MemoryStats.keyBytes(key) + BOOKKEEPING_BYTES;
+      for (String member : members) {
+        keyStats.bytes += MemoryStats.memberBytes(member);
+      }
+      keyStats.lastAccess = loadEpoch;
+      keyStats.slot = keys.size();
+      keys.add(keyStats);
+      stats.put(key, keyStats);
+      return keyStats;
+    }
+  }
+
+  // Records a read of the key
+  void touch(String key) {
+    reads[readCount++ & (READ_BUFFER_SIZE - 1)] = key;
+  }
+
+  // Stamps the keys read since the last call
+  private void drainReads() {
+    for (int i = 0; i < reads.length; i++) {
+      String key = reads[i];
+      if (key != null) {
+        reads[i] = null;
+        KeyStats keyStats = tracked(key);
+        if (keyStats != null) {
+          touch(keyStats);
+        }
+      }
+    }
+  }
+
+  private void touch(KeyStats keyStats) {
+    int now = epoch;
+    if (policy == EvictionPolicy.LFU) {
+      int frequency = decayed(keyStats, now);
+      if (frequency < LFU_MAX) {
+        int base = Math.max(0, frequency - LFU_INITIAL);
+        if (ThreadLocalRandom.current().nextInt(base * LFU_LOG_FACTOR + 1) == 0) {
+          frequency++;
+        }
+      }
+      keyStats.frequency = frequency;
+    }
+    keyStats.lastAccess = now;
+  }
+
+  private static int decayed(KeyStats keyStats, int now) {
+    return Math.max(0, keyStats.frequency - (now - keyStats.lastAccess) / LFU_DECAY_EPOCHS);
+  }
+
+  @Override
+  public void onAdd(String key, String member) {
+    epoch++;
+    KeyStats keyStats = tracked(key);
+    long bytes = MemoryStats.memberBytes(member);
+    if (keyStats == null) {
+      keyStats = new KeyStats(key);
+      stats.put(key, keyStats);
+      synchronized (keys) {
+        keyStats.slot = keys.size();
+        keys.add(keyStats);
+      }
+      bytes += MemoryStats.keyBytes(key) + BOOKKEEPING_BYTES;
+    }
+    keyStats.bytes += bytes;
+    usedBytes.addAndGet(bytes);
+    touch(keyStats);
+  }
+
+  @Override
+  public void onRemove(String key, String member) {
+    KeyStats keyStats = tracked(key);
+    if (keyStats != null) {
+      long bytes = MemoryStats.memberBytes(member);
+      keyStats.bytes -= bytes;
+      usedBytes.addAndGet(-bytes);
+    }
+  }
+
+  @Override
+  public void onKeyRemoved(String key) {
+    tracked(key);
+    KeyStats keyStats = stats.remove(key);
+    if (keyStats == null) {
+      return;
+    }
+    usedBytes.addAndGet(-keyStats.bytes);
+    synchronized (keys) {
+      // the last key takes the slot of the removed one
+      KeyStats last = keys.remove(keys.size() - 1);
+      if (last != keyStats) {
+        last.slot = keyStats.slot;
+        keys.set(last.slot, last);
+      }
+    }
+  }
+
+  @Override
+  public void onRemoveAll(String key, Set<String> members) {
+    onKeyRemoved(key);
+  }
+
+  @Override
+  public void onClear() {
+    stats.clear();
+    synchronized (keys) {
+      keys.clear();
+      loaded = null;
+      unsampled = null;
+      sized.clear();
+    }
+    usedBytes.set(0);
+    Arrays.fill(reads, null);
+  }
+
+  @Override
+  public void onLoad(Path snapshot) {
+    onClear();
+    Map<String, ? extends Collection<String>> contents = dict.loadedContents();
+    if (contents == null) {
+      dict.forEachItem(this::onAdd);
+    } else if (!contents.isEmpty()) {
+      MemoryStats loadedStats = dict.getMemoryStats();
+      synchronized (keys) {
+        loadEpoch = epoch;
+        unsampled = contents.keySet().iterator();
+        loaded = contents;
+      }
+      usedBytes.set(loadedStats.estimatedBytes() + loadedStats.keyCount() * BOOKKEEPING_BYTES);
+    }
+    sync();
+  }
+
+  // Runs once the mutating call has released its locks, so eviction can remove keys
+  @Override
+  public void sync() {
+    if (usedBytes.get() <= maxBytes || Thread.holdsLock(this)) {
+      return;
+    }
+    synchronized (this) {
+      drainReads();
+      while (usedBytes.get() > maxBytes) {
+        KeyStats victim = nextVictim();
+        if (victim == null) {
+          return;
+        }
+        long bytes = victim.bytes;
+        // its own sync() call returns at once, this loop carries on
+        if (dict.tryRemoveAll(victim.key) == Outcome.OK) {
+          evictedKeys.incrementAndGet();
+          evictedBytes.addAndGet(bytes);
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds SAMPLES random keys to the pool and takes the best candidate out of it, null when there
+   * are no keys. Candidates are ranked again each time, they may have been read meanwhile.
+   */
+  private KeyStats nextVictim() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int i = 0; i < SAMPLES; i++) {
+      KeyStats candidate = sample(random);
+      if (candidate == null) {
+        break;
+      }
+      if (!pool.contains(candidate)) {
+        pool.add(candidate);
+      }
+    }
+    // keys that have gone since they were sampled
+    pool.removeIf(candidate -> stats.get(candidate.key) != candidate);
+    if (pool.isEmpty()) {
+      return null;
+    }
+    int now = epoch;
+    pool.sort(Comparator.comparingLong((KeyStats candidate) -> rank(candidate, now)).reversed());
+    while (pool.size() > POOL_SIZE) {
+      pool.remove(pool.size() - 1);
+    }
+    return pool.remove(0);
+  }
+
+  /**
+   * A random key, null when there are none. While loaded keys are left unsized, one of those is
+   * sized instead with the chance they have among all keys; they all have the same stamps, so
+   * which one does not matter.
+   */
+  private KeyStats sample(ThreadLocalRandom random) {
+    synchronized (keys) {
+      if (loaded != null) {
+        long unsized = Math.max(0, dict.getMemoryStats().keyCount() - keys.size());
+        if (random.nextLong(unsized + keys.size() + 1) < unsized) {
+          while (unsampled.hasNext()) {
+            KeyStats candidate = sizeLoaded(unsampled.next());
+            if (candidate != null) {
+              return candidate;
+            }
+          }
+        }
+        if (!unsampled.hasNext()) {
+          // every loaded key has been sized or removed
+          loaded = null;
+          unsampled = null;
+          sized.clear();
+        }
+      }
+      return keys.isEmpty() ? null : keys.get(random.nextInt(keys.size()));
+    }
+  }
+
+  // Higher for keys that are better to evict
+  private long rank(KeyStats keyStats, int now) {
+    long idle = now - keyStats.lastAccess;
+    switch (policy) {
+      case LRU:
+        return idle;
+      case LFU:
+        return ((long) (LFU_MAX - decayed(keyStats, now)) << 32) + idle;
+      default:
+        return 0;
+    }
+  }
+}
@@ -0,0 +1,221 @@
+package multivaluedictionaryapp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters kept up to date by every mutation of a dictionary, so DBSIZE and INFO cost the same
+ * however large it is: keys, items, estimated heap, a histogram of member counts in powers of two
+ * and the keys with the most members. The dictionaries update them right where they change a
+ * key, with its member count before and after, which listeners of the concurrent dictionary do
+ * not get to see.
+ *
+ * <p>Sizes are rough estimates for HASH storage with compressed oops and Latin-1 strings. The
+ * largest keys are followed as they grow; one that shrinks keeps its place until a larger key
+ * pushes it out, so with many shrinking keys the list is approximate.
+ */
+public class MemoryStats {
+
+  public static final int LARGEST_KEYS = 10;
+  // map node, table slot and an empty member set; set node and table slot; object and array
+  private static final int KEY_BYTES = 88;
+  private static final int MEMBER_BYTES = 40;
+  private static final int STRING_BYTES = 40;
+  static final int BUCKETS = 32;
+  // followed keys, more than reported so that a shrinking key leaves room
+  static final int FOLLOWED_KEYS = 2 * LARGEST_KEYS;
+
+  private final LongAdder keys = new LongAdder();
+  private final LongAdder items = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+  // bucket b counts the keys with 2^b to 2^(b+1) - 1 members
+  private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+  // member counts of the followed keys, changed under its own lock
+  private final Map<String, Integer> largest = new ConcurrentHashMap<>();
+  // fewest members of a followed key once FOLLOWED_KEYS are followed, 0 before
+  private volatile int largestFloor;
+
+  static long keyBytes(String key) {
+    return KEY_BYTES + STRING_BYTES + key.length();
+  }
+
+  static long memberBytes(String member) {
+    return MEMBER_BYTES + STRING_BYTES + member.length();
+  }
+
+  public long keyCount() {
+    return keys.sum();
+  }
+
+  public long itemCount() {
+    return items.sum();
+  }
+
+  public long estimatedBytes() {
+    return bytes.sum();
+  }
+
+  // Keys per bucket, bucket b counting the keys with 2^b to 2^(b+1) - 1 members
+  public long[] memberCountHistogram() {
+    long[] counts = new long[BUCKETS];
+    for (int b = 0; b < BUCKETS; b++) {
+      counts[b] = histogram.get(b);
+    }
+    return counts;
+  }
+
+  // Up to limit keys with the most members, largest first
+  public List<Map.Entry<String, Integer>> largestKeys(int limit) {
+    List<Map.Entry<String, Integer>> keys;
+    synchronized (largest) {
+      keys = new ArrayList<>(largest.entrySet().size());
+      for (Map.Entry<String, Integer> entry : largest.entrySet()) {
+        keys.add(Map.entry(entry.getKey(), entry.getValue()));
+      }
+    }
+    keys.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+    return keys.size() > limit ? new ArrayList<>(keys.subList(0, limit)) : keys;
+  }
+
+  // The member was added, the key has size members now
+  void added(String key, String member, int size) {
+    if (size == 1) {
+      keys.increment();
+      bytes.add(keyBytes(key));
+    }
+    items.increment();
+    bytes.add(memberBytes(member));
+    resized(key, size - 1, size);
+  }
+
+  // The member was removed, the key has size members left and is gone at 0
+  void removed(String key, String member, int size) {
+    if (size == 0) {
+      keys.decrement();
+      bytes.add(-keyBytes(key));
+    }
+    items.decrement();
+    bytes.add(-memberBytes(member));
+    resized(key, size + 1, size);
+  }
+
+  // The key was added together with all of its members, e.g. while its snapshot is written
+  void keyAdded(String key, Collection<String> members) {
+    long used = keyBytes(key);
+    for (String member : members) {
+      used += memberBytes(member);
+    }
+    keys.increment();
+    items.add(members.size());
+    bytes.add(used);
+    resized(key, 0, members.size());
+  }
+
+  // The key was removed together with all of its members
+  void keyRemoved(String key, Set<String> members) {
+    long freed = keyBytes(key);
+    for (String member : members) {
+      freed += memberBytes(member);
+    }
+    keys.decrement();
+    items.add(-members.size());
+    bytes.add(-freed);
+    resized(key, members.size(), 0);
+  }
+
+  void cleared() {
+    keys.reset();
+    items.reset();
+    bytes.reset();
+    for (int b = 0; b < BUCKETS; b++) {
+      histogram.set(b, 0);
+    }
+    synchronized (largest) {
+      largest.clear();
+      largestFloor = 0;
+    }
+  }
+
+  // Adds the counts of another dictionary, e.g. of one shard into the stats of them all
+  void merge(MemoryStats other) {
+    add(
+        other.keyCount(),
+        other.itemCount(),
+        other.estimatedBytes(),
+        other.memberCountHistogram(),
+        other.largestKeys(FOLLOWED_KEYS));
+  }
+
+  // Adds counts taken elsewhere, such as the ones stored in a snapshot
+  void add(
+      long keyCount,
+      long itemCount,
+      long estimatedBytes,
+      long[] counts,
+      List<Map.Entry<String, Integer>> largestKeys) {
+    keys.add(keyCount);
+    items.add(itemCount);
+    bytes.add(estimatedBytes);
+    for (int b = 0; b < BUCKETS; b++) {
+      histogram.addAndGet(b, counts[b]);
+    }
+    for (Map.Entry<String, Integer> key : largestKeys) {
+      follow(key.getKey(), key.getValue());
+    }
+  }
+
+  private void resized(String key, int from, int to) {
+    int oldBucket = bucket(from);
+    int newBucket = bucket(to);
+    if (oldBucket != newBucket) {
+      if (oldBucket >= 0) {
+        histogram.decrementAndGet(oldBucket);
+      }
+      if (newBucket >= 0) {
+        histogram.incrementAndGet(newBucket);
+      }
+    }
+    // only a key that is followed or grows past the smallest followed one needs the lock
+    if (to > largestFloor || (from >= largestFloor && largest.containsKey(key))) {
+      follow(key, to);
+    }
+  }
+
+  private void follow(String key, int size) {
+    synchronized (largest) {
+      if (size == 0) {
+        largest.remove(key);
+      } else if (largest.size() < FOLLOWED_KEYS || size > largestFloor) {
+        largest.put(key, size);
+      } else if (largest.containsKey(key)) {
+        largest.put(key, size);
+      }
+      if (largest.size() > FOLLOWED_KEYS) {
+        largest.remove(smallest());
+      }
+      largestFloor = largest.size() < FOLLOWED_KEYS ? 0 : largest.get(smallest());
+    }
+  }
+
+  private String smallest() {
+    String smallest = null;
+    int fewest = Integer.MAX_VALUE;
+    for (Map.Entry<String, Integer> entry : largest.entrySet()) {
+      if (entry.getValue() < fewest) {
+        smallest = entry.getKey();
+        fewest = entry.getValue();
+      }
+    }
+    return smallest;
+  }
+
+  private static int bucket(int size) {
+    return size == 0 ? -1 : 31 - Integer.numberOfLeadingZeros(size);
+  }
+}
@@ -0,0 +1,152 @@
+package multivaluedictionaryapp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A MIGRATE running on a thread of its own, so the server keeps serving while the keys travel.
+ * The keys whose hash lies in one of the ranges (from, to] are listed when it starts; the thread
+ * then copies the members of a batch of them, sends them to the node with MADD and removes them
+ * here once the node has them all. TTLs are not moved.
+ *
+ * <p>The thread only touches the dictionary while holding its monitor, and App runs the commands
+ * under the same monitor until the migration is done. A key of the ranges that has been copied
+ * must not change here any more: writes to it are refused with {@link #MOVING_ERROR} while its
+ * batch is on the way and any command on it gets {@link #MOVED_ERROR} once it is gone, as does a
+ * key of the ranges that was not there at the start. Keys still waiting are served as usual and
+ * carry their latest members along.
+ */
+final class Migration implements Runnable {
+
+  static final String MOVING_ERROR = "Error, key %s is being moved to %s, try again.";
+  static final String MOVED_ERROR = "Error, key %s has moved to %s.";
+  // keys moved per round trip
+  private static final int BATCH_SIZE = 256;
+
+  private final MultiValueDictionary dict;
+  private final String node;
+  private final long[] ranges;
+  private final int total;
+  // listed at the start and not copied yet, then copied and not yet on the node; both guarded by
+  // the monitor of dict
+  private final Set<String> waiting = new LinkedHashSet<>();
+  private final Set<String> moving = new LinkedHashSet<>();
+  private final Thread thread;
+  private volatile long moved;
+  private volatile String failure;
+  // written last, no access to dict follows it
+  private volatile boolean done;
+
+  // Lists the keys to move; the caller must be the only one using dict until start()
+  Migration(MultiValueDictionary dict, String node, long[] ranges) {
+    NodeConnection.host(node);
+    this.dict = dict;
+    this.node = node;
+    this.ranges = ranges;
+    for (String key : dict.getKeys()) {
+      if (inRanges(key)) {
+        waiting.add(key);
+      }
+    }
+    this.total = waiting.size();
+    this.thread = new Thread(this, "migrate-" + node);
+    thread.setDaemon(true);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  String node() {
+    return node;
+  }
+
+  int total() {
+    return total;
+  }
+
+  long moved() {
+    return moved;
+  }
+
+  boolean isDone() {
+    return done;
+  }
+
+  // Why the migration stopped half way, or null
+  String failure() {
+    return failure;
+  }
+
+  /**
+   * The error that sends a command on the key to the node, or null when it runs here. Called
+   * holding the monitor of the dictionary while the migration is not done.
+   */
+  String redirect(String key, boolean writes) {
+    if (!inRanges(key) || waiting.contains(key)) {
+      return null;
+    }
+    if (moving.contains(key)) {
+      // still here and readable, but a change would not reach the node
+      return writes ? String.format(MOVING_ERROR, key, node) : null;
+    }
+    return String.format(MOVED_ERROR, key, node);
+  }
+
+  @Override
+  public void run() {
+    try (NodeConnection target = new NodeConnection(node)) {
+      boolean more = true;
+      while (more) {
+        Map<String, List<String>> batch = new LinkedHashMap<>();
+        synchronized (dict) {
+          Iterator<String> keys = waiting.iterator();
+          while (keys.hasNext() && batch.size() < BATCH_SIZE) {
+            String key = keys.next();
+            keys.remove();
+            // gone when it was removed before its turn
+            Set<String> members = dict.findMembers(key);
+            if (members != null) {
+              batch.put(key, new ArrayList<>(members));
+              moving.add(key);
+            }
+          }
+          more = !waiting.isEmpty();
+        }
+        if (batch.isEmpty()) {
+          continue;
+        }
+        target.addAll(batch);
+        // only once the node has them all
+        synchronized (dict) {
+          for (String key : batch.keySet()) {
+            if (dict.tryRemoveAll(key) == Outcome.OK) {
+              moved++;
+            }
+            moving.remove(key);
+          }
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      failure = e.getMessage() == null ? e.toString() : e.getMessage();
+    } finally {
+      done = true;
+    }
+  }
+
+  private boolean inRanges(String key) {
+    long hash = HashRing.hash(key);
+    for (int r = 0; r < ranges.length; r += 2) {
+      if (HashRing.inRange(hash, ranges[r], ranges[r + 1])) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
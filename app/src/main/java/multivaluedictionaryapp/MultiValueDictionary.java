@@ -1,22 +1,74 @@
 package multivaluedictionaryapp;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import com.google.common.annotations.VisibleForTesting;
 
 public class MultiValueDictionary {
 
   protected static final String NOT_EXIST_ERROR_MESSAGE_TEMPLATE = "Error, %s does not exist.";
   protected static final String MEMBER_EXISTS_FOR_KEY_ERROR_MESSAGE =
       "Error, member already exists for key.";
-  private final Map<String, Set<String>> map;
+  protected static final String MEMBEREXISTS_KEY_NOT_FOUND_ERROR_MESSAGE =
+      "ERROR, key does not exist.";
+  // replaced by LOAD
+  private Map<String, Set<String>> map;
+  private final Supplier<Map<String, Set<String>>> newMaps;
+  private final Function<String, Set<String>> memberSets;
+  private final List<MutationListener> listeners = new CopyOnWriteArrayList<>();
+  private final MemoryStats memoryStats = new MemoryStats();
+  // null while switched off
+  private volatile ReverseIndex reverseIndex;
+  private volatile KeyIndex keyIndex;
+  private volatile MemoryBudget memoryBudget;
+  // null until the first EXPIRE
+  private volatile ExpiryTable expiry;
+  private LongSupplier expiryClock = monotonicMillis();
+  // contents of the LOAD whose listeners are running, read from the snapshot file
+  private Map<String, ? extends Collection<String>> loadedContents;
 
   public MultiValueDictionary() {
-    map = new HashMap<>();
+    this(StorageMode.HASH);
+  }
+
+  public MultiValueDictionary(StorageMode storageMode) {
+    this(storageMode, CompactMemberSet.DEFAULT_THRESHOLD);
+  }
+
+  // compactThreshold is the largest member set StorageMode.COMPACT keeps as a packed array
+  public MultiValueDictionary(StorageMode storageMode, int compactThreshold) {
+    if (compactThreshold < 0) {
+      throw new IllegalArgumentException("compactThreshold must not be negative");
+    }
+    this.map = storageMode.newMap();
+    this.newMaps = storageMode::newMap;
+    this.memberSets = storageMode.memberSets(compactThreshold);
+  }
+
+  // Lets subclasses choose the backing map, e.g. a concurrent one
+  protected MultiValueDictionary(Map<String, Set<String>> map) {
+    this.map = map;
+    this.newMaps = HashMap::new;
+    this.memberSets = key -> new HashSet<>();
   }
 
   @Override
@@ -36,6 +88,232 @@ public class MultiValueDictionary {
     return Objects.hash(map);
   }
 
+  public void addMutationListener(MutationListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeMutationListener(MutationListener listener) {
+    listeners.remove(listener);
+  }
+
+  protected List<MutationListener> getMutationListeners() {
+    return listeners;
+  }
+
+  // Runs sync() on every listener once the mutation is complete
+  protected void syncMutationListeners() {
+    for (MutationListener listener : listeners) {
+      listener.sync();
+    }
+  }
+
+  /**
+   * Runs onLoad() on every listener. contents are the loaded ones as read from the snapshot
+   * file, left alone from then on, so that the memory budget can size keys lazily; null when
+   * they were copied in, which already costs a pass over them.
+   */
+  void notifyLoad(Map<String, ? extends Collection<String>> contents, Path file) {
+    loadedContents = contents;
+    try {
+      for (MutationListener listener : listeners) {
+        listener.onLoad(file);
+      }
+    } finally {
+      loadedContents = null;
+    }
+  }
+
+  // The contents passed to notifyLoad() while its listeners run, null otherwise
+  Map<String, ? extends Collection<String>> loadedContents() {
+    return loadedContents;
+  }
+
+  /**
+   * Switches the member to keys index on or off. Turning it on indexes the current contents, so
+   * like attaching a listener it must not race with mutations.
+   */
+  public void setReverseIndexEnabled(boolean enabled) {
+    if (enabled && reverseIndex == null) {
+      reverseIndex = ReverseIndex.attach(this);
+    } else if (!enabled && reverseIndex != null) {
+      reverseIndex.detach();
+      reverseIndex = null;
+    }
+  }
+
+  // The member to keys index, null when it is switched off
+  public ReverseIndex getReverseIndex() {
+    return reverseIndex;
+  }
+
+  // Switches the ordered key index on or off, with the same caveat as the reverse index
+  public void setKeyIndexEnabled(boolean enabled) {
+    if (enabled && keyIndex == null) {
+      keyIndex = KeyIndex.attach(this);
+    } else if (!enabled && keyIndex != null) {
+      keyIndex.detach();
+      keyIndex = null;
+    }
+  }
+
+  // The ordered key index, null when it is switched off
+  public KeyIndex getKeyIndex() {
+    return keyIndex;
+  }
+
+  /**
+   * Caps the estimated heap of the contents at maxBytes, evicting whole keys chosen by the
+   * policy once an ADD crosses it; 0 or less switches the budget off. Switching it on sizes up
+   * the current contents, with the same caveat as the indexes.
+   */
+  public void setMemoryBudget(long maxBytes, MemoryBudget.EvictionPolicy policy) {
+    if (memoryBudget != null) {
+      memoryBudget.detach();
+      memoryBudget = null;
+    }
+    if (maxBytes > 0) {
+      memoryBudget = MemoryBudget.attach(this, maxBytes, policy);
+    }
+  }
+
+  // The memory budget and its eviction counters, null when there is none
+  public MemoryBudget getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  // Key and item counts, estimated heap, member-count histogram and largest keys
+  public MemoryStats getMemoryStats() {
+    return memoryStats;
+  }
+
+  // DBSIZE
+  public long getKeyCount() {
+    expireDue();
+    return memoryStats.keyCount();
+  }
+
+  // MEMORY USAGE: estimated heap of the key and its members, -1 when it does not exist
+  public long getMemoryUsage(String key) {
+    Set<String> members = findMembers(key);
+    if (members == null) {
+      return -1;
+    }
+    long bytes = MemoryStats.keyBytes(key);
+    for (String member : members) {
+      bytes += MemoryStats.memberBytes(member);
+    }
+    return bytes;
+  }
+
+  // Lets the eviction policy know the key was read
+  protected void recordRead(String key) {
+    MemoryBudget budget = memoryBudget;
+    if (budget != null) {
+      budget.touch(key);
+    }
+  }
+
+  // Milliseconds from a clock that never goes back, unlike the time of day
+  private static LongSupplier monotonicMillis() {
+    long origin = System.nanoTime();
+    return () -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - origin);
+  }
+
+  // Must be called before the first EXPIRE
+  @VisibleForTesting
+  void setExpiryClock(LongSupplier clock) {
+    this.expiryClock = clock;
+  }
+
+  // TTLs, null until the first EXPIRE
+  public ExpiryTable getExpiryTable() {
+    return expiry;
+  }
+
+  private synchronized ExpiryTable expiryTable() {
+    if (expiry == null) {
+      expiry = ExpiryTable.attach(this, expiryClock);
+    }
+    return expiry;
+  }
+
+  /**
+   * Removes every key and member whose TTL has passed. Every access does this first, so expired
+   * entries are never seen; calling it on a timer also frees them when nothing is accessed.
+   */
+  public void expireDue() {
+    ExpiryTable table = expiry;
+    if (table != null) {
+      table.expireDue();
+    }
+  }
+
+  // EXPIRE: OK or KEY_NOT_FOUND; the key goes away once millis have passed, at once if <= 0
+  public Outcome expire(String key, long millis) {
+    if (!isKeyExists(key)) {
+      return Outcome.KEY_NOT_FOUND;
+    }
+    if (millis <= 0) {
+      return tryRemoveAll(key);
+    }
+    expiryTable().expire(key, null, millis);
+    // on the concurrent dictionary the key may have gone meanwhile
+    if (!isKeyExists(key)) {
+      expiry.persist(key, null);
+      return Outcome.KEY_NOT_FOUND;
+    }
+    return Outcome.OK;
+  }
+
+  // EXPIRE for a single member: OK, KEY_NOT_FOUND or MEMBER_NOT_FOUND
+  public Outcome expireMember(String key, String member, long millis) {
+    Outcome outcome = findMember(key, member);
+    if (outcome != Outcome.OK) {
+      return outcome;
+    }
+    if (millis <= 0) {
+      return tryRemoveMember(key, member);
+    }
+    expiryTable().expire(key, member, millis);
+    outcome = findMember(key, member);
+    if (outcome != Outcome.OK) {
+      expiry.persist(key, member);
+    }
+    return outcome;
+  }
+
+  // TTL: milliseconds left, ExpiryTable.NO_TTL or ExpiryTable.NOT_FOUND
+  public long getTtl(String key) {
+    if (!isKeyExists(key)) {
+      return ExpiryTable.NOT_FOUND;
+    }
+    ExpiryTable table = expiry;
+    return table == null ? ExpiryTable.NO_TTL : table.ttl(key, null);
+  }
+
+  // TTL of a single member, NOT_FOUND when either the key or the member does not exist
+  public long getTtl(String key, String member) {
+    if (findMember(key, member) != Outcome.OK) {
+      return ExpiryTable.NOT_FOUND;
+    }
+    ExpiryTable table = expiry;
+    return table == null ? ExpiryTable.NO_TTL : table.ttl(key, member);
+  }
+
+  // PERSIST: drops the TTL of the key, false when it has none or does not exist
+  public boolean persist(String key) {
+    expireDue();
+    ExpiryTable table = expiry;
+    return table != null && table.persist(key, null);
+  }
+
+  // PERSIST for a single member
+  public boolean persist(String key, String member) {
+    expireDue();
+    ExpiryTable table = expiry;
+    return table != null && table.persist(key, member);
+  }
+
   // Helper function to get the whole hashmap
   public Map<String, Set<String>> getMap() {
     return map;
@@ -43,78 +321,372 @@ public class MultiValueDictionary {
 
   // ADD
   public void add(String key, String value) throws MemberAlreadyExistsException {
-    if (map.containsKey(key) && map.get(key).contains(value)) {
+    if (tryAdd(key, value) != Outcome.OK) {
       throw new MemberAlreadyExistsException(MEMBER_EXISTS_FOR_KEY_ERROR_MESSAGE);
-    } else {
-      Set<String> set = map.computeIfAbsent(key, k -> new HashSet<>());
-      set.add(value);
     }
   }
 
+  // ADD without the exception: OK or MEMBER_ALREADY_EXISTS
+  public Outcome tryAdd(String key, String value) {
+    expireDue();
+    Set<String> members = map.get(key);
+    if (members != null && members.contains(value)) {
+      return Outcome.MEMBER_ALREADY_EXISTS;
+    }
+    members = map.computeIfAbsent(key, memberSets);
+    members.add(value);
+    memoryStats.added(key, value, members.size());
+    for (MutationListener listener : listeners) {
+      listener.onAdd(key, value);
+    }
+    syncMutationListeners();
+    return Outcome.OK;
+  }
+
+  // MADD: adds the members to the key, bit i is set when members.get(i) was added
+  public BitSet tryAddMembers(String key, List<String> members) {
+    expireDue();
+    BitSet added = new BitSet(members.size());
+    if (members.isEmpty()) {
+      return added;
+    }
+    Set<String> current = map.computeIfAbsent(key, memberSets);
+    for (int i = 0; i < members.size(); i++) {
+      if (current.add(members.get(i))) {
+        added.set(i);
+        memoryStats.added(key, members.get(i), current.size());
+      }
+    }
+    for (int i = added.nextSetBit(0); i >= 0; i = added.nextSetBit(i + 1)) {
+      for (MutationListener listener : listeners) {
+        listener.onAdd(key, members.get(i));
+      }
+    }
+    syncMutationListeners();
+    return added;
+  }
+
   // KEYS
   public Set<String> getKeys() {
+    expireDue();
     return map.keySet();
   }
 
+  // KEYS prefix, in order
+  public List<String> getKeysWithPrefix(String prefix, int limit) {
+    return getKeyRange(prefix, KeyIndex.prefixEnd(prefix), limit);
+  }
+
+  /**
+   * At most limit keys in order, starting at from and ending before to (null for no end). Served
+   * from the key index when it is on, otherwise every key is looked at and the matches sorted.
+   */
+  public List<String> getKeyRange(String from, String to, int limit) {
+    expireDue();
+    KeyIndex index = keyIndex;
+    if (index != null) {
+      return index.range(from, to, limit);
+    }
+    List<String> matching = new ArrayList<>();
+    for (String key : getKeys()) {
+      if (key.compareTo(from) >= 0 && (to == null || key.compareTo(to) < 0)) {
+        matching.add(key);
+      }
+    }
+    matching.sort(null);
+    return matching.size() > limit ? new ArrayList<>(matching.subList(0, limit)) : matching;
+  }
+
+  /**
+   * SCAN: up to count keys in key order, resuming after the cursor of the previous call
+   * (ScanResult.DONE to start). Without the key index every key is looked at, but no more than
+   * count + 1 of them are held at a time.
+   */
+  public ScanResult<String> scanKeys(String cursor, int count) {
+    expireDue();
+    checkCount(count);
+    String after = cursor.equals(ScanResult.DONE) ? null : ScanResult.decode(cursor)[0];
+    List<String> keys = keysAfter(after, count + 1);
+    if (keys.size() <= count) {
+      return new ScanResult<>(keys, ScanResult.DONE);
+    }
+    keys.remove(count);
+    return new ScanResult<>(keys, ScanResult.encode(keys.get(count - 1), null));
+  }
+
+  // ISCAN: like SCAN over the (key, member) pairs, members of a key in order too
+  public ScanResult<Map.Entry<String, String>> scanItems(String cursor, int count) {
+    expireDue();
+    checkCount(count);
+    String key = null;
+    String afterMember = null;
+    if (!cursor.equals(ScanResult.DONE)) {
+      String[] position = ScanResult.decode(cursor);
+      key = position[0];
+      afterMember = position[1];
+    }
+    List<Map.Entry<String, String>> items = new ArrayList<>();
+    // the rest of the key the cursor stopped in, then the keys after it
+    if (afterMember != null) {
+      addItems(items, key, afterMember, count + 1);
+    }
+    while (items.size() <= count) {
+      // every key has a member, so this is as many keys as can still be needed
+      List<String> keys = keysAfter(key, count + 1 - items.size());
+      if (keys.isEmpty()) {
+        break;
+      }
+      for (int i = 0; i < keys.size() && items.size() <= count; i++) {
+        key = keys.get(i);
+        addItems(items, key, null, count + 1);
+      }
+    }
+    if (items.size() <= count) {
+      return new ScanResult<>(items, ScanResult.DONE);
+    }
+    items.remove(count);
+    Map.Entry<String, String> last = items.get(count - 1);
+    return new ScanResult<>(items, ScanResult.encode(last.getKey(), last.getValue()));
+  }
+
+  private static void checkCount(int count) {
+    if (count <= 0 || count == Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("count must be positive and below Integer.MAX_VALUE");
+    }
+  }
+
+  private List<String> keysAfter(String after, int limit) {
+    KeyIndex index = keyIndex;
+    return index != null ? index.after(after, limit) : smallestAfter(getKeys(), after, limit);
+  }
+
+  // Members of the key after afterMember (null for all of them) until items holds limit pairs
+  private void addItems(
+      List<Map.Entry<String, String>> items, String key, String afterMember, int limit) {
+    Set<String> members = findMembers(key);
+    if (members == null) {
+      return;
+    }
+    for (String member : smallestAfter(members, afterMember, limit - items.size())) {
+      items.add(Map.entry(key, member));
+    }
+  }
+
+  // The limit smallest values after the given one (null for none), sorted; holds at most limit
+  private static List<String> smallestAfter(Iterable<String> values, String after, int limit) {
+    PriorityQueue<String> largestFirst = new PriorityQueue<>(Comparator.reverseOrder());
+    for (String value : values) {
+      if (after != null && value.compareTo(after) <= 0) {
+        continue;
+      }
+      if (largestFirst.size() < limit) {
+        largestFirst.add(value);
+      } else if (value.compareTo(largestFirst.peek()) < 0) {
+        largestFirst.poll();
+        largestFirst.add(value);
+      }
+    }
+    List<String> sorted = new ArrayList<>(largestFirst);
+    sorted.sort(null);
+    return sorted;
+  }
+
   // MEMBERS
   public Set<String> getMembers(String key) throws KeyNotFoundException {
-    if (!map.containsKey(key)) {
-      throw new KeyNotFoundException(String.format(NOT_EXIST_ERROR_MESSAGE_TEMPLATE, "key"));
+    Set<String> values = findMembers(key);
+    if (values == null) {
+      throw new KeyNotFoundException(Outcome.KEY_NOT_FOUND.message());
     }
-    Set<String> values = map.get(key);
     return values;
   }
 
+  // MEMBERS without the exception, null when the key does not exist
+  public Set<String> findMembers(String key) {
+    expireDue();
+    recordRead(key);
+    return map.get(key);
+  }
+
   // REMOVE
   public void removeMemberFromKey(String key, String value)
       throws KeyNotFoundException, MembersNotFoundException {
-    if (!map.containsKey(key)) {
-      throw new KeyNotFoundException(String.format(NOT_EXIST_ERROR_MESSAGE_TEMPLATE, "key"));
+    Outcome outcome = tryRemoveMember(key, value);
+    if (outcome == Outcome.KEY_NOT_FOUND) {
+      throw new KeyNotFoundException(outcome.message());
+    }
+    if (outcome == Outcome.MEMBER_NOT_FOUND) {
+      throw new MembersNotFoundException(outcome.message());
+    }
+  }
+
+  // REMOVE without the exceptions: OK, KEY_NOT_FOUND or MEMBER_NOT_FOUND
+  public Outcome tryRemoveMember(String key, String value) {
+    expireDue();
+    Set<String> members = map.get(key);
+    if (members == null) {
+      return Outcome.KEY_NOT_FOUND;
+    }
+    if (!members.contains(value)) {
+      return Outcome.MEMBER_NOT_FOUND;
     }
-    if (!map.get(key).contains(value)) {
-      throw new MembersNotFoundException(String.format(NOT_EXIST_ERROR_MESSAGE_TEMPLATE, "member"));
+    boolean last = members.size() == 1;
+    if (last) {
+      map.remove(key);
     } else {
-      if (map.get(key).size() == 1) {
+      members.remove(value);
+    }
+    memoryStats.removed(key, value, last ? 0 : members.size());
+    for (MutationListener listener : listeners) {
+      listener.onRemove(key, value);
+      if (last) {
+        listener.onKeyRemoved(key);
+      }
+    }
+    syncMutationListeners();
+    return Outcome.OK;
+  }
+
+  // MREMOVE: bit i is set when members.get(i) was removed, null when the key does not exist
+  public BitSet tryRemoveMembers(String key, List<String> members) {
+    expireDue();
+    Set<String> current = map.get(key);
+    if (current == null) {
+      return null;
+    }
+    BitSet removed = new BitSet(members.size());
+    boolean last = false;
+    for (int i = 0; i < members.size() && !last; i++) {
+      String member = members.get(i);
+      last = current.size() == 1 && current.contains(member);
+      if (last) {
+        // the key goes away together with its last member, the rest can only miss
         map.remove(key);
-      } else {
-        map.get(key).remove(value);
+        removed.set(i);
+        memoryStats.removed(key, member, 0);
+      } else if (current.remove(member)) {
+        removed.set(i);
+        memoryStats.removed(key, member, current.size());
+      }
+    }
+    for (int i = removed.nextSetBit(0); i >= 0; i = removed.nextSetBit(i + 1)) {
+      for (MutationListener listener : listeners) {
+        listener.onRemove(key, members.get(i));
       }
     }
+    if (last) {
+      for (MutationListener listener : listeners) {
+        listener.onKeyRemoved(key);
+      }
+    }
+    syncMutationListeners();
+    return removed;
   }
 
   // REMOVEALL
   public void removeAllMemberOfKey(String key) throws KeyNotFoundException {
-    if (!map.containsKey(key)) {
-      throw new KeyNotFoundException(String.format(NOT_EXIST_ERROR_MESSAGE_TEMPLATE, "key"));
+    if (tryRemoveAll(key) != Outcome.OK) {
+      throw new KeyNotFoundException(Outcome.KEY_NOT_FOUND.message());
+    }
+  }
+
+  // REMOVEALL without the exception: OK or KEY_NOT_FOUND
+  public Outcome tryRemoveAll(String key) {
+    expireDue();
+    Set<String> members = map.remove(key);
+    if (members == null) {
+      return Outcome.KEY_NOT_FOUND;
+    }
+    memoryStats.keyRemoved(key, members);
+    for (MutationListener listener : listeners) {
+      listener.onRemoveAll(key, members);
     }
-    map.remove(key);
+    syncMutationListeners();
+    return Outcome.OK;
   }
 
   // CLEAR
   public void clearMap() {
     map.clear();
+    memoryStats.cleared();
+    for (MutationListener listener : listeners) {
+      listener.onClear();
+    }
+    syncMutationListeners();
   }
 
   // KEYEXISTS
   public boolean isKeyExists(String key) {
+    expireDue();
     return map.containsKey(key);
   }
 
   // MEMBEREXISTS
   public boolean isMemberExistsWithinAKey(String key, String value) throws KeyNotFoundException {
-    if (!map.containsKey(key)) {
-      throw new KeyNotFoundException("ERROR, key does not exist.");
+    Outcome outcome = findMember(key, value);
+    if (outcome == Outcome.KEY_NOT_FOUND) {
+      throw new KeyNotFoundException(MEMBEREXISTS_KEY_NOT_FOUND_ERROR_MESSAGE);
     }
-    return map.get(key).contains(value);
+    return outcome == Outcome.OK;
+  }
+
+  // MEMBEREXISTS without the exception: OK, MEMBER_NOT_FOUND or KEY_NOT_FOUND
+  public Outcome findMember(String key, String value) {
+    expireDue();
+    recordRead(key);
+    Set<String> members = map.get(key);
+    if (members == null) {
+      return Outcome.KEY_NOT_FOUND;
+    }
+    return members.contains(value) ? Outcome.OK : Outcome.MEMBER_NOT_FOUND;
+  }
+
+  // MMEMBEREXISTS: bit i is set when members.get(i) is a member of keys.get(i); a key that
+  // does not exist has no members. Runs of the same key look its members up once.
+  public BitSet findMemberPairs(List<String> keys, List<String> members) {
+    if (keys.size() != members.size()) {
+      throw new IllegalArgumentException("keys and members differ in length");
+    }
+    BitSet found = new BitSet(keys.size());
+    String key = null;
+    Set<String> current = null;
+    for (int i = 0; i < keys.size(); i++) {
+      if (key == null || !key.equals(keys.get(i))) {
+        key = keys.get(i);
+        current = findMembers(key);
+      }
+      if (current != null && current.contains(members.get(i))) {
+        found.set(i);
+      }
+    }
+    return found;
+  }
+
+  // KEYSFOR: keys holding the member, from the reverse index or else by a scan of every item
+  public Set<String> getKeysFor(String member) {
+    expireDue();
+    ReverseIndex index = reverseIndex;
+    if (index != null) {
+      return index.keysFor(member);
+    }
+    Set<String> keys = new HashSet<>();
+    forEachItem(
+        (key, value) -> {
+          if (value.equals(member)) {
+            keys.add(key);
+          }
+        });
+    return keys;
   }
 
   // ALLMEMBERS
   public List<Set<String>> getAllMembers() {
+    expireDue();
     return new ArrayList<>(map.values());
   }
 
   // ITEMS
   public List<String> getItems() {
+    expireDue();
     List<String> resultList = new ArrayList<>();
     for (Map.Entry<String, Set<String>> item : map.entrySet()) {
       String tmpKey = item.getKey();
@@ -124,4 +696,79 @@ public class MultiValueDictionary {
     }
     return resultList;
   }
+
+  // ITEMS without the list, the visitor gets each (key, member) pair in turn
+  public void forEachItem(BiConsumer<String, String> visitor) {
+    expireDue();
+    for (Map.Entry<String, Set<String>> item : map.entrySet()) {
+      String key = item.getKey();
+      for (String value : item.getValue()) {
+        visitor.accept(key, value);
+      }
+    }
+  }
+
+  // ALLMEMBERS without copying the member sets
+  public void forEachMember(Consumer<String> visitor) {
+    expireDue();
+    for (Set<String> members : map.values()) {
+      for (String member : members) {
+        visitor.accept(member);
+      }
+    }
+  }
+
+  // SAVE, writes a binary snapshot of the dictionary
+  public void save(Path file) throws IOException {
+    expireDue();
+    save(() -> map, file);
+  }
+
+  // Writes the contents taken once every listener has heard onSaveStarted
+  void save(Supplier<Map<String, Set<String>>> contents, Path file) throws IOException {
+    for (MutationListener listener : listeners) {
+      listener.onSaveStarted();
+    }
+    try {
+      SnapshotFile.write(contents.get(), file);
+    } catch (IOException | RuntimeException e) {
+      for (MutationListener listener : listeners) {
+        listener.onSaveFailed();
+      }
+      throw e;
+    }
+    for (MutationListener listener : listeners) {
+      listener.onSave(file);
+    }
+    syncMutationListeners();
+  }
+
+  // LOAD, replaces the contents with a snapshot; keys are read from the mapped file until changed
+  public void load(Path file) throws IOException {
+    SnapshotFile snapshot = SnapshotFile.open(file);
+    // read before anything changes, so a corrupt file leaves the dictionary as it was
+    MemoryStats stored = snapshot.stats();
+    map = new SnapshotBackedMap(snapshot, newMaps.get(), memberSets);
+    memoryStats.cleared();
+    memoryStats.merge(stored);
+    // a view of the file that no mutation changes
+    notifyLoad(new SnapshotBackedMap(snapshot, new HashMap<>(), memberSets), file);
+    syncMutationListeners();
+  }
+
+  // LOAD of contents already read from the snapshot file, e.g. the share of one shard
+  void load(Map<String, ? extends Collection<String>> contents, Path file) {
+    Map<String, Set<String>> loaded = newMaps.get();
+    memoryStats.cleared();
+    for (Map.Entry<String, ? extends Collection<String>> entry : contents.entrySet()) {
+      Set<String> members = memberSets.apply(entry.getKey());
+      members.addAll(entry.getValue());
+      loaded.put(entry.getKey(), members);
+      // counted while they are copied anyway
+      memoryStats.keyAdded(entry.getKey(), members);
+    }
+    map = loaded;
+    notifyLoad(null, file);
+    syncMutationListeners();
+  }
 }
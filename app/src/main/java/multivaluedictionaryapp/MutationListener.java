@@ -0,0 +1,40 @@
+package multivaluedictionaryapp;
+
+import java.nio.file.Path;
+import java.util.Set;
+
+/**
+ * Observes every successful mutation of a MultiValueDictionary. The on* callbacks run right after
+ * the change is applied and must be quick. ConcurrentMultiValueDictionary calls them under the
+ * stripe lock of the key, so the changes of one key arrive in order while those of different keys
+ * may arrive concurrently; a callback that throws fails its own call, not later ones. sync() runs
+ * once the mutating call has released its locks, before it returns to the caller.
+ */
+public interface MutationListener {
+
+  void onAdd(String key, String member);
+
+  // Also called when the member was the last one and the key went away with it
+  void onRemove(String key, String member);
+
+  // Follows onRemove when that was the last member, the key no longer exists
+  default void onKeyRemoved(String key) {}
+
+  void onRemoveAll(String key, Set<String> members);
+
+  void onClear();
+
+  // SAVE is about to take its snapshot, onSave or onSaveFailed follows
+  default void onSaveStarted() {}
+
+  // The dictionary was written to the snapshot file
+  default void onSave(Path snapshot) {}
+
+  // The SAVE announced by onSaveStarted did not write its snapshot
+  default void onSaveFailed() {}
+
+  // The contents were replaced by the snapshot file
+  default void onLoad(Path snapshot) {}
+
+  default void sync() {}
+}
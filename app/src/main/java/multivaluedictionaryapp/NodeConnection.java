@@ -0,0 +1,193 @@
+package multivaluedictionaryapp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A client of one {@link DictionaryServer}, named "host:port". Commands may be pipelined: send
+ * several lines, flush, then receive their replies in order. Connects on first use and again
+ * after a failure. Not thread-safe.
+ */
+final class NodeConnection implements Closeable {
+
+  static final int TIMEOUT_MILLIS = 10_000;
+  // bytes of a line besides its newline, the server refuses longer ones
+  static final int MAX_LINE_BYTES = DictionaryServer.BUFFER_SIZE - 1;
+
+  private final String node;
+  private final InetSocketAddress address;
+  private Socket socket;
+  private BufferedReader in;
+  private Writer out;
+
+  NodeConnection(String node) {
+    this.node = node;
+    this.address = address(node);
+  }
+
+  // "host:port"
+  static InetSocketAddress address(String node) {
+    String host = host(node);
+    return new InetSocketAddress(host, Integer.parseInt(node.substring(host.length() + 1)));
+  }
+
+  // The host of "host:port", without looking it up
+  static String host(String node) {
+    int colon = node.lastIndexOf(':');
+    if (colon <= 0) {
+      throw new IllegalArgumentException("expected host:port, got " + node);
+    }
+    Integer.parseInt(node.substring(colon + 1));
+    return node.substring(0, colon);
+  }
+
+  String node() {
+    return node;
+  }
+
+  void send(String line) throws IOException {
+    if (socket == null) {
+      connect();
+    }
+    out.write(line);
+    out.write('\n');
+  }
+
+  void flush() throws IOException {
+    if (out != null) {
+      out.flush();
+    }
+  }
+
+  // The lines of the next reply, without the empty line that ends it
+  List<String> receive() throws IOException {
+    if (in == null) {
+      throw new IOException("Not connected to " + node);
+    }
+    List<String> lines = new ArrayList<>();
+    String line;
+    while ((line = in.readLine()) != null) {
+      if (line.isEmpty()) {
+        return lines;
+      }
+      lines.add(line);
+    }
+    throw new IOException(node + " closed the connection");
+  }
+
+  List<String> call(String line) throws IOException {
+    send(line);
+    flush();
+    return receive();
+  }
+
+  /**
+   * Adds the members of every key with MADD and fails unless the node took them all. The members
+   * of a key are split over as many lines as the line limit of the server needs; a key and
+   * member that do not fit on one line together are refused before anything is sent.
+   */
+  void addAll(Map<String, List<String>> keys) throws IOException {
+    for (Map.Entry<String, List<String>> key : keys.entrySet()) {
+      int prefix = utf8Length("MADD ") + utf8Length(key.getKey());
+      for (String member : key.getValue()) {
+        if (prefix + 1 + utf8Length(member) > MAX_LINE_BYTES) {
+          throw new IOException(
+              "A member of " + key.getKey() + " is too long to send to " + node);
+        }
+      }
+    }
+    int replies = 0;
+    for (Map.Entry<String, List<String>> key : keys.entrySet()) {
+      int prefix = utf8Length("MADD ") + utf8Length(key.getKey());
+      StringBuilder line = new StringBuilder();
+      int lineBytes = 0;
+      for (String member : key.getValue()) {
+        int memberBytes = 1 + utf8Length(member);
+        if (line.length() > 0 && lineBytes + memberBytes > MAX_LINE_BYTES) {
+          send(line.toString());
+          replies++;
+          line.setLength(0);
+        }
+        if (line.length() == 0) {
+          line.append("MADD ").append(key.getKey());
+          lineBytes = prefix;
+        }
+        line.append(' ').append(member);
+        lineBytes += memberBytes;
+      }
+      if (line.length() > 0) {
+        send(line.toString());
+        replies++;
+      }
+    }
+    flush();
+    for (int r = 0; r < replies; r++) {
+      List<String> reply = receive();
+      if (reply.isEmpty() || !reply.get(0).startsWith("Added ")) {
+        throw new IOException(node + " refused the keys: " + String.join(" ", reply));
+      }
+    }
+  }
+
+  // What the string takes in UTF-8, a surrogate pair counts 2 + 2
+  static int utf8Length(String s) {
+    int bytes = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        bytes++;
+      } else if (c < 0x800 || Character.isSurrogate(c)) {
+        bytes += 2;
+      } else {
+        bytes += 3;
+      }
+    }
+    return bytes;
+  }
+
+  @Override
+  public void close() {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // already gone
+      }
+    }
+    socket = null;
+    in = null;
+    out = null;
+  }
+
+  private void connect() throws IOException {
+    Socket connection = new Socket();
+    try {
+      connection.connect(address, TIMEOUT_MILLIS);
+      connection.setSoTimeout(TIMEOUT_MILLIS);
+      connection.setTcpNoDelay(true);
+      in =
+          new BufferedReader(
+              new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8),
+              DictionaryServer.BUFFER_SIZE);
+      out =
+          new BufferedWriter(
+              new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8),
+              DictionaryServer.BUFFER_SIZE);
+    } catch (IOException e) {
+      connection.close();
+      throw e;
+    }
+    socket = connection;
+  }
+}
@@ -0,0 +1,143 @@
+package multivaluedictionaryapp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bump allocator over direct ByteBuffer chunks. Blocks are rounded up to a power of two and freed
+ * blocks go onto a free list per size class, so repeated ADD/REMOVE traffic reuses memory instead
+ * of growing the arena. An address is the chunk index in the high 32 bits and the offset inside
+ * the chunk in the low 32 bits; 0 is never handed out and stands for null.
+ */
+final class OffHeapArena {
+
+  static final long NULL = 0;
+
+  private static final int FIRST_CHUNK_SIZE = 1 << 20;
+  private static final int MAX_CHUNK_SIZE = 1 << 30;
+  private static final int MIN_BLOCK_SHIFT = 4;
+
+  private final List<ByteBuffer> chunks = new ArrayList<>();
+  // head of the free list for blocks of 1 << shift bytes, linked through their first 8 bytes
+  private final long[] freeBlocks = new long[31];
+  private ByteBuffer current;
+  private int top;
+  private long reservedBytes;
+  private long allocatedBytes;
+
+  OffHeapArena() {
+    clear();
+  }
+
+  long allocate(int size) {
+    int shift = sizeClass(size);
+    int blockSize = 1 << shift;
+    allocatedBytes += blockSize;
+    long block = freeBlocks[shift];
+    if (block != NULL) {
+      freeBlocks[shift] = getLong(block);
+      for (int i = 0; i < blockSize; i += Long.BYTES) {
+        putLong(block + i, 0);
+      }
+      return block;
+    }
+    if (top + blockSize > current.capacity()) {
+      int chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(current.capacity() * 2, blockSize));
+      current = ByteBuffer.allocateDirect(chunkSize);
+      chunks.add(current);
+      reservedBytes += chunkSize;
+      top = 0;
+    }
+    long address = ((long) (chunks.size() - 1) << 32) | top;
+    top += blockSize;
+    return address;
+  }
+
+  void free(long address, int size) {
+    int shift = sizeClass(size);
+    allocatedBytes -= 1 << shift;
+    putLong(address, freeBlocks[shift]);
+    freeBlocks[shift] = address;
+  }
+
+  // Drops every chunk; the direct memory goes back once the buffers are collected
+  void clear() {
+    chunks.clear();
+    current = ByteBuffer.allocateDirect(FIRST_CHUNK_SIZE);
+    chunks.add(current);
+    reservedBytes = FIRST_CHUNK_SIZE;
+    allocatedBytes = 0;
+    // keeps address 0 free so it can mean null
+    top = 1 << MIN_BLOCK_SHIFT;
+    for (int i = 0; i < freeBlocks.length; i++) {
+      freeBlocks[i] = NULL;
+    }
+  }
+
+  // Direct memory held by the arena
+  long reservedBytes() {
+    return reservedBytes;
+  }
+
+  // Bytes in blocks currently handed out
+  long allocatedBytes() {
+    return allocatedBytes;
+  }
+
+  int getInt(long address) {
+    return chunk(address).getInt((int) address);
+  }
+
+  void putInt(long address, int value) {
+    chunk(address).putInt((int) address, value);
+  }
+
+  long getLong(long address) {
+    return chunk(address).getLong((int) address);
+  }
+
+  void putLong(long address, long value) {
+    chunk(address).putLong((int) address, value);
+  }
+
+  void putBytes(long address, byte[] bytes) {
+    ByteBuffer chunk = chunk(address);
+    int offset = (int) address;
+    for (int i = 0; i < bytes.length; i++) {
+      chunk.put(offset + i, bytes[i]);
+    }
+  }
+
+  byte[] getBytes(long address, int length) {
+    ByteBuffer chunk = chunk(address);
+    int offset = (int) address;
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = chunk.get(offset + i);
+    }
+    return bytes;
+  }
+
+  boolean bytesEqual(long address, byte[] bytes) {
+    ByteBuffer chunk = chunk(address);
+    int offset = (int) address;
+    for (int i = 0; i < bytes.length; i++) {
+      if (chunk.get(offset + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private ByteBuffer chunk(long address) {
+    return chunks.get((int) (address >>> 32));
+  }
+
+  private static int sizeClass(int size) {
+    if (size > MAX_CHUNK_SIZE) {
+      throw new IllegalArgumentException("Off-heap block of " + size + " bytes is too large");
+    }
+    return Math.max(MIN_BLOCK_SHIFT, 32 - Integer.numberOfLeadingZeros(size - 1));
+  }
+}
@@ -0,0 +1,423 @@
+package multivaluedictionaryapp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Backing map for StorageMode.OFF_HEAP. Key and member bytes (UTF-8) and both levels of hash
+ * table live in an OffHeapArena, so the heap only holds this object and the short-lived views
+ * handed out by get(), and GC work does not grow with the dictionary.
+ *
+ * <p>Both tables use open addressing with 16 byte slots (record address, String.hashCode) and
+ * backward shift deletion. A member set view follows its key record until the key is removed;
+ * after that it reads as empty and refuses writes, even once the arena has handed the record's
+ * block to another key.
+ */
+final class OffHeapMemberMap extends AbstractMap<String, Set<String>> {
+
+  // key record: hash, member count, member table address, member capacity, generation,
+  // key length, key bytes
+  private static final int KEY_HASH = 0;
+  private static final int KEY_MEMBER_COUNT = 4;
+  private static final int KEY_MEMBER_TABLE = 8;
+  private static final int KEY_MEMBER_CAPACITY = 16;
+  private static final int KEY_GENERATION = 20;
+  private static final int KEY_LENGTH = 24;
+  // member record: length, member bytes
+  private static final int MEMBER_LENGTH = 0;
+
+  private static final int SLOT_SIZE = 16;
+  private static final int SLOT_HASH = 8;
+  private static final int INITIAL_KEY_CAPACITY = 16;
+  private static final int INITIAL_MEMBER_CAPACITY = 4;
+
+  private final OffHeapArena arena = new OffHeapArena();
+  private long keyTable;
+  private int keyCapacity;
+  private int size;
+  // stamped into each new key record, so a reused block never matches an older view
+  private int generation;
+  // bumped whenever a key record may have been freed; views only revalidate after a change
+  private long removals;
+
+  OffHeapMemberMap() {
+    resetKeyTable();
+  }
+
+  @Override
+  public Set<String> get(Object key) {
+    long record = findKey(key);
+    return record == OffHeapArena.NULL ? null : new MemberView((String) key, record);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return findKey(key) != OffHeapArena.NULL;
+  }
+
+  // Copies the computed members off-heap and returns the live view over them
+  @Override
+  public Set<String> computeIfAbsent(
+      String key, Function<? super String, ? extends Set<String>> mappingFunction) {
+    long record = findKey(key);
+    if (record != OffHeapArena.NULL) {
+      return new MemberView(key, record);
+    }
+    Set<String> computed = mappingFunction.apply(key);
+    if (computed == null) {
+      return null;
+    }
+    MemberView view = new MemberView(key, insertKey(key));
+    view.addAll(computed);
+    return view;
+  }
+
+  @Override
+  public Set<String> put(String key, Set<String> value) {
+    Set<String> previous = remove(key);
+    new MemberView(key, insertKey(key)).addAll(value);
+    return previous;
+  }
+
+  // Returns an on-heap copy, the off-heap records are freed
+  @Override
+  public Set<String> remove(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    byte[] bytes = utf8((String) key);
+    int index = probe(keyTable, keyCapacity, key.hashCode(), bytes, KEY_LENGTH);
+    if (index < 0) {
+      return null;
+    }
+    long record = arena.getLong(slot(keyTable, index));
+    MemberView members = new MemberView((String) key, record);
+    Set<String> removed = new HashSet<>(members);
+    members.clear();
+    removals++;
+    arena.free(
+        arena.getLong(record + KEY_MEMBER_TABLE),
+        arena.getInt(record + KEY_MEMBER_CAPACITY) * SLOT_SIZE);
+    arena.free(record, KEY_LENGTH + 4 + bytes.length);
+    deleteSlot(keyTable, keyCapacity, index);
+    size--;
+    return removed;
+  }
+
+  @Override
+  public void clear() {
+    removals++;
+    arena.clear();
+    resetKeyTable();
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Set<Map.Entry<String, Set<String>>> entrySet() {
+    return new AbstractSet<Map.Entry<String, Set<String>>>() {
+      @Override
+      public Iterator<Map.Entry<String, Set<String>>> iterator() {
+        return new SlotIterator<Map.Entry<String, Set<String>>>(keyTable, keyCapacity) {
+          @Override
+          Map.Entry<String, Set<String>> decode(long record) {
+            String key = readString(record + KEY_LENGTH);
+            return new SimpleImmutableEntry<>(key, new MemberView(key, record));
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  // Direct memory reserved for the dictionary
+  long offHeapBytes() {
+    return arena.reservedBytes();
+  }
+
+  private long findKey(Object key) {
+    if (!(key instanceof String)) {
+      return OffHeapArena.NULL;
+    }
+    int index = probe(keyTable, keyCapacity, key.hashCode(), utf8((String) key), KEY_LENGTH);
+    return index < 0 ? OffHeapArena.NULL : arena.getLong(slot(keyTable, index));
+  }
+
+  private long insertKey(String key) {
+    if ((size + 1) * 4 > keyCapacity * 3) {
+      keyTable = resize(keyTable, keyCapacity, keyCapacity * 2);
+      keyCapacity *= 2;
+    }
+    byte[] bytes = utf8(key);
+    int hash = key.hashCode();
+    long record = arena.allocate(KEY_LENGTH + 4 + bytes.length);
+    arena.putInt(record + KEY_HASH, hash);
+    arena.putLong(
+        record + KEY_MEMBER_TABLE, arena.allocate(INITIAL_MEMBER_CAPACITY * SLOT_SIZE));
+    arena.putInt(record + KEY_MEMBER_CAPACITY, INITIAL_MEMBER_CAPACITY);
+    arena.putInt(record + KEY_GENERATION, ++generation);
+    arena.putInt(record + KEY_LENGTH, bytes.length);
+    arena.putBytes(record + KEY_LENGTH + 4, bytes);
+    int index = -probe(keyTable, keyCapacity, hash, bytes, KEY_LENGTH) - 1;
+    fillSlot(keyTable, index, record, hash);
+    size++;
+    return record;
+  }
+
+  private void resetKeyTable() {
+    keyCapacity = INITIAL_KEY_CAPACITY;
+    keyTable = arena.allocate(keyCapacity * SLOT_SIZE);
+    size = 0;
+  }
+
+  // Index of the slot holding the bytes, or -(index + 1) of the empty slot where they would go
+  private int probe(long table, int capacity, int hash, byte[] bytes, int lengthOffset) {
+    int mask = capacity - 1;
+    for (int i = SymbolTable.spread(hash) & mask; ; i = (i + 1) & mask) {
+      long record = arena.getLong(slot(table, i));
+      if (record == OffHeapArena.NULL) {
+        return -(i + 1);
+      }
+      if (arena.getInt(slot(table, i) + SLOT_HASH) == hash
+          && arena.getInt(record + lengthOffset) == bytes.length
+          && arena.bytesEqual(record + lengthOffset + 4, bytes)) {
+        return i;
+      }
+    }
+  }
+
+  private void fillSlot(long table, int index, long record, int hash) {
+    arena.putLong(slot(table, index), record);
+    arena.putInt(slot(table, index) + SLOT_HASH, hash);
+  }
+
+  // Backward shift deletion: pulls later entries of the probe run into the hole, no tombstones
+  private void deleteSlot(long table, int capacity, int hole) {
+    int mask = capacity - 1;
+    for (int i = (hole + 1) & mask;
+        arena.getLong(slot(table, i)) != OffHeapArena.NULL;
+        i = (i + 1) & mask) {
+      int hash = arena.getInt(slot(table, i) + SLOT_HASH);
+      int home = SymbolTable.spread(hash) & mask;
+      // move the entry if its home slot is not inside (hole, i]
+      if (((i - home) & mask) >= ((i - hole) & mask)) {
+        fillSlot(table, hole, arena.getLong(slot(table, i)), hash);
+        hole = i;
+      }
+    }
+    fillSlot(table, hole, OffHeapArena.NULL, 0);
+  }
+
+  private long resize(long table, int capacity, int newCapacity) {
+    long resized = arena.allocate(newCapacity * SLOT_SIZE);
+    int mask = newCapacity - 1;
+    for (int i = 0; i < capacity; i++) {
+      long record = arena.getLong(slot(table, i));
+      if (record != OffHeapArena.NULL) {
+        int hash = arena.getInt(slot(table, i) + SLOT_HASH);
+        int j = SymbolTable.spread(hash) & mask;
+        while (arena.getLong(slot(resized, j)) != OffHeapArena.NULL) {
+          j = (j + 1) & mask;
+        }
+        fillSlot(resized, j, record, hash);
+      }
+    }
+    arena.free(table, capacity * SLOT_SIZE);
+    return resized;
+  }
+
+  private String readString(long lengthAddress) {
+    int length = arena.getInt(lengthAddress);
+    return new String(arena.getBytes(lengthAddress + 4, length), StandardCharsets.UTF_8);
+  }
+
+  private static long slot(long table, int index) {
+    return table + (long) index * SLOT_SIZE;
+  }
+
+  private static byte[] utf8(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  // Walks the occupied slots of a table as it was when the iterator was created
+  private abstract class SlotIterator<T> implements Iterator<T> {
+    private final long table;
+    private final int capacity;
+    private int index;
+
+    SlotIterator(long table, int capacity) {
+      this.table = table;
+      this.capacity = capacity;
+      this.index = advance(0);
+    }
+
+    abstract T decode(long record);
+
+    private int advance(int from) {
+      while (from < capacity && arena.getLong(slot(table, from)) == OffHeapArena.NULL) {
+        from++;
+      }
+      return from;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return index < capacity;
+    }
+
+    @Override
+    public T next() {
+      if (index >= capacity) {
+        throw new NoSuchElementException();
+      }
+      T value = decode(arena.getLong(slot(table, index)));
+      index = advance(index + 1);
+      return value;
+    }
+  }
+
+  // Live member set of one key, reading the key record on every call
+  private final class MemberView extends AbstractSet<String> {
+    private final String key;
+    private final long record;
+    private final int generation;
+    private long removalsSeen;
+
+    MemberView(String key, long record) {
+      this.key = key;
+      this.record = record;
+      this.generation = arena.getInt(record + KEY_GENERATION);
+      this.removalsSeen = removals;
+    }
+
+    // False once the key record is gone; its block may already belong to another key
+    private boolean live() {
+      if (removalsSeen == removals) {
+        return true;
+      }
+      if (findKey(key) != record || arena.getInt(record + KEY_GENERATION) != generation) {
+        return false;
+      }
+      removalsSeen = removals;
+      return true;
+    }
+
+    private void checkLive() {
+      if (!live()) {
+        throw new IllegalStateException("Key " + key + " was removed");
+      }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof String) || !live()) {
+        return false;
+      }
+      return probe(table(), capacity(), o.hashCode(), utf8((String) o), MEMBER_LENGTH) >= 0;
+    }
+
+    @Override
+    public boolean add(String member) {
+      checkLive();
+      byte[] bytes = utf8(member);
+      int hash = member.hashCode();
+      int index = probe(table(), capacity(), hash, bytes, MEMBER_LENGTH);
+      if (index >= 0) {
+        return false;
+      }
+      int count = size();
+      if ((count + 1) * 4 > capacity() * 3) {
+        int grown = capacity() * 2;
+        arena.putLong(record + KEY_MEMBER_TABLE, resize(table(), capacity(), grown));
+        arena.putInt(record + KEY_MEMBER_CAPACITY, grown);
+        index = probe(table(), capacity(), hash, bytes, MEMBER_LENGTH);
+      }
+      long memberRecord = arena.allocate(4 + bytes.length);
+      arena.putInt(memberRecord + MEMBER_LENGTH, bytes.length);
+      arena.putBytes(memberRecord + MEMBER_LENGTH + 4, bytes);
+      fillSlot(table(), -index - 1, memberRecord, hash);
+      arena.putInt(record + KEY_MEMBER_COUNT, count + 1);
+      return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      if (!(o instanceof String) || !live()) {
+        return false;
+      }
+      byte[] bytes = utf8((String) o);
+      int index = probe(table(), capacity(), o.hashCode(), bytes, MEMBER_LENGTH);
+      if (index < 0) {
+        return false;
+      }
+      arena.free(arena.getLong(slot(table(), index)), 4 + bytes.length);
+      deleteSlot(table(), capacity(), index);
+      arena.putInt(record + KEY_MEMBER_COUNT, size() - 1);
+      return true;
+    }
+
+    // Frees every member record but keeps the table
+    @Override
+    public void clear() {
+      if (!live()) {
+        return;
+      }
+      for (int i = 0; i < capacity(); i++) {
+        long memberRecord = arena.getLong(slot(table(), i));
+        if (memberRecord != OffHeapArena.NULL) {
+          arena.free(memberRecord, 4 + arena.getInt(memberRecord + MEMBER_LENGTH));
+          fillSlot(table(), i, OffHeapArena.NULL, 0);
+        }
+      }
+      arena.putInt(record + KEY_MEMBER_COUNT, 0);
+    }
+
+    @Override
+    public int size() {
+      return live() ? arena.getInt(record + KEY_MEMBER_COUNT) : 0;
+    }
+
+    // Ends early if the key is removed while iterating
+    @Override
+    public Iterator<String> iterator() {
+      if (!live()) {
+        return Collections.emptyIterator();
+      }
+      return new SlotIterator<String>(table(), capacity()) {
+        @Override
+        public boolean hasNext() {
+          return live() && super.hasNext();
+        }
+
+        @Override
+        String decode(long memberRecord) {
+          checkLive();
+          return readString(memberRecord + MEMBER_LENGTH);
+        }
+      };
+    }
+
+    private long table() {
+      return arena.getLong(record + KEY_MEMBER_TABLE);
+    }
+
+    private int capacity() {
+      return arena.getInt(record + KEY_MEMBER_CAPACITY);
+    }
+  }
+}
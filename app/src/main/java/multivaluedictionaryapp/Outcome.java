@@ -0,0 +1,23 @@
+package multivaluedictionaryapp;
+
+/**
+ * Result of the non-throwing dictionary calls (tryAdd, tryRemoveMember, tryRemoveAll,
+ * findMember). A miss is an ordinary return value, no exception or message is built for it.
+ */
+public enum Outcome {
+  OK(null),
+  MEMBER_ALREADY_EXISTS("Error, member already exists for key."),
+  KEY_NOT_FOUND("Error, key does not exist."),
+  MEMBER_NOT_FOUND("Error, member does not exist.");
+
+  private final String message;
+
+  Outcome(String message) {
+    this.message = message;
+  }
+
+  // Error message the throwing API uses for this outcome, null for OK
+  public String message() {
+    return message;
+  }
+}
@@ -0,0 +1,297 @@
+package multivaluedictionaryapp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a dictionary a copy of a {@link ReplicationLeader}: connects, takes a full copy of the
+ * contents when the leader cannot continue from where this follower stopped, then applies the
+ * stream of mutations. A lost connection is retried with backoff and continues from the last
+ * applied record if the leader still has it.
+ *
+ * <p>Records are applied with the try* calls and their outcome is ignored: the first records
+ * after a copy may already be in it, and applying them again changes nothing. The dictionary is
+ * written from the follower thread, so anyone reading it meanwhile needs a thread-safe one, and
+ * nobody else should write it.
+ */
+public class ReplicationFollower implements Closeable {
+
+  // how often the applied sequence number is acknowledged while records keep coming
+  static final long ACK_INTERVAL_MILLIS = 100;
+  private static final long MIN_BACKOFF_MILLIS = 50;
+  private static final long MAX_BACKOFF_MILLIS = 2_000;
+
+  public enum State {
+    CONNECTING,
+    // receiving a full copy of the contents
+    SYNCING,
+    STREAMING
+  }
+
+  private final MultiValueDictionary dict;
+  private final InetSocketAddress leader;
+  private final Thread thread;
+  private volatile boolean running = true;
+  private volatile Socket socket;
+
+  // written by the follower thread only
+  private volatile State state = State.CONNECTING;
+  private volatile long runId;
+  private volatile long appliedSeq;
+  private volatile long leaderSeq;
+  private volatile long lastContactNanos;
+  private volatile long fullSyncs;
+  private volatile long partialSyncs;
+
+  private ReplicationFollower(MultiValueDictionary dict, InetSocketAddress leader) {
+    this.dict = dict;
+    this.leader = leader;
+    this.thread = new Thread(this::run, "replication-follower");
+    thread.setDaemon(true);
+  }
+
+  // Starts following the leader in the background, the dictionary is replaced by its contents
+  public static ReplicationFollower start(MultiValueDictionary dict, InetSocketAddress leader) {
+    ReplicationFollower follower = new ReplicationFollower(dict, leader);
+    follower.thread.start();
+    return follower;
+  }
+
+  public InetSocketAddress leader() {
+    return leader;
+  }
+
+  public State state() {
+    return state;
+  }
+
+  // Sequence number of the last record applied here
+  public long appliedSeq() {
+    return appliedSeq;
+  }
+
+  // Latest sequence number the leader has reported
+  public long leaderSeq() {
+    return leaderSeq;
+  }
+
+  public long lagRecords() {
+    return Math.max(0, leaderSeq - appliedSeq);
+  }
+
+  // Time since the leader was last heard from, -1 before the first contact
+  public long lastContactMillis() {
+    long nanos = lastContactNanos;
+    return nanos == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanos);
+  }
+
+  // Number of times the whole contents were copied from the leader
+  public long fullSyncs() {
+    return fullSyncs;
+  }
+
+  // Number of times the stream continued after a reconnect without a copy
+  public long partialSyncs() {
+    return partialSyncs;
+  }
+
+  @Override
+  public void close() throws IOException {
+    running = false;
+    Socket current = socket;
+    if (current != null) {
+      current.close();
+    }
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    long backoff = MIN_BACKOFF_MILLIS;
+    while (running) {
+      try (Socket connection = new Socket()) {
+        socket = connection;
+        if (!running) {
+          return;
+        }
+        connection.connect(leader, ReplicationLeader.TIMEOUT_MILLIS);
+        connection.setTcpNoDelay(true);
+        connection.setSoTimeout(ReplicationLeader.TIMEOUT_MILLIS);
+        DataInputStream in =
+            new DataInputStream(
+                new BufferedInputStream(
+                    connection.getInputStream(), ReplicationLeader.BUFFER_SIZE));
+        DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+        out.writeInt(ReplicationLeader.MAGIC);
+        out.writeInt(ReplicationLeader.VERSION);
+        out.writeLong(runId);
+        out.writeLong(appliedSeq + 1);
+        out.flush();
+        backoff = MIN_BACKOFF_MILLIS;
+        stream(in, out);
+      } catch (IOException e) {
+        // the leader is not up yet or went away, try again
+      }
+      state = State.CONNECTING;
+      try {
+        Thread.sleep(backoff);
+      } catch (InterruptedException e) {
+        return;
+      }
+      backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+    }
+  }
+
+  private void stream(DataInputStream in, DataOutputStream out) throws IOException {
+    long lastAck = System.nanoTime();
+    byte[] payload = new byte[256];
+    while (running) {
+      boolean ack = false;
+      byte frame = in.readByte();
+      lastContactNanos = System.nanoTime();
+      switch (frame) {
+        case ReplicationLeader.CONTINUE:
+          in.readLong();
+          leaderSeq = in.readLong();
+          partialSyncs++;
+          state = State.STREAMING;
+          break;
+        case ReplicationLeader.FULL_SYNC:
+          fullSync(in);
+          break;
+        case ReplicationLeader.RECORD:
+          long seq = in.readLong();
+          int length = in.readInt();
+          if (length <= 0) {
+            throw new IOException("Invalid replication record length " + length);
+          }
+          if (payload.length < length) {
+            payload = new byte[Math.max(length, payload.length * 2)];
+          }
+          in.readFully(payload, 0, length);
+          apply(ByteBuffer.wrap(payload, 0, length));
+          appliedSeq = seq;
+          leaderSeq = Math.max(leaderSeq, seq);
+          break;
+        case ReplicationLeader.PING:
+          leaderSeq = in.readLong();
+          // answered right away, this is how the leader learns the lag of an idle follower
+          ack = true;
+          break;
+        default:
+          throw new IOException("Unknown replication frame " + frame);
+      }
+      long now = System.nanoTime();
+      if (ack || now - lastAck >= TimeUnit.MILLISECONDS.toNanos(ACK_INTERVAL_MILLIS)) {
+        out.writeLong(appliedSeq);
+        out.flush();
+        lastAck = now;
+      }
+    }
+  }
+
+  /**
+   * Replaces the contents with the copy, the records after it follow. The copy is written to a
+   * temporary snapshot as it arrives and then loaded, so the dictionary keeps its old contents
+   * until the whole copy is here and never shows half of it.
+   */
+  private void fullSync(DataInputStream in) throws IOException {
+    state = State.SYNCING;
+    long id = in.readLong();
+    long from = in.readLong();
+    Path file = Files.createTempFile("replication-", ".snapshot");
+    try {
+      try (SnapshotFile.Writer writer = SnapshotFile.Writer.create(file)) {
+        receiveCopy(in, writer);
+        writer.commit();
+      }
+      dict.load(file);
+    } finally {
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        // still mapped on some systems, the temporary directory is cleaned up eventually
+      }
+    }
+    runId = id;
+    appliedSeq = from - 1;
+    leaderSeq = from - 1;
+    fullSyncs++;
+    state = State.STREAMING;
+  }
+
+  // Chunks of [int keys]([key][int members][member] x members) x keys, up to an empty one
+  private static void receiveCopy(DataInputStream in, SnapshotFile.Writer writer)
+      throws IOException {
+    Set<String> members = new HashSet<>();
+    int keys;
+    while ((keys = in.readInt()) != 0) {
+      if (keys < 0) {
+        throw new IOException("Invalid replication key count " + keys);
+      }
+      for (int k = 0; k < keys; k++) {
+        String key = readString(in);
+        int count = in.readInt();
+        if (count < 0) {
+          throw new IOException("Invalid replication member count " + count);
+        }
+        members.clear();
+        for (int m = 0; m < count; m++) {
+          members.add(readString(in));
+        }
+        if (!members.isEmpty()) {
+          writer.add(key, members);
+        }
+      }
+    }
+  }
+
+  private void apply(ByteBuffer payload) throws IOException {
+    byte op = payload.get();
+    switch (op) {
+      case WriteAheadLog.ADD:
+        dict.tryAdd(WriteAheadLog.readString(payload), WriteAheadLog.readString(payload));
+        break;
+      case WriteAheadLog.REMOVE:
+        dict.tryRemoveMember(
+            WriteAheadLog.readString(payload), WriteAheadLog.readString(payload));
+        break;
+      case WriteAheadLog.REMOVEALL:
+        dict.tryRemoveAll(WriteAheadLog.readString(payload));
+        break;
+      case WriteAheadLog.CLEAR:
+        dict.clearMap();
+        break;
+      default:
+        throw new IOException("Unknown replication record type " + op);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new IOException("Invalid replication string length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
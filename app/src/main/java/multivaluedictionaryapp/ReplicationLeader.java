@@ -0,0 +1,557 @@
+package multivaluedictionaryapp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Streams every ADD / REMOVE / REMOVEALL / CLEAR of a dictionary to followers over TCP, see
+ * {@link ReplicationFollower}. Each mutation gets the next sequence number and goes into a
+ * backlog of the most recent records, capped in bytes.
+ *
+ * <p>A follower connects with the run id of the leader it last followed and the sequence number
+ * it needs next. If that is still in the backlog of this run the stream continues from there,
+ * otherwise the follower gets a full copy of the contents first and the stream starts right after
+ * it. A follower that falls behind the backlog, and every follower after a LOAD, is copied again.
+ *
+ * <p>The dictionary is read and written from the replication threads as well, hence the sharded
+ * one. Its shard threads report a mutation before they take the next task, so a copy taken after
+ * a sequence number was handed out contains that record; records taken after it may be in the
+ * copy as well, which does no harm because every record sets a member or key outright.
+ */
+public class ReplicationLeader implements MutationListener, Closeable {
+
+  static final int MAGIC = 0x4d564452;
+  static final int VERSION = 2;
+  // frames sent to a follower, the follower only ever sends its applied sequence number
+  static final byte CONTINUE = 'C';
+  static final byte FULL_SYNC = 'F';
+  static final byte RECORD = 'R';
+  static final byte PING = 'P';
+  // an idle stream gets a PING this often, which the follower acknowledges
+  static final long PING_INTERVAL_MILLIS = 100;
+  // a connection that stays silent this long is considered dead
+  static final int TIMEOUT_MILLIS = 5_000;
+  static final int BUFFER_SIZE = 1 << 16;
+  public static final long DEFAULT_BACKLOG_BYTES = 1 << 20;
+  // rough size of a backlog record besides its payload
+  private static final int RECORD_OVERHEAD = 40;
+  private static final int RECORDS_PER_WRITE = 256;
+  private static final int KEYS_PER_CHUNK = 1024;
+  private static final int MAX_BACKLOG_SLOTS = 1 << 22;
+
+  public enum FollowerState {
+    // receiving a full copy of the contents
+    SYNCING,
+    STREAMING
+  }
+
+  /** Where one connected follower stands, as of its last acknowledgement. */
+  public static final class FollowerStatus {
+    private final String address;
+    private final FollowerState state;
+    private final long ackedSeq;
+    private final long lagRecords;
+    private final long lagMillis;
+
+    FollowerStatus(
+        String address, FollowerState state, long ackedSeq, long lagRecords, long lagMillis) {
+      this.address = address;
+      this.state = state;
+      this.ackedSeq = ackedSeq;
+      this.lagRecords = lagRecords;
+      this.lagMillis = lagMillis;
+    }
+
+    public String address() {
+      return address;
+    }
+
+    public FollowerState state() {
+      return state;
+    }
+
+    // Last sequence number the follower has applied
+    public long ackedSeq() {
+      return ackedSeq;
+    }
+
+    // Records written here that the follower has not applied yet
+    public long lagRecords() {
+      return lagRecords;
+    }
+
+    // Age of the oldest record the follower has not applied yet, 0 when it is up to date
+    public long lagMillis() {
+      return lagMillis;
+    }
+  }
+
+  private static final class Record {
+    final long seq;
+    final long nanos;
+    final byte[] payload;
+
+    Record(long seq, long nanos, byte[] payload) {
+      this.seq = seq;
+      this.nanos = nanos;
+      this.payload = payload;
+    }
+  }
+
+  private final ShardedMultiValueDictionary dict;
+  private final ServerSocket server;
+  private final long backlogBytes;
+  // tells the followers apart from the ones of an earlier run, whose numbers mean nothing here
+  private final long runId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+  private final Thread acceptor;
+  private final List<Follower> followers = new CopyOnWriteArrayList<>();
+  private volatile boolean running = true;
+
+  // The backlog, which the shard threads append to without waiting for each other: record s
+  // sits in slot s & (length - 1) until a later one takes the slot or the byte cap trims it.
+  // Records from firstSeq on are there once their shard has published them.
+  private final AtomicReferenceArray<Record> backlog;
+  private final AtomicLong nextSeq = new AtomicLong(1);
+  private final AtomicLong firstSeq = new AtomicLong(1);
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicBoolean trimming = new AtomicBoolean();
+  // a sender waiting for its next record sets the flag, the next append wakes it
+  private final Object signal = new Object();
+  private volatile boolean sendersWaiting;
+
+  private ReplicationLeader(
+      ShardedMultiValueDictionary dict, ServerSocket server, long backlogBytes) {
+    this.dict = dict;
+    this.server = server;
+    this.backlogBytes = backlogBytes;
+    this.backlog = new AtomicReferenceArray<>(backlogSlots(backlogBytes));
+    this.acceptor = new Thread(this::acceptLoop, "replication-leader");
+    acceptor.setDaemon(true);
+  }
+
+  // Listens for followers on the address, port 0 picks a free port
+  public static ReplicationLeader start(
+      ShardedMultiValueDictionary dict, InetSocketAddress address) throws IOException {
+    return start(dict, address, DEFAULT_BACKLOG_BYTES);
+  }
+
+  public static ReplicationLeader start(
+      ShardedMultiValueDictionary dict, InetSocketAddress address, long backlogBytes)
+      throws IOException {
+    if (backlogBytes <= 0) {
+      throw new IllegalArgumentException("The backlog needs a positive size");
+    }
+    ServerSocket server = new ServerSocket();
+    try {
+      server.bind(address);
+    } catch (IOException e) {
+      server.close();
+      throw e;
+    }
+    ReplicationLeader leader = new ReplicationLeader(dict, server, backlogBytes);
+    dict.addMutationListener(leader);
+    leader.acceptor.start();
+    return leader;
+  }
+
+  public int port() {
+    return server.getLocalPort();
+  }
+
+  // Sequence number of the latest mutation, 0 before the first one
+  public long lastSeq() {
+    return nextSeq.get() - 1;
+  }
+
+  public List<FollowerStatus> followers() {
+    List<FollowerStatus> statuses = new ArrayList<>(followers.size());
+    for (Follower follower : followers) {
+      long acked = follower.ackedSeq;
+      long lagRecords = Math.max(0, lastSeq() - acked);
+      statuses.add(
+          new FollowerStatus(
+              follower.address, follower.state, acked, lagRecords, lagMillis(acked)));
+    }
+    return statuses;
+  }
+
+  @Override
+  public void onAdd(String key, String member) {
+    append(WriteAheadLog.ADD, key, member);
+  }
+
+  @Override
+  public void onRemove(String key, String member) {
+    append(WriteAheadLog.REMOVE, key, member);
+  }
+
+  @Override
+  public void onRemoveAll(String key, Set<String> members) {
+    append(WriteAheadLog.REMOVEALL, key, null);
+  }
+
+  @Override
+  public void onClear() {
+    append(WriteAheadLog.CLEAR, null, null);
+  }
+
+  // The contents were replaced wholesale, every follower needs a new copy
+  @Override
+  public void onLoad(Path snapshot) {
+    // skipping a number moves every follower, even an up to date one, behind the backlog
+    long skipped = nextSeq.getAndIncrement();
+    firstSeq.accumulateAndGet(skipped + 1, Math::max);
+    for (int i = 0; i < backlog.length(); i++) {
+      Record record = backlog.get(i);
+      if (record != null && record.seq < skipped && backlog.compareAndSet(i, record, null)) {
+        bytes.addAndGet(-cost(record));
+      }
+    }
+    wakeSenders();
+  }
+
+  // Cuts every follower off, as a network failure would
+  @VisibleForTesting
+  void disconnectFollowers() {
+    for (Follower follower : followers) {
+      follower.close();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    running = false;
+    dict.removeMutationListener(this);
+    server.close();
+    for (Follower follower : followers) {
+      follower.close();
+    }
+    synchronized (signal) {
+      signal.notifyAll();
+    }
+    try {
+      acceptor.join();
+      for (Follower follower : followers) {
+        follower.sender.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void append(byte op, String key, String member) {
+    byte[] payload = encode(op, key, member);
+    Record record = new Record(nextSeq.getAndIncrement(), System.nanoTime(), payload);
+    int slot = slot(record.seq);
+    Record previous;
+    do {
+      previous = backlog.get(slot);
+      if (previous != null && previous.seq > record.seq) {
+        // the backlog went round while this one was on its way, whoever needs it is behind
+        wakeSenders();
+        return;
+      }
+    } while (!backlog.compareAndSet(slot, previous, record));
+    // the one that takes a record out of its slot gives its bytes back
+    long total = bytes.addAndGet(previous == null ? cost(record) : cost(record) - cost(previous));
+    if (total > backlogBytes) {
+      trim(record.seq);
+    }
+    wakeSenders();
+  }
+
+  // [byte op]([int length][key])([int length][member]), as in the write-ahead log
+  private static byte[] encode(byte op, String key, String member) {
+    byte[] keyBytes = key == null ? null : key.getBytes(StandardCharsets.UTF_8);
+    byte[] memberBytes = member == null ? null : member.getBytes(StandardCharsets.UTF_8);
+    int length = 1;
+    length += keyBytes == null ? 0 : 4 + keyBytes.length;
+    length += memberBytes == null ? 0 : 4 + memberBytes.length;
+    ByteBuffer payload = ByteBuffer.allocate(length).put(op);
+    if (keyBytes != null) {
+      payload.putInt(keyBytes.length).put(keyBytes);
+    }
+    if (memberBytes != null) {
+      payload.putInt(memberBytes.length).put(memberBytes);
+    }
+    return payload.array();
+  }
+
+  // Drops the oldest records until the backlog fits its cap, one thread at a time, keeping last
+  private void trim(long last) {
+    if (!trimming.compareAndSet(false, true)) {
+      // the one trimming goes on while the backlog is too large
+      return;
+    }
+    try {
+      long first = firstSeq.get();
+      while (first < last && bytes.get() > backlogBytes) {
+        int slot = slot(first);
+        Record oldest = backlog.get(slot);
+        if (oldest == null || oldest.seq < first) {
+          // not published yet
+          return;
+        }
+        // moved first, so a sender that finds the slot empty knows the record is gone
+        firstSeq.accumulateAndGet(first + 1, Math::max);
+        if (oldest.seq == first && backlog.compareAndSet(slot, oldest, null)) {
+          bytes.addAndGet(-cost(oldest));
+        }
+        first++;
+      }
+    } finally {
+      trimming.set(false);
+    }
+  }
+
+  // The record if it is in the backlog, null if it is gone or not published yet
+  private Record published(long seq) {
+    Record record = backlog.get(slot(seq));
+    return record != null && record.seq == seq ? record : null;
+  }
+
+  // Whether the record left the backlog, or never got into it
+  private boolean behind(long seq) {
+    if (seq < firstSeq.get()) {
+      return true;
+    }
+    Record record = backlog.get(slot(seq));
+    return record != null && record.seq > seq;
+  }
+
+  // Waits up to a PING interval for the record, or for it to drop out of the backlog
+  private void awaitRecord(long seq) {
+    synchronized (signal) {
+      sendersWaiting = true;
+      if (running && published(seq) == null && !behind(seq)) {
+        try {
+          signal.wait(PING_INTERVAL_MILLIS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  // Called after publishing, takes the lock only when a sender is waiting
+  private void wakeSenders() {
+    if (sendersWaiting) {
+      synchronized (signal) {
+        sendersWaiting = false;
+        signal.notifyAll();
+      }
+    }
+  }
+
+  private int slot(long seq) {
+    return (int) (seq & (backlog.length() - 1));
+  }
+
+  private static long cost(Record record) {
+    return record.payload.length + RECORD_OVERHEAD;
+  }
+
+  // Enough slots for as many records as the byte cap can hold, a power of two
+  private static int backlogSlots(long backlogBytes) {
+    int records = (int) Math.min(backlogBytes / RECORD_OVERHEAD + 1, MAX_BACKLOG_SLOTS);
+    return Integer.highestOneBit(Math.max(records, 16) * 2 - 1);
+  }
+
+  private long lagMillis(long acked) {
+    if (acked >= lastSeq()) {
+      return 0;
+    }
+    // the records the follower misses may be gone already, the oldest one left is a lower bound
+    Record oldest = published(Math.max(acked + 1, firstSeq.get()));
+    return oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.nanos);
+  }
+
+  private void acceptLoop() {
+    while (running) {
+      Socket socket;
+      try {
+        socket = server.accept();
+      } catch (IOException e) {
+        // closed
+        return;
+      }
+      Follower follower = new Follower(socket);
+      followers.add(follower);
+      follower.sender.start();
+    }
+  }
+
+  // One connected follower, served by a sender thread and a thread reading its acknowledgements
+  private final class Follower implements Closeable {
+    final Socket socket;
+    final String address;
+    final Thread sender;
+    volatile FollowerState state = FollowerState.SYNCING;
+    volatile long ackedSeq;
+
+    Follower(Socket socket) {
+      this.socket = socket;
+      this.address = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+      this.sender = new Thread(this::send, "replication-sender-" + address);
+      sender.setDaemon(true);
+    }
+
+    @Override
+    public void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // nothing left to do with it
+      }
+    }
+
+    private void send() {
+      try {
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        DataInputStream in =
+            new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out =
+            new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+          return;
+        }
+        long followerRunId = in.readLong();
+        long next = in.readLong();
+        if (followerRunId != runId || next < firstSeq.get() || next > nextSeq.get()) {
+          next = -1;
+        }
+        if (next >= 0) {
+          ackedSeq = next - 1;
+          out.writeByte(CONTINUE);
+          out.writeLong(runId);
+          out.writeLong(lastSeq());
+          out.flush();
+          state = FollowerState.STREAMING;
+        }
+        Thread acks = new Thread(() -> readAcks(in), "replication-acks-" + address);
+        acks.setDaemon(true);
+        acks.start();
+        stream(out, next);
+      } catch (IOException e) {
+        // the follower went away, it reconnects if it still wants the stream
+      } finally {
+        close();
+        followers.remove(this);
+      }
+    }
+
+    private void stream(DataOutputStream out, long next) throws IOException {
+      while (running) {
+        if (next < 0) {
+          next = fullSync(out);
+        }
+        Record record = published(next);
+        if (record == null) {
+          awaitRecord(next);
+          record = published(next);
+        }
+        if (record == null && behind(next)) {
+          // fell behind the backlog, or the contents were loaded from a snapshot
+          next = -1;
+          continue;
+        }
+        if (record == null) {
+          out.writeByte(PING);
+          out.writeLong(lastSeq());
+        }
+        for (int n = 0; record != null && n < RECORDS_PER_WRITE; n++) {
+          out.writeByte(RECORD);
+          out.writeLong(record.seq);
+          out.writeInt(record.payload.length);
+          out.write(record.payload);
+          next = record.seq + 1;
+          record = published(next);
+        }
+        out.flush();
+      }
+    }
+
+    /**
+     * Sends a copy of the contents, the stream continues with the first record after it. The
+     * copy goes out in chunks as the shards hand out pages of their keys, so it never has to fit
+     * in memory at once; an empty chunk ends it.
+     */
+    private long fullSync(DataOutputStream out) throws IOException {
+      state = FollowerState.SYNCING;
+      long from = nextSeq.get();
+      out.writeByte(FULL_SYNC);
+      out.writeLong(runId);
+      out.writeLong(from);
+      List<Map.Entry<String, Set<String>>> chunk = new ArrayList<>(KEYS_PER_CHUNK);
+      for (Map.Entry<String, Set<String>> entry : dict.getMap().entrySet()) {
+        chunk.add(entry);
+        if (chunk.size() == KEYS_PER_CHUNK) {
+          writeChunk(out, chunk);
+          chunk.clear();
+        }
+      }
+      if (!chunk.isEmpty()) {
+        writeChunk(out, chunk);
+      }
+      out.writeInt(0);
+      out.flush();
+      state = FollowerState.STREAMING;
+      return from;
+    }
+
+    private void writeChunk(DataOutputStream out, List<Map.Entry<String, Set<String>>> chunk)
+        throws IOException {
+      out.writeInt(chunk.size());
+      for (Map.Entry<String, Set<String>> entry : chunk) {
+        WriteAheadLog.writeString(out, entry.getKey());
+        out.writeInt(entry.getValue().size());
+        for (String member : entry.getValue()) {
+          WriteAheadLog.writeString(out, member);
+        }
+      }
+    }
+
+    private void readAcks(DataInputStream in) {
+      try {
+        while (true) {
+          try {
+            ackedSeq = in.readLong();
+          } catch (SocketTimeoutException e) {
+            // a follower busy with a large copy does not acknowledge anything meanwhile
+            if (state != FollowerState.SYNCING) {
+              throw e;
+            }
+          }
+        }
+      } catch (IOException e) {
+        // gone or silent for too long, the sender fails on its next write
+        close();
+      }
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package multivaluedictionaryapp;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keys of every member, kept up to date as a MutationListener so KEYSFOR costs the size of its
+ * answer instead of a scan of the dictionary. Most members belong to a few keys, so each key set
+ * is a CompactMemberSet.
+ *
+ * <p>The index is a ConcurrentHashMap updated per member, which is enough for the listener calls
+ * of ConcurrentMultiValueDictionary: changes of different keys to the same member are serialized
+ * on that member.
+ */
+public class ReverseIndex implements MutationListener {
+
+  // rough per-entry sizes with compressed oops: map node and table slot, set object and array
+  private static final int ENTRY_BYTES = 80;
+  private static final int PACKED_KEY_BYTES = 4;
+  private static final int HASHED_KEY_BYTES = 40;
+
+  private final MultiValueDictionary dict;
+  private final ConcurrentMap<String, Set<String>> keysByMember = new ConcurrentHashMap<>();
+
+  private ReverseIndex(MultiValueDictionary dict) {
+    this.dict = dict;
+  }
+
+  /**
+   * Indexes the current contents of the dictionary and keeps the index in sync from then on. Like
+   * a write-ahead log it must be attached while nobody else mutates the dictionary.
+   */
+  static ReverseIndex attach(MultiValueDictionary dict) {
+    ReverseIndex index = new ReverseIndex(dict);
+    dict.forEachItem(index::onAdd);
+    dict.addMutationListener(index);
+    return index;
+  }
+
+  void detach() {
+    dict.removeMutationListener(this);
+    keysByMember.clear();
+  }
+
+  // Keys holding the member, empty when there are none
+  public Set<String> keysFor(String member) {
+    Set<String> copy = new HashSet<>();
+    keysByMember.computeIfPresent(
+        member,
+        (m, keys) -> {
+          // copied under the member's lock, a concurrent change cannot tear it
+          copy.addAll(keys);
+          return keys;
+        });
+    return Collections.unmodifiableSet(copy);
+  }
+
+  // Number of distinct members indexed
+  public int size() {
+    return keysByMember.size();
+  }
+
+  // Rough heap taken by the index, on top of the member and key strings the dictionary holds
+  public long estimatedBytes() {
+    long bytes = 0;
+    for (Set<String> keys : keysByMember.values()) {
+      int count = keys.size();
+      bytes +=
+          ENTRY_BYTES
+              + (long) count
+                  * (count <= CompactMemberSet.DEFAULT_THRESHOLD
+                      ? PACKED_KEY_BYTES
+                      : HASHED_KEY_BYTES);
+    }
+    return bytes;
+  }
+
+  @Override
+  public void onAdd(String key, String member) {
+    keysByMember.compute(
+        member,
+        (m, keys) -> {
+          if (keys == null) {
+            keys = new CompactMemberSet(CompactMemberSet.DEFAULT_THRESHOLD);
+          }
+          keys.add(key);
+          return keys;
+        });
+  }
+
+  @Override
+  public void onRemove(String key, String member) {
+    keysByMember.computeIfPresent(
+        member,
+        (m, keys) -> {
+          keys.remove(key);
+          return keys.isEmpty() ? null : keys;
+        });
+  }
+
+  @Override
+  public void onRemoveAll(String key, Set<String> members) {
+    for (String member : members) {
+      onRemove(key, member);
+    }
+  }
+
+  @Override
+  public void onClear() {
+    keysByMember.clear();
+  }
+
+  // The new contents come from the snapshot, so the index is built again
+  @Override
+  public void onLoad(Path snapshot) {
+    keysByMember.clear();
+    dict.forEachItem(this::onAdd);
+  }
+}
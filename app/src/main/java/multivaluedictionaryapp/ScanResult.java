@@ -0,0 +1,70 @@
+package multivaluedictionaryapp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * One batch of a SCAN or ISCAN and the cursor to pass to the next call, {@link #DONE} once the
+ * scan is complete. The cursor names the last key (and member) returned, so a scan resumes in
+ * key order however the map has been resized meanwhile: a key present for the whole scan is
+ * returned exactly once, one added or removed during it may or may not be.
+ */
+public final class ScanResult<T> {
+
+  public static final String DONE = "0";
+  static final String INVALID_CURSOR_ERROR = "Error, invalid cursor.";
+
+  private final List<T> items;
+  private final String cursor;
+
+  ScanResult(List<T> items, String cursor) {
+    this.items = items;
+    this.cursor = cursor;
+  }
+
+  public List<T> items() {
+    return items;
+  }
+
+  public String cursor() {
+    return cursor;
+  }
+
+  // [key length, negative without a member][key][member], URL-safe base64 so it is one token
+  static String encode(String key, String member) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    byte[] memberBytes = member == null ? new byte[0] : member.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocate(4 + keyBytes.length + memberBytes.length);
+    buffer.putInt(member == null ? -keyBytes.length - 1 : keyBytes.length);
+    buffer.put(keyBytes).put(memberBytes);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+  }
+
+  // {key, member}, the member is null when the cursor sits after a whole key
+  static String[] decode(String cursor) {
+    byte[] bytes;
+    try {
+      bytes = Base64.getUrlDecoder().decode(cursor);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(INVALID_CURSOR_ERROR, e);
+    }
+    if (bytes.length < 4) {
+      throw new IllegalArgumentException(INVALID_CURSOR_ERROR);
+    }
+    int keyLength = ByteBuffer.wrap(bytes).getInt();
+    boolean wholeKey = keyLength < 0;
+    if (wholeKey) {
+      keyLength = -keyLength - 1;
+    }
+    int memberLength = bytes.length - 4 - keyLength;
+    if (memberLength < 0 || (wholeKey && memberLength > 0)) {
+      throw new IllegalArgumentException(INVALID_CURSOR_ERROR);
+    }
+    String key = new String(bytes, 4, keyLength, StandardCharsets.UTF_8);
+    String member =
+        wholeKey ? null : new String(bytes, 4 + keyLength, memberLength, StandardCharsets.UTF_8);
+    return new String[] {key, member};
+  }
+}
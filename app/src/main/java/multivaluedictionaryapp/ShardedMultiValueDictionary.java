@@ -0,0 +1,987 @@
+package multivaluedictionaryapp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Thread-safe MultiValueDictionary split by key hash into shards, each a plain MultiValueDictionary
+ * owned by one thread that runs the operations of its bounded queue in order. Only that thread
+ * ever touches the shard, so it needs no locks and its keys stay in one core's cache, while
+ * different shards work in parallel. A call on one key is handed to its shard and waits for the
+ * reply; KEYS, ALLMEMBERS, CLEAR and the other calls on the whole dictionary go to every shard at
+ * once and merge the replies. Those are copies, each consistent for its shard but not across
+ * shards. forEachItem(), forEachMember() and SAVE copy nothing: they visit one shard at a time on
+ * its thread, which runs nothing else meanwhile. getMap() is a live view.
+ *
+ * <p>Mutation listeners are called on the shard threads: the changes of one key in order, those
+ * of different shards concurrently, as with ConcurrentMultiValueDictionary. They hear of a CLEAR
+ * or LOAD before any change made after it. They must not call back into the dictionary. Indexes,
+ * the memory budget and TTLs are kept by every shard for its own keys. close() stops the threads.
+ */
+public class ShardedMultiValueDictionary extends MultiValueDictionary implements Closeable {
+
+  // a full queue holds its callers back instead of growing
+  static final int QUEUE_CAPACITY = 1024;
+  // operations a shard takes off its queue at once
+  private static final int BATCH_SIZE = 64;
+  // keys a getMap() iterator or equals() takes from a shard at once
+  private static final int PAGE_SIZE = 1024;
+  // a reply or the next operation often comes within microseconds, sooner than a park and wakeup;
+  // on a single core spinning only keeps the other side from running
+  private static final int SPINS_BEFORE_PARK =
+      Runtime.getRuntime().availableProcessors() > 1 ? 1 << 10 : 0;
+
+  private final Shard[] shards;
+
+  public ShardedMultiValueDictionary(int shards) {
+    this(shards, StorageMode.HASH);
+  }
+
+  public ShardedMultiValueDictionary(int shards, StorageMode storageMode) {
+    super(Collections.emptyMap());
+    if (shards < 1) {
+      throw new IllegalArgumentException("shards must be positive");
+    }
+    this.shards = new Shard[shards];
+    for (int i = 0; i < shards; i++) {
+      this.shards[i] = new Shard(i, new MultiValueDictionary(storageMode));
+    }
+    for (Shard shard : this.shards) {
+      shard.thread.start();
+    }
+  }
+
+  public int shardCount() {
+    return shards.length;
+  }
+
+  // Stops the shard threads once they have run what is queued; later calls throw
+  @Override
+  public void close() {
+    for (Shard shard : shards) {
+      shard.stop();
+    }
+    boolean interrupted = false;
+    for (Shard shard : shards) {
+      while (shard.thread.isAlive()) {
+        try {
+          shard.thread.join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Same items, looked up in the other dictionary a page at a time instead of copying either
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof ShardedMultiValueDictionary)) {
+      return false;
+    }
+    ShardedMultiValueDictionary that = (ShardedMultiValueDictionary) o;
+    if (getKeyCount() != that.getKeyCount()
+        || getMemoryStats().itemCount() != that.getMemoryStats().itemCount()) {
+      return false;
+    }
+    // with as many items on both sides, finding all of ours there is enough
+    List<String> keys = new ArrayList<>(PAGE_SIZE);
+    List<String> members = new ArrayList<>(PAGE_SIZE);
+    boolean[] found = {true};
+    Runnable lookUp =
+        () -> {
+          if (found[0] && that.findMemberPairs(keys, members).cardinality() != keys.size()) {
+            found[0] = false;
+          }
+          keys.clear();
+          members.clear();
+        };
+    forEachItem(
+        (key, member) -> {
+          keys.add(key);
+          members.add(member);
+          if (keys.size() == PAGE_SIZE) {
+            lookUp.run();
+          }
+        });
+    lookUp.run();
+    return found[0];
+  }
+
+  // Map.hashCode() of the contents, the shards add up their parts
+  @Override
+  public int hashCode() {
+    int hash = 0;
+    for (int part : callAll(ShardedMultiValueDictionary::contentHash)) {
+      hash += part;
+    }
+    return hash;
+  }
+
+  private static int contentHash(MultiValueDictionary dict) {
+    dict.expireDue();
+    int hash = 0;
+    for (Map.Entry<String, Set<String>> entry : dict.getMap().entrySet()) {
+      int members = 0;
+      for (String member : entry.getValue()) {
+        members += member.hashCode();
+      }
+      hash += entry.getKey().hashCode() ^ members;
+    }
+    return hash;
+  }
+
+  private Shard shardFor(String key) {
+    int hash = key.hashCode();
+    // the low bits of String hashes of similar keys are poorly spread
+    return shards[Math.floorMod(hash ^ (hash >>> 16), shards.length)];
+  }
+
+  // Runs the operation on the shard of the key and waits for it
+  private <T> T call(String key, Function<MultiValueDictionary, T> operation) {
+    return shardFor(key).submit(operation).await();
+  }
+
+  // Runs the operation on every shard at once and waits for them all
+  private <T> List<T> callAll(Function<MultiValueDictionary, T> operation) {
+    List<Task<T>> tasks = new ArrayList<>(shards.length);
+    for (Shard shard : shards) {
+      tasks.add(shard.submit(operation));
+    }
+    List<T> results = new ArrayList<>(shards.length);
+    for (Task<T> task : tasks) {
+      results.add(task.await());
+    }
+    return results;
+  }
+
+  private void runAll(Consumer<MultiValueDictionary> operation) {
+    callAll(
+        dict -> {
+          operation.accept(dict);
+          return null;
+        });
+  }
+
+  /**
+   * Runs the operation on every shard, then tells the listeners once. Every shard holds off its
+   * later operations until they have been told, so a change made after the operation never
+   * reaches a listener (or the log) ahead of the CLEAR or LOAD it follows.
+   */
+  private void runAllThenNotify(
+      Consumer<Shard> operation, Consumer<MutationListener> notification) {
+    CountDownLatch ran = new CountDownLatch(shards.length);
+    CountDownLatch notified = new CountDownLatch(1);
+    List<Task<Void>> tasks = new ArrayList<>(shards.length);
+    try {
+      for (Shard shard : shards) {
+        tasks.add(
+            shard.submit(
+                dict -> {
+                  try {
+                    operation.accept(shard);
+                  } finally {
+                    ran.countDown();
+                  }
+                  awaitUninterruptibly(notified);
+                  return null;
+                }));
+      }
+      awaitRan(ran, tasks);
+      for (MutationListener listener : getMutationListeners()) {
+        notification.accept(listener);
+      }
+      syncMutationListeners();
+    } finally {
+      notified.countDown();
+    }
+    for (Task<Void> task : tasks) {
+      task.await();
+    }
+  }
+
+  // Waits until every task has run its operation; one failed without running, e.g. because the
+  // dictionary was closed, is thrown instead
+  private static void awaitRan(CountDownLatch ran, List<Task<Void>> tasks) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          if (ran.await(1, TimeUnit.MILLISECONDS)) {
+            return;
+          }
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+        for (Task<Void> task : tasks) {
+          if (task.done) {
+            task.await();
+          }
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        latch.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void setReverseIndexEnabled(boolean enabled) {
+    runAll(dict -> dict.setReverseIndexEnabled(enabled));
+  }
+
+  @Override
+  public void setKeyIndexEnabled(boolean enabled) {
+    runAll(dict -> dict.setKeyIndexEnabled(enabled));
+  }
+
+  // Every shard gets an equal part of maxBytes
+  @Override
+  public void setMemoryBudget(long maxBytes, MemoryBudget.EvictionPolicy policy) {
+    long share = maxBytes <= 0 ? 0 : Math.max(1, maxBytes / shards.length);
+    runAll(dict -> dict.setMemoryBudget(share, policy));
+  }
+
+  // Budgets of all shards added up, null when there is none
+  @Override
+  public MemoryBudget getMemoryBudget() {
+    List<MemoryBudget> budgets = new ArrayList<>(shards.length);
+    for (Shard shard : shards) {
+      // the counters are thread-safe, no need to ask the shard thread
+      MemoryBudget budget = shard.dict.getMemoryBudget();
+      if (budget == null) {
+        return null;
+      }
+      budgets.add(budget);
+    }
+    return MemoryBudget.sum(budgets);
+  }
+
+  // Counts of all shards added up
+  @Override
+  public MemoryStats getMemoryStats() {
+    MemoryStats merged = new MemoryStats();
+    for (Shard shard : shards) {
+      // the counters are thread-safe, no need to ask the shard thread
+      merged.merge(shard.dict.getMemoryStats());
+    }
+    return merged;
+  }
+
+  @Override
+  public long getKeyCount() {
+    long keys = 0;
+    for (long count : callAll(MultiValueDictionary::getKeyCount)) {
+      keys += count;
+    }
+    return keys;
+  }
+
+  @Override
+  public long getMemoryUsage(String key) {
+    return call(key, dict -> dict.getMemoryUsage(key));
+  }
+
+  @VisibleForTesting
+  @Override
+  void setExpiryClock(LongSupplier clock) {
+    runAll(dict -> dict.setExpiryClock(clock));
+  }
+
+  @Override
+  public void expireDue() {
+    runAll(MultiValueDictionary::expireDue);
+  }
+
+  @Override
+  public Outcome expire(String key, long millis) {
+    return call(key, dict -> dict.expire(key, millis));
+  }
+
+  @Override
+  public Outcome expireMember(String key, String member, long millis) {
+    return call(key, dict -> dict.expireMember(key, member, millis));
+  }
+
+  @Override
+  public long getTtl(String key) {
+    return call(key, dict -> dict.getTtl(key));
+  }
+
+  @Override
+  public long getTtl(String key, String member) {
+    return call(key, dict -> dict.getTtl(key, member));
+  }
+
+  @Override
+  public boolean persist(String key) {
+    return call(key, dict -> dict.persist(key));
+  }
+
+  @Override
+  public boolean persist(String key, String member) {
+    return call(key, dict -> dict.persist(key, member));
+  }
+
+  // Live, weakly consistent view of the contents, see ShardedView
+  @Override
+  public Map<String, Set<String>> getMap() {
+    return new ShardedView();
+  }
+
+  // Every key with a copy of its members, each shard as of one point in time
+  public Map<String, Set<String>> snapshot() {
+    Map<String, Set<String>> result = new HashMap<>();
+    for (Map<String, Set<String>> part : callAll(ShardedMultiValueDictionary::copy)) {
+      result.putAll(part);
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  private static Map<String, Set<String>> copy(MultiValueDictionary dict) {
+    dict.expireDue();
+    Map<String, Set<String>> copy = new HashMap<>();
+    for (Map.Entry<String, Set<String>> entry : dict.getMap().entrySet()) {
+      copy.put(entry.getKey(), new HashSet<>(entry.getValue()));
+    }
+    return copy;
+  }
+
+  @Override
+  public Outcome tryAdd(String key, String value) {
+    return call(key, dict -> dict.tryAdd(key, value));
+  }
+
+  @Override
+  public BitSet tryAddMembers(String key, List<String> members) {
+    return call(key, dict -> dict.tryAddMembers(key, members));
+  }
+
+  @Override
+  public Set<String> getKeys() {
+    Set<String> keys = new HashSet<>();
+    for (List<String> part : callAll(dict -> new ArrayList<>(dict.getKeys()))) {
+      keys.addAll(part);
+    }
+    return keys;
+  }
+
+  // Each shard finds its first limit keys in the range, from its key index when that is on
+  @Override
+  public List<String> getKeyRange(String from, String to, int limit) {
+    return first(callAll(dict -> dict.getKeyRange(from, to, limit)), null, limit);
+  }
+
+  @Override
+  public List<String> getKeysWithPrefix(String prefix, int limit) {
+    return first(callAll(dict -> dict.getKeysWithPrefix(prefix, limit)), null, limit);
+  }
+
+  // Every shard resumes after the same cursor; the first count of their batches are the next
+  @Override
+  public ScanResult<String> scanKeys(String cursor, int count) {
+    List<ScanResult<String>> batches = callAll(dict -> dict.scanKeys(cursor, count));
+    List<List<String>> parts = new ArrayList<>(shards.length);
+    for (ScanResult<String> batch : batches) {
+      parts.add(batch.items());
+    }
+    List<String> keys = first(parts, null, count + 1);
+    if (keys.size() <= count && allDone(batches)) {
+      return new ScanResult<>(keys, ScanResult.DONE);
+    }
+    keys = keys.subList(0, Math.min(keys.size(), count));
+    return new ScanResult<>(keys, ScanResult.encode(keys.get(keys.size() - 1), null));
+  }
+
+  // Same for the (key, member) pairs; the pairs of a key all come from its shard
+  @Override
+  public ScanResult<Map.Entry<String, String>> scanItems(String cursor, int count) {
+    List<ScanResult<Map.Entry<String, String>>> batches =
+        callAll(dict -> dict.scanItems(cursor, count));
+    List<List<Map.Entry<String, String>>> parts = new ArrayList<>(shards.length);
+    for (ScanResult<Map.Entry<String, String>> batch : batches) {
+      parts.add(batch.items());
+    }
+    Comparator<Map.Entry<String, String>> order =
+        Map.Entry.<String, String>comparingByKey().thenComparing(Map.Entry.comparingByValue());
+    List<Map.Entry<String, String>> items = first(parts, order, count + 1);
+    if (items.size() <= count && allDone(batches)) {
+      return new ScanResult<>(items, ScanResult.DONE);
+    }
+    items = items.subList(0, Math.min(items.size(), count));
+    Map.Entry<String, String> last = items.get(items.size() - 1);
+    return new ScanResult<>(items, ScanResult.encode(last.getKey(), last.getValue()));
+  }
+
+  // The limit smallest of the shards' sorted parts, in order (null for natural order)
+  private static <T> List<T> first(List<List<T>> parts, Comparator<? super T> order, int limit) {
+    List<T> merged = new ArrayList<>();
+    for (List<T> part : parts) {
+      merged.addAll(part);
+    }
+    merged.sort(order);
+    return merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+  }
+
+  private static boolean allDone(List<? extends ScanResult<?>> batches) {
+    for (ScanResult<?> batch : batches) {
+      if (!batch.cursor().equals(ScanResult.DONE)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // A copy of the members, the shard may change them as soon as the call returns
+  @Override
+  public Set<String> findMembers(String key) {
+    return call(
+        key,
+        dict -> {
+          Set<String> members = dict.findMembers(key);
+          return members == null ? null : new HashSet<>(members);
+        });
+  }
+
+  @Override
+  public Outcome tryRemoveMember(String key, String value) {
+    return call(key, dict -> dict.tryRemoveMember(key, value));
+  }
+
+  @Override
+  public BitSet tryRemoveMembers(String key, List<String> members) {
+    return call(key, dict -> dict.tryRemoveMembers(key, members));
+  }
+
+  @Override
+  public Outcome tryRemoveAll(String key) {
+    return call(key, dict -> dict.tryRemoveAll(key));
+  }
+
+  // Clears every shard, the listeners hear of one CLEAR before any change made after it
+  @Override
+  public void clearMap() {
+    runAllThenNotify(shard -> shard.dict.clearMap(), MutationListener::onClear);
+  }
+
+  @Override
+  public boolean isKeyExists(String key) {
+    return call(key, dict -> dict.isKeyExists(key));
+  }
+
+  @Override
+  public Outcome findMember(String key, String value) {
+    return call(key, dict -> dict.findMember(key, value));
+  }
+
+  // Every shard looks up the pairs of its keys, all shards at once
+  @Override
+  public BitSet findMemberPairs(List<String> keys, List<String> members) {
+    if (keys.size() != members.size()) {
+      throw new IllegalArgumentException("keys and members differ in length");
+    }
+    List<List<Integer>> positions = new ArrayList<>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      positions.add(new ArrayList<>());
+    }
+    for (int i = 0; i < keys.size(); i++) {
+      positions.get(shardFor(keys.get(i)).index).add(i);
+    }
+    List<Task<BitSet>> tasks = new ArrayList<>(shards.length);
+    for (Shard shard : shards) {
+      List<Integer> mine = positions.get(shard.index);
+      if (!mine.isEmpty()) {
+        tasks.add(
+            shard.submit(
+                dict -> {
+                  BitSet found = new BitSet(keys.size());
+                  for (int i : mine) {
+                    if (dict.findMember(keys.get(i), members.get(i)) == Outcome.OK) {
+                      found.set(i);
+                    }
+                  }
+                  return found;
+                }));
+      }
+    }
+    BitSet found = new BitSet(keys.size());
+    for (Task<BitSet> task : tasks) {
+      found.or(task.await());
+    }
+    return found;
+  }
+
+  @Override
+  public Set<String> getKeysFor(String member) {
+    Set<String> keys = new HashSet<>();
+    for (Set<String> part : callAll(dict -> new HashSet<>(dict.getKeysFor(member)))) {
+      keys.addAll(part);
+    }
+    return keys;
+  }
+
+  @Override
+  public List<Set<String>> getAllMembers() {
+    List<Set<String>> members = new ArrayList<>();
+    for (List<Set<String>> part : callAll(ShardedMultiValueDictionary::copyMembers)) {
+      members.addAll(part);
+    }
+    return members;
+  }
+
+  private static List<Set<String>> copyMembers(MultiValueDictionary dict) {
+    List<Set<String>> copies = new ArrayList<>();
+    for (Set<String> members : dict.getAllMembers()) {
+      copies.add(new HashSet<>(members));
+    }
+    return copies;
+  }
+
+  @Override
+  public List<String> getItems() {
+    List<String> items = new ArrayList<>();
+    for (List<String> part : callAll(MultiValueDictionary::getItems)) {
+      items.addAll(part);
+    }
+    return items;
+  }
+
+  /**
+   * Visits on the shard threads, one shard at a time, so every shard is visited as of one point
+   * in time and nothing is copied. The shard runs nothing else until its part is done; a call the
+   * visitor makes on a key of the same shard runs right away, and must not change it.
+   */
+  @Override
+  public void forEachItem(BiConsumer<String, String> visitor) {
+    runEach(dict -> dict.forEachItem(visitor));
+  }
+
+  @Override
+  public void forEachMember(Consumer<String> visitor) {
+    runEach(dict -> dict.forEachMember(visitor));
+  }
+
+  // Every key with the shard's own set of its members, visited like forEachItem()
+  void forEachEntry(BiConsumer<String, Set<String>> visitor) {
+    runEach(
+        dict -> {
+          dict.expireDue();
+          dict.getMap().forEach(visitor);
+        });
+  }
+
+  // Runs the operation on one shard after the other
+  private void runEach(Consumer<MultiValueDictionary> operation) {
+    for (Shard shard : shards) {
+      shard
+          .submit(
+              dict -> {
+                operation.accept(dict);
+                return null;
+              })
+          .await();
+    }
+  }
+
+  // The snapshot is written from the view's forEach(), straight from the shards
+  @Override
+  public void save(Path file) throws IOException {
+    save(ShardedView::new, file);
+  }
+
+  // Reads the snapshot once and hands every shard its keys
+  @Override
+  public void load(Path file) throws IOException {
+    MultiValueDictionary snapshot = new MultiValueDictionary();
+    snapshot.load(file);
+    List<Map<String, List<String>>> parts = new ArrayList<>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      parts.add(new HashMap<>());
+    }
+    try {
+      for (Map.Entry<String, Set<String>> entry : snapshot.getMap().entrySet()) {
+        String key = entry.getKey();
+        parts.get(shardFor(key).index).put(key, new ArrayList<>(entry.getValue()));
+      }
+    } catch (IndexOutOfBoundsException | NegativeArraySizeException e) {
+      // a record the header did not give away, found before any shard changed
+      throw new IOException("Corrupt dictionary snapshot", e);
+    }
+    runAllThenNotify(
+        shard -> shard.dict.load(parts.get(shard.index), file),
+        listener -> listener.onLoad(file));
+  }
+
+  /**
+   * Backs getMap(). Lookups go to the shard of the key and return copies; iteration takes the
+   * keys of one shard and then their members a page at a time, so keys added meanwhile may be
+   * missed and removed ones are skipped. forEach() is forEachEntry(), with the shards' own sets.
+   */
+  private final class ShardedView extends AbstractMap<String, Set<String>> {
+
+    @Override
+    public Set<String> get(Object key) {
+      return key instanceof String ? findMembers((String) key) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return key instanceof String && isKeyExists((String) key);
+    }
+
+    @Override
+    public int size() {
+      return (int) getKeyCount();
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return size() == 0;
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super Set<String>> action) {
+      forEachEntry(action::accept);
+    }
+
+    @Override
+    public Set<Map.Entry<String, Set<String>>> entrySet() {
+      return new AbstractSet<Map.Entry<String, Set<String>>>() {
+        @Override
+        public Iterator<Map.Entry<String, Set<String>>> iterator() {
+          return new PagedIterator();
+        }
+
+        @Override
+        public int size() {
+          return ShardedView.this.size();
+        }
+      };
+    }
+  }
+
+  private final class PagedIterator implements Iterator<Map.Entry<String, Set<String>>> {
+    private int shard = -1;
+    // keys of the current shard as of when it was reached, and the first one not paged in
+    private String[] keys = new String[0];
+    private int nextKey;
+    private Iterator<Map.Entry<String, Set<String>>> page = Collections.emptyIterator();
+
+    @Override
+    public boolean hasNext() {
+      while (!page.hasNext()) {
+        if (nextKey == keys.length) {
+          if (++shard == shards.length) {
+            return false;
+          }
+          keys =
+              shards[shard]
+                  .submit(
+                      dict -> {
+                        dict.expireDue();
+                        return dict.getMap().keySet().toArray(new String[0]);
+                      })
+                  .await();
+          nextKey = 0;
+        } else {
+          page = nextPage();
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public Map.Entry<String, Set<String>> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return page.next();
+    }
+
+    // Copies of the members of the next PAGE_SIZE keys that are still there
+    private Iterator<Map.Entry<String, Set<String>>> nextPage() {
+      String[] paged = keys;
+      int from = nextKey;
+      int to = Math.min(from + PAGE_SIZE, paged.length);
+      nextKey = to;
+      List<Map.Entry<String, Set<String>>> entries =
+          shards[shard]
+              .submit(
+                  dict -> {
+                    List<Map.Entry<String, Set<String>>> copies = new ArrayList<>(to - from);
+                    for (int i = from; i < to; i++) {
+                      Set<String> members = dict.getMap().get(paged[i]);
+                      if (members != null) {
+                        copies.add(
+                            new AbstractMap.SimpleImmutableEntry<>(
+                                paged[i], new HashSet<>(members)));
+                      }
+                    }
+                    return copies;
+                  })
+              .await();
+      return entries.iterator();
+    }
+  }
+
+  // One operation and its reply, handed from the caller to a shard thread and back
+  private static final class Task<T> {
+    private final Function<MultiValueDictionary, T> operation;
+    private T result;
+    private Throwable failure;
+    // written after result and failure, so reading it true makes them visible
+    private volatile boolean done;
+    // the caller once it has stopped spinning and parks
+    private volatile Thread waiter;
+
+    Task(Function<MultiValueDictionary, T> operation) {
+      this.operation = operation;
+    }
+
+    void run(MultiValueDictionary dict) {
+      try {
+        result = operation.apply(dict);
+      } catch (RuntimeException | Error e) {
+        failure = e;
+      }
+      complete();
+    }
+
+    void fail(Throwable e) {
+      failure = e;
+      complete();
+    }
+
+    private void complete() {
+      done = true;
+      Thread parked = waiter;
+      if (parked != null) {
+        LockSupport.unpark(parked);
+      }
+    }
+
+    // The reply, or what the operation threw
+    T await() {
+      boolean interrupted = false;
+      for (int spins = 0; !done; spins++) {
+        if (spins < SPINS_BEFORE_PARK) {
+          Thread.onSpinWait();
+        } else {
+          waiter = Thread.currentThread();
+          // done is checked again after waiter is set, so the unpark cannot be missed
+          if (!done) {
+            LockSupport.park(this);
+            interrupted |= Thread.interrupted();
+          }
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      }
+      if (failure instanceof Error) {
+        throw (Error) failure;
+      }
+      return result;
+    }
+  }
+
+  private static final Task<Void> STOP = new Task<>(dict -> null);
+
+  private final class Shard implements Runnable {
+    final int index;
+    final MultiValueDictionary dict;
+    final BlockingQueue<Task<?>> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    final Thread thread;
+    private final List<Task<?>> batch = new ArrayList<>(BATCH_SIZE);
+    private volatile boolean stopped;
+
+    Shard(int index, MultiValueDictionary dict) {
+      this.index = index;
+      this.dict = dict;
+      this.thread = new Thread(this, "shard-" + index);
+      thread.setDaemon(true);
+      dict.addMutationListener(new Forwarder());
+    }
+
+    <T> Task<T> submit(Function<MultiValueDictionary, T> operation) {
+      if (stopped) {
+        throw new IllegalStateException("The dictionary is closed");
+      }
+      Task<T> task = new Task<>(operation);
+      if (Thread.currentThread() == thread) {
+        // called back from an operation of this shard, queueing it would wait forever
+        task.run(dict);
+        return task;
+      }
+      enqueue(task);
+      // the thread may have stopped while the task went in, then nobody else will fail it
+      if (stopped) {
+        failQueued();
+      }
+      return task;
+    }
+
+    void stop() {
+      if (!stopped) {
+        enqueue(STOP);
+      }
+    }
+
+    private void enqueue(Task<?> task) {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          queue.put(task);
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          if (queue.drainTo(batch, BATCH_SIZE) == 0) {
+            batch.add(take());
+          }
+          for (int i = 0; i < batch.size(); i++) {
+            Task<?> task = batch.get(i);
+            batch.set(i, null);
+            if (task == STOP) {
+              return;
+            }
+            task.run(dict);
+          }
+          batch.clear();
+        }
+      } finally {
+        stopped = true;
+        for (Task<?> task : batch) {
+          if (task != null && task != STOP) {
+            task.fail(new IllegalStateException("The dictionary is closed"));
+          }
+        }
+        batch.clear();
+        failQueued();
+      }
+    }
+
+    // The next task, after spinning a while for one before blocking
+    private Task<?> take() {
+      for (int spins = 0; spins < SPINS_BEFORE_PARK && queue.isEmpty(); spins++) {
+        Thread.onSpinWait();
+      }
+      while (true) {
+        try {
+          return queue.take();
+        } catch (InterruptedException e) {
+          // only close() stops the shard
+        }
+      }
+    }
+
+    private void failQueued() {
+      Task<?> task;
+      while ((task = queue.poll()) != null) {
+        if (task != STOP) {
+          task.fail(new IllegalStateException("The dictionary is closed"));
+        }
+      }
+    }
+
+    // Passes the changes of the shard on to the listeners of the whole dictionary
+    private final class Forwarder implements MutationListener {
+      @Override
+      public void onAdd(String key, String member) {
+        for (MutationListener listener : getMutationListeners()) {
+          listener.onAdd(key, member);
+        }
+      }
+
+      @Override
+      public void onRemove(String key, String member) {
+        for (MutationListener listener : getMutationListeners()) {
+          listener.onRemove(key, member);
+        }
+      }
+
+      @Override
+      public void onKeyRemoved(String key) {
+        for (MutationListener listener : getMutationListeners()) {
+          listener.onKeyRemoved(key);
+        }
+      }
+
+      @Override
+      public void onRemoveAll(String key, Set<String> members) {
+        for (MutationListener listener : getMutationListeners()) {
+          listener.onRemoveAll(key, members);
+        }
+      }
+
+      // CLEAR, SAVE and LOAD are reported once by the whole dictionary
+      @Override
+      public void onClear() {}
+
+      @Override
+      public void sync() {
+        syncMutationListeners();
+      }
+    }
+  }
+}
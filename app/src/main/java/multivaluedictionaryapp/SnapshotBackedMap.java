@@ -0,0 +1,224 @@
+package multivaluedictionaryapp;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Backing map of a dictionary after LOAD. Reads go straight to the mapped SnapshotFile; a key is
+ * copied into the overlay map (of the dictionary's storage mode) the first time one of its
+ * members is added or removed, and from then on the snapshot record of that key is ignored.
+ */
+final class SnapshotBackedMap extends AbstractMap<String, Set<String>> {
+
+  private final Map<String, Set<String>> overlay;
+  private final Function<String, Set<String>> memberSets;
+  // snapshot keys that were copied into the overlay or removed
+  private final Set<String> shadowed = new HashSet<>();
+  private SnapshotFile snapshot;
+  private int size;
+
+  SnapshotBackedMap(
+      SnapshotFile snapshot,
+      Map<String, Set<String>> overlay,
+      Function<String, Set<String>> memberSets) {
+    this.snapshot = snapshot;
+    this.overlay = overlay;
+    this.memberSets = memberSets;
+    this.size = snapshot.keyCount();
+  }
+
+  @Override
+  public Set<String> get(Object key) {
+    Set<String> members = overlay.get(key);
+    if (members != null) {
+      return members;
+    }
+    long record = snapshotRecord(key);
+    return record < 0 ? null : new SnapshotMembers((String) key, record);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return overlay.containsKey(key) || snapshotRecord(key) >= 0;
+  }
+
+  @Override
+  public Set<String> computeIfAbsent(
+      String key, Function<? super String, ? extends Set<String>> mappingFunction) {
+    Set<String> members = get(key);
+    if (members != null) {
+      return members;
+    }
+    members = overlay.computeIfAbsent(key, mappingFunction);
+    if (members != null) {
+      size++;
+    }
+    return members;
+  }
+
+  @Override
+  public Set<String> put(String key, Set<String> value) {
+    Set<String> previous = remove(key);
+    overlay.put(key, value);
+    size++;
+    return previous;
+  }
+
+  @Override
+  public Set<String> remove(Object key) {
+    Set<String> removed = overlay.remove(key);
+    if (removed == null) {
+      long record = snapshotRecord(key);
+      if (record < 0) {
+        return null;
+      }
+      removed = new HashSet<>(snapshot.members(record));
+      shadowed.add((String) key);
+    }
+    size--;
+    return removed;
+  }
+
+  // Drops the snapshot as well, its mapping goes away once it is collected
+  @Override
+  public void clear() {
+    overlay.clear();
+    shadowed.clear();
+    snapshot = null;
+    size = 0;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Set<Map.Entry<String, Set<String>>> entrySet() {
+    return new AbstractSet<Map.Entry<String, Set<String>>>() {
+      @Override
+      public Iterator<Map.Entry<String, Set<String>>> iterator() {
+        return new EntryIterator();
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  // Record of a key that is still served from the snapshot, or -1
+  private long snapshotRecord(Object key) {
+    if (snapshot == null || !(key instanceof String) || shadowed.contains(key)) {
+      return -1;
+    }
+    return snapshot.find((String) key);
+  }
+
+  // Copies the key's members into the overlay so they can be changed
+  private Set<String> materialize(String key, long record) {
+    Set<String> members = overlay.get(key);
+    if (members == null) {
+      members = overlay.computeIfAbsent(key, memberSets);
+      members.addAll(snapshot.members(record));
+      shadowed.add(key);
+    }
+    return members;
+  }
+
+  // Overlay entries first, then the snapshot records that are not shadowed
+  private final class EntryIterator implements Iterator<Map.Entry<String, Set<String>>> {
+    private final Iterator<Map.Entry<String, Set<String>>> overlayEntries =
+        overlay.entrySet().iterator();
+    private final SnapshotFile file = snapshot;
+    private long record = file == null ? -1 : file.firstRecord();
+    private Map.Entry<String, Set<String>> next;
+
+    EntryIterator() {
+      advance();
+    }
+
+    private void advance() {
+      if (overlayEntries.hasNext()) {
+        next = overlayEntries.next();
+        return;
+      }
+      next = null;
+      while (file != null && record < file.endOfRecords()) {
+        long current = record;
+        record = file.nextRecord(current);
+        String key = file.key(current);
+        if (!shadowed.contains(key)) {
+          next = new SimpleImmutableEntry<>(key, new SnapshotMembers(key, current));
+          return;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, Set<String>> next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<String, Set<String>> entry = next;
+      advance();
+      return entry;
+    }
+  }
+
+  // Members of a snapshot key, read from the file until the first change copies them
+  private final class SnapshotMembers extends AbstractSet<String> {
+    private final String key;
+    private final long record;
+
+    SnapshotMembers(String key, long record) {
+      this.key = key;
+      this.record = record;
+    }
+
+    private Set<String> current() {
+      Set<String> members = overlay.get(key);
+      return members != null || snapshot == null ? members : snapshot.members(record);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      Set<String> members = current();
+      return members != null && members.contains(o);
+    }
+
+    @Override
+    public int size() {
+      Set<String> members = current();
+      return members == null ? 0 : members.size();
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      Set<String> members = current();
+      return members == null ? new HashSet<String>().iterator() : members.iterator();
+    }
+
+    @Override
+    public boolean add(String member) {
+      return materialize(key, record).add(member);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      return materialize(key, record).remove(o);
+    }
+  }
+}
@@ -0,0 +1,474 @@
+package multivaluedictionaryapp;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Binary dictionary snapshot that is read through a memory-mapped file. Opening one only reads
+ * the header; a lookup hashes the key into the on-disk index and reads its record in place, so
+ * the OS pages the file in as keys are touched.
+ *
+ * <p>Layout: header [int magic][int version][long index position][int key count][int index
+ * capacity][long stats position], then one record per key [int key length][key][int member count]
+ * [int member bytes][int member offset x count][member data], members sorted by their UTF-8 bytes
+ * and each one stored as [int length][bytes], then the index: capacity slots of [int key hash]
+ * [long record position], position 0 meaning empty. Last come the MemoryStats of the contents
+ * [long keys][long items][long bytes][long x 32 histogram][int largest key count]
+ * ([int key length][key][int members] x count), so LOAD does not count them again.
+ */
+final class SnapshotFile {
+
+  private static final int MAGIC = 0x4D564453;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 32;
+  private static final int INDEX_SLOT_SIZE = 12;
+  // the stats section without its largest keys
+  private static final int STATS_SIZE = 24 + 8 * MemoryStats.BUCKETS + 4;
+  private static final int SEGMENT_SHIFT = 30;
+  private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+  private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+  private final MappedByteBuffer[] segments;
+  private final long indexPosition;
+  private final int keyCount;
+  private final int indexCapacity;
+  private final long statsPosition;
+
+  private SnapshotFile(MappedByteBuffer[] segments, long size) throws IOException {
+    this.segments = segments;
+    if (size < HEADER_SIZE || getInt(0) != MAGIC) {
+      throw new IOException("Not a dictionary snapshot");
+    }
+    int version = getInt(4);
+    if (version != VERSION) {
+      throw new IOException("Unsupported snapshot version " + version);
+    }
+    this.indexPosition = getLong(8);
+    this.keyCount = getInt(16);
+    this.indexCapacity = getInt(20);
+    this.statsPosition = getLong(24);
+    // find() relies on a power of two capacity with at least one empty slot
+    if (indexCapacity <= 0
+        || Integer.bitCount(indexCapacity) != 1
+        || keyCount < 0
+        || keyCount >= indexCapacity
+        || indexPosition < HEADER_SIZE
+        || statsPosition != indexPosition + (long) indexCapacity * INDEX_SLOT_SIZE
+        || statsPosition > size - STATS_SIZE) {
+      throw new IOException("Corrupt dictionary snapshot header");
+    }
+  }
+
+  /**
+   * Streams the map into the file in one pass through its forEach(), members of a key are only
+   * copied to sort them. The data goes to a temporary file that then replaces the target, so a
+   * snapshot that is currently mapped can be overwritten safely.
+   */
+  static void write(Map<String, Set<String>> map, Path file) throws IOException {
+    try (Writer writer = Writer.create(file)) {
+      try {
+        map.forEach(writer::addUnchecked);
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      writer.commit();
+    }
+  }
+
+  /**
+   * Writes a snapshot one key at a time, for contents that are not at hand as a map, such as a
+   * copy arriving over the network. Nothing replaces the target until commit(); closing the
+   * writer before that drops what was written.
+   */
+  static final class Writer implements Closeable {
+    private final Path target;
+    private final Path temporary;
+    private final FileChannel channel;
+    private final DataOutputStream out;
+    private int[] hashes = new int[16];
+    private long[] positions = new long[16];
+    private int count;
+    private long position = HEADER_SIZE;
+    private final MemoryStats stats = new MemoryStats();
+    private boolean committed;
+
+    private Writer(Path target, Path temporary, FileChannel channel) {
+      this.target = target;
+      this.temporary = temporary;
+      this.channel = channel;
+      this.out =
+          new DataOutputStream(
+              new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE));
+    }
+
+    static Writer create(Path file) throws IOException {
+      Path absolute = file.toAbsolutePath();
+      Path temporary =
+          Files.createTempFile(absolute.getParent(), absolute.getFileName() + ".", ".tmp");
+      FileChannel channel;
+      try {
+        channel = FileChannel.open(temporary, StandardOpenOption.WRITE);
+      } catch (IOException e) {
+        Files.deleteIfExists(temporary);
+        throw e;
+      }
+      Writer writer = new Writer(absolute, temporary, channel);
+      try {
+        writer.out.write(new byte[HEADER_SIZE]);
+      } catch (IOException e) {
+        writer.close();
+        throw e;
+      }
+      return writer;
+    }
+
+    // Every key once, with at least one member
+    void add(String key, Set<String> members) throws IOException {
+      if (count == hashes.length) {
+        hashes = Arrays.copyOf(hashes, count * 2);
+        positions = Arrays.copyOf(positions, count * 2);
+      }
+      hashes[count] = key.hashCode();
+      positions[count] = position;
+      count++;
+      position += writeRecord(out, key, members);
+      stats.keyAdded(key, members);
+    }
+
+    // A forEach() visitor, which cannot throw IOException itself
+    private void addUnchecked(String key, Set<String> members) {
+      try {
+        add(key, members);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    // Writes the index, the stats and the header, and puts the file in place of the target
+    void commit() throws IOException {
+      int capacity = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) * 2;
+      int[] slotHashes = new int[capacity];
+      long[] slotPositions = new long[capacity];
+      for (int i = 0; i < count; i++) {
+        int slot = SymbolTable.spread(hashes[i]) & (capacity - 1);
+        while (slotPositions[slot] != 0) {
+          slot = (slot + 1) & (capacity - 1);
+        }
+        slotHashes[slot] = hashes[i];
+        slotPositions[slot] = positions[i];
+      }
+      for (int i = 0; i < capacity; i++) {
+        out.writeInt(slotHashes[i]);
+        out.writeLong(slotPositions[i]);
+      }
+      long statsPosition = position + (long) capacity * INDEX_SLOT_SIZE;
+      writeStats(out, stats);
+      out.flush();
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC).putInt(VERSION).putLong(position).putInt(count).putInt(capacity);
+      header.putLong(statsPosition);
+      header.flip();
+      while (header.hasRemaining()) {
+        channel.write(header, header.position());
+      }
+      channel.force(true);
+      channel.close();
+      Files.move(
+          temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!committed) {
+        channel.close();
+        Files.deleteIfExists(temporary);
+      }
+    }
+  }
+
+  static SnapshotFile open(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      MappedByteBuffer[] segments =
+          new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+      for (int i = 0; i < segments.length; i++) {
+        long start = (long) i << SEGMENT_SHIFT;
+        long length = Math.min(size - start, 1L << SEGMENT_SHIFT);
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+      }
+      // the mapping stays valid after the channel is closed
+      return new SnapshotFile(segments, size);
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Corrupt dictionary snapshot", e);
+    }
+  }
+
+  int keyCount() {
+    return keyCount;
+  }
+
+  // Position of the key's record, or -1 when the snapshot does not hold the key
+  long find(String key) {
+    byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+    int hash = key.hashCode();
+    int mask = indexCapacity - 1;
+    int slot = SymbolTable.spread(hash) & mask;
+    for (int probes = 0; probes < indexCapacity; probes++, slot = (slot + 1) & mask) {
+      long entry = indexPosition + (long) slot * INDEX_SLOT_SIZE;
+      long record = getLong(entry + 4);
+      if (record == 0) {
+        return -1;
+      }
+      if (getInt(entry) == hash
+          && getInt(record) == bytes.length
+          && bytesEqual(record + 4, bytes)) {
+        return record;
+      }
+    }
+    return -1;
+  }
+
+  long firstRecord() {
+    return HEADER_SIZE;
+  }
+
+  // MemoryStats of the contents as they were written
+  MemoryStats stats() throws IOException {
+    try {
+      return readStats();
+    } catch (IndexOutOfBoundsException | IllegalArgumentException | NegativeArraySizeException e) {
+      throw new IOException("Corrupt dictionary snapshot stats", e);
+    }
+  }
+
+  private MemoryStats readStats() {
+    long position = statsPosition;
+    long keys = getLong(position);
+    long items = getLong(position + 8);
+    long bytes = getLong(position + 16);
+    position += 24;
+    long[] histogram = new long[MemoryStats.BUCKETS];
+    for (int b = 0; b < histogram.length; b++) {
+      histogram[b] = getLong(position);
+      position += 8;
+    }
+    int count = getInt(position);
+    position += 4;
+    List<Map.Entry<String, Integer>> largest = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      String key = readString(position);
+      position += 4 + getInt(position);
+      largest.add(Map.entry(key, getInt(position)));
+      position += 4;
+    }
+    MemoryStats stats = new MemoryStats();
+    stats.add(keys, items, bytes, histogram, largest);
+    return stats;
+  }
+
+  // Position after the last record, where iteration stops
+  long endOfRecords() {
+    return indexPosition;
+  }
+
+  long nextRecord(long record) {
+    long counts = record + 4 + getInt(record);
+    return counts + 8 + 4L * getInt(counts) + getInt(counts + 4);
+  }
+
+  String key(long record) {
+    return readString(record);
+  }
+
+  // Read-only view of the members stored in the record
+  Set<String> members(long record) {
+    return new MappedMembers(record + 4 + getInt(record));
+  }
+
+  private static long writeRecord(DataOutputStream out, String key, Set<String> members)
+      throws IOException {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    byte[][] memberBytes = new byte[members.size()][];
+    int n = 0;
+    for (String member : members) {
+      memberBytes[n++] = member.getBytes(StandardCharsets.UTF_8);
+    }
+    Arrays.sort(memberBytes, SnapshotFile::compareUnsigned);
+    int dataBytes = 0;
+    for (byte[] bytes : memberBytes) {
+      dataBytes += 4 + bytes.length;
+    }
+    out.writeInt(keyBytes.length);
+    out.write(keyBytes);
+    out.writeInt(memberBytes.length);
+    out.writeInt(dataBytes);
+    int offset = 0;
+    for (byte[] bytes : memberBytes) {
+      out.writeInt(offset);
+      offset += 4 + bytes.length;
+    }
+    for (byte[] bytes : memberBytes) {
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+    return 4L + keyBytes.length + 8 + 4L * memberBytes.length + dataBytes;
+  }
+
+  private static void writeStats(DataOutputStream out, MemoryStats stats) throws IOException {
+    out.writeLong(stats.keyCount());
+    out.writeLong(stats.itemCount());
+    out.writeLong(stats.estimatedBytes());
+    for (long count : stats.memberCountHistogram()) {
+      out.writeLong(count);
+    }
+    List<Map.Entry<String, Integer>> largest = stats.largestKeys(MemoryStats.FOLLOWED_KEYS);
+    out.writeInt(largest.size());
+    for (Map.Entry<String, Integer> key : largest) {
+      byte[] bytes = key.getKey().getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+      out.writeInt(key.getValue());
+    }
+  }
+
+  private static int compareUnsigned(byte[] a, byte[] b) {
+    int length = Math.min(a.length, b.length);
+    for (int i = 0; i < length; i++) {
+      int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return a.length - b.length;
+  }
+
+  private int compareUnsigned(long position, int length, byte[] b) {
+    int common = Math.min(length, b.length);
+    for (int i = 0; i < common; i++) {
+      int diff = (getByte(position + i) & 0xFF) - (b[i] & 0xFF);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return length - b.length;
+  }
+
+  private String readString(long position) {
+    int length = getInt(position);
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = getByte(position + 4 + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private boolean bytesEqual(long position, byte[] bytes) {
+    return compareUnsigned(position, bytes.length, bytes) == 0;
+  }
+
+  private byte getByte(long position) {
+    return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK));
+  }
+
+  private int getInt(long position) {
+    MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+    int offset = (int) (position & SEGMENT_MASK);
+    if (offset + 4 <= segment.limit()) {
+      return segment.getInt(offset);
+    }
+    // straddles two segments
+    int value = 0;
+    for (int i = 0; i < 4; i++) {
+      value = (value << 8) | (getByte(position + i) & 0xFF);
+    }
+    return value;
+  }
+
+  private long getLong(long position) {
+    return ((long) getInt(position) << 32) | (getInt(position + 4) & 0xFFFFFFFFL);
+  }
+
+  // counts points at [int member count][int member bytes][offsets][data]
+  private final class MappedMembers extends AbstractSet<String> {
+    private final long counts;
+
+    MappedMembers(long counts) {
+      this.counts = counts;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof String)) {
+        return false;
+      }
+      byte[] bytes = ((String) o).getBytes(StandardCharsets.UTF_8);
+      int low = 0;
+      int high = size() - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        long member = memberPosition(mid);
+        int cmp = compareUnsigned(member + 4, getInt(member), bytes);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public int size() {
+      return getInt(counts);
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      return new Iterator<String>() {
+        private int index;
+
+        @Override
+        public boolean hasNext() {
+          return index < size();
+        }
+
+        @Override
+        public String next() {
+          if (index >= size()) {
+            throw new NoSuchElementException();
+          }
+          return readString(memberPosition(index++));
+        }
+      };
+    }
+
+    private long memberPosition(int index) {
+      long data = counts + 8 + 4L * size();
+      return data + getInt(counts + 8 + 4L * index);
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package multivaluedictionaryapp;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/** How a MultiValueDictionary lays out its keys and members in memory. */
+public enum StorageMode {
+
+  // HashMap of HashSets, one String object per key and per member occurrence
+  HASH {
+    @Override
+    Map<String, Set<String>> newMap() {
+      return new HashMap<>();
+    }
+  },
+
+  // Every distinct string is interned once; member sets are open addressing int tables
+  INTERNED {
+    @Override
+    Map<String, Set<String>> newMap() {
+      return new InternedMemberMap();
+    }
+  },
+
+  // HashMap whose member sets stay packed arrays up to the compact threshold
+  COMPACT {
+    @Override
+    Map<String, Set<String>> newMap() {
+      return new HashMap<>();
+    }
+
+    @Override
+    Function<String, Set<String>> memberSets(int compactThreshold) {
+      return key -> new CompactMemberSet(compactThreshold);
+    }
+  },
+
+  // UTF-8 bytes and hash tables in direct memory, bounded by -XX:MaxDirectMemorySize
+  OFF_HEAP {
+    @Override
+    Map<String, Set<String>> newMap() {
+      return new OffHeapMemberMap();
+    }
+  };
+
+  abstract Map<String, Set<String>> newMap();
+
+  // Creates the member set of a key on its first ADD
+  Function<String, Set<String>> memberSets(int compactThreshold) {
+    return key -> new HashSet<>();
+  }
+}
@@ -0,0 +1,136 @@
+package multivaluedictionaryapp;
+
+import java.util.Arrays;
+
+/**
+ * Interns every distinct string once and hands out a dense int id for it. Every intern() takes a
+ * reference that release() gives back; a string whose last reference is released leaves the table
+ * and its id is handed out again, so the ids stay as dense as the strings currently in use.
+ */
+final class SymbolTable {
+
+  private static final int EMPTY = 0;
+
+  private String[] symbols = new String[16];
+  private int[] refs = new int[16];
+  // open addressing over ids, each slot holds id + 1 so that 0 means empty
+  private int[] slots = new int[32];
+  // ids below this one have been handed out at some point
+  private int next;
+  private int count;
+  // released ids, reused before next grows
+  private int[] free = new int[16];
+  private int freeCount;
+
+  // Id of the string, or -1 when it is not interned
+  int find(String symbol) {
+    int mask = slots.length - 1;
+    for (int i = spread(symbol.hashCode()) & mask; ; i = (i + 1) & mask) {
+      int slot = slots[i];
+      if (slot == EMPTY) {
+        return -1;
+      }
+      if (symbols[slot - 1].equals(symbol)) {
+        return slot - 1;
+      }
+    }
+  }
+
+  // Id of the string, interning it if needed, with one more reference taken
+  int intern(String symbol) {
+    int mask = slots.length - 1;
+    int i = spread(symbol.hashCode()) & mask;
+    for (; slots[i] != EMPTY; i = (i + 1) & mask) {
+      if (symbols[slots[i] - 1].equals(symbol)) {
+        refs[slots[i] - 1]++;
+        return slots[i] - 1;
+      }
+    }
+    int id;
+    if (freeCount > 0) {
+      id = free[--freeCount];
+    } else {
+      if (next == symbols.length) {
+        symbols = Arrays.copyOf(symbols, next * 2);
+        refs = Arrays.copyOf(refs, next * 2);
+      }
+      id = next++;
+    }
+    symbols[id] = symbol;
+    refs[id] = 1;
+    slots[i] = id + 1;
+    count++;
+    // keep the load factor at or below one half
+    if (count * 2 > slots.length) {
+      rehash(slots.length * 2);
+    }
+    return id;
+  }
+
+  // Gives back a reference taken by intern(), the last one frees the id
+  void release(int id) {
+    if (--refs[id] > 0) {
+      return;
+    }
+    int mask = slots.length - 1;
+    int hole = spread(symbols[id].hashCode()) & mask;
+    while (slots[hole] != id + 1) {
+      hole = (hole + 1) & mask;
+    }
+    // backward shift deletion, as in IntMemberSet
+    for (int i = (hole + 1) & mask; slots[i] != EMPTY; i = (i + 1) & mask) {
+      int home = spread(symbols[slots[i] - 1].hashCode()) & mask;
+      if (((i - home) & mask) >= ((i - hole) & mask)) {
+        slots[hole] = slots[i];
+        hole = i;
+      }
+    }
+    slots[hole] = EMPTY;
+    symbols[id] = null;
+    count--;
+    if (freeCount == free.length) {
+      free = Arrays.copyOf(free, freeCount * 2);
+    }
+    free[freeCount++] = id;
+  }
+
+  String symbol(int id) {
+    return symbols[id];
+  }
+
+  // Number of strings currently interned
+  int size() {
+    return count;
+  }
+
+  void clear() {
+    symbols = new String[16];
+    refs = new int[16];
+    slots = new int[32];
+    next = 0;
+    count = 0;
+    free = new int[16];
+    freeCount = 0;
+  }
+
+  private void rehash(int capacity) {
+    int[] rehashed = new int[capacity];
+    int mask = capacity - 1;
+    for (int id = 0; id < next; id++) {
+      if (symbols[id] == null) {
+        continue;
+      }
+      int i = spread(symbols[id].hashCode()) & mask;
+      while (rehashed[i] != EMPTY) {
+        i = (i + 1) & mask;
+      }
+      rehashed[i] = id + 1;
+    }
+    slots = rehashed;
+  }
+
+  static int spread(int hash) {
+    int h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
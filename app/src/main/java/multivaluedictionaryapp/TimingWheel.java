@@ -0,0 +1,148 @@
+package multivaluedictionaryapp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Hierarchical timing wheel over millisecond deadlines. Level 0 has a slot per tick for the next
+ * 256 ticks, every level above has 64 slots each covering a whole turn of the level below, so six
+ * levels reach about 8.7 years ahead. Scheduling is O(1); an entry moves down a level at most
+ * once per level before it is due, and ticks in which nothing is scheduled are skipped over
+ * instead of being visited one by one. Not thread-safe.
+ */
+final class TimingWheel<T> {
+
+  private static final int LEVELS = 6;
+  private static final int LEVEL0_BITS = 8;
+  private static final int LEVEL_BITS = 6;
+
+  private final ToLongFunction<T> deadlineOf;
+  // the slots of every level one after another, null while empty
+  private final List<List<T>> slots = new ArrayList<>();
+  private final int[] counts = new int[LEVELS];
+  // every tick up to and including this one has been processed
+  private long current;
+  private int size;
+
+  TimingWheel(ToLongFunction<T> deadlineOf, long now) {
+    this.deadlineOf = deadlineOf;
+    this.current = now;
+    for (int level = 0; level < LEVELS; level++) {
+      for (int slot = 0; slot < 1 << bits(level); slot++) {
+        slots.add(null);
+      }
+    }
+  }
+
+  // Due at its deadline, or at the next tick when that has already passed
+  void schedule(T entry) {
+    place(entry, Math.max(deadlineOf.applyAsLong(entry), current + 1));
+    size++;
+  }
+
+  // Hands every entry with a deadline up to now to due, in deadline order tick by tick
+  void advance(long now, Consumer<T> due) {
+    while (current < now) {
+      long next = nextTick();
+      if (next > now) {
+        current = now;
+        return;
+      }
+      current = next;
+      for (int level = LEVELS - 1; level > 0; level--) {
+        if ((current & ((1L << shift(level)) - 1)) == 0) {
+          cascade(level);
+        }
+      }
+      List<T> entries = take(0);
+      if (entries != null) {
+        size -= entries.size();
+        entries.forEach(due);
+      }
+    }
+  }
+
+  void clear() {
+    for (int i = 0; i < slots.size(); i++) {
+      slots.set(i, null);
+    }
+    Arrays.fill(counts, 0);
+    size = 0;
+  }
+
+  // Scheduled entries not handed out yet
+  int size() {
+    return size;
+  }
+
+  // The first tick after the current one at which there is something to fire or cascade
+  private long nextTick() {
+    if (counts[0] > 0) {
+      return current + 1;
+    }
+    for (int level = 1; level < LEVELS; level++) {
+      if (counts[level] > 0) {
+        // boundaries of the levels above fall on boundaries of this one
+        return ((current >>> shift(level)) + 1) << shift(level);
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+
+  // Moves the entries of the level's current slot to the levels below
+  private void cascade(int level) {
+    List<T> entries = take(level);
+    if (entries != null) {
+      for (T entry : entries) {
+        place(entry, Math.max(deadlineOf.applyAsLong(entry), current));
+      }
+    }
+  }
+
+  private List<T> take(int level) {
+    int index = index(level, current);
+    List<T> entries = slots.get(index);
+    if (entries != null) {
+      slots.set(index, null);
+      counts[level] -= entries.size();
+    }
+    return entries;
+  }
+
+  private void place(T entry, long tick) {
+    long delta = tick - current;
+    int level = 0;
+    while (level < LEVELS - 1 && delta >= 1L << (shift(level) + bits(level))) {
+      level++;
+    }
+    long reach = 1L << (shift(level) + bits(level));
+    if (delta >= reach) {
+      // beyond the top level, it comes back down to be placed again before its deadline
+      tick = current + reach - 1;
+    }
+    int index = index(level, tick);
+    List<T> entries = slots.get(index);
+    if (entries == null) {
+      entries = new ArrayList<>(4);
+      slots.set(index, entries);
+    }
+    entries.add(entry);
+    counts[level]++;
+  }
+
+  private static int index(int level, long tick) {
+    int offset = level == 0 ? 0 : (1 << LEVEL0_BITS) + (level - 1) * (1 << LEVEL_BITS);
+    return offset + (int) ((tick >>> shift(level)) & ((1 << bits(level)) - 1));
+  }
+
+  private static int shift(int level) {
+    return level == 0 ? 0 : LEVEL0_BITS + (level - 1) * LEVEL_BITS;
+  }
+
+  private static int bits(int level) {
+    return level == 0 ? LEVEL0_BITS : LEVEL_BITS;
+  }
+}
@@ -0,0 +1,48 @@
+package multivaluedictionaryapp;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Writes a synthetic CommandCapture: keys picked by Zipfian popularity, so a few are hot and most
+ * are rarely touched, commands arriving at random as a Poisson process of the given rate. Half the
+ * commands are MEMBERS, a fifth MEMBEREXISTS, a fifth ADD and a tenth REMOVE, each on one of 16
+ * members. The same seed writes the same file.
+ */
+final class WorkloadGenerator {
+
+  static final int MEMBERS_PER_KEY = 16;
+
+  private WorkloadGenerator() {}
+
+  // rate in commands per second, 0 or less for all of them at once
+  static void generate(
+      Path file, long commands, int keys, double theta, double rate, long seed)
+      throws IOException {
+    Random random = new Random(seed);
+    ZipfianGenerator popularity = new ZipfianGenerator(keys, theta, random);
+    long nanos = 0;
+    try (CommandCapture capture = CommandCapture.create(file)) {
+      for (long i = 0; i < commands; i++) {
+        if (rate > 0) {
+          nanos += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+        }
+        String key = "key" + popularity.next();
+        String member = "member" + random.nextInt(MEMBERS_PER_KEY);
+        int command = random.nextInt(10);
+        String line;
+        if (command < 5) {
+          line = "MEMBERS " + key;
+        } else if (command < 7) {
+          line = "MEMBEREXISTS " + key + " " + member;
+        } else if (command < 9) {
+          line = "ADD " + key + " " + member;
+        } else {
+          line = "REMOVE " + key + " " + member;
+        }
+        capture.record(nanos, line);
+      }
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package multivaluedictionaryapp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a CommandCapture back into a dictionary through App.execute, replies thrown away, and
+ * times every command. Paced at the original speed or a multiple of it, a command's latency runs
+ * from when it was due rather than from when it started, so a replay that falls behind shows the
+ * queueing a real client would have seen instead of hiding it.
+ */
+public final class WorkloadReplay {
+
+  // sleeping is too coarse for the last stretch before a command is due
+  private static final long SPIN_NANOS = 100_000;
+
+  /** Commands replayed, how long they took and their latencies. */
+  public static final class Report {
+    private final long commands;
+    private final long elapsedNanos;
+    private final CommandStats latencies;
+
+    private Report(long commands, long elapsedNanos, CommandStats latencies) {
+      this.commands = commands;
+      this.elapsedNanos = elapsedNanos;
+      this.latencies = latencies;
+    }
+
+    public long commands() {
+      return commands;
+    }
+
+    public long elapsedNanos() {
+      return elapsedNanos;
+    }
+
+    public double commandsPerSecond() {
+      return elapsedNanos == 0 ? 0 : commands * 1e9 / elapsedNanos;
+    }
+
+    // Latency the fraction q of the commands stayed under, within 12.5%
+    public long percentileNanos(double q) {
+      return latencies.percentileNanos(q);
+    }
+
+    public long maxNanos() {
+      return latencies.maxNanos();
+    }
+  }
+
+  private WorkloadReplay() {}
+
+  /**
+   * Replays the capture until its end or an EXIT line. speed 1 keeps the original timing, 2 plays
+   * twice as fast, 0 or less as fast as the dictionary goes.
+   */
+  public static Report replay(MultiValueDictionary dict, Path capture, double speed)
+      throws IOException {
+    PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+    CommandStats latencies = new CommandStats();
+    boolean paced = speed > 0;
+    long commands = 0;
+    long start = System.nanoTime();
+    try (CommandCapture.Reader reader = CommandCapture.Reader.open(capture)) {
+      boolean more = true;
+      while (more && reader.next()) {
+        long due = System.nanoTime();
+        if (paced) {
+          due = start + (long) (reader.nanos() / speed);
+          waitUntil(due);
+        }
+        more = App.execute(dict, reader.line(), discard, discard);
+        latencies.record(System.nanoTime() - due);
+        commands++;
+      }
+    }
+    return new Report(commands, System.nanoTime() - start, latencies);
+  }
+
+  private static void waitUntil(long deadline) {
+    long remaining;
+    while ((remaining = deadline - System.nanoTime()) > 0) {
+      if (remaining > SPIN_NANOS) {
+        LockSupport.parkNanos(remaining - SPIN_NANOS);
+      } else {
+        Thread.onSpinWait();
+      }
+    }
+  }
+}
@@ -0,0 +1,592 @@
+package multivaluedictionaryapp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of ADD / REMOVE / REMOVEALL / CLEAR. Mutations are encoded into an in-memory
+ * batch by the writing thread; a single flusher thread writes the batch out, so writers that
+ * arrive while an fsync is in progress share the next one (group commit).
+ *
+ * <p>Each record is [int payload length][int CRC32 of payload][payload]. Replay stops at the first
+ * incomplete or corrupt record, which is what a crash in the middle of a write leaves behind, and
+ * the log is truncated there before new records are appended.
+ *
+ * <p>SAVE and LOAD are logged as a LOAD record naming a snapshot the log owns: a hard link to
+ * the saved file, or a copy of the loaded one, next to the log as {@code <log>.<n>.snapshot}.
+ * Replay reads that file rather than the one the command named, which may have been deleted or
+ * overwritten since. SAVE checkpoints the log: it is replaced by a LOAD of the new snapshot
+ * followed by every record appended since the SAVE started. Those may already be in the
+ * snapshot, which replay tolerates, but none is lost to a writer that ran while the snapshot was
+ * being taken or written. LOAD checkpoints it too, the loaded contents replace everything before
+ * them. Owned snapshots no record refers to any more are deleted once a checkpoint is on disk.
+ */
+public class WriteAheadLog implements MutationListener, Closeable {
+
+  public enum FsyncPolicy {
+    // every mutation waits until its record is on disk
+    ALWAYS,
+    // fsync at most once per interval, a crash loses up to one interval of mutations
+    INTERVAL,
+    // write without fsync and let the OS decide when the data reaches the disk
+    OS
+  }
+
+  // record types, also used by the replication stream
+  static final byte ADD = 1;
+  static final byte REMOVE = 2;
+  static final byte REMOVEALL = 3;
+  static final byte CLEAR = 4;
+  static final byte LOAD = 5;
+  private static final int REPLAY_BUFFER_SIZE = 1 << 20;
+  private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+  private final Path file;
+  // only touched by the flusher thread, and by close() once it has stopped
+  private FileChannel channel;
+  private final FsyncPolicy policy;
+  private final long intervalMillis;
+  private final Thread flusher;
+  private final ThreadLocal<long[]> lastAppended = ThreadLocal.withInitial(() -> new long[1]);
+
+  // guarded by this
+  private ByteArrayOutputStream batch = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+  private final DataOutputStream record = new DataOutputStream(recordBytes);
+  private long appendedSeq;
+  private long durableSeq;
+  private long syncCount;
+  private IOException failure;
+  private boolean closed;
+  // the next batch replaces the log instead of being appended to it
+  private boolean checkpoint;
+  // SAVEs between onSaveStarted and onSave / onSaveFailed; while any runs, records are also
+  // kept in carried, to follow the LOAD in the checkpointed log
+  private int savesRunning;
+  private ByteArrayOutputStream carried = new ByteArrayOutputStream();
+  // owned snapshots named by the records of the log and of carried, and those to delete once the
+  // pending checkpoint is on disk
+  private Set<Path> logSnapshots;
+  private Set<Path> carriedSnapshots = new HashSet<>();
+  private List<Path> obsoleteSnapshots = new ArrayList<>();
+
+  private WriteAheadLog(
+      Path file, FileChannel channel, Set<Path> logSnapshots, FsyncPolicy policy,
+      long intervalMillis) {
+    this.file = file;
+    this.logSnapshots = logSnapshots;
+    this.channel = channel;
+    this.policy = policy;
+    this.intervalMillis = intervalMillis;
+    this.flusher = new Thread(this::flushLoop, "wal-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Replays the log into the dictionary, then attaches a log to it that records every further
+   * mutation. The dictionary should be empty and must not be mutated by anyone else meanwhile.
+   */
+  public static WriteAheadLog open(
+      Path file, MultiValueDictionary dict, FsyncPolicy policy, long intervalMillis)
+      throws IOException {
+    if (policy == FsyncPolicy.INTERVAL && intervalMillis <= 0) {
+      throw new IllegalArgumentException("INTERVAL needs a positive interval");
+    }
+    FileChannel channel =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    Set<Path> logSnapshots = new HashSet<>();
+    try {
+      long validLength = replay(file, channel, dict, logSnapshots);
+      channel.truncate(validLength);
+      channel.position(validLength);
+      // left by a crash before the checkpoint that would have deleted them, or in the middle of
+      // taking a copy
+      try (DirectoryStream<Path> owned = Files.newDirectoryStream(directory(file))) {
+        for (Path snapshot : owned) {
+          if (isOwned(file, snapshot) && !logSnapshots.contains(snapshot)) {
+            Files.delete(snapshot);
+          }
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    WriteAheadLog log = new WriteAheadLog(file, channel, logSnapshots, policy, intervalMillis);
+    dict.addMutationListener(log);
+    return log;
+  }
+
+  @Override
+  public void onAdd(String key, String member) {
+    append(ADD, key, member);
+  }
+
+  @Override
+  public void onRemove(String key, String member) {
+    append(REMOVE, key, member);
+  }
+
+  @Override
+  public void onRemoveAll(String key, Set<String> members) {
+    append(REMOVEALL, key, null);
+  }
+
+  @Override
+  public void onClear() {
+    append(CLEAR, null, null);
+  }
+
+  @Override
+  public synchronized void onSaveStarted() {
+    if (savesRunning++ == 0) {
+      carried.reset();
+    }
+  }
+
+  // Everything logged before the SAVE started is in the snapshot, so the log restarts from it
+  @Override
+  public void onSave(Path snapshot) {
+    Path owned;
+    try {
+      // SnapshotFile only ever renames a new file over the saved one, which leaves a link alone
+      owned = own(snapshot, true);
+    } catch (UncheckedIOException e) {
+      onSaveFailed();
+      throw e;
+    }
+    long seq;
+    synchronized (this) {
+      if (savesRunning == 0) {
+        // attached while the SAVE was running, it cannot tell what the snapshot missed
+        appendLoad(owned);
+        return;
+      }
+      checkOpen();
+      ByteArrayOutputStream restart = new ByteArrayOutputStream(carried.size() + 64);
+      writeRecord(restart, LOAD, owned.getFileName().toString(), null);
+      // the records of the batch that are not carried are in the snapshot
+      restart.write(carried.toByteArray(), 0, carried.size());
+      Set<Path> named = new HashSet<>(carriedSnapshots);
+      named.add(owned);
+      restartLog(restart, named);
+      endSave();
+      seq = ++appendedSeq;
+      notifyAll();
+    }
+    lastAppended.get()[0] = seq;
+  }
+
+  @Override
+  public synchronized void onSaveFailed() {
+    if (savesRunning > 0) {
+      endSave();
+    }
+  }
+
+  // The loaded snapshot replaces everything logged before it, so the log restarts from it
+  @Override
+  public void onLoad(Path snapshot) {
+    // the loaded file is not ours and may be rewritten in place, a link would follow that
+    Path owned = own(snapshot, false);
+    long seq;
+    synchronized (this) {
+      checkOpen();
+      ByteArrayOutputStream restart = new ByteArrayOutputStream(64);
+      writeRecord(restart, LOAD, owned.getFileName().toString(), null);
+      restartLog(restart, new HashSet<>(Set.of(owned)));
+      if (savesRunning > 0) {
+        writeRecord(carried, LOAD, owned.getFileName().toString(), null);
+        carriedSnapshots.add(owned);
+      }
+      seq = ++appendedSeq;
+      notifyAll();
+    }
+    lastAppended.get()[0] = seq;
+  }
+
+  // With ALWAYS, blocks until the records this thread appended are on disk
+  @Override
+  public void sync() {
+    if (policy != FsyncPolicy.ALWAYS) {
+      return;
+    }
+    long seq = lastAppended.get()[0];
+    synchronized (this) {
+      // close() flushes everything appended before it, so this always ends
+      while (durableSeq < seq && failure == null) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while waiting for the log", e);
+        }
+      }
+      if (failure != null) {
+        throw new UncheckedIOException(failure);
+      }
+    }
+  }
+
+  // Flushes whatever is pending and closes the file
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    channel.close();
+    synchronized (this) {
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
+  // Number of batches written so far, each one a single write (and fsync unless OS)
+  synchronized long syncCount() {
+    return syncCount;
+  }
+
+  private void append(byte op, String key, String member) {
+    long seq;
+    synchronized (this) {
+      checkOpen();
+      writeRecord(batch, op, key, member);
+      if (savesRunning > 0) {
+        writeRecord(carried, op, key, member);
+      }
+      seq = ++appendedSeq;
+      notifyAll();
+    }
+    lastAppended.get()[0] = seq;
+  }
+
+  private void appendLoad(Path owned) {
+    append(LOAD, owned.getFileName().toString(), null);
+    synchronized (this) {
+      logSnapshots.add(owned);
+      if (savesRunning > 0) {
+        carriedSnapshots.add(owned);
+      }
+    }
+  }
+
+  // Makes records the next batch, written in place of the log; they name the snapshots in named
+  private void restartLog(ByteArrayOutputStream records, Set<Path> named) {
+    for (Path snapshot : logSnapshots) {
+      if (!named.contains(snapshot)) {
+        obsoleteSnapshots.add(snapshot);
+      }
+    }
+    logSnapshots = named;
+    batch = records;
+    checkpoint = true;
+  }
+
+  // Hard-links or copies the snapshot next to the log under a name of its own
+  private Path own(Path snapshot, boolean link) {
+    try {
+      Path owned =
+          Files.createTempFile(directory(file), file.getFileName() + ".", SNAPSHOT_SUFFIX);
+      if (link) {
+        Files.delete(owned);
+        try {
+          Files.createLink(owned, snapshot);
+          return owned;
+        } catch (IOException | UnsupportedOperationException e) {
+          // another file system, or one without links
+        }
+      }
+      Files.copy(snapshot, owned, StandardCopyOption.REPLACE_EXISTING);
+      if (policy != FsyncPolicy.OS) {
+        try (FileChannel copy = FileChannel.open(owned, StandardOpenOption.WRITE)) {
+          copy.force(true);
+        }
+      }
+      return owned;
+    } catch (IOException e) {
+      // the SAVE or LOAD has happened, without its record the log no longer matches the dictionary
+      synchronized (this) {
+        if (failure == null) {
+          failure = e;
+        }
+        notifyAll();
+      }
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static Path directory(Path file) {
+    return file.toAbsolutePath().getParent();
+  }
+
+  private static boolean isOwned(Path file, Path snapshot) {
+    String name = snapshot.getFileName().toString();
+    return snapshot.toAbsolutePath().getParent().equals(directory(file))
+        && name.startsWith(file.getFileName() + ".")
+        && name.endsWith(SNAPSHOT_SUFFIX);
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Write-ahead log is closed");
+    }
+    // the flusher has stopped, nothing appended from now on would reach the disk
+    if (failure != null) {
+      throw new UncheckedIOException(failure);
+    }
+  }
+
+  private void writeRecord(ByteArrayOutputStream to, byte op, String key, String member) {
+    try {
+      recordBytes.reset();
+      record.writeByte(op);
+      if (key != null) {
+        writeString(record, key);
+      }
+      if (member != null) {
+        writeString(record, member);
+      }
+      byte[] bytes = recordBytes.toByteArray();
+      CRC32 crc = new CRC32();
+      crc.update(bytes);
+      DataOutputStream out = new DataOutputStream(to);
+      out.writeInt(bytes.length);
+      out.writeInt((int) crc.getValue());
+      out.write(bytes);
+    } catch (IOException e) {
+      // ByteArrayOutputStream does not throw
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void endSave() {
+    if (--savesRunning == 0) {
+      // drops the buffer, it may have grown large during a long SAVE
+      carried = new ByteArrayOutputStream();
+      carriedSnapshots = new HashSet<>();
+    }
+  }
+
+  private void flushLoop() {
+    while (true) {
+      ByteArrayOutputStream pending;
+      long upTo;
+      boolean replace;
+      List<Path> obsolete = List.of();
+      synchronized (this) {
+        while (batch.size() == 0 && !closed) {
+          waitQuietly(0);
+        }
+        if (batch.size() == 0) {
+          return;
+        }
+        pending = batch;
+        batch = new ByteArrayOutputStream(pending.size());
+        upTo = appendedSeq;
+        replace = checkpoint;
+        checkpoint = false;
+        if (replace) {
+          obsolete = obsoleteSnapshots;
+          obsoleteSnapshots = new ArrayList<>();
+        }
+      }
+      try {
+        if (replace) {
+          replaceLog(pending.toByteArray());
+          deleteQuietly(obsolete);
+        } else {
+          ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+          if (policy != FsyncPolicy.OS) {
+            channel.force(false);
+          }
+        }
+      } catch (IOException e) {
+        synchronized (this) {
+          failure = e;
+          notifyAll();
+        }
+        return;
+      }
+      synchronized (this) {
+        durableSeq = upTo;
+        syncCount++;
+        notifyAll();
+        // with INTERVAL, let mutations pile up until the next interval; appends wake the wait but
+        // do not end it, only close does
+        long deadline = System.currentTimeMillis() + intervalMillis;
+        while (policy == FsyncPolicy.INTERVAL && !closed) {
+          long left = deadline - System.currentTimeMillis();
+          if (left <= 0) {
+            break;
+          }
+          waitQuietly(left);
+        }
+      }
+    }
+  }
+
+  // Writes the records to a new file that atomically takes the place of the log
+  private void replaceLog(byte[] records) throws IOException {
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    FileChannel replacement =
+        FileChannel.open(
+            temporary,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE);
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(records);
+      while (buffer.hasRemaining()) {
+        replacement.write(buffer);
+      }
+      replacement.force(false);
+      Files.move(
+          temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      replacement.close();
+      throw e;
+    }
+    channel.close();
+    channel = replacement;
+  }
+
+  // A snapshot left behind is only disk space, the next open deletes it
+  private static void deleteQuietly(List<Path> snapshots) {
+    for (Path snapshot : snapshots) {
+      try {
+        Files.deleteIfExists(snapshot);
+      } catch (IOException e) {
+        // kept until then
+      }
+    }
+  }
+
+  private void waitQuietly(long millis) {
+    try {
+      wait(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Applies every complete record, returns the length of the valid prefix of the log
+  // and collects the owned snapshots its records name
+  private static long replay(
+      Path file, FileChannel channel, MultiValueDictionary dict, Set<Path> snapshots)
+      throws IOException {
+    // not closed on purpose, closing the stream would close the channel
+    InputStream in = new BufferedInputStream(Channels.newInputStream(channel), REPLAY_BUFFER_SIZE);
+    DataInputStream data = new DataInputStream(in);
+    long size = channel.size();
+    long valid = 0;
+    CRC32 crc = new CRC32();
+    byte[] payload = new byte[256];
+    while (valid + 2 * Integer.BYTES <= size) {
+      int length;
+      int checksum;
+      try {
+        length = data.readInt();
+        checksum = data.readInt();
+        if (length <= 0 || valid + 2 * Integer.BYTES + length > size) {
+          break;
+        }
+        if (payload.length < length) {
+          payload = new byte[Math.max(length, payload.length * 2)];
+        }
+        data.readFully(payload, 0, length);
+      } catch (EOFException e) {
+        break;
+      }
+      crc.reset();
+      crc.update(payload, 0, length);
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+      apply(file, dict, ByteBuffer.wrap(payload, 0, length), snapshots);
+      valid += 2 * Integer.BYTES + length;
+    }
+    return valid;
+  }
+
+  // Misses are ignored: after a crash between writing a snapshot and checkpointing the log, the
+  // old log is replayed over the new snapshot and repeats mutations it already holds
+  private static void apply(
+      Path file, MultiValueDictionary dict, ByteBuffer payload, Set<Path> snapshots)
+      throws IOException {
+    byte op = payload.get();
+    switch (op) {
+      case ADD:
+        dict.tryAdd(readString(payload), readString(payload));
+        break;
+      case REMOVE:
+        dict.tryRemoveMember(readString(payload), readString(payload));
+        break;
+      case REMOVEALL:
+        dict.tryRemoveAll(readString(payload));
+        break;
+      case CLEAR:
+        dict.clearMap();
+        break;
+      case LOAD:
+        // resolved next to the log
+        Path snapshot = file.toAbsolutePath().resolveSibling(readString(payload));
+        dict.load(snapshot);
+        if (isOwned(file, snapshot)) {
+          snapshots.add(snapshot);
+        }
+        break;
+      default:
+        throw new IllegalStateException("Unknown log record type " + op);
+    }
+  }
+
+  // [int UTF-8 length][UTF-8 bytes]
+  static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static String readString(ByteBuffer payload) {
+    int length = payload.getInt();
+    String s =
+        new String(
+            payload.array(), payload.arrayOffset() + payload.position(), length,
+            StandardCharsets.UTF_8);
+    payload.position(payload.position() + length);
+    return s;
+  }
+}
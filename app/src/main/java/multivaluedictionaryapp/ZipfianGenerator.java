@@ -0,0 +1,55 @@
+package multivaluedictionaryapp;
+
+import java.util.Random;
+
+/**
+ * Ranks 0 to n - 1 drawn with probability proportional to 1 / (rank + 1)^theta, so rank 0 is the
+ * most popular. Uses the closed form of Gray et al., "Quickly Generating Billion-Record Synthetic
+ * Databases", as YCSB does: building one sums n terms once, drawing costs a power and no search.
+ */
+final class ZipfianGenerator {
+
+  private final long n;
+  private final double theta;
+  private final double alpha;
+  private final double zetaN;
+  private final double eta;
+  private final Random random;
+
+  // theta in (0, 1); YCSB uses 0.99
+  ZipfianGenerator(long n, double theta, Random random) {
+    if (n < 1) {
+      throw new IllegalArgumentException("n must be positive");
+    }
+    if (!(theta > 0 && theta < 1)) {
+      throw new IllegalArgumentException("theta must be between 0 and 1");
+    }
+    this.n = n;
+    this.theta = theta;
+    this.random = random;
+    this.alpha = 1 / (1 - theta);
+    this.zetaN = zeta(n, theta);
+    double zeta2 = zeta(Math.min(n, 2), theta);
+    this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetaN);
+  }
+
+  long next() {
+    double u = random.nextDouble();
+    double uz = u * zetaN;
+    if (uz < 1) {
+      return 0;
+    }
+    if (n > 1 && uz < 1 + Math.pow(0.5, theta)) {
+      return 1;
+    }
+    return Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+  }
+
+  private static double zeta(long n, double theta) {
+    double sum = 0;
+    for (long i = 1; i <= n; i++) {
+      sum += 1 / Math.pow(i, theta);
+    }
+    return sum;
+  }
+}
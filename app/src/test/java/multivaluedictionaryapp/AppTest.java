@@ -2,21 +2,18 @@ package multivaluedictionaryapp;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentMatchers;
-import static org.mockito.Mockito.doNothing;
-import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -38,11 +35,12 @@ public class AppTest {
   }
 
   @Test
-  void testHandleAddCommandWithValidArguments() throws MemberAlreadyExistsException {
+  void testHandleAddCommandWithValidArguments() {
     MultiValueDictionary dictMock = mock(MultiValueDictionary.class);
     String[] arguments = {"ADD", "key", "value"};
+    when(dictMock.tryAdd("key", "value")).thenReturn(Outcome.OK);
     App.handleAddCommand(dictMock, arguments);
-    verify(dictMock).add("key", "value");
+    verify(dictMock).tryAdd("key", "value");
     assertEquals("Added", sysOut.toString().trim());
   }
 
@@ -57,12 +55,10 @@ public class AppTest {
   }
 
   @Test
-  void testHandleAddCommandMemberAlreadyExistsException() throws MemberAlreadyExistsException {
+  void testHandleAddCommandMemberAlreadyExists() {
     MultiValueDictionary dictMock = mock(MultiValueDictionary.class);
     String[] arguments = {"ADD", "key", "value"};
-    doThrow(new MemberAlreadyExistsException("Error, member already exists for key."))
-        .when(dictMock)
-        .add("key", "value");
+    when(dictMock.tryAdd("key", "value")).thenReturn(Outcome.MEMBER_ALREADY_EXISTS);
     handleAddCommand(dictMock, arguments);
     assertEquals("Error, member already exists for key.", sysErr.toString().trim());
   }
@@ -75,15 +71,14 @@ public class AppTest {
   }
 
   @Test
-  void handleKeysCommandNonEmptyDictionary()
-      throws MemberAlreadyExistsException, KeyNotFoundException {
+  void handleKeysCommandNonEmptyDictionary() {
     MultiValueDictionary dictMock = mock(MultiValueDictionary.class);
     String[] arguments = {"MEMBERS", "key"};
 
     Set<String> values = new HashSet<>();
     values.add("value1");
     values.add("value2");
-    when(dictMock.getMembers("key")).thenReturn(values);
+    when(dictMock.findMembers("key")).thenReturn(values);
     App.handleMembersExistCommand(dictMock, arguments);
   }
 
@@ -101,28 +96,39 @@ public class AppTest {
   @Test
   void handleKeysCommandMoreParameters() {
     MultiValueDictionary dictMock = mock(MultiValueDictionary.class);
-    String[] arguments = {"KEYS", "extraParam"};
+    String[] arguments = {"KEYS", "prefix", "extraParam"};
     App.handleKeysCommand(dictMock, arguments);
-    assertEquals("Error, missing or redundant parameter, please use 'KEYS'.", sysOut.toString().trim());
+    assertEquals(
+        "Error, missing or redundant parameter, please use 'KEYS [prefix]'.",
+        sysOut.toString().trim());
+  }
+
+  @Test
+  void handleKeysCommandWithPrefix() {
+    MultiValueDictionary dictMock = mock(MultiValueDictionary.class);
+    when(dictMock.getKeysWithPrefix("tenant42:", Integer.MAX_VALUE))
+        .thenReturn(List.of("tenant42:a", "tenant42:b"));
+    App.handleKeysCommand(dictMock, new String[] {"KEYS", "tenant42:"});
+    assertEquals(
+        "1) tenant42:a\n2) tenant42:b",
+        sysOut.toString().trim().replace(System.lineSeparator(), "\n"));
   }
 
   @Test
-  void testHandleMembersExistCommandWithKeyNotFoundException() throws KeyNotFoundException {
+  void testHandleMembersExistCommandWithKeyNotFound() {
     MultiValueDictionary dictMock = mock(MultiValueDictionary.class);
     String[] arguments = {"MEMBERS", "nonExistingKey"};
 
-    doThrow(new KeyNotFoundException("Error, key does not exist."))
-        .when(dictMock)
-        .getMembers("nonExistingKey");
+    when(dictMock.findMembers("nonExistingKey")).thenReturn(null);
     App.handleMembersExistCommand(dictMock, arguments);
     assertEquals("Error, key does not exist.", sysErr.toString().trim());
   }
 
   @Test
-  void testHandleMembersExistCommandWithEmptySet() throws KeyNotFoundException {
+  void testHandleMembersExistCommandWithEmptySet() {
     MultiValueDictionary dictMock = mock(MultiValueDictionary.class);
     String[] arguments = {"MEMBERS", "key"};
-    when(dictMock.getMembers("key")).thenReturn(Collections.emptySet());
+    when(dictMock.findMembers("key")).thenReturn(Collections.emptySet());
     App.handleMembersExistCommand(dictMock, arguments);
     assertEquals(App.EMPTY_SET_MESSAGE, sysOut.toString().trim());
   }
@@ -166,13 +172,20 @@ public class AppTest {
   public void testHandleItemsCommandWithOneArgumentAndNonEmptyMap() {
     MultiValueDictionary dictMock = mock(MultiValueDictionary.class);
 
-    List<String> list = new ArrayList<>(Arrays.asList("key1: value1", "key1: value2"));
-    when(dictMock.getItems()).thenReturn(list);
-    Map<String, Set<String>> map = new HashMap();
-    map.put("key1", Set.of("value1", "value2"));
-    when(dictMock.getMap()).thenReturn(map);
+    doAnswer(
+            invocation -> {
+              BiConsumer<String, String> visitor = invocation.getArgument(0);
+              visitor.accept("key1", "value1");
+              visitor.accept("key1", "value2");
+              return null;
+            })
+        .when(dictMock)
+        .forEachItem(ArgumentMatchers.any());
     String[] arguments = new String[] {"ITEMS"};
     App.handleItemsCommand(dictMock, arguments);
+    assertEquals(
+        "1) key1: value1\n2) key1: value2",
+        sysOut.toString().trim().replace(System.lineSeparator(), "\n"));
   }
 
   @Test
@@ -193,14 +206,10 @@ public class AppTest {
   }
 
   @Test
-  public void testHandleRemoveCommandWithExistingKeyValuePairAndNonEmptyMap()
-      throws KeyNotFoundException, MembersNotFoundException {
+  public void testHandleRemoveCommandWithExistingKeyValuePairAndNonEmptyMap() {
     MultiValueDictionary dictMock = mock(MultiValueDictionary.class);
 
-    Map<String, Set<String>> map = new HashMap();
-    map.put("key1", Set.of("value2"));
-    map.put("key2", Set.of("value3", "value4"));
-    doNothing().when(dictMock).removeMemberFromKey("key1", "value1");
+    when(dictMock.tryRemoveMember("key1", "value1")).thenReturn(Outcome.OK);
     String[] arguments = new String[] {"REMOVE", "key1", "value1"};
     App.handleRemoveCommand(dictMock, arguments);
     assertEquals("Removed", sysOut.toString().trim());
@@ -210,12 +219,19 @@ public class AppTest {
   public void testHandleAllMembersCommandAndNonEmptyMap()
       throws KeyNotFoundException, MembersNotFoundException {
     MultiValueDictionary dictMock = mock(MultiValueDictionary.class);
-    List<Set<String>> setList = new ArrayList<>();
-    setList.add(Set.of("value3"));
-    setList.add(Set.of("value3"));
-    when(dictMock.getAllMembers()).thenReturn(setList);
+    doAnswer(
+            invocation -> {
+              Consumer<String> visitor = invocation.getArgument(0);
+              visitor.accept("value3");
+              visitor.accept("value3");
+              return null;
+            })
+        .when(dictMock)
+        .forEachMember(ArgumentMatchers.any());
     String[] arguments = new String[] {"ALLMEMBERS"};
     App.handleAllMembersCommand(dictMock, arguments);
+    assertEquals(
+        "1) value3\n2) value3", sysOut.toString().trim().replace(System.lineSeparator(), "\n"));
   }
 
   @Test
@@ -238,29 +254,22 @@ public class AppTest {
   }
 
   @Test
-  public void testHandleRemoveCommandWithOneArgumentAndNonEmptyMap()
-      throws KeyNotFoundException, MembersNotFoundException {
+  public void testHandleRemoveCommandWithOneArgumentAndNonEmptyMap() {
     MultiValueDictionary dictMock = mock(MultiValueDictionary.class);
-    Map<String, Set<String>> map = new HashMap<>();
-    map.put("key1", Set.of("value2"));
-    map.put("key2", Set.of("value3", "value4"));
-    when(dictMock.getMap()).thenReturn(map);
+    when(dictMock.tryRemoveMember("key1", "value1")).thenReturn(Outcome.OK);
 
     String[] arguments = new String[] {"REMOVE", "key1", "value1"};
     App.handleRemoveCommand(dictMock, arguments);
     verify(dictMock)
-        .removeMemberFromKey(ArgumentMatchers.eq("key1"), ArgumentMatchers.eq("value1"));
+        .tryRemoveMember(ArgumentMatchers.eq("key1"), ArgumentMatchers.eq("value1"));
     assertEquals("Removed", sysOut.toString().trim());
   }
 
   @Test
-  public void testHandleRemoveCommandKeyNotFoundException()
-      throws KeyNotFoundException, MembersNotFoundException {
+  public void testHandleRemoveCommandKeyNotFound() {
     MultiValueDictionary dictMock = mock(MultiValueDictionary.class);
     String[] arguments = new String[] {"REMOVE", "key", "value"};
-    doThrow(new KeyNotFoundException("Error, key does not exist."))
-        .when(dictMock)
-        .removeMemberFromKey("key", "value");
+    when(dictMock.tryRemoveMember("key", "value")).thenReturn(Outcome.KEY_NOT_FOUND);
     App.handleRemoveCommand(dictMock, arguments);
     assertEquals(
         String.format(MultiValueDictionary.NOT_EXIST_ERROR_MESSAGE_TEMPLATE, "key"),
@@ -279,16 +288,24 @@ public class AppTest {
   }
 
   @Test
-  public void testHandleMemberExistsCommand() throws KeyNotFoundException, KeyNotFoundException {
+  public void testHandleMemberExistsCommand() {
     MultiValueDictionary dictMock = mock(MultiValueDictionary.class);
     String[] arguments = {"MEMBEREXISTS", "key1", "value1"};
-    when(dictMock.isMemberExistsWithinAKey("key1", "value1")).thenReturn(true);
+    when(dictMock.findMember("key1", "value1")).thenReturn(Outcome.OK);
     App.handleMemberExistsCommand(dictMock, arguments);
     assertEquals("true", sysOut.toString().trim());
-    when(dictMock.isMemberExistsWithinAKey("key1", "value1"))
-        .thenThrow(new KeyNotFoundException("Key not found"));
+    when(dictMock.findMember("key1", "value1")).thenReturn(Outcome.KEY_NOT_FOUND);
+    App.handleMemberExistsCommand(dictMock, arguments);
+    assertEquals("ERROR, key does not exist.", sysErr.toString().trim());
+  }
+
+  @Test
+  public void testHandleMemberExistsCommandWithMissingMember() {
+    MultiValueDictionary dictMock = mock(MultiValueDictionary.class);
+    String[] arguments = {"MEMBEREXISTS", "key1", "value2"};
+    when(dictMock.findMember("key1", "value2")).thenReturn(Outcome.MEMBER_NOT_FOUND);
     App.handleMemberExistsCommand(dictMock, arguments);
-    assertEquals("Key not found", sysErr.toString().trim());
+    assertEquals("false", sysOut.toString().trim());
   }
 
   @Test
@@ -318,22 +335,20 @@ public class AppTest {
   }
 
   @Test
-  public void testHandleRemoveAllCommandSuccess() throws KeyNotFoundException {
+  public void testHandleRemoveAllCommandSuccess() {
     MultiValueDictionary dictMock = mock(MultiValueDictionary.class);
     String[] arguments = {"REMOVEALL", "key1"};
+    when(dictMock.tryRemoveAll("key1")).thenReturn(Outcome.OK);
     App.handleRemoveAllCommand(dictMock, arguments);
-    verify(dictMock, times(1)).removeAllMemberOfKey("key1");
+    verify(dictMock, times(1)).tryRemoveAll("key1");
     assertEquals("Removed", sysOut.toString().trim());
   }
 
   @Test
-  public void testHandleRemoveAllCommandWithKeyNotExisting() throws KeyNotFoundException {
+  public void testHandleRemoveAllCommandWithKeyNotExisting() {
     MultiValueDictionary dictMock = mock(MultiValueDictionary.class);
     String[] arguments = {"REMOVEALL", "key1"};
-    App.handleRemoveAllCommand(dictMock, arguments);
-    doThrow(new KeyNotFoundException("Error, key does not exist."))
-        .when(dictMock)
-        .removeAllMemberOfKey("key1");
+    when(dictMock.tryRemoveAll("key1")).thenReturn(Outcome.KEY_NOT_FOUND);
     App.handleRemoveAllCommand(dictMock, arguments);
     assertEquals("Error, key does not exist.", sysErr.toString().trim());
   }
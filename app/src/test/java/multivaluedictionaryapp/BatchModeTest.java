@@ -0,0 +1,149 @@
+package multivaluedictionaryapp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class BatchModeTest {
+
+  private PrintStream originalOut;
+  private PrintStream originalErr;
+
+  @BeforeEach
+  void setUp() {
+    originalOut = System.out;
+    originalErr = System.err;
+  }
+
+  @AfterEach
+  void tearDown() {
+    System.setOut(originalOut);
+    System.setErr(originalErr);
+  }
+
+  private static ByteArrayInputStream script(String... lines) {
+    return new ByteArrayInputStream(
+        (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void testBatchRunsLinesUntilExit() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    PrintStream console = new PrintStream(out);
+    System.setOut(console);
+    System.setErr(new PrintStream(err));
+    MultiValueDictionary dict = new MultiValueDictionary();
+
+    long lines =
+        App.runBatch(
+            dict,
+            script("ADD key value", "ADD key value", "MEMBERS key", "EXIT", "ADD key other"));
+
+    assertEquals(4, lines);
+    assertEquals(
+        "Added\n1) value\nExiting the application.",
+        out.toString().trim().replace(System.lineSeparator(), "\n"));
+    assertEquals("Error, member already exists for key.", err.toString().trim());
+    // the console streams are back in place
+    assertEquals(console, System.out);
+  }
+
+  @Test
+  void testBatchStopsAtEndOfInput() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(out));
+    MultiValueDictionary dict = new MultiValueDictionary();
+    assertEquals(2, App.runBatch(dict, script("ADD key value", "KEYEXISTS key")));
+    assertEquals("Added\ntrue", out.toString().trim().replace(System.lineSeparator(), "\n"));
+  }
+
+  @Test
+  void testBulkCommands() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(out));
+    System.setErr(new PrintStream(err));
+    MultiValueDictionary dict = new MultiValueDictionary();
+    App.runBatch(
+        dict,
+        script(
+            "MADD key a b a",
+            "MADD key",
+            "MMEMBEREXISTS key a key c other a",
+            "MREMOVE key b c",
+            "MREMOVE other a"));
+    assertEquals(
+        "Added 2 of 3\n"
+            + "Error, missing or redundant parameter, please use 'MADD key member [member ...]'.\n"
+            + "true\nfalse\nfalse\nRemoved 1 of 2",
+        out.toString().trim().replace(System.lineSeparator(), "\n"));
+    assertEquals("Error, key does not exist.", err.toString().trim());
+    assertEquals(Outcome.OK, dict.findMember("key", "a"));
+  }
+
+  // One MADD per key loads the same as one ADD per pair; BatchModeBenchmark times both
+  @Test
+  void testBulkLoadMatchesSingleAdds() throws IOException {
+    StringBuilder single = new StringBuilder();
+    StringBuilder bulk = new StringBuilder();
+    for (int k = 0; k < 50; k++) {
+      bulk.append("MADD key").append(k);
+      for (int m = 0; m < 10; m++) {
+        single.append("ADD key").append(k).append(" member").append(m).append('\n');
+        bulk.append(" member").append(m);
+      }
+      bulk.append('\n');
+    }
+    System.setOut(new PrintStream(new ByteArrayOutputStream()));
+    MultiValueDictionary pairs = new MultiValueDictionary();
+    App.runBatch(
+        pairs, new ByteArrayInputStream(single.toString().getBytes(StandardCharsets.UTF_8)));
+    MultiValueDictionary bulkLoaded = new MultiValueDictionary();
+    App.runBatch(
+        bulkLoaded, new ByteArrayInputStream(bulk.toString().getBytes(StandardCharsets.UTF_8)));
+    assertEquals(pairs, bulkLoaded);
+  }
+
+  // Batch mode prints what the interactive loop, a Scanner feeding execute(), prints
+  @Test
+  void testBatchMatchesInteractiveLoop() throws IOException {
+    int commands = 2_000;
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < commands; i++) {
+      builder.append("ADD key").append(i % 100).append(" member").append(i % 300).append('\n');
+      builder.append("MEMBEREXISTS key").append(i % 100).append(" member").append(i).append('\n');
+    }
+    byte[] input = builder.toString().getBytes(StandardCharsets.UTF_8);
+
+    ByteArrayOutputStream interactiveOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream interactiveErr = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(interactiveOut));
+    System.setErr(new PrintStream(interactiveErr));
+    MultiValueDictionary interactive = new MultiValueDictionary();
+    Scanner scanner = new Scanner(new ByteArrayInputStream(input));
+    while (scanner.hasNextLine()) {
+      App.execute(interactive, scanner.nextLine());
+    }
+
+    ByteArrayOutputStream batchOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream batchErr = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(batchOut));
+    System.setErr(new PrintStream(batchErr));
+    MultiValueDictionary batch = new MultiValueDictionary();
+    long lines = App.runBatch(batch, new ByteArrayInputStream(input));
+
+    assertEquals(2L * commands, lines);
+    assertEquals(interactiveOut.toString(), batchOut.toString());
+    assertEquals(interactiveErr.toString(), batchErr.toString());
+    assertEquals(interactive, batch);
+  }
+}
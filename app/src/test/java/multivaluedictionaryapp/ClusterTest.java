@@ -0,0 +1,462 @@
+package multivaluedictionaryapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static multivaluedictionaryapp.ServerHarness.awaitPort;
+import static multivaluedictionaryapp.ServerHarness.command;
+import static multivaluedictionaryapp.ServerHarness.connect;
+import static multivaluedictionaryapp.ServerHarness.output;
+import static multivaluedictionaryapp.ServerHarness.receive;
+import static multivaluedictionaryapp.ServerHarness.send;
+import static multivaluedictionaryapp.ServerHarness.startApp;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class ClusterTest {
+
+  private static final int KEYS = 300;
+
+  @Test
+  void testRingSpreadsKeysEvenly() {
+    List<String> nodes = List.of("10.0.0.1:70", "10.0.0.2:70", "10.0.0.3:70", "10.0.0.4:70");
+    HashRing ring = new HashRing(nodes, HashRing.DEFAULT_VIRTUAL_NODES);
+    Map<String, Integer> counts = new HashMap<>();
+    int keys = 100_000;
+    for (int i = 0; i < keys; i++) {
+      counts.merge(ring.nodeFor("key" + i), 1, Integer::sum);
+    }
+    assertEquals(4, counts.size());
+    for (int count : counts.values()) {
+      assertTrue(Math.abs(count - keys / 4) < keys / 4 / 5, counts.toString());
+    }
+  }
+
+  @Test
+  void testAddedNodeTakesOnlyItsOwnRanges() {
+    HashRing ring = new HashRing(List.of("a:1", "b:1", "c:1"), HashRing.DEFAULT_VIRTUAL_NODES);
+    HashRing grown = ring.withNode("d:1");
+    List<long[]> ranges = grown.rangesOf("d:1");
+    int moved = 0;
+    int keys = 20_000;
+    for (int i = 0; i < keys; i++) {
+      String key = "key" + i;
+      long hash = HashRing.hash(key);
+      boolean inRanges = false;
+      for (long[] range : ranges) {
+        inRanges |= HashRing.inRange(hash, range[0], range[1]);
+      }
+      if (grown.nodeFor(key).equals(ring.nodeFor(key))) {
+        assertTrue(!inRanges, key);
+      } else {
+        assertEquals("d:1", grown.nodeFor(key));
+        assertTrue(inRanges, key);
+        moved++;
+      }
+    }
+    assertTrue(moved > keys / 5 && moved < keys * 3 / 10, String.valueOf(moved));
+    assertEquals(List.of("a:1", "b:1", "c:1", "d:1"), grown.nodes());
+    assertThrows(IllegalArgumentException.class, () -> grown.withNode("a:1"));
+  }
+
+  // Three nodes and a router, each in a process of its own, talking over loopback
+  @Test
+  void testClusterOfProcesses() throws Exception {
+    List<Process> processes = new ArrayList<>();
+    try {
+      List<String> nodes = new ArrayList<>();
+      for (int n = 0; n < 3; n++) {
+        Process node = startApp("--port", "0", "--migrate-to", "127.0.0.1");
+        processes.add(node);
+        nodes.add("127.0.0.1:" + awaitPort(output(node)));
+      }
+      Process router = startApp("--cluster", nodes.get(0) + "," + nodes.get(1), "--port", "0");
+      processes.add(router);
+      int routerPort = awaitPort(output(router));
+
+      try (Socket client = connect(routerPort)) {
+        StringBuilder commands = new StringBuilder();
+        for (int i = 0; i < KEYS; i++) {
+          commands.append("MADD key").append(i).append(" a b").append(i % 3).append('\n');
+        }
+        send(client, commands.toString());
+        receive(client, KEYS);
+        assertEquals(Set.of("a", "b1"), new HashSet<>(lines(command(client, "MEMBERS key1"))));
+        assertEquals(
+            "true\nfalse\ntrue\n\n", command(client, "MMEMBEREXISTS key1 b1 key2 b1 key2 b2"));
+        assertEquals(KEYS + "\n\n", command(client, "DBSIZE"));
+        assertEquals(KEYS, lines(command(client, "KEYS")).size());
+        assertEquals(2 * KEYS, lines(command(client, "ITEMS")).size());
+        assertEquals(KEYS / 3, lines(command(client, "KEYSFOR b0")).size());
+        assertEquals(
+            "1) key29\n2) key290\n3) key291\n4) key292\n5) key293\n6) key294\n7) key295\n"
+                + "8) key296\n9) key297\n10) key298\n11) key299\n\n",
+            command(client, "KEYS key29"));
+        assertEquals(
+            String.format(ClusterRouter.NOT_SUPPORTED_ERROR, "SCAN") + "\n\n",
+            command(client, "SCAN 0"));
+        assertEquals(
+            String.format(App.MISSING_OR_REDUNDANT_PARAMETER_ERROR, "MEMBERS key") + "\n\n",
+            command(client, "MEMBERS"));
+
+        HashRing before = new HashRing(nodes.subList(0, 2), HashRing.DEFAULT_VIRTUAL_NODES);
+        HashRing after = before.withNode(nodes.get(2));
+        int expectedMoves = 0;
+        for (int i = 0; i < KEYS; i++) {
+          if (after.nodeFor("key" + i).equals(nodes.get(2))) {
+            expectedMoves++;
+          }
+        }
+        assertEquals(
+            "Added " + nodes.get(2) + ", migrated " + expectedMoves + " keys\n\n",
+            command(client, "CLUSTER ADDNODE " + nodes.get(2)));
+        assertTrue(expectedMoves > 0);
+
+        // every node holds exactly the keys the new ring gives it
+        for (String node : nodes) {
+          int nodePort = Integer.parseInt(node.substring(node.indexOf(':') + 1));
+          Set<String> expected = new HashSet<>();
+          for (int i = 0; i < KEYS; i++) {
+            if (after.nodeFor("key" + i).equals(node)) {
+              expected.add("key" + i);
+            }
+          }
+          try (Socket direct = connect(nodePort)) {
+            assertEquals(expected, new HashSet<>(lines(command(direct, "KEYS"))));
+          }
+        }
+        assertEquals(KEYS + "\n\n", command(client, "DBSIZE"));
+        for (int i = 0; i < KEYS; i++) {
+          assertEquals(
+              Set.of("a", "b" + i % 3),
+              new HashSet<>(lines(command(client, "MEMBERS key" + i))),
+              "key" + i);
+        }
+        assertEquals("Cleared\n\n", command(client, "CLEAR"));
+        assertEquals("0\n\n", command(client, "DBSIZE"));
+        assertEquals(App.EMPTY_SET_MESSAGE + "\n\n", command(client, "ITEMS"));
+      }
+
+      for (Process process : processes) {
+        OutputStream input = process.getOutputStream();
+        input.write("EXIT\n".getBytes(StandardCharsets.UTF_8));
+        input.flush();
+      }
+      for (Process process : processes) {
+        assertTrue(process.waitFor(20, TimeUnit.SECONDS));
+      }
+    } finally {
+      for (Process process : processes) {
+        process.destroyForcibly();
+      }
+    }
+  }
+
+  // The target holds back its replies, so the keys stay on the way while the source serves on
+  @Test
+  void testMigrationRunsInTheBackgroundAndRedirectsItsKeys() throws Exception {
+    MultiValueDictionary source = new MultiValueDictionary();
+    MultiValueDictionary target = new MultiValueDictionary();
+    Set<String> moving = new HashSet<>();
+    String inRange = null;
+    String outOfRange = null;
+    for (int i = 0; i < 100; i++) {
+      String key = "key" + i;
+      source.tryAdd(key, "member");
+      // the range below holds the positive hashes
+      if (HashRing.hash(key) > 0) {
+        moving.add(key);
+        inRange = key;
+      } else {
+        outOfRange = key;
+      }
+    }
+    CountDownLatch release = new CountDownLatch(1);
+    // takes the MADD lines itself, App would redirect them as its migration is the source's
+    DictionaryServer server =
+        DictionaryServer.start(
+            (line, out) -> {
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              List<String> tokens = List.of(line.split(" "));
+              target.tryAddMembers(tokens.get(1), tokens.subList(2, tokens.size()));
+              out.println("Added " + (tokens.size() - 2));
+              return true;
+            },
+            () -> {},
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    String node = "127.0.0.1:" + server.port();
+    String migrate = "MIGRATE " + node + " 0 " + Long.MAX_VALUE;
+    try {
+      App.setMigrationHosts(Set.of("localhost"));
+      assertEquals(App.MIGRATE_HOST_ERROR + "\n", run(source, migrate));
+      App.setMigrationHosts(Set.of("127.0.0.1"));
+      assertEquals("Migrating " + moving.size() + " keys to " + node + "\n", run(source, migrate));
+      assertEquals(
+          String.format(App.MIGRATION_RUNNING_ERROR, node) + "\n", run(source, migrate));
+
+      // once its batch is copied a key takes no more writes, but is still read here
+      String moved = String.format(Migration.MOVING_ERROR, inRange, node) + "\n";
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (!run(source, "PERSIST " + inRange).equals(moved)) {
+        assertTrue(System.nanoTime() < deadline, "the migration did not start");
+        Thread.sleep(1);
+      }
+      assertEquals("1) member\n", run(source, "MEMBERS " + inRange));
+      // a key of the range that was not there at the start belongs to the node already
+      String added = "new0";
+      for (int i = 1; HashRing.hash(added) <= 0; i++) {
+        added = "new" + i;
+      }
+      assertEquals(
+          String.format(Migration.MOVED_ERROR, added, node) + "\n",
+          run(source, "ADD " + added + " member"));
+      assertTrue(run(source, "ADD " + outOfRange + " other").startsWith("Added"));
+      assertTrue(run(source, "MIGRATION").startsWith("Migrating, 0 of " + moving.size()));
+
+      release.countDown();
+      String done = "Migrated " + moving.size() + " keys to " + node + "\n";
+      String status;
+      while (!(status = run(source, "MIGRATION")).equals(done)) {
+        assertTrue(status.startsWith("Migrating, ") && System.nanoTime() < deadline, status);
+        Thread.sleep(1);
+      }
+      assertEquals(moving, target.getKeys());
+      assertEquals(100 - moving.size(), source.getKeys().size());
+      assertEquals(Set.of("member", "other"), source.getMembers(outOfRange));
+    } finally {
+      release.countDown();
+      server.close();
+      App.setMigrationHosts(null);
+    }
+  }
+
+  @Test
+  void testRouterPassesOnAnErrorOfAnyNode() throws Exception {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    dict.tryAdd("key", "member");
+    DictionaryServer healthy =
+        DictionaryServer.start(
+            (line, out) -> App.execute(dict, line, out, out),
+            () -> {},
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    DictionaryServer failing =
+        DictionaryServer.start(
+            (line, out) -> {
+              out.println("Error, out of order.");
+              return true;
+            },
+            () -> {},
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    String healthyNode = "127.0.0.1:" + healthy.port();
+    String failingNode = "127.0.0.1:" + failing.port();
+    try {
+      // either of them may come first
+      for (List<String> nodes :
+          List.of(List.of(healthyNode, failingNode), List.of(failingNode, healthyNode))) {
+        try (ClusterRouter router = new ClusterRouter(nodes, HashRing.DEFAULT_VIRTUAL_NODES)) {
+          for (String command : List.of("DBSIZE", "KEYS", "ITEMS", "CLEAR")) {
+            assertEquals("Error, out of order.\n", route(router, command), nodes + " " + command);
+          }
+        }
+      }
+    } finally {
+      healthy.close();
+      failing.close();
+    }
+  }
+
+  @Test
+  void testAddAllKeepsLinesWithinTheServerLimit() throws Exception {
+    List<String> lines = new ArrayList<>();
+    MultiValueDictionary dict = new MultiValueDictionary();
+    DictionaryServer server =
+        DictionaryServer.start(
+            (line, out) -> {
+              synchronized (lines) {
+                lines.add(line);
+              }
+              return App.execute(dict, line, out, out);
+            },
+            () -> {},
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    try (NodeConnection connection = new NodeConnection("127.0.0.1:" + server.port())) {
+      // the key alone takes half a line, the members are three bytes a character
+      String key = "k".repeat(NodeConnection.MAX_LINE_BYTES / 2);
+      List<String> members = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+        members.add(i + "\u20ac".repeat(1_000));
+      }
+      connection.addAll(Map.of(key, members));
+      assertEquals(new HashSet<>(members), dict.getMembers(key));
+      assertTrue(lines.size() > 1);
+      for (String line : lines) {
+        assertTrue(
+            line.getBytes(StandardCharsets.UTF_8).length <= NodeConnection.MAX_LINE_BYTES);
+      }
+
+      lines.clear();
+      String tooLong = "m".repeat(NodeConnection.MAX_LINE_BYTES / 2);
+      IOException refused =
+          assertThrows(
+              IOException.class,
+              () -> connection.addAll(Map.of("other", List.of("a"), key, List.of(tooLong))));
+      assertTrue(refused.getMessage().contains("too long"), refused.getMessage());
+      assertTrue(lines.isEmpty());
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  void testRouterFollowsTheRedirectsOfAMigration() throws Exception {
+    MultiValueDictionary target = new MultiValueDictionary();
+    DictionaryServer targetServer =
+        DictionaryServer.start(target, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    String targetNode = "127.0.0.1:" + targetServer.port();
+    int[] writes = new int[1];
+    // refuses the first writes while the key is on the way, then it has moved
+    DictionaryServer source =
+        DictionaryServer.start(
+            (line, out) -> {
+              String key = line.split(" ")[1];
+              if (line.startsWith("ADD ") && writes[0]++ < 2) {
+                out.println(String.format(Migration.MOVING_ERROR, key, targetNode));
+              } else {
+                out.println(String.format(Migration.MOVED_ERROR, key, targetNode));
+              }
+              return true;
+            },
+            () -> {},
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    try (ClusterRouter router =
+        new ClusterRouter(
+            List.of("127.0.0.1:" + source.port()), HashRing.DEFAULT_VIRTUAL_NODES)) {
+      assertEquals("Added\n", route(router, "ADD key member"));
+      assertEquals(3, writes[0]);
+      assertEquals("1) member\n", route(router, "MEMBERS key"));
+      assertEquals(Set.of("member"), target.getMembers("key"));
+    } finally {
+      source.close();
+      targetServer.close();
+    }
+  }
+
+  // The router keeps serving while ADDNODE waits for the keys, and routes by the new ring
+  @Test
+  void testAddNodeRunsAlongsideOtherCommands() throws Exception {
+    MultiValueDictionary source = new MultiValueDictionary();
+    for (int i = 0; i < 100; i++) {
+      source.tryAdd("key" + i, "member");
+    }
+    DictionaryServer sourceServer =
+        DictionaryServer.start(source, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    String sourceNode = "127.0.0.1:" + sourceServer.port();
+    MultiValueDictionary target = new MultiValueDictionary();
+    CompletableFuture<Void> release = new CompletableFuture<>();
+    // takes the MADD lines itself once released, App would redirect them as its migration is the
+    // source's
+    DictionaryServer targetServer =
+        DictionaryServer.start(
+            new DictionaryServer.LineHandler() {
+              @Override
+              public boolean execute(String line, PrintStream out) {
+                out.println(target.getKeyCount());
+                return true;
+              }
+
+              @Override
+              public CompletableFuture<String> executeLater(String line) {
+                if (!line.startsWith("MADD ")) {
+                  return null;
+                }
+                List<String> tokens = List.of(line.split(" "));
+                return release.thenApply(
+                    done -> {
+                      target.tryAddMembers(tokens.get(1), tokens.subList(2, tokens.size()));
+                      return "Added " + (tokens.size() - 2) + "\n";
+                    });
+              }
+            },
+            () -> {},
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    String targetNode = "127.0.0.1:" + targetServer.port();
+    ClusterRouter router = new ClusterRouter(List.of(sourceNode), HashRing.DEFAULT_VIRTUAL_NODES);
+    DictionaryServer routerServer =
+        DictionaryServer.start(
+            router, () -> {}, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    try (Socket adding = connect(routerServer.port());
+        Socket other = connect(routerServer.port())) {
+      send(adding, "CLUSTER ADDNODE " + targetNode + "\n");
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (!command(other, "CLUSTER NODES").contains(targetNode)) {
+        assertTrue(System.nanoTime() < deadline, "the migration did not start");
+        Thread.sleep(1);
+      }
+      // every key is still on the source, which serves the ones the target takes over
+      assertEquals("100\n\n", command(other, "DBSIZE"));
+      for (int i = 0; i < 100; i++) {
+        assertEquals("1) member\n\n", command(other, "MEMBERS key" + i));
+      }
+      assertEquals(0, adding.getInputStream().available());
+
+      release.complete(null);
+      String added = receive(adding, 1);
+      assertTrue(added.startsWith("Added " + targetNode + ", migrated "), added);
+      assertEquals(100, source.getKeyCount() + target.getKeyCount());
+      assertTrue(target.getKeyCount() > 0);
+      assertEquals(Set.of(sourceNode, targetNode), new HashSet<>(router.ring().nodes()));
+    } finally {
+      release.complete(null);
+      routerServer.close();
+      router.close();
+      sourceServer.close();
+      targetServer.close();
+    }
+  }
+
+  private static String route(ClusterRouter router, String line) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes, true, StandardCharsets.UTF_8);
+    router.execute(line, out);
+    return bytes.toString(StandardCharsets.UTF_8).replace("\r", "");
+  }
+
+  private static String run(MultiValueDictionary dict, String line) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes, true, StandardCharsets.UTF_8);
+    App.execute(dict, line, out, out);
+    return bytes.toString(StandardCharsets.UTF_8).replace("\r", "");
+  }
+
+  // The numbered lines of a reply without their numbers
+  private static List<String> lines(String reply) {
+    List<String> lines = new ArrayList<>();
+    for (String line : reply.split("\n")) {
+      if (!line.isEmpty() && !line.equals(App.EMPTY_SET_MESSAGE)) {
+        lines.add(line.substring(line.indexOf(") ") + 2));
+      }
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,132 @@
+package multivaluedictionaryapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class CommandStatsTest {
+
+  @AfterEach
+  void switchOff() {
+    App.setCommandStatsEnabled(false);
+  }
+
+  @Test
+  void testBucketsCoverEveryValue() {
+    long previous = -1;
+    for (int b = 0; CommandStats.upperBound(b) < Long.MAX_VALUE; b++) {
+      long upper = CommandStats.upperBound(b);
+      assertEquals(b, CommandStats.bucket(previous + 1));
+      assertEquals(b, CommandStats.bucket(upper));
+      // at most 1/8 wide
+      assertTrue(upper - previous <= Math.max(1, previous / 8 + 1));
+      previous = upper;
+    }
+    assertEquals(
+        CommandStats.bucket(Long.MAX_VALUE),
+        CommandStats.bucket(CommandStats.upperBound(CommandStats.bucket(Long.MAX_VALUE))));
+  }
+
+  @Test
+  void testPercentilesAreWithinTheBucketWidth() {
+    CommandStats stats = new CommandStats();
+    assertEquals(0, stats.percentileNanos(0.99));
+    Random random = new Random(5);
+    long[] values = new long[100_000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = 100 + random.nextInt(1_000_000);
+      stats.record(values[i]);
+    }
+    Arrays.sort(values);
+    for (double q : new double[] {0.5, 0.9, 0.99, 0.999}) {
+      long exact = values[(int) Math.ceil(q * values.length) - 1];
+      long reported = stats.percentileNanos(q);
+      assertTrue(reported >= exact && reported <= exact + exact / 8, q + ": " + reported);
+    }
+    assertEquals(values[values.length - 1], stats.percentileNanos(1));
+    assertEquals(values.length, stats.calls());
+    stats.reset();
+    assertEquals(0, stats.calls());
+  }
+
+  @Test
+  void testStatsCommand() {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes);
+    App.execute(dict, "STATS", out, out);
+    assertEquals(App.STATS_OFF_MESSAGE, bytes.toString().trim());
+
+    App.setCommandStatsEnabled(true);
+    App.execute(dict, "STATS reset", out, out);
+    App.execute(dict, "ADD key a", out, out);
+    App.execute(dict, "ADD key a", out, out);
+    App.execute(dict, "ADD key", out, out);
+    App.execute(dict, "MEMBEREXISTS missing a", out, out);
+    App.execute(dict, "MEMBERS key", out, out);
+    bytes.reset();
+    App.execute(dict, "STATS", out, out);
+    String[] lines = bytes.toString().trim().split(System.lineSeparator());
+    assertEquals("# Commandstats", lines[0]);
+    Map<String, String> add = fields(lines, "cmdstat_add");
+    assertEquals("3", add.get("calls"));
+    assertEquals("2", add.get("errors"));
+    assertEquals("1", add.get("errors_MEMBER_ALREADY_EXISTS"));
+    assertEquals("1", add.get("errors_USAGE"));
+    assertTrue(
+        Double.parseDouble(add.get("usec_p50")) <= Double.parseDouble(add.get("usec_max")));
+    assertEquals("1", fields(lines, "cmdstat_memberexists").get("errors_KEY_NOT_FOUND"));
+    assertEquals("0", fields(lines, "cmdstat_members").get("errors"));
+
+    bytes.reset();
+    App.execute(dict, "STATS reset", out, out);
+    App.execute(dict, "STATS", out, out);
+    // only the reset itself has been counted since
+    lines = bytes.toString().trim().split(System.lineSeparator());
+    assertEquals(3, lines.length);
+    assertEquals("Reset", lines[0]);
+    assertEquals("1", fields(lines, "cmdstat_stats").get("calls"));
+  }
+
+  @Test
+  void testOptions() {
+    App.setCommandStats(new String[] {"--stats"});
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    // other tests may have left calls behind
+    App.execute(new MultiValueDictionary(), "STATS reset", new PrintStream(bytes), System.err);
+    bytes.reset();
+    App.execute(new MultiValueDictionary(), "STATS", new PrintStream(bytes), System.err);
+    String[] lines = bytes.toString().trim().split(System.lineSeparator());
+    assertEquals(2, lines.length);
+    assertEquals("# Commandstats", lines[0]);
+    assertEquals("1", fields(lines, "cmdstat_stats").get("calls"));
+    App.setCommandStats(new String[0]);
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> App.setCommandStats(new String[] {"--stats-interval", "0"}));
+  }
+
+  // name=value fields of the line starting with prefix
+  private static Map<String, String> fields(String[] lines, String prefix) {
+    for (String line : lines) {
+      if (line.startsWith(prefix + ":")) {
+        Map<String, String> fields = new HashMap<>();
+        for (String field : line.substring(prefix.length() + 1).split(",")) {
+          String[] pair = field.split("=");
+          fields.put(pair[0], pair[1]);
+        }
+        return fields;
+      }
+    }
+    throw new AssertionError("no " + prefix + " line");
+  }
+}
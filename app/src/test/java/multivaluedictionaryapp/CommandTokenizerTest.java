@@ -0,0 +1,104 @@
+package multivaluedictionaryapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class CommandTokenizerTest {
+
+  @ParameterizedTest
+  @ValueSource(
+      strings = {
+        "ADD key value", "  KEYS ", "", "   ", "ADD  key value", "ADD\tkey value", "MEMBERS key ",
+        "a b c d e f g h i j", " x"
+      })
+  void testSplitsLikeTrimAndSplit(String line) {
+    CommandTokenizer tokens = new CommandTokenizer();
+    tokens.reset(line);
+    String[] expected = line.trim().split(" ");
+    assertEquals(expected.length, tokens.count());
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], tokens.token(i));
+      assertTrue(tokens.tokenEquals(i, expected[i]));
+      assertEquals(expected[i].hashCode(), tokens.tokenHash(i));
+    }
+  }
+
+  @Test
+  void testTokenizerIsReusable() {
+    CommandTokenizer tokens = new CommandTokenizer();
+    tokens.reset("a b c d e f");
+    tokens.reset("KEYS");
+    assertEquals(1, tokens.count());
+    assertTrue(tokens.tokenEquals(0, "KEYS"));
+    assertFalse(tokens.tokenEquals(0, "KEY"));
+  }
+
+  @Test
+  void testTableFindsCommandsAndChecksTokenCount() {
+    int[] calls = new int[1];
+    CommandTable table = new CommandTable("use '%s'");
+    for (int i = 0; i < 40; i++) {
+      table.add("CMD" + i + " key", (dict, tokens, out, err) -> calls[0]++);
+    }
+    CommandTokenizer tokens = new CommandTokenizer();
+    tokens.reset("CMD17 key");
+    assertEquals("CMD17", table.lookup(tokens).name());
+    tokens.reset("CMD40 key");
+    assertEquals(null, table.lookup(tokens));
+    assertThrows(
+        IllegalArgumentException.class, () -> table.add("CMD3", (dict, t, out, err) -> {}));
+
+    PrintStream originalOut = System.out;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(out));
+    try {
+      tokens.reset("CMD1 key");
+      table.lookup(tokens).run(null, tokens, System.out, System.err);
+      tokens.reset("CMD1");
+      table.lookup(tokens).run(null, tokens, System.out, System.err);
+    } finally {
+      System.setOut(originalOut);
+    }
+    assertEquals(1, calls[0]);
+    assertEquals("use 'CMD1 key'", out.toString().trim());
+  }
+
+  @Test
+  void testTrailingGroupIsOptionalOrRepeats() {
+    int[] calls = new int[1];
+    CommandTable table =
+        new CommandTable("use '%s'")
+            .add("MADD key member [member ...]", (dict, tokens, out, err) -> calls[0]++)
+            .add("MPAIRS key member [key member ...]", (dict, tokens, out, err) -> calls[0]++)
+            .add("KEYS [prefix]", (dict, tokens, out, err) -> calls[0]++);
+    PrintStream originalOut = System.out;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(out));
+    CommandTokenizer tokens = new CommandTokenizer();
+    try {
+      for (String line :
+          new String[] {
+            "MADD k", "MADD k a", "MADD k a b c", "MPAIRS k a", "MPAIRS k a k2", "MPAIRS k a k2 b",
+            "KEYS", "KEYS p", "KEYS p q"
+          }) {
+        tokens.reset(line);
+        table.lookup(tokens).run(null, tokens, System.out, System.err);
+      }
+    } finally {
+      System.setOut(originalOut);
+    }
+    assertEquals(6, calls[0]);
+    assertEquals(
+        "use 'MADD key member [member ...]'\nuse 'MPAIRS key member [key member ...]'\n"
+            + "use 'KEYS [prefix]'",
+        out.toString().trim().replace(System.lineSeparator(), "\n"));
+  }
+}
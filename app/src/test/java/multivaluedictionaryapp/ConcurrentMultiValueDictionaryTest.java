@@ -0,0 +1,385 @@
+package multivaluedictionaryapp;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ConcurrentMultiValueDictionaryTest {
+
+  @TempDir Path dir;
+
+  private ConcurrentMultiValueDictionary dict;
+
+  @BeforeEach
+  void setUp() {
+    dict = new ConcurrentMultiValueDictionary();
+  }
+
+  @Test
+  void testSingleThreadedSemanticsMatchMultiValueDictionary() throws Exception {
+    dict.add("key1", "value1");
+    dict.add("key1", "value2");
+    MemberAlreadyExistsException exists =
+        assertThrows(MemberAlreadyExistsException.class, () -> dict.add("key1", "value1"));
+    assertEquals("Error, member already exists for key.", exists.getMessage());
+    assertTrue(dict.isMemberExistsWithinAKey("key1", "value2"));
+
+    MembersNotFoundException missingMember =
+        assertThrows(
+            MembersNotFoundException.class, () -> dict.removeMemberFromKey("key1", "value3"));
+    assertEquals("Error, member does not exist.", missingMember.getMessage());
+    KeyNotFoundException missingKey =
+        assertThrows(KeyNotFoundException.class, () -> dict.removeMemberFromKey("key2", "value1"));
+    assertEquals("Error, key does not exist.", missingKey.getMessage());
+
+    dict.removeMemberFromKey("key1", "value1");
+    dict.removeMemberFromKey("key1", "value2");
+    assertFalse(dict.isKeyExists("key1"));
+    assertThrows(KeyNotFoundException.class, () -> dict.removeAllMemberOfKey("key1"));
+    assertThrows(KeyNotFoundException.class, () -> dict.getMembers("key1"));
+  }
+
+  @Test
+  void testOutcomesMatchMultiValueDictionary() {
+    MultiValueDictionary plain = new MultiValueDictionary();
+    for (MultiValueDictionary d : new MultiValueDictionary[] {dict, plain}) {
+      assertEquals(Outcome.OK, d.tryAdd("key1", "value1"));
+      assertEquals(Outcome.MEMBER_ALREADY_EXISTS, d.tryAdd("key1", "value1"));
+      assertEquals(Outcome.OK, d.findMember("key1", "value1"));
+      assertEquals(Outcome.MEMBER_NOT_FOUND, d.findMember("key1", "value2"));
+      assertEquals(Outcome.KEY_NOT_FOUND, d.findMember("key2", "value1"));
+      assertEquals(Outcome.MEMBER_NOT_FOUND, d.tryRemoveMember("key1", "value2"));
+      assertEquals(Outcome.KEY_NOT_FOUND, d.tryRemoveMember("key2", "value1"));
+      assertEquals(Outcome.OK, d.tryRemoveMember("key1", "value1"));
+      assertEquals(null, d.findMembers("key1"));
+      assertEquals(Outcome.KEY_NOT_FOUND, d.tryRemoveAll("key1"));
+      assertEquals(Outcome.OK, d.tryAdd("key3", "value3"));
+      assertEquals(Outcome.OK, d.tryRemoveAll("key3"));
+    }
+    assertEquals(plain.getMap(), dict.snapshot());
+  }
+
+  @Test
+  void testBulkOutcomesMatchMultiValueDictionary() {
+    MultiValueDictionary plain = new MultiValueDictionary();
+    for (MultiValueDictionary d : new MultiValueDictionary[] {dict, plain}) {
+      assertEquals(3, d.tryAddMembers("key1", List.of("a", "b", "c", "a")).cardinality());
+      assertEquals(0, d.tryAddMembers("key1", List.of("a", "b")).cardinality());
+      assertEquals(null, d.tryRemoveMembers("key2", List.of("a")));
+      assertEquals(0, d.tryRemoveMembers("key1", List.of("x")).cardinality());
+      assertEquals(
+          BitSet.valueOf(new long[] {0b11}),
+          d.findMemberPairs(List.of("key1", "key1", "key2"), List.of("a", "c", "a")));
+      assertEquals(2, d.tryRemoveMembers("key1", List.of("a", "c")).cardinality());
+      d.tryAddMembers("key3", List.of("x", "y"));
+      assertEquals(2, d.tryRemoveMembers("key3", List.of("x", "y")).cardinality());
+      assertEquals(null, d.findMembers("key3"));
+    }
+    assertEquals(plain.getMap(), dict.snapshot());
+  }
+
+  @Test
+  void testConcurrentAddsOnSharedKeysLoseNothing() throws Exception {
+    int threads = 8;
+    int membersPerThread = 5_000;
+    runConcurrently(
+        threads,
+        t -> {
+          for (int i = 0; i < membersPerThread; i++) {
+            dict.add("key" + (i % 16), t + "-" + i);
+          }
+        });
+    assertEquals(16, dict.getKeys().size());
+    assertEquals(threads * membersPerThread, dict.getItems().size());
+  }
+
+  @Test
+  void testOnlyOneThreadWinsEachAddAndRemove() throws Exception {
+    int threads = 8;
+    int pairs = 2_000;
+    AtomicInteger added = new AtomicInteger();
+    AtomicInteger removed = new AtomicInteger();
+    runConcurrently(
+        threads,
+        t -> {
+          for (int i = 0; i < pairs; i++) {
+            try {
+              dict.add("key" + (i % 7), "member" + i);
+              added.incrementAndGet();
+            } catch (MemberAlreadyExistsException e) {
+              // another thread got there first
+            }
+          }
+        });
+    runConcurrently(
+        threads,
+        t -> {
+          for (int i = 0; i < pairs; i++) {
+            try {
+              dict.removeMemberFromKey("key" + (i % 7), "member" + i);
+              removed.incrementAndGet();
+            } catch (KeyNotFoundException | MembersNotFoundException e) {
+              // another thread got there first
+            }
+          }
+        });
+    assertEquals(pairs, added.get());
+    assertEquals(pairs, removed.get());
+    // the key must disappear with its last member, never linger as an empty set
+    assertTrue(dict.getKeys().isEmpty());
+  }
+
+  @Test
+  void testScansSeeOnePointInTimeWhileWritersRun() throws Exception {
+    int keys = 20_000;
+    AtomicInteger inconsistentScans = new AtomicInteger();
+    runConcurrently(
+        2,
+        t -> {
+          if (t == 0) {
+            // keys appear strictly in order, so every consistent view is a prefix
+            for (int i = 0; i < keys; i++) {
+              dict.add("key" + i, "member");
+            }
+          } else {
+            for (int scan = 0; scan < 50; scan++) {
+              Set<String> seen = dict.getKeys();
+              for (int i = 0; i < seen.size(); i++) {
+                if (!seen.contains("key" + i)) {
+                  inconsistentScans.incrementAndGet();
+                  break;
+                }
+              }
+            }
+          }
+        });
+    assertEquals(0, inconsistentScans.get());
+    assertEquals(keys, dict.getItems().size());
+  }
+
+  @Test
+  void testSnapshotIsNotAffectedByLaterWrites() throws Exception {
+    dict.add("key1", "value1");
+    dict.add("key2", "value2");
+    Map<String, Set<String>> snapshot = dict.snapshot();
+    dict.add("key1", "value3");
+    dict.removeAllMemberOfKey("key2");
+    assertEquals(Map.of("key1", Set.of("value1"), "key2", Set.of("value2")), snapshot);
+    assertEquals(Set.of("value1", "value3"), dict.getMembers("key1"));
+    assertEquals(Set.of("key1"), dict.getKeys());
+    assertFalse(dict.getMap().containsKey("key2"));
+  }
+
+  @Test
+  void testScansSeeAllOrNothingOfALoad() throws Exception {
+    Set<String> oldKeys = new HashSet<>();
+    Set<String> newKeys = new HashSet<>();
+    for (int k = 0; k < 200; k++) {
+      dict.add("new" + k, "member");
+      newKeys.add("new" + k);
+    }
+    Path file = dir.resolve("dict.snap");
+    dict.save(file);
+    dict.clearMap();
+    for (int k = 0; k < 200; k++) {
+      dict.add("old" + k, "member");
+      oldKeys.add("old" + k);
+    }
+    AtomicBoolean loaded = new AtomicBoolean();
+    AtomicInteger mixedScans = new AtomicInteger();
+    runConcurrently(
+        3,
+        t -> {
+          if (t == 0) {
+            dict.load(file);
+            loaded.set(true);
+          } else if (t == 1) {
+            // writes keep going through the load
+            for (int i = 0; !loaded.get() || i < 1_000; i++) {
+              dict.tryAdd("writer", "member" + i);
+            }
+          } else {
+            while (!loaded.get()) {
+              Set<String> keys = new HashSet<>(dict.getKeys());
+              keys.remove("writer");
+              if (!keys.equals(oldKeys) && !keys.equals(newKeys)) {
+                mixedScans.incrementAndGet();
+              }
+            }
+          }
+        });
+    assertEquals(0, mixedScans.get());
+    Set<String> keys = new HashSet<>(dict.getKeys());
+    keys.remove("writer");
+    assertEquals(newKeys, keys);
+    assertEquals(dict.getKeys().size(), dict.getKeyCount());
+  }
+
+  @Test
+  void testSaveWhileWritersRunKeepsTheirRecordsInTheLog() throws Exception {
+    Path log = dir.resolve("dict.log");
+    Path snapshot = dir.resolve("dict.snapshot");
+    // large enough that writers run while each snapshot is being written
+    for (int i = 0; i < 100_000; i++) {
+      dict.add("bulk" + (i % 1_000), "member" + i);
+    }
+    WriteAheadLog wal = WriteAheadLog.open(log, dict, WriteAheadLog.FsyncPolicy.OS, 0);
+    runConcurrently(
+        5,
+        t -> {
+          if (t == 0) {
+            for (int i = 0; i < 5; i++) {
+              dict.save(snapshot);
+            }
+            return;
+          }
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          for (int i = 0; i < 20_000; i++) {
+            String key = "key" + random.nextInt(50);
+            String member = "member" + random.nextInt(20);
+            if (random.nextBoolean()) {
+              dict.tryAdd(key, member);
+            } else {
+              dict.tryRemoveMember(key, member);
+            }
+          }
+        });
+    wal.close();
+
+    MultiValueDictionary restored = new MultiValueDictionary();
+    WriteAheadLog.open(log, restored, WriteAheadLog.FsyncPolicy.OS, 0).close();
+    assertEquals(dict.snapshot(), restored.getMap());
+  }
+
+  @Test
+  void testFailingListenerDoesNotStallLaterWriters() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    dict.addMutationListener(
+        new MutationListener() {
+          @Override
+          public void onAdd(String key, String member) {
+            if (calls.getAndIncrement() == 0) {
+              throw new IllegalStateException("closed");
+            }
+          }
+
+          @Override
+          public void onRemove(String key, String member) {}
+
+          @Override
+          public void onRemoveAll(String key, Set<String> members) {}
+
+          @Override
+          public void onClear() {}
+        });
+    assertThrows(IllegalStateException.class, () -> dict.tryAdd("key1", "value1"));
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Outcome> later = executor.submit(() -> dict.tryAdd("key2", "value2"));
+      assertEquals(Outcome.OK, later.get(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(Map.of("key1", Set.of("value1"), "key2", Set.of("value2")), dict.snapshot());
+    assertEquals(Outcome.OK, dict.tryRemoveAll("key1"));
+  }
+
+  @Test
+  void testStalledWriterDoesNotHoldUpOtherKeys() throws Exception {
+    // a key whose stripe differs from that of "slow" in the low bits, so in every stripe count
+    String fast = "fast";
+    for (int i = 0; stripeBits(fast) == stripeBits("slow"); i++) {
+      fast = "fast" + i;
+    }
+    CountDownLatch stalled = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    dict.addMutationListener(
+        new MutationListener() {
+          @Override
+          public void onAdd(String key, String member) {
+            if (key.equals("slow")) {
+              stalled.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            }
+          }
+
+          @Override
+          public void onRemove(String key, String member) {}
+
+          @Override
+          public void onRemoveAll(String key, Set<String> members) {}
+
+          @Override
+          public void onClear() {}
+        });
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Outcome> slow = executor.submit(() -> dict.tryAdd("slow", "value"));
+      assertTrue(stalled.await(10, TimeUnit.SECONDS));
+      // the slow write has taken its stamp but not returned; nothing else waits for it
+      assertEquals(Outcome.OK, dict.tryAdd(fast, "value"));
+      assertEquals(Outcome.OK, dict.tryRemoveAll(fast));
+      assertEquals(Outcome.OK, dict.tryAdd(fast, "other"));
+      assertEquals(Set.of("other"), dict.snapshot().get(fast));
+      release.countDown();
+      assertEquals(Outcome.OK, slow.get(10, TimeUnit.SECONDS));
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+    assertEquals(Map.of("slow", Set.of("value"), fast, Set.of("other")), dict.snapshot());
+  }
+
+  private static int stripeBits(String key) {
+    return SymbolTable.spread(key.hashCode()) & 31;
+  }
+
+  private interface Worker {
+    void run(int threadIndex) throws Exception;
+  }
+
+  private static void runConcurrently(int threads, Worker worker) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      int threadIndex = t;
+      futures.add(
+          executor.submit(
+              () -> {
+                start.await();
+                worker.run(threadIndex);
+                return null;
+              }));
+    }
+    start.countDown();
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+  }
+}
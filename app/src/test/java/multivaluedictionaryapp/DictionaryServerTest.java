@@ -0,0 +1,175 @@
+package multivaluedictionaryapp;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import static multivaluedictionaryapp.ServerHarness.receive;
+import static multivaluedictionaryapp.ServerHarness.send;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class DictionaryServerTest {
+
+  private MultiValueDictionary dict;
+  private DictionaryServer server;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    dict = new MultiValueDictionary();
+    server =
+        DictionaryServer.start(dict, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    server.close();
+  }
+
+  private Socket connect() throws IOException {
+    return ServerHarness.connect(server.port());
+  }
+
+  @Test
+  void testPipelinedCommandsAreAnsweredInOrder() throws IOException {
+    try (Socket socket = connect()) {
+      send(socket, "ADD key a\nADD key a\r\nADD key b\nMEMBERS key\nFOO\nKEYS a b\n");
+      assertEquals(
+          "Added\n\nError, member already exists for key.\n\nAdded\n\n1) a\n2) b\n\n"
+              + "ERROR: Unknown command. Please use a valid command or type EXIT to quit.\n\n"
+              + "Error, missing or redundant parameter, please use 'KEYS [prefix]'.\n\n",
+          receive(socket, 6));
+    }
+  }
+
+  @Test
+  void testCommandSplitAcrossWrites() throws IOException, InterruptedException {
+    try (Socket socket = connect()) {
+      send(socket, "ADD ke");
+      Thread.sleep(50);
+      send(socket, "y val\u00e4\nKEYEXI");
+      Thread.sleep(50);
+      send(socket, "STS key\n");
+      assertEquals("Added\n\ntrue\n\n", receive(socket, 2));
+    }
+    assertEquals(Outcome.OK, dict.findMember("key", "val\u00e4"));
+  }
+
+  @Test
+  void testExitClosesOnlyThatConnection() throws IOException {
+    try (Socket first = connect();
+        Socket second = connect()) {
+      send(first, "ADD key value\nEXIT\nADD key other\n");
+      assertEquals("Added\n\nExiting the application.\n\n", receive(first, 3));
+      assertEquals(-1, first.getInputStream().read());
+
+      send(second, "MEMBERS key\n");
+      assertEquals("1) value\n\n", receive(second, 1));
+    }
+  }
+
+  @Test
+  void testLineLongerThanBufferIsRejected() throws IOException {
+    char[] line = new char[DictionaryServer.BUFFER_SIZE + 10];
+    Arrays.fill(line, 'x');
+    try (Socket socket = connect()) {
+      send(socket, new String(line));
+      assertEquals(DictionaryServer.LINE_TOO_LONG_ERROR + "\n\n", receive(socket, 1));
+    }
+  }
+
+  @Test
+  void testFailingCommandGetsAnErrorAndTheServerCarriesOn() throws IOException {
+    RuntimeException failure = new IllegalStateException("broken");
+    int[] ticks = new int[1];
+    try (DictionaryServer failing =
+            DictionaryServer.start(
+                (line, out) -> {
+                  if (line.equals("FAIL")) {
+                    throw failure;
+                  }
+                  out.println(line);
+                  return true;
+                },
+                () -> {
+                  if (ticks[0]++ == 0) {
+                    throw failure;
+                  }
+                },
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), failing.port())) {
+      socket.setSoTimeout(10_000);
+      send(socket, "one\nFAIL\ntwo\n");
+      String error = String.format(DictionaryServer.COMMAND_FAILED_ERROR, failure);
+      assertEquals("one\n\n" + error + "\n\ntwo\n\n", receive(socket, 3));
+    }
+  }
+
+  // A reply worked out on another thread holds back only the lines after it on its connection
+  @Test
+  void testLaterReplyKeepsTheOrderOfItsConnection() throws IOException {
+    CompletableFuture<String> later = new CompletableFuture<>();
+    DictionaryServer.LineHandler handler =
+        new DictionaryServer.LineHandler() {
+          @Override
+          public boolean execute(String line, PrintStream out) {
+            out.println(line);
+            return true;
+          }
+
+          @Override
+          public CompletableFuture<String> executeLater(String line) {
+            return line.equals("SLOW") ? later : null;
+          }
+        };
+    try (DictionaryServer deferring =
+            DictionaryServer.start(
+                handler, () -> {}, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Socket waiting = ServerHarness.connect(deferring.port());
+        Socket other = ServerHarness.connect(deferring.port())) {
+      send(waiting, "one\nSLOW\ntwo\n");
+      assertEquals("one\n\n", receive(waiting, 1));
+      send(other, "three\n");
+      assertEquals("three\n\n", receive(other, 1));
+      assertEquals(0, waiting.getInputStream().available());
+
+      later.complete("slow\n");
+      assertEquals("slow\n\ntwo\n\n", receive(waiting, 2));
+      send(waiting, "four\n");
+      assertEquals("four\n\n", receive(waiting, 1));
+    }
+  }
+
+  @Test
+  void testAppListensOnLoopbackUnlessBindIsGiven() throws IOException {
+    assertTrue(App.bindAddress(new String[] {"--port", "0"}, 0).getAddress().isLoopbackAddress());
+    InetSocketAddress any = App.bindAddress(new String[] {"--bind", "0.0.0.0"}, 7070);
+    assertTrue(any.getAddress().isAnyLocalAddress());
+    assertEquals(7070, any.getPort());
+  }
+
+  // A client that sends but never reads is held back, the server keeps serving the others
+  @Test
+  void testSlowReaderDoesNotBlockOthers() throws IOException {
+    for (int i = 0; i < 100; i++) {
+      dict.tryAdd("key", "member" + i);
+    }
+    StringBuilder lines = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      lines.append("MEMBERS key\n");
+    }
+    try (Socket slow = connect();
+        Socket other = connect()) {
+      send(slow, lines.toString());
+      send(other, "KEYEXISTS key\n");
+      assertEquals("true\n\n", receive(other, 1));
+    }
+  }
+}
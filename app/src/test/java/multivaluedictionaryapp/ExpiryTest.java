@@ -0,0 +1,286 @@
+package multivaluedictionaryapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+public class ExpiryTest {
+
+  private final AtomicLong clock = new AtomicLong(1_000);
+
+  private MultiValueDictionary newDictionary(StorageMode mode) {
+    MultiValueDictionary dict = new MultiValueDictionary(mode);
+    dict.setExpiryClock(clock::get);
+    return dict;
+  }
+
+  @Test
+  void testWheelFiresEachEntryAtItsDeadline() {
+    long start = 5_000;
+    TimingWheel<long[]> wheel = new TimingWheel<>(entry -> entry[0], start);
+    Random random = new Random(17);
+    List<long[]> entries = new ArrayList<>();
+    for (int i = 0; i < 20_000; i++) {
+      // spread over every level and past the top one
+      long[] entry = {start + 1 + (random.nextLong() >>> (24 + random.nextInt(40)))};
+      entries.add(entry);
+      wheel.schedule(entry);
+    }
+    Set<long[]> fired = new HashSet<>();
+    long now = start;
+    while (fired.size() < entries.size()) {
+      long from = now;
+      now += 1 + (random.nextLong() >>> (30 + random.nextInt(34)));
+      long until = now;
+      long[] last = {Long.MIN_VALUE};
+      wheel.advance(
+          now,
+          entry -> {
+            assertTrue(entry[0] > from && entry[0] <= until);
+            assertTrue(entry[0] >= last[0]);
+            last[0] = entry[0];
+            assertTrue(fired.add(entry));
+          });
+      assertEquals(entries.size() - fired.size(), wheel.size());
+    }
+  }
+
+  @ParameterizedTest
+  @EnumSource(StorageMode.class)
+  void testExpiredKeysAndMembersAreNeverSeen(StorageMode mode) {
+    MultiValueDictionary dict = newDictionary(mode);
+    dict.tryAddMembers("session", List.of("a", "b"));
+    dict.tryAddMembers("group", List.of("x", "y"));
+    dict.tryAdd("kept", "member");
+    assertEquals(Outcome.OK, dict.expire("session", 1_000));
+    assertEquals(Outcome.OK, dict.expireMember("group", "x", 500));
+    assertEquals(1_000, dict.getTtl("session"));
+    assertEquals(ExpiryTable.NO_TTL, dict.getTtl("kept"));
+
+    clock.addAndGet(499);
+    assertEquals(Set.of("x", "y"), dict.findMembers("group"));
+    clock.addAndGet(1);
+    // nothing reaps in between, the read itself expires the member
+    assertEquals(Set.of("y"), dict.findMembers("group"));
+    assertEquals(ExpiryTable.NOT_FOUND, dict.getTtl("group", "x"));
+    clock.addAndGet(500);
+    assertEquals(Set.of("group", "kept"), dict.getKeys());
+    assertEquals(List.of("group: y", "kept: member"), sorted(dict.getItems()));
+    assertNull(dict.findMembers("session"));
+    assertEquals(ExpiryTable.NOT_FOUND, dict.getTtl("session"));
+    assertEquals(0, dict.getExpiryTable().size());
+  }
+
+  @Test
+  void testLastMemberTakesTheKeyAlong() {
+    MultiValueDictionary dict = newDictionary(StorageMode.HASH);
+    dict.tryAdd("key", "only");
+    dict.expireMember("key", "only", 10);
+    clock.addAndGet(10);
+    assertFalse(dict.isKeyExists("key"));
+    assertEquals(Outcome.KEY_NOT_FOUND, dict.expireMember("key", "only", 10));
+    assertEquals(Outcome.KEY_NOT_FOUND, dict.expire("missing", 10));
+  }
+
+  @Test
+  void testPersistReplaceAndRecreate() {
+    MultiValueDictionary dict = newDictionary(StorageMode.HASH);
+    dict.tryAdd("persisted", "member");
+    dict.tryAdd("replaced", "member");
+    dict.tryAdd("recreated", "member");
+    dict.expire("persisted", 100);
+    dict.expire("replaced", 100);
+    dict.expire("recreated", 100);
+    assertTrue(dict.persist("persisted"));
+    assertFalse(dict.persist("persisted"));
+    dict.expire("replaced", 300);
+    // REMOVEALL drops the TTL with the key, the new key has none
+    dict.tryRemoveAll("recreated");
+    dict.tryAdd("recreated", "member");
+
+    clock.addAndGet(200);
+    assertEquals(Set.of("persisted", "replaced", "recreated"), dict.getKeys());
+    assertEquals(100, dict.getTtl("replaced"));
+    assertEquals(ExpiryTable.NO_TTL, dict.getTtl("recreated"));
+    clock.addAndGet(100);
+    assertEquals(Set.of("persisted", "recreated"), dict.getKeys());
+
+    assertEquals(Outcome.OK, dict.expire("persisted", 0));
+    assertFalse(dict.isKeyExists("persisted"));
+  }
+
+  @Test
+  void testListenersSeeExpiryAsRemovals() {
+    MultiValueDictionary dict = newDictionary(StorageMode.HASH);
+    dict.setKeyIndexEnabled(true);
+    dict.setReverseIndexEnabled(true);
+    dict.tryAddMembers("key1", List.of("a", "b"));
+    dict.tryAdd("key2", "a");
+    dict.expire("key1", 50);
+    dict.expireMember("key2", "a", 60);
+    clock.addAndGet(60);
+    dict.expireDue();
+    assertEquals(0, dict.getKeyIndex().size());
+    assertEquals(0, dict.getReverseIndex().size());
+    assertEquals(List.of(), dict.getKeysWithPrefix("key", 10));
+  }
+
+  @Test
+  void testConcurrentDictionaryExpiresUnderLoad() throws Exception {
+    ConcurrentMultiValueDictionary dict = new ConcurrentMultiValueDictionary();
+    dict.setExpiryClock(clock::get);
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      Future<?>[] writers = new Future<?>[4];
+      for (int t = 0; t < writers.length; t++) {
+        int seed = t;
+        writers[t] =
+            pool.submit(
+                () -> {
+                  Random random = new Random(seed);
+                  for (int i = 0; i < 20_000; i++) {
+                    String key = "key" + random.nextInt(200);
+                    dict.tryAdd(key, "member" + random.nextInt(5));
+                    if (random.nextInt(4) == 0) {
+                      dict.expire(key, 1 + random.nextInt(100));
+                    } else if (random.nextInt(4) == 0) {
+                      String member = "member" + random.nextInt(5);
+                      dict.expireMember(key, member, 1 + random.nextInt(100));
+                    }
+                    if (seed == 0 && i % 100 == 0) {
+                      clock.incrementAndGet();
+                    }
+                  }
+                });
+      }
+      for (Future<?> writer : writers) {
+        writer.get(1, TimeUnit.MINUTES);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    // every TTL set so far has run out, what is left was added after its key or member expired
+    clock.addAndGet(100);
+    for (String key : dict.getKeys()) {
+      assertEquals(ExpiryTable.NO_TTL, dict.getTtl(key));
+      for (String member : dict.findMembers(key)) {
+        assertEquals(ExpiryTable.NO_TTL, dict.getTtl(key, member));
+      }
+    }
+    assertEquals(0, dict.getExpiryTable().size());
+  }
+
+  @Test
+  void testExpiryDoesNotDeadlockWithConcurrentLoad() throws Exception {
+    ConcurrentMultiValueDictionary dict = new ConcurrentMultiValueDictionary();
+    dict.setExpiryClock(clock::get);
+    CountDownLatch loading = new CountDownLatch(1);
+    // runs before the expiry table's onLoad, while LOAD keeps writers out
+    dict.addMutationListener(
+        new MutationListener() {
+          @Override
+          public void onAdd(String key, String member) {}
+
+          @Override
+          public void onRemove(String key, String member) {}
+
+          @Override
+          public void onRemoveAll(String key, Set<String> members) {}
+
+          @Override
+          public void onClear() {}
+
+          @Override
+          public void onLoad(Path snapshot) {
+            loading.countDown();
+            try {
+              // lets the expiring thread reach the LOAD gate
+              Thread.sleep(200);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
+    dict.add("key", "member");
+    dict.expire("key", 10);
+    Thread loader =
+        new Thread(() -> dict.load(Map.of("other", List.of("member")), Paths.get("other")));
+    loader.setDaemon(true);
+    loader.start();
+    loading.await();
+    clock.addAndGet(20);
+    Thread expirer = new Thread(dict::expireDue);
+    expirer.setDaemon(true);
+    expirer.start();
+    loader.join(10_000);
+    expirer.join(10_000);
+    assertFalse(loader.isAlive());
+    assertFalse(expirer.isAlive());
+    assertEquals(Set.of("other"), dict.getKeys());
+  }
+
+  @Test
+  void testExpiryCommands() {
+    MultiValueDictionary dict = newDictionary(StorageMode.HASH);
+    dict.tryAddMembers("key", List.of("a", "b"));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes);
+    App.execute(dict, "TTL key", out, out);
+    App.execute(dict, "EXPIRE key 10", out, out);
+    App.execute(dict, "EXPIRE key 5 a", out, out);
+    clock.addAndGet(1);
+    App.execute(dict, "TTL key", out, out);
+    App.execute(dict, "TTL key a", out, out);
+    App.execute(dict, "PERSIST key", out, out);
+    App.execute(dict, "PERSIST key", out, out);
+    App.execute(dict, "TTL key c", out, out);
+    App.execute(dict, "TTL missing", out, out);
+    App.execute(dict, "EXPIRE key soon", out, out);
+    App.execute(dict, "EXPIRE key 0 b", out, out);
+    clock.addAndGet(5_000);
+    App.execute(dict, "MEMBERS key", out, out);
+    assertEquals(
+        String.join(
+            "\n",
+            App.NO_EXPIRY_MESSAGE,
+            "Expiry set",
+            "Expiry set",
+            "10",
+            "5",
+            "true",
+            "false",
+            Outcome.MEMBER_NOT_FOUND.message(),
+            Outcome.KEY_NOT_FOUND.message(),
+            App.SECONDS_ERROR,
+            "Removed",
+            Outcome.KEY_NOT_FOUND.message()),
+        bytes.toString().trim().replace(System.lineSeparator(), "\n"));
+  }
+
+  private static List<String> sorted(List<String> items) {
+    List<String> copy = new ArrayList<>(items);
+    copy.sort(null);
+    return copy;
+  }
+}
@@ -0,0 +1,156 @@
+package multivaluedictionaryapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+public class KeyIndexTest {
+
+  @TempDir Path dir;
+
+  // The sorted keys in [from, to), worked out from getKeys()
+  private static List<String> expectedRange(MultiValueDictionary dict, String from, String to) {
+    List<String> keys = new ArrayList<>();
+    for (String key : dict.getKeys()) {
+      if (key.compareTo(from) >= 0 && (to == null || key.compareTo(to) < 0)) {
+        keys.add(key);
+      }
+    }
+    keys.sort(null);
+    return keys;
+  }
+
+  @ParameterizedTest
+  @EnumSource(StorageMode.class)
+  void testIndexFollowsEveryMutation(StorageMode mode) {
+    MultiValueDictionary dict = new MultiValueDictionary(mode);
+    dict.tryAdd("a:0", "member");
+    dict.setKeyIndexEnabled(true);
+    Random random = new Random(13);
+    for (int i = 0; i < 20_000; i++) {
+      String key = (char) ('a' + random.nextInt(3)) + ":" + random.nextInt(20);
+      String member = "member" + random.nextInt(5);
+      int op = random.nextInt(20);
+      if (op < 10) {
+        dict.tryAdd(key, member);
+      } else if (op < 16) {
+        dict.tryRemoveMember(key, member);
+      } else if (op < 17) {
+        dict.tryAddMembers(key, List.of(member, "member" + random.nextInt(5)));
+      } else if (op < 18) {
+        dict.tryRemoveMembers(key, List.of(member, "member" + random.nextInt(5)));
+      } else if (op < 19 || i % 1000 != 0) {
+        dict.tryRemoveAll(key);
+      } else {
+        dict.clearMap();
+      }
+    }
+    assertEquals(dict.getKeys().size(), dict.getKeyIndex().size());
+    assertEquals(expectedRange(dict, "", null), dict.getKeyRange("", null, Integer.MAX_VALUE));
+    assertEquals(expectedRange(dict, "b:", "b;"), dict.getKeysWithPrefix("b:", 1000));
+    assertEquals(expectedRange(dict, "a:1", "c:"), dict.getKeyRange("a:1", "c:", 1000));
+  }
+
+  @Test
+  void testRangesAndPrefixesWithAndWithoutIndex() throws Exception {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    for (String key : new String[] {"tenant41:z", "tenant42:b", "tenant42:a", "tenant420", "t"}) {
+      dict.add(key, "member");
+    }
+    dict.add("\uffff\uffff", "member");
+    for (boolean indexed : new boolean[] {false, true}) {
+      dict.setKeyIndexEnabled(indexed);
+      assertEquals(List.of("tenant42:a", "tenant42:b"), dict.getKeysWithPrefix("tenant42:", 10));
+      assertEquals(List.of("tenant42:a"), dict.getKeysWithPrefix("tenant42:", 1));
+      assertEquals(
+          List.of("tenant420", "tenant42:a", "tenant42:b"),
+          dict.getKeysWithPrefix("tenant42", 10));
+      assertEquals(
+          List.of("tenant41:z", "tenant420", "tenant42:a"),
+          dict.getKeyRange("tenant41", "tenant42:b", 10));
+      assertEquals(List.of(), dict.getKeyRange("tenant42:b", "tenant41", 10));
+      assertEquals(List.of("\uffff\uffff"), dict.getKeysWithPrefix("\uffff", 10));
+      assertEquals(6, dict.getKeysWithPrefix("", 10).size());
+    }
+  }
+
+  @Test
+  void testIndexIsRebuiltOnLoad() throws Exception {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    dict.add("key1", "member");
+    dict.add("key2", "member");
+    Path snapshot = dir.resolve("dict.snap");
+    dict.save(snapshot);
+    dict.setKeyIndexEnabled(true);
+    dict.add("key3", "member");
+    dict.load(snapshot);
+    assertEquals(List.of("key1", "key2"), dict.getKeysWithPrefix("key", 10));
+    dict.removeMemberFromKey("key1", "member");
+    assertEquals(List.of("key2"), dict.getKeysWithPrefix("key", 10));
+  }
+
+  @Test
+  void testConcurrentWritersKeepIndexConsistent() throws Exception {
+    ConcurrentMultiValueDictionary dict = new ConcurrentMultiValueDictionary();
+    dict.setKeyIndexEnabled(true);
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      Future<?>[] writers = new Future<?>[4];
+      for (int t = 0; t < writers.length; t++) {
+        int seed = t;
+        writers[t] =
+            pool.submit(
+                () -> {
+                  Random random = new Random(seed);
+                  for (int i = 0; i < 20_000; i++) {
+                    String key = "key" + random.nextInt(50);
+                    String member = "member" + random.nextInt(3);
+                    if (random.nextInt(2) > 0) {
+                      dict.tryAdd(key, member);
+                    } else {
+                      dict.tryRemoveMember(key, member);
+                    }
+                  }
+                });
+      }
+      for (Future<?> writer : writers) {
+        writer.get(1, TimeUnit.MINUTES);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    assertEquals(expectedRange(dict, "", null), dict.getKeyRange("", null, 100));
+  }
+
+  @Test
+  void testKeyRangePages() {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    dict.setKeyIndexEnabled(true);
+    for (int i = 0; i < 5; i++) {
+      dict.tryAdd("key" + i, "member");
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes);
+    App.execute(dict, "KEYRANGE key1 key9 2", out, out);
+    App.execute(dict, "KEYRANGE key3 key9 2", out, out);
+    App.execute(dict, "KEYRANGE key9 key99 2", out, out);
+    App.execute(dict, "KEYRANGE key1 key9 none", out, out);
+    assertEquals(
+        "1) key1\n2) key2\n(next page from key3)\n1) key3\n2) key4\n(empty set)\n"
+            + App.COUNT_ERROR,
+        bytes.toString().trim().replace(System.lineSeparator(), "\n"));
+  }
+}
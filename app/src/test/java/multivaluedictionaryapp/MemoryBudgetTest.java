@@ -0,0 +1,213 @@
+package multivaluedictionaryapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import multivaluedictionaryapp.MemoryBudget.EvictionPolicy;
+
+public class MemoryBudgetTest {
+
+  private static final long BUDGET = 200_000;
+
+  @TempDir Path dir;
+
+  // What a budget attached from scratch would count for the current contents
+  private static long recount(MultiValueDictionary dict) {
+    MultiValueDictionary copy = new MultiValueDictionary();
+    dict.forEachItem(copy::tryAdd);
+    copy.setMemoryBudget(Long.MAX_VALUE, EvictionPolicy.RANDOM);
+    return copy.getMemoryBudget().usedBytes();
+  }
+
+  @ParameterizedTest
+  @EnumSource(EvictionPolicy.class)
+  void testBudgetIsNeverExceeded(EvictionPolicy policy) {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    dict.setMemoryBudget(BUDGET, policy);
+    MemoryBudget budget = dict.getMemoryBudget();
+    Random random = new Random(19);
+    for (int i = 0; i < 20_000; i++) {
+      String key = "key" + random.nextInt(5_000);
+      if (random.nextInt(10) == 0) {
+        dict.tryRemoveMember(key, "member" + random.nextInt(8));
+      } else {
+        dict.tryAdd(key, "member" + random.nextInt(8));
+      }
+      assertTrue(budget.usedBytes() <= BUDGET);
+    }
+    assertTrue(budget.evictedKeys() > 0);
+    assertTrue(budget.evictedBytes() > budget.evictedKeys() * 100);
+    assertEquals(recount(dict), budget.usedBytes());
+  }
+
+  // 100 keys read between every ADD survive a stream of 20k keys read once
+  @ParameterizedTest
+  @EnumSource(
+      value = EvictionPolicy.class,
+      names = {"LRU", "LFU"})
+  void testHotKeysSurvive(EvictionPolicy policy) {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    for (int i = 0; i < 100; i++) {
+      dict.tryAdd("hot" + i, "member");
+    }
+    dict.setMemoryBudget(BUDGET, policy);
+    for (int i = 0; i < 20_000; i++) {
+      dict.tryAdd("cold" + i, "member");
+      dict.findMembers("hot" + i % 100);
+    }
+    int survivors = 0;
+    for (int i = 0; i < 100; i++) {
+      if (dict.isKeyExists("hot" + i)) {
+        survivors++;
+      }
+    }
+    assertTrue(survivors >= 90, policy + " kept " + survivors + " hot keys");
+  }
+
+  @Test
+  void testSwitchingOffAndOn() {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    for (int i = 0; i < 10_000; i++) {
+      dict.tryAdd("key" + i, "member");
+    }
+    // sized up and evicted down to the budget as soon as it is set
+    dict.setMemoryBudget(BUDGET, EvictionPolicy.LRU);
+    assertTrue(dict.getMemoryBudget().usedBytes() <= BUDGET);
+    int kept = dict.getKeys().size();
+    dict.setMemoryBudget(0, EvictionPolicy.LRU);
+    assertNull(dict.getMemoryBudget());
+    dict.tryAdd("one more", "member");
+    assertEquals(kept + 1, dict.getKeys().size());
+    dict.clearMap();
+    dict.setMemoryBudget(BUDGET, EvictionPolicy.LFU);
+    assertEquals(0, dict.getMemoryBudget().usedBytes());
+  }
+
+  @Test
+  void testConcurrentWritersStayWithinBudget() throws Exception {
+    ConcurrentMultiValueDictionary dict = new ConcurrentMultiValueDictionary();
+    dict.setMemoryBudget(BUDGET, EvictionPolicy.LRU);
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      Future<?>[] writers = new Future<?>[4];
+      for (int t = 0; t < writers.length; t++) {
+        int seed = t;
+        writers[t] =
+            pool.submit(
+                () -> {
+                  Random random = new Random(seed);
+                  for (int i = 0; i < 20_000; i++) {
+                    String key = "key" + random.nextInt(5_000);
+                    dict.tryAdd(key, "member" + random.nextInt(4));
+                    dict.findMembers("key" + random.nextInt(5_000));
+                  }
+                });
+      }
+      for (Future<?> writer : writers) {
+        writer.get(1, TimeUnit.MINUTES);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    MemoryBudget budget = dict.getMemoryBudget();
+    assertTrue(budget.usedBytes() <= BUDGET);
+    assertEquals(recount(dict), budget.usedBytes());
+  }
+
+  // Loaded keys are counted from the stored stats and sized when first touched
+  @Test
+  void testLoadKeepsTheCountRight() throws Exception {
+    MultiValueDictionary source = new MultiValueDictionary();
+    for (int i = 0; i < 5_000; i++) {
+      for (int m = 0; m <= i % 4; m++) {
+        source.tryAdd("key" + i, "member" + m);
+      }
+    }
+    Path snapshot = dir.resolve("dict.snap");
+    source.save(snapshot);
+
+    MultiValueDictionary dict = new MultiValueDictionary();
+    dict.setMemoryBudget(Long.MAX_VALUE, EvictionPolicy.LRU);
+    dict.load(snapshot);
+    MemoryBudget budget = dict.getMemoryBudget();
+    assertEquals(recount(source), budget.usedBytes());
+    assertEquals(source.getMemoryUsage("key7") + MemoryBudget.BOOKKEEPING_BYTES, budget.keyBytes("key7"));
+    dict.tryAdd("key1", "new");
+    dict.tryRemoveMember("key2", "member0");
+    dict.tryRemoveMember("key4", "member0");
+    dict.tryRemoveAll("key3");
+    dict.tryAdd("key3", "again");
+    dict.tryAdd("fresh", "member");
+    dict.findMembers("key5");
+    assertEquals(recount(dict), budget.usedBytes());
+
+    // evicts down to the budget right away, sampling among the keys it has not sized
+    for (MultiValueDictionary loaded :
+        new MultiValueDictionary[] {
+          new MultiValueDictionary(), new ConcurrentMultiValueDictionary()
+        }) {
+      loaded.setMemoryBudget(BUDGET, EvictionPolicy.LRU);
+      loaded.tryAdd("fresh", "member");
+      loaded.load(snapshot);
+      assertTrue(loaded.getMemoryBudget().usedBytes() <= BUDGET);
+      assertTrue(loaded.getMemoryBudget().evictedKeys() > 0);
+      assertEquals(recount(loaded), loaded.getMemoryBudget().usedBytes());
+      for (int i = 0; i < 5_000; i++) {
+        loaded.tryAdd("more" + i, "member");
+      }
+      assertEquals(recount(loaded), loaded.getMemoryBudget().usedBytes());
+    }
+  }
+
+  // The budget of every shard, added up
+  @Test
+  void testShardedBudgetIsTheSumOfItsShards() {
+    try (ShardedMultiValueDictionary dict = new ShardedMultiValueDictionary(4)) {
+      assertNull(dict.getMemoryBudget());
+      dict.setMemoryBudget(BUDGET, EvictionPolicy.LRU);
+      for (int i = 0; i < 10_000; i++) {
+        dict.tryAdd("key" + i, "member");
+      }
+      MemoryBudget budget = dict.getMemoryBudget();
+      assertEquals(BUDGET, budget.maxBytes());
+      assertEquals(EvictionPolicy.LRU, budget.policy());
+      assertTrue(budget.usedBytes() <= BUDGET);
+      assertTrue(budget.evictedKeys() > 0);
+      assertEquals(10_000 - dict.getKeyCount(), budget.evictedKeys());
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(bytes);
+      App.execute(dict, "INFO memory", out, out);
+      assertTrue(bytes.toString().contains("max_memory:" + BUDGET));
+      assertTrue(bytes.toString().contains("evicted_keys:" + budget.evictedKeys()));
+    }
+  }
+
+  @Test
+  void testOptions() {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    App.setMemoryBudget(dict, new String[] {"--max-memory", "1000000", "--eviction", "lfu"});
+    assertEquals(1_000_000, dict.getMemoryBudget().maxBytes());
+    assertEquals(EvictionPolicy.LFU, dict.getMemoryBudget().policy());
+    App.setMemoryBudget(dict, new String[] {"--max-memory", "2000"});
+    assertEquals(EvictionPolicy.LRU, dict.getMemoryBudget().policy());
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> App.setMemoryBudget(dict, new String[] {"--max-memory", "1", "--eviction", "x"}));
+  }
+}
@@ -0,0 +1,203 @@
+package multivaluedictionaryapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+public class MemoryStatsTest {
+
+  @TempDir Path dir;
+
+  // What counting the current contents from scratch gives
+  private static MemoryStats recount(MultiValueDictionary dict) {
+    MultiValueDictionary copy = new MultiValueDictionary();
+    dict.forEachItem(copy::tryAdd);
+    return copy.getMemoryStats();
+  }
+
+  private static void assertCounted(MultiValueDictionary dict) {
+    MemoryStats expected = recount(dict);
+    MemoryStats stats = dict.getMemoryStats();
+    assertEquals(dict.getKeys().size(), stats.keyCount());
+    assertEquals(dict.getItems().size(), stats.itemCount());
+    assertEquals(expected.estimatedBytes(), stats.estimatedBytes());
+    assertArrayEquals(expected.memberCountHistogram(), stats.memberCountHistogram());
+  }
+
+  private static void mutate(MultiValueDictionary dict, Random random, int operations) {
+    for (int i = 0; i < operations; i++) {
+      String key = "key" + random.nextInt(300);
+      String member = "member" + random.nextInt(40);
+      switch (random.nextInt(6)) {
+        case 0:
+          dict.tryRemoveMember(key, member);
+          break;
+        case 1:
+          dict.tryRemoveMembers(key, List.of(member, "member" + random.nextInt(40)));
+          break;
+        case 2:
+          if (random.nextInt(20) == 0) {
+            dict.tryRemoveAll(key);
+          }
+          break;
+        case 3:
+          dict.tryAddMembers(key, List.of(member, "member" + random.nextInt(40)));
+          break;
+        default:
+          dict.tryAdd(key, member);
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @EnumSource(StorageMode.class)
+  void testCountersFollowEveryMutation(StorageMode mode) {
+    MultiValueDictionary dict = new MultiValueDictionary(mode);
+    mutate(dict, new Random(19), 50_000);
+    assertCounted(dict);
+    dict.clearMap();
+    assertEquals(0, dict.getKeyCount());
+    assertEquals(0, dict.getMemoryStats().estimatedBytes());
+    assertArrayEquals(new long[32], dict.getMemoryStats().memberCountHistogram());
+  }
+
+  @Test
+  void testConcurrentDictionaryCounts() throws Exception {
+    ConcurrentMultiValueDictionary dict = new ConcurrentMultiValueDictionary();
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      Future<?>[] writers = new Future<?>[4];
+      for (int t = 0; t < writers.length; t++) {
+        int seed = t;
+        writers[t] = pool.submit(() -> mutate(dict, new Random(seed), 20_000));
+      }
+      for (Future<?> writer : writers) {
+        writer.get(1, TimeUnit.MINUTES);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    assertCounted(dict);
+    dict.clearMap();
+    assertEquals(0, dict.getMemoryStats().itemCount());
+  }
+
+  @Test
+  void testLoadTakesTheStatsStoredInTheSnapshot() throws Exception {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    mutate(dict, new Random(3), 5_000);
+    Path snapshot = dir.resolve("snapshot");
+    dict.save(snapshot);
+    MemoryStats stored = SnapshotFile.open(snapshot).stats();
+    assertEquals(dict.getMemoryStats().keyCount(), stored.keyCount());
+    assertEquals(largestSizes(recount(dict)), largestSizes(stored));
+
+    MultiValueDictionary loaded = new MultiValueDictionary();
+    loaded.tryAdd("replaced", "member");
+    loaded.load(snapshot);
+    assertCounted(loaded);
+    mutate(loaded, new Random(4), 5_000);
+    assertCounted(loaded);
+
+    ConcurrentMultiValueDictionary concurrent = new ConcurrentMultiValueDictionary();
+    concurrent.tryAdd("replaced", "member");
+    concurrent.load(snapshot);
+    assertCounted(concurrent);
+    assertEquals(largestSizes(stored), largestSizes(concurrent.getMemoryStats()));
+  }
+
+  // Member counts of the largest keys, which keys win a tie depends on the order they came in
+  private static List<Integer> largestSizes(MemoryStats stats) {
+    List<Integer> sizes = new ArrayList<>();
+    for (Map.Entry<String, Integer> key : stats.largestKeys(MemoryStats.LARGEST_KEYS)) {
+      sizes.add(key.getValue());
+    }
+    return sizes;
+  }
+
+  @Test
+  void testLargestKeysAndUsage() {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    for (int i = 0; i < 100; i++) {
+      for (int m = 0; m <= i; m++) {
+        dict.tryAdd("key" + i, "member" + m);
+      }
+    }
+    List<Map.Entry<String, Integer>> largest = dict.getMemoryStats().largestKeys(3);
+    assertEquals(
+        List.of(Map.entry("key99", 100), Map.entry("key98", 99), Map.entry("key97", 98)), largest);
+    // the largest shrinks to nothing and the next ones move up
+    dict.tryRemoveAll("key99");
+    dict.tryRemoveMembers("key98", List.of("member0", "member1"));
+    assertEquals(
+        List.of(Map.entry("key97", 98), Map.entry("key98", 97)),
+        dict.getMemoryStats().largestKeys(2));
+
+    dict.tryAdd("key", "member");
+    assertEquals(
+        MemoryStats.keyBytes("key") + MemoryStats.memberBytes("member"),
+        dict.getMemoryUsage("key"));
+    assertEquals(-1, dict.getMemoryUsage("missing"));
+  }
+
+  @Test
+  void testMemoryCommands() {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    dict.tryAddMembers("big", List.of("a", "b", "c"));
+    dict.tryAdd("small", "a");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes);
+    App.execute(dict, "DBSIZE", out, out);
+    App.execute(dict, "MEMORY USAGE small", out, out);
+    App.execute(dict, "MEMORY USAGE missing", out, out);
+    App.execute(dict, "MEMORY STATS small", out, out);
+    App.execute(dict, "INFO", out, out);
+    App.execute(dict, "INFO clients", out, out);
+    long small = MemoryStats.keyBytes("small") + MemoryStats.memberBytes("a");
+    long total = small + dict.getMemoryUsage("big");
+    assertEquals(
+        String.join(
+            "\n",
+            "2",
+            String.valueOf(small),
+            Outcome.KEY_NOT_FOUND.message(),
+            String.format(App.MISSING_OR_REDUNDANT_PARAMETER_ERROR, App.MEMORY_USAGE),
+            "# Memory",
+            "keys:2",
+            "items:4",
+            "estimated_bytes:" + total,
+            "avg_bytes_per_key:" + total / 2,
+            "keys_with_members_1:1",
+            "keys_with_members_2_3:1",
+            "largest_key_1:big members=3",
+            "largest_key_2:small members=1",
+            App.INFO_SECTION_ERROR),
+        bytes.toString().trim().replace(System.lineSeparator(), "\n"));
+
+    bytes.reset();
+    dict.setMemoryBudget(1_000_000, MemoryBudget.EvictionPolicy.LFU);
+    dict.expire("big", 10_000);
+    App.execute(dict, "INFO memory", out, out);
+    String info = bytes.toString();
+    assertTrue(info.contains("max_memory:1000000"));
+    assertTrue(info.contains("eviction_policy:lfu"));
+    assertTrue(info.contains("evicted_keys:0"));
+    assertTrue(info.contains("ttls:1"));
+  }
+}
@@ -1,5 +1,6 @@
 package multivaluedictionaryapp;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -251,6 +252,41 @@ public class MultiValueDictionaryTest {
     assertTrue(items.contains("key2: value2"));
   }
 
+  @Test
+  public void testForEachItemVisitsEveryPair() throws MemberAlreadyExistsException {
+    multiValueDictionary.add("key1", "value1");
+    multiValueDictionary.add("key1", "value2");
+    multiValueDictionary.add("key2", "value3");
+    List<String> items = new ArrayList<>();
+    multiValueDictionary.forEachItem((key, value) -> items.add(key + ": " + value));
+    assertEquals(new HashSet<>(multiValueDictionary.getItems()), new HashSet<>(items));
+    assertEquals(3, items.size());
+  }
+
+  @Test
+  public void testForEachMemberVisitsEveryMember() throws MemberAlreadyExistsException {
+    multiValueDictionary.add("key1", "value1");
+    multiValueDictionary.add("key2", "value1");
+    multiValueDictionary.add("key2", "value2");
+    List<String> members = new ArrayList<>();
+    multiValueDictionary.forEachMember(members::add);
+    members.sort(null);
+    assertEquals(List.of("value1", "value1", "value2"), members);
+  }
+
+  @Test
+  public void testOutcomeApiReportsMisses() {
+    assertEquals(Outcome.OK, multiValueDictionary.tryAdd("key1", "value1"));
+    assertEquals(Outcome.MEMBER_ALREADY_EXISTS, multiValueDictionary.tryAdd("key1", "value1"));
+    assertEquals(Set.of("value1"), multiValueDictionary.findMembers("key1"));
+    assertEquals(null, multiValueDictionary.findMembers("key2"));
+    assertEquals(Outcome.MEMBER_NOT_FOUND, multiValueDictionary.findMember("key1", "value2"));
+    assertEquals(Outcome.KEY_NOT_FOUND, multiValueDictionary.tryRemoveMember("key2", "value1"));
+    assertEquals(Outcome.KEY_NOT_FOUND, multiValueDictionary.tryRemoveAll("key2"));
+    assertEquals(Outcome.OK, multiValueDictionary.tryRemoveMember("key1", "value1"));
+    assertFalse(multiValueDictionary.isKeyExists("key1"));
+  }
+
   @Test
   public void testClearMap() throws MemberAlreadyExistsException {
     multiValueDictionary.add("key1", "value1");
@@ -0,0 +1,280 @@
+package multivaluedictionaryapp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static multivaluedictionaryapp.ServerHarness.awaitLine;
+import static multivaluedictionaryapp.ServerHarness.awaitPort;
+import static multivaluedictionaryapp.ServerHarness.command;
+import static multivaluedictionaryapp.ServerHarness.connect;
+import static multivaluedictionaryapp.ServerHarness.output;
+import static multivaluedictionaryapp.ServerHarness.receive;
+import static multivaluedictionaryapp.ServerHarness.send;
+import static multivaluedictionaryapp.ServerHarness.startApp;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ReplicationTest {
+
+  private static final long WAIT_MILLIS = 20_000;
+
+  @TempDir Path dir;
+
+  private ShardedMultiValueDictionary leaderDict;
+  private ShardedMultiValueDictionary followerDict;
+  private ReplicationLeader leader;
+  private ReplicationFollower follower;
+
+  @BeforeEach
+  void setUp() {
+    leaderDict = new ShardedMultiValueDictionary(2);
+    followerDict = new ShardedMultiValueDictionary(2);
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    if (follower != null) {
+      follower.close();
+    }
+    if (leader != null) {
+      leader.close();
+    }
+    leaderDict.close();
+    followerDict.close();
+  }
+
+  private void startLeader(long backlogBytes) throws IOException {
+    leader =
+        ReplicationLeader.start(
+            leaderDict,
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+            backlogBytes);
+    follower =
+        ReplicationFollower.start(
+            followerDict, new InetSocketAddress(InetAddress.getLoopbackAddress(), leader.port()));
+  }
+
+  private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() > deadline) {
+        fail("Timed out waiting until " + what);
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  private void awaitInSync() throws InterruptedException {
+    await(
+        "the follower has the contents of the leader",
+        () ->
+            follower.appliedSeq() == leader.lastSeq()
+                && follower.state() == ReplicationFollower.State.STREAMING
+                && leaderDict.snapshot().equals(followerDict.snapshot()));
+  }
+
+  @Test
+  void testFollowerBootstrapsFromACopyAndTailsTheStream() throws Exception {
+    for (int i = 0; i < 1_000; i++) {
+      leaderDict.tryAdd("key" + (i % 100), "member" + i);
+    }
+    followerDict.tryAdd("stale", "gone after the copy");
+    startLeader(ReplicationLeader.DEFAULT_BACKLOG_BYTES);
+    awaitInSync();
+    assertEquals(1, follower.fullSyncs());
+
+    leaderDict.tryAdd("new", "member");
+    leaderDict.tryRemoveMember("key1", "member1");
+    leaderDict.tryRemoveAll("key2");
+    leaderDict.tryAddMembers("key\u00e4", List.of("\u00fc", "b"));
+    awaitInSync();
+    leaderDict.clearMap();
+    leaderDict.tryAdd("after", "clear");
+    awaitInSync();
+    assertEquals(Set.of("after"), followerDict.getKeys());
+    assertEquals(1, follower.fullSyncs());
+
+    await(
+        "the leader has the acknowledgement",
+        () -> {
+          List<ReplicationLeader.FollowerStatus> followers = leader.followers();
+          return followers.size() == 1
+              && followers.get(0).ackedSeq() == leader.lastSeq()
+              && followers.get(0).lagRecords() == 0;
+        });
+    assertEquals(0, follower.lagRecords());
+    assertTrue(follower.lastContactMillis() >= 0);
+  }
+
+  @Test
+  void testReconnectContinuesFromTheBacklog() throws Exception {
+    startLeader(ReplicationLeader.DEFAULT_BACKLOG_BYTES);
+    leaderDict.tryAdd("key", "before");
+    awaitInSync();
+
+    leader.disconnectFollowers();
+    leaderDict.tryAdd("key", "while away");
+    awaitInSync();
+    leaderDict.tryAdd("key", "after");
+    awaitInSync();
+    assertEquals(1, follower.fullSyncs());
+    assertEquals(1, follower.partialSyncs());
+  }
+
+  @Test
+  void testFollowerBehindTheBacklogGetsANewCopy() throws Exception {
+    startLeader(1_024);
+    leaderDict.tryAdd("key", "before");
+    awaitInSync();
+
+    leader.disconnectFollowers();
+    for (int i = 0; i < 1_000; i++) {
+      leaderDict.tryAdd("key" + i, "member" + i);
+    }
+    awaitInSync();
+    // the copy streams while the writes go on, which can leave it behind this small backlog again
+    assertTrue(follower.fullSyncs() >= 2);
+    assertEquals(1_001, followerDict.getKeyCount());
+  }
+
+  @Test
+  void testWritersOnEveryShardReachTheFollower() throws Exception {
+    startLeader(ReplicationLeader.DEFAULT_BACKLOG_BYTES);
+    List<Thread> writers = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      int writer = t;
+      writers.add(
+          new Thread(
+              () -> {
+                for (int i = 0; i < 2_000; i++) {
+                  leaderDict.tryAdd("key" + (i % 64), "member" + writer + "-" + i);
+                  if (i % 3 == 0) {
+                    leaderDict.tryRemoveMember("key" + (i % 64), "member" + writer + "-" + i);
+                  }
+                }
+              }));
+    }
+    for (Thread writer : writers) {
+      writer.start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    awaitInSync();
+    assertEquals(4 * (2_000 + 667), leader.lastSeq());
+    assertEquals(
+        4 * 1_333, followerDict.snapshot().values().stream().mapToInt(Set::size).sum());
+  }
+
+  @Test
+  void testLoadSendsEveryFollowerANewCopy() throws Exception {
+    startLeader(ReplicationLeader.DEFAULT_BACKLOG_BYTES);
+    leaderDict.tryAdd("saved", "member");
+    Path snapshot = dir.resolve("snapshot");
+    leaderDict.save(snapshot);
+    leaderDict.tryAdd("not saved", "member");
+    awaitInSync();
+
+    leaderDict.load(snapshot);
+    awaitInSync();
+    assertEquals(Set.of("saved"), followerDict.getKeys());
+    assertEquals(2, follower.fullSyncs());
+  }
+
+  // A leader and two followers, each in a process of its own, talking over loopback
+  @Test
+  void testLeaderAndFollowerProcesses() throws Exception {
+    List<Process> processes = new ArrayList<>();
+    try {
+      Process leaderProcess = startApp("--port", "0", "--replicate-port", "0", "--shards", "2");
+      processes.add(leaderProcess);
+      BufferedReader leaderOutput = output(leaderProcess);
+      int replicationPort = Integer.parseInt(awaitLine(leaderOutput, "Replicating on port "));
+      int leaderPort = awaitPort(leaderOutput);
+      List<Integer> followerPorts = new ArrayList<>();
+      for (int f = 0; f < 2; f++) {
+        Process followerProcess =
+            startApp("--port", "0", "--replica-of", "127.0.0.1:" + replicationPort);
+        processes.add(followerProcess);
+        followerPorts.add(awaitPort(output(followerProcess)));
+      }
+
+      try (Socket leaderClient = connect(leaderPort)) {
+        StringBuilder commands = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+          commands.append("ADD key").append(i % 50).append(" member").append(i).append('\n');
+        }
+        commands.append("REMOVE key1 member1\nREMOVEALL key2\n");
+        send(leaderClient, commands.toString());
+        receive(leaderClient, 502);
+        Set<String> items = items(leaderClient);
+        assertEquals(489, items.size());
+
+        for (int followerPort : followerPorts) {
+          try (Socket followerClient = connect(followerPort)) {
+            await("the follower process has every item", () -> items(followerClient).equals(items));
+            send(followerClient, "ADD key member\n");
+            assertEquals(App.READ_ONLY_ERROR + "\n\n", receive(followerClient, 1));
+            send(followerClient, "INFO replication\n");
+            String info = receive(followerClient, 1);
+            assertTrue(info.contains("role:follower\n"), info);
+            assertTrue(info.contains("state:streaming\n"), info);
+            assertTrue(info.contains("full_syncs:1\n"), info);
+          }
+        }
+        await(
+            "both followers have acknowledged everything",
+            () -> {
+              String info = command(leaderClient, "INFO replication");
+              return info.contains("connected_followers:2\n")
+                  && info.split("lag_records=0,").length == 3;
+            });
+        String info = command(leaderClient, "INFO");
+        assertTrue(info.startsWith("# Memory\n"), info);
+        assertTrue(info.contains("# Replication\nrole:leader\n"), info);
+        assertTrue(info.contains("last_seq:502\n"), info);
+      }
+
+      for (Process process : processes) {
+        OutputStream input = process.getOutputStream();
+        input.write("EXIT\n".getBytes(StandardCharsets.UTF_8));
+        input.flush();
+      }
+      for (Process process : processes) {
+        assertTrue(process.waitFor(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+      }
+    } finally {
+      for (Process process : processes) {
+        process.destroyForcibly();
+      }
+    }
+  }
+
+  // The ITEMS reply without the numbering, which depends on the iteration order
+  private static Set<String> items(Socket socket) {
+    Set<String> items = new TreeSet<>();
+    for (String line : command(socket, "ITEMS").split("\n")) {
+      if (!line.isEmpty() && !line.equals(App.EMPTY_SET_MESSAGE)) {
+        items.add(line.substring(line.indexOf(") ") + 2));
+      }
+    }
+    return items;
+  }
+}
@@ -0,0 +1,136 @@
+package multivaluedictionaryapp;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+public class ReverseIndexTest {
+
+  @TempDir Path dir;
+
+  // Member to keys, worked out from the dictionary itself
+  private static Map<String, Set<String>> scan(MultiValueDictionary dict) {
+    Map<String, Set<String>> keysByMember = new HashMap<>();
+    dict.forEachItem(
+        (key, member) -> keysByMember.computeIfAbsent(member, m -> new HashSet<>()).add(key));
+    return keysByMember;
+  }
+
+  private static void assertIndexMatches(MultiValueDictionary dict, int members) {
+    Map<String, Set<String>> expected = scan(dict);
+    assertEquals(expected.size(), dict.getReverseIndex().size());
+    for (int m = 0; m < members; m++) {
+      String member = "member" + m;
+      assertEquals(expected.getOrDefault(member, Set.of()), dict.getKeysFor(member));
+    }
+  }
+
+  @ParameterizedTest
+  @EnumSource(StorageMode.class)
+  void testIndexFollowsEveryMutation(StorageMode mode) {
+    MultiValueDictionary dict = new MultiValueDictionary(mode);
+    dict.tryAdd("key0", "member0");
+    dict.setReverseIndexEnabled(true);
+    Random random = new Random(11);
+    for (int i = 0; i < 20_000; i++) {
+      String key = "key" + random.nextInt(30);
+      String member = "member" + random.nextInt(40);
+      int op = random.nextInt(20);
+      if (op < 10) {
+        dict.tryAdd(key, member);
+      } else if (op < 16) {
+        dict.tryRemoveMember(key, member);
+      } else if (op < 17) {
+        dict.tryAddMembers(key, List.of(member, "member" + random.nextInt(40)));
+      } else if (op < 18) {
+        dict.tryRemoveMembers(key, List.of(member, "member" + random.nextInt(40)));
+      } else if (op < 19 || i % 1000 != 0) {
+        dict.tryRemoveAll(key);
+      } else {
+        dict.clearMap();
+      }
+    }
+    assertIndexMatches(dict, 40);
+  }
+
+  @Test
+  void testIndexIsRebuiltOnLoad() throws Exception {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    dict.tryAdd("key1", "member1");
+    dict.tryAdd("key2", "member1");
+    Path snapshot = dir.resolve("dict.snap");
+    dict.save(snapshot);
+    dict.setReverseIndexEnabled(true);
+    dict.tryAdd("key3", "member1");
+    dict.tryAdd("key3", "member2");
+
+    dict.load(snapshot);
+    assertEquals(Set.of("key1", "key2"), dict.getKeysFor("member1"));
+    dict.tryRemoveMember("key1", "member1");
+    assertEquals(Set.of("key2"), dict.getKeysFor("member1"));
+    assertIndexMatches(dict, 3);
+  }
+
+  @Test
+  void testSwitchingOffFallsBackToScan() {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    dict.setReverseIndexEnabled(true);
+    dict.tryAdd("key1", "member1");
+    dict.setReverseIndexEnabled(false);
+    assertEquals(null, dict.getReverseIndex());
+    dict.tryAdd("key2", "member1");
+    assertEquals(Set.of("key1", "key2"), dict.getKeysFor("member1"));
+    assertEquals(Set.of(), dict.getKeysFor("member2"));
+
+    dict.setReverseIndexEnabled(true);
+    assertEquals(Set.of("key1", "key2"), dict.getKeysFor("member1"));
+  }
+
+  @Test
+  void testConcurrentWritersKeepIndexConsistent() throws Exception {
+    ConcurrentMultiValueDictionary dict = new ConcurrentMultiValueDictionary();
+    dict.setReverseIndexEnabled(true);
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      Future<?>[] writers = new Future<?>[4];
+      for (int t = 0; t < writers.length; t++) {
+        int seed = t;
+        writers[t] =
+            pool.submit(
+                () -> {
+                  Random random = new Random(seed);
+                  for (int i = 0; i < 20_000; i++) {
+                    // every thread works on the same members through different keys
+                    String key = "key" + random.nextInt(50);
+                    String member = "member" + random.nextInt(10);
+                    if (random.nextInt(3) > 0) {
+                      dict.tryAdd(key, member);
+                    } else {
+                      dict.tryRemoveMember(key, member);
+                    }
+                  }
+                });
+      }
+      for (Future<?> writer : writers) {
+        writer.get(1, TimeUnit.MINUTES);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    assertIndexMatches(dict, 10);
+  }
+}
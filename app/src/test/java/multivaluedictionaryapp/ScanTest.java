@@ -0,0 +1,153 @@
+package multivaluedictionaryapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class ScanTest {
+
+  private static List<String> scanAllKeys(MultiValueDictionary dict, int count) {
+    List<String> keys = new ArrayList<>();
+    String cursor = ScanResult.DONE;
+    do {
+      ScanResult<String> batch = dict.scanKeys(cursor, count);
+      assertTrue(batch.items().size() <= count);
+      keys.addAll(batch.items());
+      cursor = batch.cursor();
+    } while (!cursor.equals(ScanResult.DONE));
+    return keys;
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void testScanReturnsEveryKeyOnce(boolean keyIndex) {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    dict.setKeyIndexEnabled(keyIndex);
+    assertEquals(List.of(), scanAllKeys(dict, 10));
+    for (int i = 0; i < 1000; i++) {
+      dict.tryAdd("key" + i, "member");
+    }
+    for (int count : new int[] {1, 7, 10, 1000, 5000}) {
+      List<String> keys = scanAllKeys(dict, count);
+      assertEquals(1000, keys.size());
+      assertEquals(dict.getKeys(), new HashSet<>(keys));
+    }
+  }
+
+  // Keys present for the whole scan come back exactly once while others come and go and the
+  // map grows from 1k to 51k keys
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void testScanWhileModifiedAndResized(boolean keyIndex) {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    dict.setKeyIndexEnabled(keyIndex);
+    Set<String> stable = new HashSet<>();
+    for (int i = 0; i < 1000; i++) {
+      dict.tryAdd("stable" + i, "member");
+      stable.add("stable" + i);
+      dict.tryAdd("doomed" + i, "member");
+    }
+    List<String> seen = new ArrayList<>();
+    String cursor = ScanResult.DONE;
+    int round = 0;
+    do {
+      ScanResult<String> batch = dict.scanKeys(cursor, 20);
+      seen.addAll(batch.items());
+      cursor = batch.cursor();
+      for (int i = 0; i < 500; i++) {
+        dict.tryAdd("added" + round + "-" + i, "member");
+      }
+      dict.tryRemoveAll("doomed" + round);
+      round++;
+    } while (!cursor.equals(ScanResult.DONE));
+
+    assertTrue(dict.getKeys().size() > 50_000);
+    assertEquals(seen.size(), new HashSet<>(seen).size());
+    assertTrue(seen.containsAll(stable));
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void testItemScanSplitsLargeKeys(boolean keyIndex) {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    dict.setKeyIndexEnabled(keyIndex);
+    Set<Map.Entry<String, String>> expected = new HashSet<>();
+    for (int k = 0; k < 20; k++) {
+      // from 1 to 96 members, so batches start and end inside keys
+      for (int m = 0; m <= k * 5; m++) {
+        dict.tryAdd("key" + k, "member" + m);
+        expected.add(Map.entry("key" + k, "member" + m));
+      }
+    }
+    List<Map.Entry<String, String>> seen = new ArrayList<>();
+    String cursor = ScanResult.DONE;
+    do {
+      ScanResult<Map.Entry<String, String>> batch = dict.scanItems(cursor, 7);
+      assertTrue(batch.items().size() <= 7);
+      seen.addAll(batch.items());
+      cursor = batch.cursor();
+      // members added to the key the cursor stopped in may or may not be seen
+      if (!batch.items().isEmpty()) {
+        dict.tryAdd(batch.items().get(batch.items().size() - 1).getKey(), "member999");
+      }
+    } while (!cursor.equals(ScanResult.DONE));
+    assertEquals(seen.size(), new HashSet<>(seen).size());
+    assertTrue(seen.containsAll(expected));
+  }
+
+  @Test
+  void testScanOnConcurrentDictionary() {
+    ConcurrentMultiValueDictionary dict = new ConcurrentMultiValueDictionary();
+    for (int i = 0; i < 100; i++) {
+      dict.tryAddMembers("key" + i, List.of("a", "b"));
+    }
+    assertEquals(100, scanAllKeys(dict, 9).size());
+    assertEquals(200, dict.scanItems(ScanResult.DONE, 500).items().size());
+  }
+
+  @Test
+  void testCursorIsValidated() {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    assertThrows(IllegalArgumentException.class, () -> dict.scanKeys("not a cursor!", 10));
+    assertThrows(IllegalArgumentException.class, () -> dict.scanKeys("AAAA", 10));
+    assertThrows(IllegalArgumentException.class, () -> dict.scanKeys(ScanResult.DONE, 0));
+    String cursor = ScanResult.encode("k\u00e4y", "m");
+    assertEquals(List.of("k\u00e4y", "m"), List.of(ScanResult.decode(cursor)));
+  }
+
+  @Test
+  void testScanCommands() {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    dict.tryAddMembers("key1", List.of("a", "b"));
+    dict.tryAdd("key2", "c");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes);
+    App.execute(dict, "SCAN 0 1", out, out);
+    String first = bytes.toString().trim().replace(System.lineSeparator(), "\n");
+    String cursor = first.substring(first.indexOf("cursor ") + 7, first.length() - 1);
+    assertEquals("1) key1\n(next cursor " + cursor + ")", first);
+
+    bytes.reset();
+    App.execute(dict, "SCAN " + cursor, out, out);
+    App.execute(dict, "ISCAN 0", out, out);
+    App.execute(dict, "SCAN bad", out, out);
+    App.execute(dict, "SCAN 0 -1", out, out);
+    assertEquals(
+        "1) key2\n(next cursor 0)\n1) key1: a\n2) key1: b\n3) key2: c\n(next cursor 0)\n"
+            + ScanResult.INVALID_CURSOR_ERROR
+            + "\n"
+            + App.COUNT_ERROR,
+        bytes.toString().trim().replace(System.lineSeparator(), "\n"));
+  }
+}
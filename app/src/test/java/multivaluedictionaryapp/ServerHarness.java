@@ -0,0 +1,127 @@
+package multivaluedictionaryapp;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * What the tests of servers share: App processes started with the java of the test run, and
+ * client sockets that send command lines and read replies ended by an empty line.
+ */
+final class ServerHarness {
+
+  private ServerHarness() {}
+
+  static Process startApp(String... args) throws Exception {
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    command.add("-cp");
+    command.add(
+        Paths.get(App.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+            .toString());
+    command.add(App.class.getName());
+    command.addAll(List.of(args));
+    return new ProcessBuilder(command).redirectErrorStream(true).start();
+  }
+
+  static BufferedReader output(Process process) {
+    return new BufferedReader(
+        new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+  }
+
+  // Skips output until a line with the prefix and returns the rest of that line
+  static String awaitLine(BufferedReader output, String prefix) throws IOException {
+    String line;
+    while ((line = output.readLine()) != null) {
+      if (line.startsWith(prefix)) {
+        return line.substring(prefix.length());
+      }
+    }
+    fail("The process ended before printing " + prefix);
+    return null;
+  }
+
+  // Reads the rest of the output in the background, a process blocks once its pipe is full
+  static void drain(BufferedReader output) {
+    Thread drainer =
+        new Thread(
+            () -> {
+              try {
+                while (output.readLine() != null) {
+                  // not needed by the test
+                }
+              } catch (IOException e) {
+                // the process is gone
+              }
+            },
+            "output-drainer");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  // The port of the "Listening on port N, type EXIT to stop." line, then drains the output
+  static int awaitPort(BufferedReader output) throws IOException {
+    String listening = awaitLine(output, "Listening on port ");
+    assertNotNull(listening);
+    drain(output);
+    return Integer.parseInt(listening.substring(0, listening.indexOf(',')));
+  }
+
+  static Socket connect(int port) throws IOException {
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+    socket.setSoTimeout(10_000);
+    return socket;
+  }
+
+  static void send(Socket socket, String text) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    out.write(text.getBytes(StandardCharsets.UTF_8));
+    out.flush();
+  }
+
+  // Reads until the given number of replies (each ended by an empty line) or the end of stream
+  static String receive(Socket socket, int replies) throws IOException {
+    InputStream in = socket.getInputStream();
+    ByteArrayOutputStream text = new ByteArrayOutputStream();
+    boolean lineStart = true;
+    int b;
+    while (replies > 0 && (b = in.read()) >= 0) {
+      if (b == '\r') {
+        continue;
+      }
+      text.write(b);
+      if (b == '\n') {
+        if (lineStart) {
+          replies--;
+        }
+        lineStart = true;
+      } else {
+        lineStart = false;
+      }
+    }
+    return text.toString(StandardCharsets.UTF_8);
+  }
+
+  // One command and its reply, unchecked so that it can be polled from a lambda
+  static String command(Socket socket, String line) {
+    try {
+      send(socket, line + "\n");
+      return receive(socket, 1);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
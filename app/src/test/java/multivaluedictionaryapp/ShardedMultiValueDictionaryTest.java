@@ -0,0 +1,403 @@
+package multivaluedictionaryapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ShardedMultiValueDictionaryTest {
+
+  @TempDir Path dir;
+
+  private ShardedMultiValueDictionary dict;
+
+  @BeforeEach
+  void setUp() {
+    dict = new ShardedMultiValueDictionary(4);
+  }
+
+  @AfterEach
+  void tearDown() {
+    dict.close();
+  }
+
+  @Test
+  void testOutcomesMatchMultiValueDictionary() {
+    MultiValueDictionary plain = new MultiValueDictionary();
+    Random random = new Random(7);
+    for (int i = 0; i < 20_000; i++) {
+      String key = "key" + random.nextInt(200);
+      String member = "member" + random.nextInt(8);
+      switch (random.nextInt(5)) {
+        case 0:
+        case 1:
+          assertEquals(plain.tryAdd(key, member), dict.tryAdd(key, member));
+          break;
+        case 2:
+          assertEquals(plain.tryRemoveMember(key, member), dict.tryRemoveMember(key, member));
+          break;
+        case 3:
+          assertEquals(plain.findMember(key, member), dict.findMember(key, member));
+          break;
+        default:
+          if (random.nextInt(20) == 0) {
+            assertEquals(plain.tryRemoveAll(key), dict.tryRemoveAll(key));
+          }
+          assertEquals(plain.findMembers(key), dict.findMembers(key));
+          break;
+      }
+    }
+    assertEquals(plain.getMap(), dict.snapshot());
+    assertEquals(plain.getKeys(), dict.getKeys());
+    assertEquals(new HashSet<>(plain.getItems()), new HashSet<>(dict.getItems()));
+    assertEquals(plain.getAllMembers().size(), dict.getAllMembers().size());
+    assertEquals(plain.getKeyCount(), dict.getKeyCount());
+    assertEquals(plain.getMemoryStats().estimatedBytes(), dict.getMemoryStats().estimatedBytes());
+    assertEquals(plain.getKeysFor("member3"), dict.getKeysFor("member3"));
+    assertEquals(plain.getKeysWithPrefix("key1", 15), dict.getKeysWithPrefix("key1", 15));
+    List<String> keys = List.of("key1", "key2", "key3", "missing");
+    List<String> members = List.of("member1", "member2", "member3", "member1");
+    assertEquals(plain.findMemberPairs(keys, members), dict.findMemberPairs(keys, members));
+
+    dict.clearMap();
+    assertTrue(dict.getKeys().isEmpty());
+    assertEquals(0, dict.getMemoryStats().keyCount());
+  }
+
+  @Test
+  void testConcurrentWritersLoseNothing() throws Exception {
+    int threads = 8;
+    int perThread = 5_000;
+    List<Thread> writers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      String member = "writer" + t;
+      writers.add(
+          new Thread(
+              () -> {
+                for (int i = 0; i < perThread; i++) {
+                  dict.tryAdd("key" + (i % 100), member + "-" + i);
+                }
+              }));
+    }
+    writers.forEach(Thread::start);
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    assertEquals(threads * perThread, dict.getItems().size());
+    assertEquals(100, dict.getKeyCount());
+    assertEquals(threads * perThread, dict.getMemoryStats().itemCount());
+  }
+
+  @Test
+  void testListenersHearEveryShardAndOneClear() {
+    AtomicLong adds = new AtomicLong();
+    AtomicLong clears = new AtomicLong();
+    dict.addMutationListener(
+        new MutationListener() {
+          @Override
+          public void onAdd(String key, String member) {
+            adds.incrementAndGet();
+          }
+
+          @Override
+          public void onRemove(String key, String member) {}
+
+          @Override
+          public void onRemoveAll(String key, Set<String> members) {}
+
+          @Override
+          public void onClear() {
+            clears.incrementAndGet();
+          }
+        });
+    for (int i = 0; i < 100; i++) {
+      dict.tryAdd("key" + i, "member");
+    }
+    dict.clearMap();
+    assertEquals(100, adds.get());
+    assertEquals(1, clears.get());
+  }
+
+  @Test
+  void testFailuresReachTheCallerAndTheShardCarriesOn() {
+    AtomicReference<String> poisoned = new AtomicReference<>("bad");
+    dict.addMutationListener(
+        new MutationListener() {
+          @Override
+          public void onAdd(String key, String member) {
+            if (key.equals(poisoned.get())) {
+              throw new IllegalStateException("listener failed");
+            }
+          }
+
+          @Override
+          public void onRemove(String key, String member) {}
+
+          @Override
+          public void onRemoveAll(String key, Set<String> members) {}
+
+          @Override
+          public void onClear() {}
+        });
+    assertThrows(IllegalStateException.class, () -> dict.tryAdd("bad", "member"));
+    assertEquals(Outcome.OK, dict.tryAdd("good", "member"));
+    assertTrue(dict.isKeyExists("good"));
+  }
+
+  @Test
+  void testSaveLoadAndIndexes() throws Exception {
+    for (int i = 0; i < 500; i++) {
+      dict.tryAddMembers("key" + i, List.of("a", "b" + (i % 3)));
+    }
+    Path snapshot = dir.resolve("snapshot");
+    dict.save(snapshot);
+
+    try (ShardedMultiValueDictionary loaded = new ShardedMultiValueDictionary(3)) {
+      loaded.setKeyIndexEnabled(true);
+      loaded.setReverseIndexEnabled(true);
+      loaded.tryAdd("gone", "after load");
+      loaded.load(snapshot);
+      assertEquals(dict.snapshot(), loaded.snapshot());
+      assertFalse(loaded.isKeyExists("gone"));
+      assertEquals(500, loaded.getMemoryStats().keyCount());
+      assertEquals(List.of("key10", "key100", "key101"), loaded.getKeysWithPrefix("key10", 3));
+      assertEquals(167, loaded.getKeysFor("b1").size());
+      ScanResult<String> first = loaded.scanKeys(ScanResult.DONE, 2);
+      assertEquals(List.of("key0", "key1"), first.items());
+    }
+  }
+
+  @Test
+  void testSaveWhileWritersRunKeepsTheirRecordsInTheLog() throws Exception {
+    Path log = dir.resolve("dict.log");
+    Path snapshot = dir.resolve("dict.snapshot");
+    // large enough that writers run while each snapshot is being written
+    for (int i = 0; i < 100_000; i++) {
+      dict.add("bulk" + (i % 1_000), "member" + i);
+    }
+    WriteAheadLog wal = WriteAheadLog.open(log, dict, WriteAheadLog.FsyncPolicy.OS, 0);
+    List<Thread> writers = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      writers.add(
+          new Thread(
+              () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 20_000; i++) {
+                  String key = "key" + random.nextInt(50);
+                  String member = "member" + random.nextInt(20);
+                  if (random.nextBoolean()) {
+                    dict.tryAdd(key, member);
+                  } else {
+                    dict.tryRemoveMember(key, member);
+                  }
+                }
+              }));
+    }
+    writers.forEach(Thread::start);
+    for (int i = 0; i < 5; i++) {
+      dict.save(snapshot);
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    wal.close();
+
+    MultiValueDictionary restored = new MultiValueDictionary();
+    WriteAheadLog.open(log, restored, WriteAheadLog.FsyncPolicy.OS, 0).close();
+    assertEquals(dict.snapshot(), restored.getMap());
+  }
+
+  @Test
+  void testClearAndLoadWhileWritersRunAreLoggedBeforeLaterChanges() throws Exception {
+    Path log = dir.resolve("dict.log");
+    Path snapshot = dir.resolve("dict.snapshot");
+    dict.tryAdd("saved", "member");
+    dict.save(snapshot);
+    WriteAheadLog wal = WriteAheadLog.open(log, dict, WriteAheadLog.FsyncPolicy.OS, 0);
+    List<Thread> writers = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      writers.add(
+          new Thread(
+              () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 20_000; i++) {
+                  dict.tryAdd("key" + random.nextInt(50), "member" + random.nextInt(20));
+                }
+              }));
+    }
+    writers.forEach(Thread::start);
+    for (int i = 0; i < 20; i++) {
+      if (i % 2 == 0) {
+        dict.clearMap();
+      } else {
+        dict.load(snapshot);
+      }
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    wal.close();
+
+    MultiValueDictionary restored = new MultiValueDictionary();
+    WriteAheadLog.open(log, restored, WriteAheadLog.FsyncPolicy.OS, 0).close();
+    assertEquals(dict.snapshot(), restored.getMap());
+  }
+
+  @Test
+  void testScansMergeTheShardsInKeyOrder() {
+    MultiValueDictionary plain = new MultiValueDictionary();
+    for (int i = 0; i < 200; i++) {
+      List<String> members = List.of("m" + (i % 7), "n" + (i % 3));
+      dict.tryAddMembers("key" + i, members);
+      plain.tryAddMembers("key" + i, members);
+    }
+    List<String> keys = new ArrayList<>();
+    String cursor = ScanResult.DONE;
+    do {
+      ScanResult<String> batch = dict.scanKeys(cursor, 7);
+      assertTrue(batch.items().size() <= 7);
+      keys.addAll(batch.items());
+      cursor = batch.cursor();
+    } while (!cursor.equals(ScanResult.DONE));
+    assertEquals(plain.getKeyRange("", null, Integer.MAX_VALUE), keys);
+
+    List<String> items = new ArrayList<>();
+    List<String> expected = new ArrayList<>();
+    do {
+      ScanResult<Map.Entry<String, String>> batch = dict.scanItems(cursor, 5);
+      for (Map.Entry<String, String> item : batch.items()) {
+        items.add(item.getKey() + ": " + item.getValue());
+      }
+      ScanResult<Map.Entry<String, String>> same = plain.scanItems(cursor, 5);
+      for (Map.Entry<String, String> item : same.items()) {
+        expected.add(item.getKey() + ": " + item.getValue());
+      }
+      assertEquals(same.cursor(), batch.cursor());
+      cursor = batch.cursor();
+    } while (!cursor.equals(ScanResult.DONE));
+    assertEquals(expected, items);
+    assertEquals(400, items.size());
+
+    assertEquals(plain.getKeysWithPrefix("key1", 5), dict.getKeysWithPrefix("key1", 5));
+    assertThrows(IllegalArgumentException.class, () -> dict.scanKeys("!", 5));
+  }
+
+  @Test
+  void testTtlsArePerShard() {
+    AtomicLong now = new AtomicLong();
+    dict.setExpiryClock(now::get);
+    dict.tryAdd("short", "member");
+    dict.tryAdd("long", "member");
+    assertEquals(Outcome.OK, dict.expire("short", 10));
+    assertEquals(Outcome.OK, dict.expire("long", 1_000));
+    now.set(100);
+    assertFalse(dict.isKeyExists("short"));
+    assertEquals(900, dict.getTtl("long"));
+    assertTrue(dict.persist("long"));
+    assertEquals(ExpiryTable.NO_TTL, dict.getTtl("long"));
+  }
+
+  @Test
+  void testClosedDictionaryRejectsCalls() {
+    dict.tryAdd("key", "member");
+    dict.close();
+    assertThrows(IllegalStateException.class, () -> dict.isKeyExists("key"));
+    // closing again does nothing
+    dict.close();
+    assertThrows(IllegalArgumentException.class, () -> new ShardedMultiValueDictionary(0));
+  }
+
+  @Test
+  void testCommandsFanOut() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes);
+    for (String line :
+        new String[] {"ADD a 1", "ADD b 2", "ADD c 3", "KEYS", "DBSIZE", "CLEAR", "DBSIZE"}) {
+      App.execute(dict, line, out, out);
+    }
+    String[] replies = bytes.toString().split(System.lineSeparator());
+    Set<String> keys = new HashSet<>(List.of(replies).subList(3, 6));
+    assertEquals(Set.of("1) a", "2) b", "3) c").size(), keys.size());
+    assertEquals("3", replies[6]);
+    assertEquals("Cleared", replies[7]);
+    assertEquals("0", replies[8]);
+
+    MultiValueDictionary sharded = App.newDictionary(new String[] {"--shards", "2"});
+    assertTrue(sharded instanceof ShardedMultiValueDictionary);
+    ((ShardedMultiValueDictionary) sharded).close();
+    assertFalse(App.newDictionary(new String[0]) instanceof ShardedMultiValueDictionary);
+  }
+
+  // Visited on the shard threads and paged through the view, never copied whole
+  @Test
+  void testWholeDictionaryViews() {
+    Map<String, Set<String>> expected = new HashMap<>();
+    for (int i = 0; i < 10_000; i++) {
+      for (int m = 0; m <= i % 3; m++) {
+        dict.tryAdd("key" + i, "member" + m);
+        expected.computeIfAbsent("key" + i, k -> new HashSet<>()).add("member" + m);
+      }
+    }
+    Map<String, Set<String>> visited = new HashMap<>();
+    Set<String> threads = new HashSet<>();
+    dict.forEachItem(
+        (key, member) -> {
+          threads.add(Thread.currentThread().getName());
+          assertTrue(visited.computeIfAbsent(key, k -> new HashSet<>()).add(member));
+        });
+    assertEquals(expected, visited);
+    assertEquals(Set.of("shard-0", "shard-1", "shard-2", "shard-3"), threads);
+
+    Map<String, Set<String>> view = dict.getMap();
+    assertEquals(expected, new HashMap<>(view));
+    assertEquals(expected.size(), view.size());
+    assertEquals(Set.of("member0", "member1"), view.get("key1"));
+    assertFalse(view.containsKey("missing"));
+    assertEquals(expected.hashCode(), dict.hashCode());
+
+    try (ShardedMultiValueDictionary other = new ShardedMultiValueDictionary(3)) {
+      for (Map.Entry<String, Set<String>> entry : expected.entrySet()) {
+        for (String member : entry.getValue()) {
+          other.tryAdd(entry.getKey(), member);
+        }
+      }
+      assertEquals(dict, other);
+      assertEquals(dict.hashCode(), other.hashCode());
+      // as many items, one of them different
+      other.tryRemoveMember("key5", "member0");
+      other.tryAdd("key5", "member9");
+      assertFalse(dict.equals(other));
+    }
+  }
+
+  @Test
+  void testFindMembersReturnsACopy() {
+    dict.tryAdd("key", "member");
+    Set<String> members = dict.findMembers("key");
+    dict.tryAdd("key", "other");
+    assertEquals(Set.of("member"), members);
+    assertNull(dict.findMembers("missing"));
+    BitSet added = dict.tryAddMembers("key", List.of("other", "third"));
+    assertEquals(1, added.cardinality());
+  }
+}
@@ -0,0 +1,331 @@
+package multivaluedictionaryapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+public class SnapshotTest {
+
+  @TempDir Path dir;
+
+  private static Map<String, Set<String>> fill(MultiValueDictionary dict, int keys, int members)
+      throws MemberAlreadyExistsException {
+    Map<String, Set<String>> expected = new HashMap<>();
+    for (int k = 0; k < keys; k++) {
+      for (int m = 0; m < members; m++) {
+        dict.add("key" + k, "member" + (k + m));
+        expected.computeIfAbsent("key" + k, key -> new HashSet<>()).add("member" + (k + m));
+      }
+    }
+    return expected;
+  }
+
+  @ParameterizedTest
+  @EnumSource(StorageMode.class)
+  void testRoundTrip(StorageMode mode) throws Exception {
+    MultiValueDictionary dict = new MultiValueDictionary(mode);
+    Map<String, Set<String>> expected = fill(dict, 200, 5);
+    dict.add("k\u00e4y", "");
+    expected.put("k\u00e4y", Set.of(""));
+    Path file = dir.resolve("dict.snap");
+    dict.save(file);
+
+    MultiValueDictionary loaded = new MultiValueDictionary(mode);
+    loaded.load(file);
+    assertEquals(expected, loaded.getMap());
+    assertTrue(loaded.isMemberExistsWithinAKey("key7", "member9"));
+    assertFalse(loaded.isMemberExistsWithinAKey("key7", "member6"));
+    assertFalse(loaded.isKeyExists("key200"));
+    assertEquals(Set.of(""), loaded.getMembers("k\u00e4y"));
+  }
+
+  @Test
+  void testEmptyDictionary() throws Exception {
+    Path file = dir.resolve("empty.snap");
+    new MultiValueDictionary().save(file);
+    MultiValueDictionary loaded = new MultiValueDictionary();
+    loaded.load(file);
+    assertTrue(loaded.getKeys().isEmpty());
+    assertFalse(loaded.isKeyExists("key"));
+  }
+
+  @Test
+  void testMutationsAfterLoad() throws Exception {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    Map<String, Set<String>> expected = fill(dict, 10, 3);
+    Path file = dir.resolve("dict.snap");
+    dict.save(file);
+    MultiValueDictionary loaded = new MultiValueDictionary();
+    loaded.load(file);
+
+    loaded.add("key1", "extra");
+    expected.get("key1").add("extra");
+    loaded.removeMemberFromKey("key2", "member2");
+    expected.get("key2").remove("member2");
+    loaded.removeAllMemberOfKey("key3");
+    expected.remove("key3");
+    loaded.add("key3", "back");
+    expected.put("key3", new HashSet<>(Set.of("back")));
+    loaded.add("new", "member");
+    expected.put("new", new HashSet<>(Set.of("member")));
+    assertThrows(MemberAlreadyExistsException.class, () -> loaded.add("key4", "member4"));
+    assertEquals(expected, loaded.getMap());
+    assertEquals(expected.size(), loaded.getKeys().size());
+
+    loaded.clearMap();
+    assertTrue(loaded.getMap().isEmpty());
+    assertFalse(loaded.isKeyExists("key5"));
+  }
+
+  @Test
+  void testSaveOverTheLoadedSnapshot() throws Exception {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    Map<String, Set<String>> expected = fill(dict, 50, 2);
+    Path file = dir.resolve("dict.snap");
+    dict.save(file);
+    dict.load(file);
+    dict.add("key0", "more");
+    expected.get("key0").add("more");
+    dict.save(file);
+
+    MultiValueDictionary loaded = new MultiValueDictionary();
+    loaded.load(file);
+    assertEquals(expected, loaded.getMap());
+  }
+
+  @Test
+  void testConcurrentDictionarySavesAndLoads() throws Exception {
+    ConcurrentMultiValueDictionary dict = new ConcurrentMultiValueDictionary();
+    Map<String, Set<String>> expected = fill(dict, 20, 2);
+    Path file = dir.resolve("dict.snap");
+    dict.save(file);
+    MultiValueDictionary loaded = new MultiValueDictionary();
+    loaded.load(file);
+    assertEquals(dict.snapshot(), loaded.getMap());
+
+    dict.add("key0", "more");
+    dict.add("new", "member");
+    dict.removeAllMemberOfKey("key1");
+    dict.load(file);
+    assertEquals(expected, dict.snapshot());
+    assertEquals(20, dict.getKeyCount());
+    assertFalse(dict.isKeyExists("new"));
+    dict.add("new", "member");
+    assertEquals(21, dict.getKeys().size());
+  }
+
+  @Test
+  void testConcurrentDictionaryCheckpointIsReplayed() throws Exception {
+    Path log = dir.resolve("dict.log");
+    Path snapshot = dir.resolve("dict.snap");
+    ConcurrentMultiValueDictionary dict = new ConcurrentMultiValueDictionary();
+    Map<String, Set<String>> expected;
+    try (WriteAheadLog wal = WriteAheadLog.open(log, dict, WriteAheadLog.FsyncPolicy.OS, 0)) {
+      expected = fill(dict, 100, 3);
+      dict.save(snapshot);
+      dict.add("after", "save");
+      dict.removeAllMemberOfKey("key0");
+      expected.put("after", Set.of("save"));
+      expected.remove("key0");
+    }
+
+    ConcurrentMultiValueDictionary restored = new ConcurrentMultiValueDictionary();
+    WriteAheadLog.open(log, restored, WriteAheadLog.FsyncPolicy.OS, 0).close();
+    assertEquals(expected, restored.snapshot());
+  }
+
+  @Test
+  void testNotASnapshot() throws Exception {
+    Path file = dir.resolve("dict.log");
+    Files.write(file, new byte[100]);
+    assertThrows(IOException.class, () -> new MultiValueDictionary().load(file));
+  }
+
+  // A damaged header must fail the LOAD, not loop in find() or throw past App's handler
+  @Test
+  void testCorruptHeadersAreRefused() throws Exception {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    fill(dict, 100, 3);
+    Path good = dir.resolve("good.snap");
+    dict.save(good);
+    byte[] bytes = Files.readAllBytes(good);
+    List<byte[]> corrupt = new ArrayList<>();
+    corrupt.add(Arrays.copyOf(bytes, 20));
+    corrupt.add(Arrays.copyOf(bytes, bytes.length / 2));
+    corrupt.add(Arrays.copyOf(bytes, bytes.length - 1));
+    // index capacity not a power of two, then as small as the key count
+    corrupt.add(withInt(bytes, 20, 255));
+    corrupt.add(withInt(bytes, 20, 64));
+    corrupt.add(withInt(bytes, 20, 0));
+    // key count, index and stats positions outside the file
+    corrupt.add(withInt(bytes, 16, -1));
+    corrupt.add(withLong(bytes, 8, Long.MAX_VALUE / 2));
+    corrupt.add(withLong(bytes, 24, bytes.length));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PrintStream printer = new PrintStream(out, true);
+    for (int i = 0; i < corrupt.size(); i++) {
+      Path file = dir.resolve("corrupt" + i + ".snap");
+      Files.write(file, corrupt.get(i));
+      assertThrows(IOException.class, () -> new MultiValueDictionary().load(file), "file " + i);
+      App.execute(dict, "LOAD " + file, printer, printer);
+    }
+    assertEquals(100, dict.getKeys().size());
+    assertFalse(out.toString().contains("Loaded"));
+  }
+
+  private static byte[] withInt(byte[] bytes, int position, int value) {
+    byte[] copy = bytes.clone();
+    ByteBuffer.wrap(copy).putInt(position, value);
+    return copy;
+  }
+
+  private static byte[] withLong(byte[] bytes, int position, long value) {
+    byte[] copy = bytes.clone();
+    ByteBuffer.wrap(copy).putLong(position, value);
+    return copy;
+  }
+
+  @Test
+  void testSaveCheckpointsTheWriteAheadLog() throws Exception {
+    Path log = dir.resolve("dict.log");
+    Path snapshot = dir.resolve("dict.snap");
+    MultiValueDictionary dict = new MultiValueDictionary();
+    Map<String, Set<String>> expected;
+    try (WriteAheadLog wal =
+        WriteAheadLog.open(log, dict, WriteAheadLog.FsyncPolicy.ALWAYS, 0)) {
+      expected = fill(dict, 1000, 3);
+      long before = Files.size(log);
+      dict.save(snapshot);
+      assertTrue(Files.size(log) < before);
+      dict.add("after", "save");
+      expected.put("after", Set.of("save"));
+    }
+
+    MultiValueDictionary restored = new MultiValueDictionary();
+    WriteAheadLog.open(log, restored, WriteAheadLog.FsyncPolicy.OS, 0).close();
+    assertEquals(expected, restored.getMap());
+  }
+
+  @Test
+  void testLoadIsLoggedAndReplayed() throws Exception {
+    MultiValueDictionary source = new MultiValueDictionary();
+    Map<String, Set<String>> expected = fill(source, 10, 2);
+    Path snapshot = dir.resolve("dict.snap");
+    source.save(snapshot);
+
+    Path log = dir.resolve("dict.log");
+    MultiValueDictionary dict = new MultiValueDictionary();
+    try (WriteAheadLog wal = WriteAheadLog.open(log, dict, WriteAheadLog.FsyncPolicy.OS, 0)) {
+      dict.add("before", "load");
+      dict.load(snapshot);
+      dict.removeAllMemberOfKey("key0");
+      expected.remove("key0");
+    }
+
+    MultiValueDictionary restored = new MultiValueDictionary();
+    WriteAheadLog.open(log, restored, WriteAheadLog.FsyncPolicy.OS, 0).close();
+    assertEquals(expected, restored.getMap());
+  }
+
+  // Replay reads the log's own copies, not the files SAVE and LOAD named
+  @Test
+  void testReplayOutlivesTheNamedSnapshots() throws Exception {
+    MultiValueDictionary source = new MultiValueDictionary();
+    Map<String, Set<String>> expected = fill(source, 10, 2);
+    Path loaded = dir.resolve("loaded.snap");
+    source.save(loaded);
+    Path saved = dir.resolve("saved.snap");
+
+    Path log = dir.resolve("dict.log");
+    MultiValueDictionary dict = new MultiValueDictionary();
+    try (WriteAheadLog wal = WriteAheadLog.open(log, dict, WriteAheadLog.FsyncPolicy.OS, 0)) {
+      dict.load(loaded);
+      dict.add("after", "load");
+      dict.save(saved);
+      dict.save(saved);
+      dict.add("after", "save");
+      expected.put("after", Set.of("load", "save"));
+    }
+    // overwritten in place, and deleted
+    new MultiValueDictionary().save(dir.resolve("empty.snap"));
+    Files.write(loaded, Files.readAllBytes(dir.resolve("empty.snap")));
+    Files.delete(saved);
+
+    MultiValueDictionary restored = new MultiValueDictionary();
+    WriteAheadLog.open(log, restored, WriteAheadLog.FsyncPolicy.OS, 0).close();
+    assertEquals(expected, restored.getMap());
+    // the copy of the loaded file and the first SAVE are no longer named by the log
+    try (Stream<Path> files = Files.list(dir)) {
+      assertEquals(
+          1, files.filter(f -> f.getFileName().toString().endsWith(".snapshot")).count());
+    }
+  }
+
+  @Test
+  void testAppSaveAndLoadCommands() {
+    ByteArrayOutputStream sysOut = new ByteArrayOutputStream();
+    PrintStream originalOut = System.out;
+    System.setOut(new PrintStream(sysOut));
+    try {
+      MultiValueDictionary dict = new MultiValueDictionary();
+      App.handleAddCommand(dict, new String[] {"ADD", "key", "value"});
+      String file = dir.resolve("app.snap").toString();
+      App.handleSaveCommand(dict, new String[] {"SAVE", file});
+      App.handleClearCommand(dict, new String[] {"CLEAR"});
+      App.handleLoadCommand(dict, new String[] {"LOAD", file});
+      App.handleLoadCommand(dict, new String[] {"LOAD"});
+      assertEquals(Map.of("key", Set.of("value")), dict.getMap());
+    } finally {
+      System.setOut(originalOut);
+    }
+    assertEquals(
+        "Added\nSaved\nCleared\nLoaded\n"
+            + "Error, missing or redundant parameter, please use 'LOAD file'.",
+        sysOut.toString().trim().replace(System.lineSeparator(), "\n"));
+  }
+
+  @Test
+  void testServedSaveAndLoadStayInsideTheDataDirectory() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PrintStream printer = new PrintStream(out, true);
+    MultiValueDictionary dict = new MultiValueDictionary();
+    dict.add("key", "value");
+    App.setDataDirectory(dir.resolve("data"));
+    try {
+      Files.createDirectories(dir.resolve("data"));
+      App.execute(dict, "SAVE app.snap", printer, printer);
+      App.execute(dict, "SAVE ../outside.snap", printer, printer);
+      App.execute(dict, "LOAD " + dir.resolve("app.snap"), printer, printer);
+      App.execute(dict, "LOAD sub/../app.snap", printer, printer);
+    } finally {
+      App.setDataDirectory(null);
+    }
+    String error = String.format(App.DATA_DIR_ERROR, dir.resolve("data").toAbsolutePath());
+    assertEquals(
+        "Saved\n" + error + "\n" + error + "\nLoaded\n",
+        out.toString().replace(System.lineSeparator(), "\n"));
+    assertTrue(Files.exists(dir.resolve("data").resolve("app.snap")));
+    assertFalse(Files.exists(dir.resolve("outside.snap")));
+  }
+}
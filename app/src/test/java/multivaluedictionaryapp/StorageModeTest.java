@@ -0,0 +1,211 @@
+package multivaluedictionaryapp;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+public class StorageModeTest {
+
+  @ParameterizedTest
+  @EnumSource(StorageMode.class)
+  void testSemanticsMatchAcrossStorageModes(StorageMode mode) throws Exception {
+    MultiValueDictionary dict = new MultiValueDictionary(mode);
+    dict.add("key1", "value1");
+    dict.add("key1", "value2");
+    dict.add("key2", "value1");
+    assertThrows(MemberAlreadyExistsException.class, () -> dict.add("key1", "value1"));
+
+    assertEquals(Set.of("value1", "value2"), dict.getMembers("key1"));
+    assertTrue(dict.isMemberExistsWithinAKey("key2", "value1"));
+    assertFalse(dict.isMemberExistsWithinAKey("key2", "value2"));
+    assertFalse(dict.isMemberExistsWithinAKey("key2", "neverSeen"));
+    assertThrows(KeyNotFoundException.class, () -> dict.getMembers("value1"));
+    assertEquals(Set.of("key1", "key2"), dict.getKeys());
+    assertEquals(3, dict.getItems().size());
+    assertTrue(dict.getItems().contains("key2: value1"));
+
+    dict.removeMemberFromKey("key1", "value1");
+    assertThrows(MembersNotFoundException.class, () -> dict.removeMemberFromKey("key1", "value1"));
+    dict.removeMemberFromKey("key2", "value1");
+    assertFalse(dict.isKeyExists("key2"));
+    dict.removeAllMemberOfKey("key1");
+    assertTrue(dict.getMap().isEmpty());
+
+    dict.add("key3", "value3");
+    dict.clearMap();
+    assertTrue(dict.getKeys().isEmpty());
+    assertEquals(new MultiValueDictionary(), dict);
+  }
+
+  @ParameterizedTest
+  @EnumSource(StorageMode.class)
+  void testBulkOperationsAcrossStorageModes(StorageMode mode) {
+    MultiValueDictionary dict = new MultiValueDictionary(mode);
+    dict.tryAdd("key1", "b");
+    BitSet added = dict.tryAddMembers("key1", List.of("a", "b", "c", "a"));
+    assertEquals(BitSet.valueOf(new long[] {0b0101}), added);
+    assertEquals(Set.of("a", "b", "c"), dict.findMembers("key1"));
+
+    BitSet found =
+        dict.findMemberPairs(
+            List.of("key1", "key1", "key2", "key1"), List.of("a", "d", "a", "c"));
+    assertEquals(BitSet.valueOf(new long[] {0b1001}), found);
+
+    assertEquals(null, dict.tryRemoveMembers("key2", List.of("a")));
+    assertEquals(
+        BitSet.valueOf(new long[] {0b101}), dict.tryRemoveMembers("key1", List.of("a", "d", "b")));
+    assertEquals(
+        BitSet.valueOf(new long[] {0b10}), dict.tryRemoveMembers("key1", List.of("x", "c", "c")));
+    assertFalse(dict.isKeyExists("key1"));
+    assertTrue(dict.getMap().isEmpty());
+  }
+
+  @ParameterizedTest
+  @EnumSource(StorageMode.class)
+  void testRandomOperationsMatchReferenceModel(StorageMode mode) throws Exception {
+    MultiValueDictionary dict = new MultiValueDictionary(mode);
+    Map<String, Set<String>> reference = new HashMap<>();
+    Random random = new Random(42);
+    for (int i = 0; i < 50_000; i++) {
+      String key = "key" + random.nextInt(50);
+      String member = "member" + random.nextInt(40);
+      if (random.nextInt(3) > 0) {
+        boolean added = reference.computeIfAbsent(key, k -> new HashSet<>()).add(member);
+        try {
+          dict.add(key, member);
+          assertTrue(added);
+        } catch (MemberAlreadyExistsException e) {
+          assertFalse(added);
+        }
+      } else if (reference.containsKey(key) && reference.get(key).remove(member)) {
+        if (reference.get(key).isEmpty()) {
+          reference.remove(key);
+        }
+        dict.removeMemberFromKey(key, member);
+      }
+    }
+    assertEquals(reference, dict.getMap());
+  }
+
+  @Test
+  void testCompactSetPromotesPastThresholdAndKeepsContracts() throws Exception {
+    CompactMemberSet set = new CompactMemberSet(3);
+    assertTrue(set.add("a"));
+    assertTrue(set.add("b"));
+    assertFalse(set.add("a"));
+    assertTrue(set.add("c"));
+    assertTrue(set.isPacked());
+    assertTrue(set.add("d"));
+    assertFalse(set.isPacked());
+    assertEquals(Set.of("a", "b", "c", "d"), set);
+    assertTrue(set.remove("a"));
+    assertFalse(set.remove("a"));
+    assertEquals(Set.of("b", "c", "d"), set);
+
+    MultiValueDictionary dict = new MultiValueDictionary(StorageMode.COMPACT, 2);
+    dict.add("key", "a");
+    dict.add("key", "b");
+    dict.add("key", "c");
+    dict.removeMemberFromKey("key", "b");
+    assertEquals(Set.of("a", "c"), dict.getMembers("key"));
+    dict.removeMemberFromKey("key", "a");
+    dict.removeMemberFromKey("key", "c");
+    assertFalse(dict.isKeyExists("key"));
+    assertThrows(
+        IllegalArgumentException.class, () -> new MultiValueDictionary(StorageMode.COMPACT, -1));
+  }
+
+  @Test
+  void testInternedStorageForgetsStringsNoLongerUsed() throws Exception {
+    InternedMemberMap map = new InternedMemberMap();
+    MultiValueDictionary dict = new MultiValueDictionary(map);
+    dict.add("kept", "shared");
+    for (int round = 0; round < 20; round++) {
+      // short-lived sessions, every one with its own key and tokens
+      for (int i = 0; i < 500; i++) {
+        dict.add("session-" + round + "-" + i, "shared");
+        dict.add("session-" + round + "-" + i, "token-" + round + "-" + i);
+        dict.add("session-" + round + "-" + i, "token-" + round + "-" + i + "b");
+      }
+      assertEquals(2 + 500 * 3, map.symbolCount());
+      for (int i = 0; i < 500; i++) {
+        String key = "session-" + round + "-" + i;
+        if (i % 2 == 0) {
+          dict.removeAllMemberOfKey(key);
+        } else {
+          dict.removeMemberFromKey(key, "token-" + round + "-" + i);
+          dict.removeMemberFromKey(key, "token-" + round + "-" + i + "b");
+          dict.removeMemberFromKey(key, "shared");
+        }
+      }
+      assertEquals(2, map.symbolCount());
+    }
+    assertEquals(Set.of("shared"), dict.getMembers("kept"));
+    dict.add("session", "token");
+    assertEquals(Set.of("kept", "session"), dict.getKeys());
+    assertEquals(Set.of("token"), dict.getMembers("session"));
+    assertFalse(dict.isMemberExistsWithinAKey("kept", "token-3-3"));
+  }
+
+  @Test
+  void testOffHeapStorageReusesFreedBlocks() throws Exception {
+    OffHeapMemberMap map = new OffHeapMemberMap();
+    MultiValueDictionary dict = new MultiValueDictionary(map);
+    for (int round = 0; round < 20; round++) {
+      for (int i = 0; i < 5_000; i++) {
+        dict.add("key" + (i % 500), "member" + i);
+      }
+      assertEquals(500, dict.getKeys().size());
+      for (int i = 0; i < 500; i++) {
+        dict.removeAllMemberOfKey("key" + i);
+      }
+      assertTrue(dict.getMap().isEmpty());
+    }
+    long reserved = map.offHeapBytes();
+    for (int i = 0; i < 5_000; i++) {
+      dict.add("key" + (i % 500), "member" + i);
+    }
+    assertEquals(reserved, map.offHeapBytes());
+    assertEquals(10, dict.getMembers("key7").size());
+    assertTrue(dict.isMemberExistsWithinAKey("key7", "member4507"));
+  }
+
+  @Test
+  void testOffHeapViewOfRemovedKeyDoesNotReachReusedBlock() throws Exception {
+    OffHeapMemberMap map = new OffHeapMemberMap();
+    MultiValueDictionary dict = new MultiValueDictionary(map);
+    dict.add("old", "a");
+    dict.add("old", "b");
+    Set<String> stale = map.get("old");
+    dict.removeAllMemberOfKey("old");
+    // same length, so the freed blocks go to the new key's records
+    dict.add("new", "c");
+    assertEquals(0, stale.size());
+    assertFalse(stale.contains("c"));
+    assertFalse(stale.iterator().hasNext());
+    assertFalse(stale.remove("c"));
+    assertThrows(IllegalStateException.class, () -> stale.add("d"));
+    assertEquals(Set.of("c"), dict.getMembers("new"));
+
+    // a re-added key gets a new record, the old view stays detached
+    dict.add("old", "e");
+    assertEquals(0, stale.size());
+    Set<String> live = map.get("new");
+    map.clear();
+    dict.add("new", "f");
+    assertFalse(live.contains("f"));
+    assertEquals(Set.of("f"), dict.getMembers("new"));
+  }
+}
@@ -0,0 +1,158 @@
+package multivaluedictionaryapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class WorkloadReplayTest {
+
+  @TempDir Path dir;
+
+  private static List<String> lines(Path file) throws IOException {
+    List<String> lines = new ArrayList<>();
+    try (CommandCapture.Reader reader = CommandCapture.Reader.open(file)) {
+      while (reader.next()) {
+        lines.add(reader.nanos() + " " + reader.line());
+      }
+    }
+    return lines;
+  }
+
+  @Test
+  void testCaptureRoundTrip() throws IOException {
+    Path file = dir.resolve("capture");
+    try (CommandCapture capture = CommandCapture.create(file)) {
+      capture.record(1_000, "ADD k\u00e4y m");
+      capture.record(1_000, "MEMBERS k\u00e4y");
+      capture.record(5_000_000_000L, "");
+    }
+    assertEquals(List.of("0 ADD k\u00e4y m", "0 MEMBERS k\u00e4y", "4999999000 "), lines(file));
+    // header, then per line a delta of 1 byte (5 for 5 s), a length of 1 and the UTF-8 text
+    assertEquals(8 + (1 + 1 + 10) + (1 + 1 + 12) + (5 + 1), Files.size(file));
+  }
+
+  @Test
+  void testTruncatedCaptureStopsAtTheLastWholeLine() throws IOException {
+    Path file = dir.resolve("capture");
+    try (CommandCapture capture = CommandCapture.create(file)) {
+      capture.record(0, "ADD key member");
+      capture.record(10, "ADD key other");
+    }
+    byte[] bytes = Files.readAllBytes(file);
+    Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+    assertEquals(List.of("0 ADD key member"), lines(file));
+    Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+    assertThrows(IOException.class, () -> CommandCapture.Reader.open(file));
+  }
+
+  @Test
+  void testCapturedSessionReplaysToTheSameContents() throws IOException {
+    Path file = dir.resolve("capture");
+    MultiValueDictionary original = new MultiValueDictionary();
+    PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+    App.startCapture(file);
+    try {
+      Random random = new Random(11);
+      for (int i = 0; i < 2_000; i++) {
+        String key = "key" + random.nextInt(50);
+        String member = "member" + random.nextInt(10);
+        String command = random.nextInt(3) == 0 ? "REMOVE " : "ADD ";
+        App.execute(original, command + key + " " + member, discard, discard);
+      }
+    } finally {
+      App.stopCapture();
+    }
+    // no longer captured
+    App.execute(original, "ADD after capture", discard, discard);
+    assertEquals(2_000, lines(file).size());
+
+    MultiValueDictionary replayed = new MultiValueDictionary();
+    WorkloadReplay.Report report = WorkloadReplay.replay(replayed, file, 0);
+    assertEquals(2_000, report.commands());
+    original.tryRemoveAll("after");
+    assertEquals(Set.copyOf(original.getItems()), Set.copyOf(replayed.getItems()));
+    assertTrue(report.percentileNanos(0.5) <= report.maxNanos());
+  }
+
+  @Test
+  void testReplayKeepsTheOriginalPace() throws IOException {
+    Path file = dir.resolve("capture");
+    try (CommandCapture capture = CommandCapture.create(file)) {
+      for (int i = 0; i < 20; i++) {
+        capture.record(i * 10_000_000L, "ADD key member" + i);
+      }
+      capture.record(190_000_001L, "EXIT");
+      capture.record(190_000_002L, "ADD never replayed");
+    }
+    MultiValueDictionary dict = new MultiValueDictionary();
+    WorkloadReplay.Report report = WorkloadReplay.replay(dict, file, 1);
+    assertEquals(21, report.commands());
+    assertTrue(report.elapsedNanos() >= 190_000_000L);
+    assertFalse(dict.isKeyExists("never"));
+    // twice as fast
+    report = WorkloadReplay.replay(new MultiValueDictionary(), file, 2);
+    assertTrue(report.elapsedNanos() >= 95_000_000L && report.elapsedNanos() < 190_000_000L);
+  }
+
+  @Test
+  void testZipfianRanksFollowThePowerLaw() {
+    ZipfianGenerator zipf = new ZipfianGenerator(1_000, 0.99, new Random(3));
+    int[] counts = new int[1_000];
+    int draws = 1_000_000;
+    for (int i = 0; i < draws; i++) {
+      counts[(int) zipf.next()]++;
+    }
+    double zeta = 0;
+    for (int rank = 1; rank <= 1_000; rank++) {
+      zeta += 1 / Math.pow(rank, 0.99);
+    }
+    for (int rank : new int[] {0, 1, 9, 99}) {
+      double expected = draws / Math.pow(rank + 1, 0.99) / zeta;
+      assertEquals(expected, counts[rank], expected * 0.1 + 30, "rank " + rank);
+    }
+    assertThrows(IllegalArgumentException.class, () -> new ZipfianGenerator(10, 1, new Random()));
+  }
+
+  @Test
+  void testGenerateAndReplayOptions() throws IOException {
+    Path file = dir.resolve("workload");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes);
+    App.generateWorkload(
+        file.toString(),
+        new String[] {"--commands", "10000", "--keys", "100", "--rate", "0"},
+        out,
+        out);
+    List<String> lines = lines(file);
+    assertEquals(10_000, lines.size());
+    assertTrue(lines.stream().allMatch(line -> line.startsWith("0 ")));
+    long hottest = lines.stream().filter(line -> line.contains(" key0")).count();
+    long coldest = lines.stream().filter(line -> line.contains(" key99")).count();
+    assertTrue(hottest > 10 * coldest);
+
+    App.replayWorkload(file.toString(), new String[] {"--speed", "max"}, out, out);
+    App.replayWorkload(file.toString(), new String[] {"--speed", "fast"}, out, out);
+    App.replayWorkload(dir.resolve("missing").toString(), new String[0], out, out);
+    String[] report = bytes.toString().split(System.lineSeparator());
+    assertEquals("Generated 10000 commands on 100 keys into " + file, report[0]);
+    assertTrue(report[1].startsWith("10000 commands in "), report[1]);
+    assertTrue(report[2].startsWith("latency usec p50 "), report[2]);
+    assertTrue(report[3].startsWith("Error, invalid replay option: "), report[3]);
+    assertTrue(report[4].startsWith("Error, cannot replay the capture: "), report[4]);
+  }
+}
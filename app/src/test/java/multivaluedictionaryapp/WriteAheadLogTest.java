@@ -0,0 +1,169 @@
+package multivaluedictionaryapp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class WriteAheadLogTest {
+
+  @TempDir Path dir;
+
+  @Test
+  void testReplayRestoresEveryMutationType() throws Exception {
+    Path file = dir.resolve("dict.log");
+    MultiValueDictionary dict = new MultiValueDictionary();
+    try (WriteAheadLog log =
+        WriteAheadLog.open(file, dict, WriteAheadLog.FsyncPolicy.ALWAYS, 0)) {
+      dict.add("gone", "x");
+      dict.clearMap();
+      dict.add("key1", "value1");
+      dict.add("key1", "v\u00e4lue2");
+      dict.add("key2", "value3");
+      dict.add("key3", "value4");
+      dict.removeMemberFromKey("key1", "value1");
+      dict.removeAllMemberOfKey("key3");
+    }
+
+    MultiValueDictionary restored = new MultiValueDictionary();
+    WriteAheadLog.open(file, restored, WriteAheadLog.FsyncPolicy.OS, 0).close();
+    assertEquals(
+        Map.of("key1", Set.of("v\u00e4lue2"), "key2", Set.of("value3")), restored.getMap());
+  }
+
+  @Test
+  void testTornTailIsDroppedAndOverwritten() throws Exception {
+    Path file = dir.resolve("dict.log");
+    MultiValueDictionary dict = new MultiValueDictionary();
+    try (WriteAheadLog log = WriteAheadLog.open(file, dict, WriteAheadLog.FsyncPolicy.OS, 0)) {
+      dict.add("key1", "value1");
+      dict.add("key1", "value2");
+    }
+    // a crash halfway through the second record
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 3);
+    }
+
+    MultiValueDictionary restored = new MultiValueDictionary();
+    try (WriteAheadLog log =
+        WriteAheadLog.open(file, restored, WriteAheadLog.FsyncPolicy.OS, 0)) {
+      assertEquals(Map.of("key1", Set.of("value1")), restored.getMap());
+      restored.add("key2", "value3");
+    }
+
+    MultiValueDictionary again = new MultiValueDictionary();
+    WriteAheadLog.open(file, again, WriteAheadLog.FsyncPolicy.OS, 0).close();
+    assertEquals(Map.of("key1", Set.of("value1"), "key2", Set.of("value3")), again.getMap());
+  }
+
+  @Test
+  void testReplayOverSnapshotWrittenBeforeCrashAtCheckpoint() throws Exception {
+    Path file = dir.resolve("dict.log");
+    Path snapshot = dir.resolve("dict.snapshot");
+    MultiValueDictionary dict = new MultiValueDictionary();
+    try (WriteAheadLog log = WriteAheadLog.open(file, dict, WriteAheadLog.FsyncPolicy.OS, 0)) {
+      dict.add("key1", "value1");
+      dict.save(snapshot);
+      dict.add("key1", "value2");
+      dict.add("key2", "value3");
+      dict.removeMemberFromKey("key1", "value1");
+      dict.add("key3", "value4");
+      dict.removeAllMemberOfKey("key3");
+      // the next SAVE renames its snapshot into place, then the process dies before the log
+      // checkpoint, so the whole log is replayed over a snapshot that already holds it
+      SnapshotFile.write(dict.getMap(), snapshot);
+    }
+
+    MultiValueDictionary restored = new MultiValueDictionary();
+    WriteAheadLog.open(file, restored, WriteAheadLog.FsyncPolicy.OS, 0).close();
+    assertEquals(dict.getMap(), restored.getMap());
+  }
+
+  @Test
+  void testConcurrentWritersShareFsyncs() throws Exception {
+    Path file = dir.resolve("dict.log");
+    ConcurrentMultiValueDictionary dict = new ConcurrentMultiValueDictionary();
+    int threads = 8;
+    int addsPerThread = 500;
+    long syncs;
+    try (WriteAheadLog log =
+        WriteAheadLog.open(file, dict, WriteAheadLog.FsyncPolicy.ALWAYS, 0)) {
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      for (int t = 0; t < threads; t++) {
+        int thread = t;
+        executor.submit(
+            () -> {
+              for (int i = 0; i < addsPerThread; i++) {
+                dict.add("key" + (i % 10), thread + "-" + i);
+              }
+              return null;
+            });
+      }
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+      syncs = log.syncCount();
+    }
+    assertTrue(syncs < threads * addsPerThread);
+
+    MultiValueDictionary restored = new MultiValueDictionary();
+    WriteAheadLog.open(file, restored, WriteAheadLog.FsyncPolicy.OS, 0).close();
+    assertEquals(dict.snapshot(), restored.getMap());
+  }
+
+  @Test
+  void testIntervalPolicyNeedsPositiveInterval() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            WriteAheadLog.open(
+                dir.resolve("dict.log"),
+                new MultiValueDictionary(),
+                WriteAheadLog.FsyncPolicy.INTERVAL,
+                0));
+  }
+
+  @Test
+  void testAppendFailsOnceTheLogCannotBeWritten() throws Exception {
+    Path file = dir.resolve("dict.log");
+    MultiValueDictionary dict = new MultiValueDictionary();
+    WriteAheadLog log = WriteAheadLog.open(file, dict, WriteAheadLog.FsyncPolicy.OS, 0);
+    dict.add("k", "a");
+    // the checkpoint after SAVE cannot create its temporary file
+    Files.createDirectory(dir.resolve("dict.log.tmp"));
+    dict.save(dir.resolve("dict.snapshot"));
+    assertThrows(
+        UncheckedIOException.class,
+        () -> {
+          for (int i = 0; i < 1_000; i++) {
+            dict.add("k", "m" + i);
+            Thread.sleep(10);
+          }
+        });
+    assertThrows(IOException.class, log::close);
+  }
+
+  @Test
+  void testAppOpensLogFromCommandLineOptions() throws IOException {
+    MultiValueDictionary dict = new MultiValueDictionary();
+    assertEquals(null, App.openWriteAheadLog(dict, new String[0]));
+    String path = dir.resolve("app.log").toString();
+    try (WriteAheadLog log =
+        App.openWriteAheadLog(dict, new String[] {"--wal", path, "--fsync", "os"})) {
+      assertTrue(log != null);
+    }
+    assertTrue(Files.exists(dir.resolve("app.log")));
+  }
+}